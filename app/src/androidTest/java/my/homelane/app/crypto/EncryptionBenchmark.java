@@ -0,0 +1,184 @@
+package my.homelane.app.crypto;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.*;
+
+/**
+ * What encryption at rest costs: a 10 MB image written and read through
+ * {@link ChunkedCipher} next to the same file copied in plain, and note texts
+ * sealed and opened one by one. Reports milliseconds per MB on top of plain
+ * I/O, and microseconds per note, to the log and the instrumentation status.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EncryptionBenchmark {
+
+    private static final String TAG = EncryptionBenchmark.class.getSimpleName();
+
+    private static final int IMAGE_MB = 10;
+    private static final int RUNS = 5;
+    private static final int NOTES = 2000;
+    private static final int NOTE_CHARS = 200;
+
+    private File directory;
+    private SecretKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        directory = new File(context.getCacheDir(), "encryption_benchmark");
+        directory.mkdirs();
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        key = generator.generateKey();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void imageThroughput() throws IOException {
+        File plain = new File(directory, "plain");
+        byte[] chunk = new byte[1024 * 1024];
+        Random random = new Random(1);
+        OutputStream out = new FileOutputStream(plain);
+        try {
+            for (int i = 0; i < IMAGE_MB; i++) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+
+        File copy = new File(directory, "copy");
+        File encrypted = new File(directory, "encrypted");
+        long[] copyNanos = new long[RUNS];
+        long[] encryptNanos = new long[RUNS];
+        long[] decryptNanos = new long[RUNS];
+        long[] readNanos = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            copy(new FileInputStream(plain), new FileOutputStream(copy));
+            copyNanos[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            copy(new FileInputStream(plain), ChunkedCipher.encrypt(key, new FileOutputStream(encrypted)));
+            encryptNanos[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long plainBytes = copy(new FileInputStream(copy), null);
+            readNanos[run] = System.nanoTime() - start;
+            assertEquals(plain.length(), plainBytes);
+
+            start = System.nanoTime();
+            long decryptedBytes = copy(ChunkedCipher.decrypt(key, new FileInputStream(encrypted)), null);
+            decryptNanos[run] = System.nanoTime() - start;
+            assertEquals(plain.length(), decryptedBytes);
+        }
+
+        double encryptOverhead = (median(encryptNanos) - median(copyNanos)) / 1e6 / IMAGE_MB;
+        double decryptOverhead = (median(decryptNanos) - median(readNanos)) / 1e6 / IMAGE_MB;
+        Log.i(TAG, String.format("%d MB: copy %.1f ms, encrypt %.1f ms (+%.2f ms/MB), read %.1f ms,"
+                        + " decrypt %.1f ms (+%.2f ms/MB)", IMAGE_MB, median(copyNanos) / 1e6,
+                median(encryptNanos) / 1e6, encryptOverhead, median(readNanos) / 1e6,
+                median(decryptNanos) / 1e6, decryptOverhead));
+
+        Bundle status = new Bundle();
+        status.putDouble("copy_ms_per_mb", median(copyNanos) / 1e6 / IMAGE_MB);
+        status.putDouble("encrypt_overhead_ms_per_mb", encryptOverhead);
+        status.putDouble("read_ms_per_mb", median(readNanos) / 1e6 / IMAGE_MB);
+        status.putDouble("decrypt_overhead_ms_per_mb", decryptOverhead);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void noteTextPerNote() throws Exception {
+        Random random = new Random(2);
+        byte[][] texts = new byte[NOTES][];
+        for (int i = 0; i < NOTES; i++) {
+            char[] chars = new char[NOTE_CHARS];
+            for (int c = 0; c < chars.length; c++) {
+                chars[c] = (char) ('a' + random.nextInt(26));
+            }
+            texts[i] = new String(chars).getBytes("UTF-8");
+        }
+
+        byte[][] sealed = new byte[NOTES][];
+        long start = System.nanoTime();
+        for (int i = 0; i < NOTES; i++) {
+            sealed[i] = FieldCipher.seal(key, texts[i]);
+        }
+        long sealNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < NOTES; i++) {
+            assertTrue(Arrays.equals(texts[i], FieldCipher.open(key, sealed[i])));
+        }
+        long openNanos = System.nanoTime() - start;
+
+        Log.i(TAG, String.format("%d notes of %d chars: seal %.1f us, open %.1f us per note",
+                NOTES, NOTE_CHARS, sealNanos / 1e3 / NOTES, openNanos / 1e3 / NOTES));
+        Bundle status = new Bundle();
+        status.putDouble("seal_us_per_note", sealNanos / 1e3 / NOTES);
+        status.putDouble("open_us_per_note", openNanos / 1e3 / NOTES);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    // closes both; reads to the end when there is nowhere to write
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        long total = 0;
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                if (out != null) {
+                    out.write(buffer, 0, n);
+                }
+                total += n;
+            }
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+        return total;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
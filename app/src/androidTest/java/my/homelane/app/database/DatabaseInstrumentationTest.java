@@ -0,0 +1,100 @@
+package my.homelane.app.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import my.homelane.app.database.model.Note;
+
+import static org.junit.Assert.*;
+
+/**
+ * What the data layer reads, as counted by the debug instrumentation.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseInstrumentationTest {
+
+    private static final String DATABASE = "instrumentation_test";
+
+    private Context context;
+    private DatabaseHelper db;
+    private DatabaseInstrumentation instrumentation;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE);
+        instrumentation = db.getInstrumentation();
+        assertNotNull("tests run against a debug build", instrumentation);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void listPagesReadNoBlobs() {
+        StringBuilder report = new StringBuilder();
+        while (report.length() < 10000) {
+            report.append("Measured the north wall, damp in the corner. ");
+        }
+        long id = db.insertNote(report.toString());
+        db.insertNote("Short note");
+
+        instrumentation.reset();
+        List<Note> page = db.getNotesAfter(NoteQuery.ALL, null, 50);
+        assertEquals(2, page.size());
+        assertEquals(1, instrumentation.getQueries());
+        assertEquals(2, instrumentation.getRowsRead());
+        assertEquals(0, instrumentation.getBlobBytesRead());
+
+        // opening the long note inflates its deflated body
+        instrumentation.reset();
+        assertEquals(report.toString(), db.getNote(id).getNote());
+        assertTrue(instrumentation.getBlobBytesRead() > 0);
+        assertTrue(instrumentation.getBlobBytesRead() < report.length());
+    }
+
+    @Test
+    public void missingNoteLeavesNoCursorOpen() {
+        long open = instrumentation.getOpenCursors();
+        assertNull(db.getNote(12345));
+        assertEquals(open, instrumentation.getOpenCursors());
+    }
+
+    @Test
+    public void unclosedCursorIsReported() throws InterruptedException {
+        db.insertNote("Note");
+        instrumentation.reset();
+        leakCursor();
+        for (int i = 0; i < 20 && instrumentation.getLeakedCursors() == 0; i++) {
+            System.gc();
+            System.runFinalization();
+            Thread.sleep(50);
+        }
+        assertEquals(1, instrumentation.getLeakedCursors());
+    }
+
+    private void leakCursor() {
+        Cursor cursor = db.getReadableDatabase().rawQuery("SELECT * FROM " + Note.TABLE_NAME, null);
+        assertTrue(cursor.moveToFirst());
+    }
+
+    @Test
+    public void explainShowsIndex() {
+        String plan = DatabaseInstrumentation.explain(db.getReadableDatabase(),
+                "SELECT id FROM " + Note.TABLE_NAME + " WHERE " + Note.COLUMN_UUID + " = ?");
+        assertTrue(plan, plan.contains("INDEX"));
+    }
+}
@@ -0,0 +1,121 @@
+package my.homelane.app.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.Random;
+
+import my.homelane.app.database.model.Note;
+
+import static org.junit.Assert.*;
+
+/**
+ * Database size and list load time for a corpus of long site reports, stored
+ * deflated with a preview against stored as plain text.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NoteCompressionBenchmark {
+
+    private static final String TAG = NoteCompressionBenchmark.class.getSimpleName();
+
+    private static final int NOTES = 300;
+    private static final int REPORT_WORDS = 3000;
+    private static final int LIST_LOADS = 5;
+
+    private static final String[] WORDS = {
+            "kitchen", "wall", "measured", "plumbing", "checked", "north", "cabinet", "2.4m", "socket",
+            "damp", "window", "client", "approved", "tiles", "ceiling", "replace", "quote", "floor",
+            "site", "visit", "electrician", "pending", "door", "hinge", "paint", "corner", "crack"};
+
+    private Context context;
+    private DatabaseHelper compressed;
+    private DatabaseHelper plain;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase("benchmark_compressed");
+        context.deleteDatabase("benchmark_plain");
+        compressed = new DatabaseHelper(context, "benchmark_compressed");
+        plain = new DatabaseHelper(context, "benchmark_plain");
+    }
+
+    @After
+    public void tearDown() {
+        compressed.close();
+        plain.close();
+        context.deleteDatabase("benchmark_compressed");
+        context.deleteDatabase("benchmark_plain");
+    }
+
+    @Test
+    public void longNotes() {
+        Random random = new Random(42);
+        for (int i = 0; i < NOTES; i++) {
+            String report = report(random, i);
+            compressed.insertNote(report);
+
+            // what insertNote wrote before long notes were compressed
+            ContentValues values = new ContentValues();
+            values.put(Note.COLUMN_NOTE, report);
+            plain.getWritableDatabase().insert(Note.TABLE_NAME, null, values);
+        }
+
+        long compressedBytes = databaseBytes(compressed, "benchmark_compressed");
+        long plainBytes = databaseBytes(plain, "benchmark_plain");
+        long compressedLoad = listLoadMillis(compressed);
+        long plainLoad = listLoadMillis(plain);
+
+        List<Note> notes = compressed.getAllNotes();
+        assertEquals(NOTES, notes.size());
+        Note listed = notes.get(0);
+        assertFalse(listed.isTextLoaded());
+        assertTrue(listed.getPreview().length() <= 200);
+
+        long start = SystemClock.elapsedRealtime();
+        Note opened = compressed.getNote(listed.getId());
+        long openMillis = SystemClock.elapsedRealtime() - start;
+        assertTrue(opened.getNote().startsWith(listed.getPreview()));
+        assertEquals(plain.getNote(listed.getId()).getNote(), opened.getNote());
+
+        Log.i(TAG, String.format("%d notes: database %d KB compressed, %d KB plain; "
+                        + "list load %d ms compressed, %d ms plain; opening one note %d ms",
+                NOTES, compressedBytes / 1024, plainBytes / 1024, compressedLoad, plainLoad, openMillis));
+        assertTrue(compressedBytes < plainBytes);
+    }
+
+    private static String report(Random random, int index) {
+        StringBuilder report = new StringBuilder("Site report " + index + ": ");
+        for (int i = 0; i < REPORT_WORDS; i++) {
+            report.append(WORDS[random.nextInt(WORDS.length)]);
+            report.append(i % 12 == 11 ? ".\n" : " ");
+        }
+        return report.toString();
+    }
+
+    private long listLoadMillis(DatabaseHelper db) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < LIST_LOADS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            db.getAllNotes();
+            best = Math.min(best, SystemClock.elapsedRealtime() - start);
+        }
+        return best;
+    }
+
+    private long databaseBytes(DatabaseHelper db, String name) {
+        // settle the journal into the main file first
+        db.getWritableDatabase().execSQL("VACUUM");
+        return context.getDatabasePath(name).length();
+    }
+}
@@ -0,0 +1,184 @@
+package my.homelane.app.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.format.DateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import my.homelane.app.database.model.Note;
+import my.homelane.app.database.model.Tag;
+
+import static org.junit.Assert.*;
+
+/**
+ * Every sort and filter of the list, through every query the list runs for
+ * it: none may scan a table, build a temporary index or sort its rows, with
+ * or without statistics from ANALYZE. Also walks each list page by page to
+ * check the pages and the count agree.
+ */
+@RunWith(AndroidJUnit4.class)
+public class QueryPlanTest {
+
+    private static final String DATABASE = "query_plan_test";
+    private static final int NOTES = 600;
+    private static final int PAGE = 50;
+    // every this many notes has an image, and every this many is tagged
+    private static final int IMAGE_EVERY = 5;
+    private static final int TAG_EVERY = 3;
+
+    private static final int[] SORTS = {NoteQuery.SORT_CREATED, NoteQuery.SORT_UPDATED, NoteQuery.SORT_TEXT};
+
+    private Context context;
+    private DatabaseHelper db;
+    private DatabaseInstrumentation instrumentation;
+    private long tagId;
+    private long now;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE);
+        instrumentation = db.getInstrumentation();
+        assertNotNull("tests run against a debug build", instrumentation);
+
+        now = System.currentTimeMillis();
+        SQLiteDatabase database = db.getWritableDatabase();
+        tagId = db.addTag("Client A");
+        database.beginTransaction();
+        try {
+            SQLiteStatement insert = database.compileStatement("INSERT INTO " + Note.TABLE_NAME + " ("
+                    + Note.COLUMN_NOTE + ", " + Note.COLUMN_TIMESTAMP + ", " + Note.COLUMN_UPDATED_AT + ", "
+                    + Note.COLUMN_IMAGE_HASH + ", " + Note.COLUMN_SORT_KEY + ", " + Note.COLUMN_UUID
+                    + ") VALUES (?, ?, ?, ?, ?, lower(hex(randomblob(16))))");
+            for (int i = 0; i < NOTES; i++) {
+                String text = "Room " + (i * 7919 % NOTES);
+                // two notes written in each of the last 300 days, some edited long after
+                long created = now - (i / 2) * DateUtils.DAY_IN_MILLIS;
+                insert.bindString(1, text);
+                insert.bindString(2, NoteQuery.toTimestamp(created));
+                insert.bindLong(3, created + (i % 7) * 20 * DateUtils.DAY_IN_MILLIS);
+                if (i % IMAGE_EVERY == 0) {
+                    insert.bindString(4, "image" + i);
+                } else {
+                    insert.bindNull(4);
+                }
+                insert.bindString(5, DatabaseHelper.sortKey(text));
+                insert.executeInsert();
+            }
+            insert.close();
+            database.execSQL("INSERT INTO " + Tag.JOIN_TABLE_NAME + " SELECT " + tagId + ", id, timestamp, deleted"
+                    + " FROM " + Note.TABLE_NAME + " WHERE id % " + TAG_EVERY + " = 0");
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void plansUseIndexes() {
+        checkAllPlans();
+        db.getWritableDatabase().execSQL("ANALYZE");
+        checkAllPlans();
+    }
+
+    @Test
+    public void pagesMatchCount() {
+        for (NoteQuery query : allQueries()) {
+            int count = db.getNotesCount(query);
+            Set<Integer> seen = new HashSet<>();
+            Note anchor = null;
+            List<Note> page;
+            do {
+                page = db.getNotesAfter(query, anchor, PAGE);
+                for (Note note : page) {
+                    assertTrue(query + " lists note " + note.getId() + " twice", seen.add(note.getId()));
+                    if (query.isImagesOnly()) {
+                        assertNotNull(query.toString(), note.getImageHash());
+                    }
+                }
+                anchor = page.isEmpty() ? null : page.get(page.size() - 1);
+            } while (page.size() == PAGE);
+            assertEquals(query.toString(), count, seen.size());
+            assertTrue(query.toString(), count > 0);
+        }
+    }
+
+    @Test
+    public void textSortIgnoresCase() {
+        db.insertNote("  banana");
+        db.insertNote("Apple");
+        db.insertNote("cherry");
+        List<Note> page = db.getNotesAfter(NoteQuery.ALL.withSort(NoteQuery.SORT_TEXT), null, 3);
+        assertEquals("Apple", page.get(0).getNote());
+        assertEquals("  banana", page.get(1).getNote());
+        assertEquals("cherry", page.get(2).getNote());
+    }
+
+    private void checkAllPlans() {
+        for (NoteQuery query : allQueries()) {
+            instrumentation.setRecording(true);
+            List<Note> first = db.getNotesAfter(query, null, PAGE);
+            Note anchor = first.get(first.size() / 2);
+            db.getNotesAfter(query, anchor, PAGE);
+            db.getNotesBefore(query, anchor, PAGE);
+            db.getNotesBefore(query, null, PAGE);
+            db.getNotesAt(query, 2 * PAGE, PAGE);
+            db.getNotesCount(query);
+            db.getMonthBuckets(query);
+            if (query.getSort() == NoteQuery.SORT_CREATED) {
+                db.getNotesFromMonth(query, String.valueOf(anchor.getTimestamp()).substring(0, 7), PAGE);
+            }
+            List<String> queries = instrumentation.getRecordedQueries();
+            instrumentation.setRecording(false);
+            assertFalse(queries.isEmpty());
+
+            for (String sql : queries) {
+                String plan = DatabaseInstrumentation.explain(db.getReadableDatabase(), sql);
+                for (String step : plan.split("\n")) {
+                    assertFalse(query + " scans: " + sql + "\n" + plan, step.startsWith("SCAN"));
+                    assertFalse(query + " builds an index: " + sql + "\n" + plan, step.contains("AUTOMATIC"));
+                    // grouping months by a prefix of the key is the one sort SQLite cannot avoid
+                    assertFalse(query + " sorts: " + sql + "\n" + plan,
+                            step.contains("TEMP B-TREE") && !step.contains("GROUP BY"));
+                }
+            }
+        }
+    }
+
+    private List<NoteQuery> allQueries() {
+        List<NoteQuery> queries = new ArrayList<>();
+        long[] tags = {Tag.NO_TAG, tagId};
+        boolean[] imageFilters = {false, true};
+        long[] ranges = {0, 90 * DateUtils.DAY_IN_MILLIS};
+        for (long tag : tags) {
+            for (int sort : SORTS) {
+                for (boolean imagesOnly : imageFilters) {
+                    for (long range : ranges) {
+                        queries.add(NoteQuery.forTag(tag).withSort(sort).withImagesOnly(imagesOnly)
+                                .withRange(range != 0 ? now - range : 0, 0));
+                    }
+                }
+            }
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,172 @@
+package my.homelane.app.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import my.homelane.app.database.model.MonthBucket;
+import my.homelane.app.database.model.Note;
+import my.homelane.app.database.model.Tag;
+
+import static org.junit.Assert.*;
+
+/**
+ * Filtering a large notes table by tag: first page time, counts kept by the
+ * triggers, and the query plan going through the tag filter index.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TagFilterBenchmark {
+
+    private static final String TAG = TagFilterBenchmark.class.getSimpleName();
+
+    private static final String DATABASE = "benchmark_tags";
+    private static final int NOTES = 100000;
+    // every this many notes is tagged with the rare tag, every other one with the common tag
+    private static final int RARE_EVERY = 100;
+    private static final int PAGE_LOADS = 5;
+
+    private Context context;
+    private DatabaseHelper db;
+    private long rare;
+    private long common;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE);
+
+        SQLiteDatabase database = db.getWritableDatabase();
+        rare = db.addTag("Client A");
+        common = db.addTag("Kitchen");
+        database.beginTransaction();
+        try {
+            SQLiteStatement insert = database.compileStatement("INSERT INTO " + Note.TABLE_NAME + " ("
+                    + Note.COLUMN_NOTE + ", " + Note.COLUMN_TIMESTAMP + ") VALUES (?, ?)");
+            for (int i = 0; i < NOTES; i++) {
+                insert.bindString(1, "Note " + i);
+                // a few notes a day over a couple of years, some sharing a second
+                insert.bindString(2, String.format(Locale.US, "2017-%02d-%02d %02d:00:00",
+                        1 + i % 12, 1 + i % 28, i % 24));
+                insert.executeInsert();
+            }
+            insert.close();
+            database.execSQL("INSERT INTO " + Tag.JOIN_TABLE_NAME + " SELECT " + rare + ", id, timestamp, deleted"
+                    + " FROM " + Note.TABLE_NAME + " WHERE id % " + RARE_EVERY + " = 0");
+            database.execSQL("INSERT INTO " + Tag.JOIN_TABLE_NAME + " SELECT " + common + ", id, timestamp, deleted"
+                    + " FROM " + Note.TABLE_NAME + " WHERE id % 2 = 0");
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        database.execSQL("ANALYZE");
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void firstPage() {
+        assertEquals(NOTES / RARE_EVERY, db.getNotesCount(NoteQuery.forTag(rare)));
+        assertEquals(NOTES / 2, db.getNotesCount(NoteQuery.forTag(common)));
+
+        long rareMillis = firstPageMillis(rare);
+        long commonMillis = firstPageMillis(common);
+        long allMillis = firstPageMillis(Tag.NO_TAG);
+
+        List<Note> page = db.getNotesAfter(NoteQuery.forTag(rare), null, 50);
+        assertEquals(50, page.size());
+        for (Note note : page) {
+            assertEquals(0, note.getId() % RARE_EVERY);
+        }
+        // the next page seeks on from the last note of this one
+        List<Note> next = db.getNotesAfter(NoteQuery.forTag(rare), page.get(page.size() - 1), 50);
+        assertEquals(50, next.size());
+        assertTrue(String.valueOf(next.get(0).getTimestamp())
+                .compareTo(String.valueOf(page.get(page.size() - 1).getTimestamp())) <= 0);
+
+        Log.i(TAG, String.format("%d notes: first page %d ms for a tag on 1%%, %d ms for a tag on 50%%,"
+                + " %d ms unfiltered", NOTES, rareMillis, commonMillis, allMillis));
+    }
+
+    @Test
+    public void queryPlanUsesFilterIndex() {
+        // the query getNotesAfter runs for a tag
+        String plan = queryPlan("SELECT n.note FROM " + Tag.JOIN_TABLE_NAME + " t JOIN " + Note.TABLE_NAME
+                + " n ON n.id = t.note_id WHERE t.tag_id = " + rare + " AND t.note_deleted = 0"
+                + " AND t.note_timestamp <= '2017-06-01' AND (t.note_timestamp < '2017-06-01' OR t.note_id < 500)"
+                + " ORDER BY t.note_timestamp DESC, t.note_id DESC LIMIT 50");
+        assertTrue(plan, plan.contains(Tag.JOIN_TABLE_NAME + "_filter"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        String buckets = queryPlan("SELECT substr(note_timestamp, 1, 7) AS month, COUNT(*) FROM "
+                + Tag.JOIN_TABLE_NAME + " WHERE tag_id = " + rare + " AND note_deleted = 0 GROUP BY month");
+        assertTrue(buckets, buckets.contains("COVERING INDEX " + Tag.JOIN_TABLE_NAME + "_filter"));
+    }
+
+    @Test
+    public void countsFollowNotes() {
+        long id = RARE_EVERY;
+        db.softDeleteNote(id);
+        assertEquals(NOTES / RARE_EVERY - 1, db.getNotesCount(NoteQuery.forTag(rare)));
+        assertEquals(NOTES / 2 - 1, db.getNotesCount(NoteQuery.forTag(common)));
+
+        db.restoreNote(id);
+        assertEquals(NOTES / RARE_EVERY, db.getNotesCount(NoteQuery.forTag(rare)));
+
+        db.setNoteTags(id, Collections.singleton(rare));
+        assertEquals(NOTES / 2 - 1, db.getNotesCount(NoteQuery.forTag(common)));
+        assertEquals(Collections.singleton(rare), db.getNoteTagIds(id));
+
+        Note note = db.getNote(id);
+        db.deleteNote(note);
+        assertEquals(NOTES / RARE_EVERY - 1, db.getNotesCount(NoteQuery.forTag(rare)));
+
+        int bucketed = 0;
+        for (MonthBucket bucket : db.getMonthBuckets(NoteQuery.forTag(rare))) {
+            bucketed += bucket.getCount();
+        }
+        assertEquals(db.getNotesCount(NoteQuery.forTag(rare)), bucketed);
+    }
+
+    private long firstPageMillis(long tagId) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < PAGE_LOADS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            db.getNotesCount(NoteQuery.forTag(tagId));
+            db.getNotesAfter(NoteQuery.forTag(tagId), null, 50);
+            best = Math.min(best, SystemClock.elapsedRealtime() - start);
+        }
+        return best;
+    }
+
+    private String queryPlan(String sql) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = db.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+}
@@ -0,0 +1,172 @@
+package my.homelane.app.view;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.DefaultItemAnimator;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.ViewConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import my.homelane.app.R;
+import my.homelane.app.database.DatabaseHelper;
+import my.homelane.app.database.DatasetGenerator;
+import my.homelane.app.database.model.Note;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame timing of the notes list over the same scripted flings on a generated
+ * library, with and without item animations. The numbers go to the log and
+ * to the instrumentation status, so runs before and after a rendering change
+ * can be compared.
+ *
+ * Replaces the notes on the device with the generated ones.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScrollBenchmark {
+
+    private static final String TAG = ScrollBenchmark.class.getSimpleName();
+
+    private static final int NOTES = 10000;
+    private static final int FLINGS_DOWN = 6;
+    private static final int FLINGS_UP = 2;
+    private static final long SETTLE_TIMEOUT_MILLIS = 10000;
+
+    private Instrumentation instrumentation;
+    private MainActivity activity;
+    private RecyclerView recyclerView;
+
+    @Before
+    public void setUp() throws Exception {
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = InstrumentationRegistry.getTargetContext();
+        DatabaseHelper db = DatabaseHelper.getInstance(context);
+        db.getWritableDatabase().delete(Note.TABLE_NAME, null, null);
+        Log.i(TAG, "Seeded " + new DatasetGenerator(DatasetGenerator.Spec.notes(NOTES)).seed(db));
+
+        Intent intent = new Intent(context, MainActivity.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        activity = (MainActivity) instrumentation.startActivitySync(intent);
+        recyclerView = activity.findViewById(R.id.recycler_view);
+        assertNotNull("frame timing is on in debug builds", activity.getScrollJankMonitor());
+        waitForList();
+    }
+
+    @After
+    public void tearDown() {
+        if (activity != null) {
+            activity.finish();
+        }
+    }
+
+    @Test
+    public void flingWithItemAnimations() {
+        report("animated", fling(new DefaultItemAnimator()));
+    }
+
+    @Test
+    public void flingWithoutItemAnimations() {
+        report("plain", fling(null));
+    }
+
+    private ScrollJankMonitor.Report fling(final RecyclerView.ItemAnimator animator) {
+        final ScrollJankMonitor monitor = activity.getScrollJankMonitor();
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                recyclerView.setItemAnimator(animator);
+                recyclerView.scrollToPosition(0);
+                monitor.startCapture();
+            }
+        });
+        int velocity = ViewConfiguration.get(activity).getScaledMaximumFlingVelocity();
+        for (int i = 0; i < FLINGS_DOWN + FLINGS_UP; i++) {
+            final int velocityY = i < FLINGS_DOWN ? velocity : -velocity;
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    recyclerView.fling(0, velocityY);
+                }
+            });
+            waitForIdle();
+        }
+        final ScrollJankMonitor.Report[] report = new ScrollJankMonitor.Report[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                report[0] = monitor.stopCapture();
+            }
+        });
+        return report[0];
+    }
+
+    private void report(String scenario, ScrollJankMonitor.Report report) {
+        Log.i(TAG, scenario + ": " + report);
+        Bundle status = new Bundle();
+        status.putString("scenario", scenario);
+        status.putInt("frames", report.getFrames());
+        status.putInt("janky_frames", report.jankyFrames);
+        status.putInt("dropped_frames", report.droppedFrames);
+        status.putInt("animating_frames", report.animatingFrames);
+        status.putDouble("frame_p50_ms", report.getPercentileNanos(0.5) / 1e6);
+        status.putDouble("frame_p90_ms", report.getPercentileNanos(0.9) / 1e6);
+        status.putDouble("frame_p99_ms", report.getPercentileNanos(0.99) / 1e6);
+        status.putInt("binds", report.binds);
+        status.putDouble("bind_ms", report.bindNanos / 1e6);
+        status.putDouble("decoration_ms", report.decorationNanos / 1e6);
+        instrumentation.sendStatus(Activity.RESULT_OK, status);
+
+        assertTrue(report.toString(), report.getFrames() > 0);
+        assertTrue(report.toString(), report.binds > 0);
+    }
+
+    private void waitForList() {
+        long deadline = SystemClock.elapsedRealtime() + SETTLE_TIMEOUT_MILLIS;
+        while (itemCount() == 0) {
+            assertTrue("the list did not load", SystemClock.elapsedRealtime() < deadline);
+            SystemClock.sleep(50);
+        }
+    }
+
+    private int itemCount() {
+        final int[] count = new int[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = recyclerView.getAdapter().getItemCount();
+            }
+        });
+        return count[0];
+    }
+
+    // the fling starts on the next frame, give it one before looking
+    private void waitForIdle() {
+        SystemClock.sleep(100);
+        long deadline = SystemClock.elapsedRealtime() + SETTLE_TIMEOUT_MILLIS;
+        while (scrollState() != RecyclerView.SCROLL_STATE_IDLE) {
+            assertTrue("the fling did not settle", SystemClock.elapsedRealtime() < deadline);
+            SystemClock.sleep(50);
+        }
+    }
+
+    private int scrollState() {
+        final int[] state = new int[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                state[0] = recyclerView.getScrollState();
+            }
+        });
+        return state[0];
+    }
+}
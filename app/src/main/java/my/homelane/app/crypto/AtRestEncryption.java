@@ -0,0 +1,257 @@
+package my.homelane.app.crypto;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.KeyPairGeneratorSpec;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.util.Calendar;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Whether notes and images are encrypted on this device, and the key they
+ * are encrypted with.
+ *
+ * The data key is a random AES key held in memory only. It is stored wrapped
+ * by a key in the Android keystore, which never leaves it: an AES key from M
+ * on, an RSA key pair before. A key wrapped with RSA keeps working after an
+ * update to M. Needs KitKat for AES-GCM parameters, it is not offered before.
+ *
+ * Turning encryption off only stops new data from being encrypted; the key
+ * stays, so data encrypted earlier stays readable until it is rewritten.
+ */
+
+public class AtRestEncryption {
+
+    private static final String PREFS_NAME = "at_rest_encryption";
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_WRAPPED_KEY = "wrapped_key";
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String MASTER_KEY_ALIAS = "notes_master_key";
+    private static final String SCHEME_AES = "aes:";
+    private static final String SCHEME_RSA = "rsa:";
+
+    private static final int KEY_BITS = 256;
+    private static final int NONCE_BYTES = 12;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static AtRestEncryption sInstance;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private volatile boolean enabled;
+    private SecretKey key;
+
+    private AtRestEncryption(Context context) {
+        this.context = context;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.enabled = isSupported() && prefs.getBoolean(KEY_ENABLED, false);
+    }
+
+    public static synchronized AtRestEncryption getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AtRestEncryption(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * For code without a context, like the static text helpers of the database.
+     *
+     * @return the instance, null before {@link #getInstance} first ran
+     */
+    public static synchronized AtRestEncryption current() {
+        return sInstance;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Encrypts data written from now on, or stops to. Creating the key talks
+     * to the keystore, call it in the background.
+     */
+    public void setEnabled(boolean enabled) throws GeneralSecurityException {
+        if (enabled) {
+            if (!isSupported()) {
+                throw new GeneralSecurityException("Encryption needs Android 4.4");
+            }
+            getKey();
+        }
+        prefs.edit().putBoolean(KEY_ENABLED, enabled).apply();
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return whether there is a key, so there may be encrypted data
+     */
+    public boolean hasKey() {
+        return prefs.contains(KEY_WRAPPED_KEY);
+    }
+
+    /**
+     * The data key, created the first time. Unwrapping it the first time in a
+     * process talks to the keystore.
+     *
+     * @throws GeneralSecurityException when the keystore lost its key, data encrypted with it is lost
+     */
+    public synchronized SecretKey getKey() throws GeneralSecurityException {
+        if (key != null) {
+            return key;
+        }
+        String wrapped = prefs.getString(KEY_WRAPPED_KEY, null);
+        if (wrapped == null) {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(KEY_BITS);
+            SecretKey created = generator.generateKey();
+            // committed, not applied: data must never be encrypted with a key that is not stored
+            if (!prefs.edit().putString(KEY_WRAPPED_KEY, wrap(created.getEncoded())).commit()) {
+                throw new KeyStoreException("Could not store the data key");
+            }
+            key = created;
+        } else {
+            key = new SecretKeySpec(unwrap(wrapped), "AES");
+        }
+        return key;
+    }
+
+    public byte[] seal(byte[] plain) {
+        try {
+            return FieldCipher.seal(getKey(), plain);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not encrypt", e);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException when the value cannot be decrypted
+     */
+    public byte[] open(byte[] sealed) {
+        try {
+            return FieldCipher.open(getKey(), sealed);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not decrypt", e);
+        }
+    }
+
+    public byte[] sealText(String text) {
+        return seal(text.getBytes(UTF_8));
+    }
+
+    public String openText(byte[] sealed) {
+        return new String(open(sealed), UTF_8);
+    }
+
+    // a new key in the keystore wraps a new data key; an old one left over wrapped nothing still stored
+    private String wrap(byte[] dataKey) throws GeneralSecurityException {
+        KeyStore keyStore = loadKeyStore();
+        if (keyStore.containsAlias(MASTER_KEY_ALIAS)) {
+            keyStore.deleteEntry(MASTER_KEY_ALIAS);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, createAesMasterKey());
+            // the keystore picks the nonce itself
+            byte[] nonce = cipher.getIV();
+            byte[] sealed = cipher.doFinal(dataKey);
+            byte[] wrapped = new byte[nonce.length + sealed.length];
+            System.arraycopy(nonce, 0, wrapped, 0, nonce.length);
+            System.arraycopy(sealed, 0, wrapped, nonce.length, sealed.length);
+            return SCHEME_AES + Base64.encodeToString(wrapped, Base64.NO_WRAP);
+        }
+        Cipher cipher = rsaCipher();
+        createRsaMasterKey();
+        cipher.init(Cipher.ENCRYPT_MODE, loadKeyStore().getCertificate(MASTER_KEY_ALIAS).getPublicKey());
+        return SCHEME_RSA + Base64.encodeToString(cipher.doFinal(dataKey), Base64.NO_WRAP);
+    }
+
+    private byte[] unwrap(String wrapped) throws GeneralSecurityException {
+        KeyStore keyStore = loadKeyStore();
+        if (!keyStore.containsAlias(MASTER_KEY_ALIAS)) {
+            throw new KeyStoreException("The keystore has lost the key of the encrypted data");
+        }
+        if (wrapped.startsWith(SCHEME_AES)) {
+            byte[] bytes = Base64.decode(wrapped.substring(SCHEME_AES.length()), Base64.NO_WRAP);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, keyStore.getKey(MASTER_KEY_ALIAS, null),
+                    new GCMParameterSpec(128, bytes, 0, NONCE_BYTES));
+            return cipher.doFinal(bytes, NONCE_BYTES, bytes.length - NONCE_BYTES);
+        } else if (wrapped.startsWith(SCHEME_RSA)) {
+            byte[] bytes = Base64.decode(wrapped.substring(SCHEME_RSA.length()), Base64.NO_WRAP);
+            Cipher cipher = rsaCipher();
+            cipher.init(Cipher.DECRYPT_MODE, (PrivateKey) keyStore.getKey(MASTER_KEY_ALIAS, null));
+            return cipher.doFinal(bytes);
+        }
+        throw new KeyStoreException("Unknown key wrapping " + wrapped.substring(0, Math.min(4, wrapped.length())));
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey createAesMasterKey() throws GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(MASTER_KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(KEY_BITS)
+                .build());
+        return generator.generateKey();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void createRsaMasterKey() throws GeneralSecurityException {
+        Calendar start = Calendar.getInstance();
+        Calendar end = Calendar.getInstance();
+        end.add(Calendar.YEAR, 30);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", KEYSTORE);
+        generator.initialize(new KeyPairGeneratorSpec.Builder(context)
+                .setAlias(MASTER_KEY_ALIAS)
+                .setSubject(new X500Principal("CN=" + MASTER_KEY_ALIAS))
+                .setSerialNumber(BigInteger.ONE)
+                .setStartDate(start.getTime())
+                .setEndDate(end.getTime())
+                .build());
+        generator.generateKeyPair();
+    }
+
+    // the keystore's RSA keys only work with the OpenSSL provider before M
+    private static Cipher rsaCipher() throws GeneralSecurityException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        }
+        return Cipher.getInstance("RSA/ECB/PKCS1Padding", "AndroidOpenSSL");
+    }
+
+    private static KeyStore loadKeyStore() throws GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        try {
+            keyStore.load(null);
+        } catch (IOException e) {
+            throw new KeyStoreException("Could not open the keystore", e);
+        }
+        return keyStore;
+    }
+}
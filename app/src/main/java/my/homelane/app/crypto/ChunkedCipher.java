@@ -0,0 +1,306 @@
+package my.homelane.app.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * AES-GCM over a stream, one chunk at a time, so a file of any size is
+ * encrypted or decrypted with a single chunk of it in memory.
+ *
+ * A stream starts with a header: a magic, the chunk size and a random nonce
+ * prefix. Each chunk of plaintext is sealed on its own, with a nonce made of
+ * the prefix, the chunk's index and whether it is the last chunk, and the
+ * header as associated data. Chunks that are reordered, dropped, or cut off
+ * at the end, and headers that are changed, all fail to decrypt.
+ */
+
+public class ChunkedCipher {
+
+    // never the start of a JPEG or PNG, the store tells encrypted files apart by it
+    private static final byte[] MAGIC = {(byte) 0xFF, 0x00, 'H', 'L', 'C', 0x01};
+    private static final int PREFIX_BYTES = 7;
+    public static final int HEADER_BYTES = MAGIC.length + 4 + PREFIX_BYTES;
+
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BYTES = 16;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    public static final int DEFAULT_CHUNK_BYTES = 64 * 1024;
+    private static final int MAX_CHUNK_BYTES = 1024 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private ChunkedCipher() {
+    }
+
+    /**
+     * @return whether a stream starting with these bytes was written by {@link #encrypt}
+     */
+    public static boolean isEncrypted(byte[] start, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (start[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encrypts what is written to the returned stream into {@code out}. The
+     * last chunk is only written on close, without closing it the output
+     * does not decrypt.
+     */
+    public static OutputStream encrypt(SecretKey key, OutputStream out) throws IOException {
+        return encrypt(key, out, DEFAULT_CHUNK_BYTES);
+    }
+
+    public static OutputStream encrypt(SecretKey key, OutputStream out, int chunkBytes) throws IOException {
+        if (chunkBytes <= 0 || chunkBytes > MAX_CHUNK_BYTES) {
+            throw new IllegalArgumentException("Chunk size " + chunkBytes);
+        }
+        byte[] header = new byte[HEADER_BYTES];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        writeInt(header, MAGIC.length, chunkBytes);
+        byte[] prefix = new byte[PREFIX_BYTES];
+        RANDOM.nextBytes(prefix);
+        System.arraycopy(prefix, 0, header, MAGIC.length + 4, PREFIX_BYTES);
+        out.write(header);
+        return new EncryptingStream(key, out, header, prefix, chunkBytes);
+    }
+
+    /**
+     * Decrypts a stream written by {@link #encrypt}. Data that was altered or
+     * cut off fails with an IOException at the chunk it is in.
+     */
+    public static InputStream decrypt(SecretKey key, InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        if (readFully(in, header, 0, HEADER_BYTES) < HEADER_BYTES || !isEncrypted(header, HEADER_BYTES)) {
+            throw new IOException("Not an encrypted stream");
+        }
+        int chunkBytes = readInt(header, MAGIC.length);
+        if (chunkBytes <= 0 || chunkBytes > MAX_CHUNK_BYTES) {
+            throw new IOException("Corrupt encrypted stream, chunk size " + chunkBytes);
+        }
+        byte[] prefix = new byte[PREFIX_BYTES];
+        System.arraycopy(header, MAGIC.length + 4, prefix, 0, PREFIX_BYTES);
+        return new DecryptingStream(key, in, header, prefix, chunkBytes);
+    }
+
+    private static class EncryptingStream extends OutputStream {
+        private final SecretKey key;
+        private final OutputStream out;
+        private final byte[] header;
+        private final byte[] prefix;
+        private final Cipher cipher;
+        private final byte[] buffer;
+        private final byte[] sealed;
+        private int buffered;
+        private int index;
+        private boolean closed;
+
+        EncryptingStream(SecretKey key, OutputStream out, byte[] header, byte[] prefix, int chunkBytes)
+                throws IOException {
+            this.key = key;
+            this.out = out;
+            this.header = header;
+            this.prefix = prefix;
+            this.cipher = newCipher();
+            this.buffer = new byte[chunkBytes];
+            this.sealed = new byte[chunkBytes + TAG_BYTES];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                // a full chunk waits for more data, only then is it known not to be the last
+                if (buffered == buffer.length) {
+                    writeChunk(false);
+                }
+                int n = Math.min(len, buffer.length - buffered);
+                System.arraycopy(b, off, buffer, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeChunk(true);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeChunk(boolean last) throws IOException {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce(prefix, index, last)));
+                cipher.updateAAD(header);
+                int n = cipher.doFinal(buffer, 0, buffered, sealed, 0);
+                out.write(sealed, 0, n);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt", e);
+            }
+            buffered = 0;
+            index++;
+        }
+    }
+
+    private static class DecryptingStream extends InputStream {
+        private final SecretKey key;
+        private final InputStream in;
+        private final byte[] header;
+        private final byte[] prefix;
+        private final Cipher cipher;
+        private final byte[] sealed;
+        private final byte[] chunk;
+        private int position;
+        private int limit;
+        private int index;
+        private boolean last;
+        // the first byte of the next chunk, read to find out whether this one is the last
+        private int lookahead = -1;
+
+        DecryptingStream(SecretKey key, InputStream in, byte[] header, byte[] prefix, int chunkBytes)
+                throws IOException {
+            this.key = key;
+            this.in = in;
+            this.header = header;
+            this.prefix = prefix;
+            this.cipher = newCipher();
+            this.sealed = new byte[chunkBytes + TAG_BYTES];
+            this.chunk = new byte[chunkBytes];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (last) {
+                    return -1;
+                }
+                readChunk();
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void readChunk() throws IOException {
+            int length = 0;
+            if (lookahead >= 0) {
+                sealed[length++] = (byte) lookahead;
+                lookahead = -1;
+            }
+            length += readFully(in, sealed, length, sealed.length - length);
+            if (length < sealed.length) {
+                last = true;
+            } else {
+                lookahead = in.read();
+                last = lookahead < 0;
+            }
+            if (length < TAG_BYTES) {
+                throw new IOException("Encrypted stream is cut off");
+            }
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce(prefix, index, last)));
+                cipher.updateAAD(header);
+                limit = cipher.doFinal(sealed, 0, length, chunk, 0);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Encrypted stream was altered or cut off at chunk " + index, e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not decrypt", e);
+            }
+            position = 0;
+            index++;
+        }
+    }
+
+    private static Cipher newCipher() throws IOException {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM is not available", e);
+        }
+    }
+
+    private static byte[] nonce(byte[] prefix, int index, boolean last) {
+        byte[] nonce = new byte[NONCE_BYTES];
+        System.arraycopy(prefix, 0, nonce, 0, PREFIX_BYTES);
+        writeInt(nonce, PREFIX_BYTES, index);
+        nonce[NONCE_BYTES - 1] = (byte) (last ? 1 : 0);
+        return nonce;
+    }
+
+    private static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+
+    // short only at the end of the stream
+    private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(b, off + total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
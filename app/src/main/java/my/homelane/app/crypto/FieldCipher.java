@@ -0,0 +1,81 @@
+package my.homelane.app.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * AES-GCM for single database values: a note text, a revision, a draft. A
+ * sealed value is a short marker, a random nonce and the ciphertext.
+ *
+ * The marker starts with 0xFF 0x00, which no value stored in plain starts
+ * with: 0xFF is not UTF-8 and not the start of a raw deflate stream, and a
+ * text delta only has it in a length that never continues with 0x00. So
+ * plain and sealed values can live side by side in the same column.
+ */
+
+public class FieldCipher {
+
+    private static final byte[] MARKER = {(byte) 0xFF, 0x00, 0x01};
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BYTES = 16;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Cipher.getInstance is slow next to sealing a few hundred bytes
+    private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES-GCM is not available", e);
+            }
+        }
+    };
+
+    private FieldCipher() {
+    }
+
+    public static boolean isSealed(byte[] value) {
+        if (value == null || value.length < MARKER.length + NONCE_BYTES + TAG_BYTES) {
+            return false;
+        }
+        for (int i = 0; i < MARKER.length; i++) {
+            if (value[i] != MARKER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static byte[] seal(SecretKey key, byte[] plain) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+        byte[] sealed = new byte[MARKER.length + NONCE_BYTES + cipher.getOutputSize(plain.length)];
+        System.arraycopy(MARKER, 0, sealed, 0, MARKER.length);
+        System.arraycopy(nonce, 0, sealed, MARKER.length, NONCE_BYTES);
+        cipher.doFinal(plain, 0, plain.length, sealed, MARKER.length + NONCE_BYTES);
+        return sealed;
+    }
+
+    /**
+     * @throws GeneralSecurityException when the value was not sealed with this key or was altered
+     */
+    public static byte[] open(SecretKey key, byte[] sealed) throws GeneralSecurityException {
+        if (!isSealed(sealed)) {
+            throw new GeneralSecurityException("Not a sealed value");
+        }
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key,
+                new GCMParameterSpec(TAG_BYTES * 8, sealed, MARKER.length, NONCE_BYTES));
+        int offset = MARKER.length + NONCE_BYTES;
+        return cipher.doFinal(sealed, offset, sealed.length - offset);
+    }
+}
@@ -0,0 +1,407 @@
+package my.homelane.app.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import my.homelane.app.database.model.ChangeLog;
+import my.homelane.app.database.model.Job;
+import my.homelane.app.database.model.Note;
+import my.homelane.app.database.model.NoteRevision;
+import my.homelane.app.database.model.Tag;
+
+/**
+ * Writes and restores backups of the notes table.
+ *
+ * A full backup is a snapshot of every note. An incremental backup only holds the
+ * notes the change log saw since the previous backup, so routine backups stay
+ * proportional to the number of edits rather than to the size of the database.
+ * A restore replays the base snapshot followed by its chain of increments.
+ * Images referenced by the written notes travel with them.
+ */
+
+public class BackupManager {
+
+    private static final int MAGIC = 0x484C4E42;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte TYPE_FULL = 0;
+    private static final byte TYPE_INCREMENTAL = 1;
+
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_NOTE = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_IMAGE = 3;
+
+    private static final String CHANGE_LOG_CONSUMER = "backup";
+    // holds the tag assignments over a restore
+    private static final String KEPT_TAGS = "temp.restore_kept_tags";
+
+    private static final String PREFS_NAME = "backup_prefs";
+    private static final String KEY_BASE_ID = "base_id";
+    private static final String KEY_NEXT_INDEX = "next_index";
+    private static final String KEY_CHECKPOINT_SEQ = "checkpoint_seq";
+
+    private final DatabaseHelper db;
+    private final SharedPreferences prefs;
+
+    public BackupManager(Context context, DatabaseHelper db) {
+        this.db = db;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Writes a snapshot of every note and starts a new incremental chain on top of it.
+     *
+     * @return number of notes written
+     */
+    public int writeFullBackup(File file) throws IOException {
+        SQLiteDatabase database = db.getWritableDatabase();
+        long baseId = newBaseId();
+        long checkpoint;
+        int count = 0;
+        Set<String> images = new HashSet<>();
+
+        DataOutputStream out = openOutput(file);
+        boolean written = false;
+        // the transaction keeps the snapshot and its checkpoint consistent
+        database.beginTransaction();
+        try {
+            checkpoint = db.getLatestChangeSeq();
+            writeHeader(out, TYPE_FULL, baseId, 0, checkpoint);
+
+            Cursor cursor = database.query(Note.TABLE_NAME, null, null, null, null, null, Note.COLUMN_ID);
+            try {
+                while (cursor.moveToNext()) {
+                    writeNote(out, cursor, images);
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            out.writeByte(RECORD_END);
+            out.close();
+            written = true;
+
+            // the first checkpoint turns the log on, so it has to be in before the snapshot ends
+            db.checkpointChangeLog(CHANGE_LOG_CONSUMER, checkpoint);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            if (!written) {
+                closeQuietly(out);
+                file.delete();
+            }
+        }
+
+        prefs.edit()
+                .putLong(KEY_BASE_ID, baseId)
+                .putInt(KEY_NEXT_INDEX, 1)
+                .putLong(KEY_CHECKPOINT_SEQ, checkpoint)
+                .apply();
+
+        return count;
+    }
+
+    /**
+     * Writes the notes inserted, updated or deleted since the last backup.
+     *
+     * @return number of changed notes written
+     * @throws IllegalStateException when there is no full backup to build on
+     */
+    public int writeIncrementalBackup(File file) throws IOException {
+        long baseId = prefs.getLong(KEY_BASE_ID, 0);
+        if (baseId == 0) {
+            throw new IllegalStateException("No full backup to build on, write a full backup first");
+        }
+        int index = prefs.getInt(KEY_NEXT_INDEX, 1);
+        long since = prefs.getLong(KEY_CHECKPOINT_SEQ, 0);
+
+        SQLiteDatabase database = db.getWritableDatabase();
+        long checkpoint;
+        int count = 0;
+        Set<String> images = new HashSet<>();
+
+        DataOutputStream out = openOutput(file);
+        boolean written = false;
+        database.beginTransaction();
+        try {
+            checkpoint = db.getLatestChangeSeq();
+            writeHeader(out, TYPE_INCREMENTAL, baseId, index, checkpoint);
+
+            List<ChangeLog> changes = db.getChanges(since, checkpoint);
+            for (ChangeLog change : changes) {
+                Cursor cursor = change.isDelete() ? null : database.query(Note.TABLE_NAME, null,
+                        Note.COLUMN_ID + " = ?", new String[]{String.valueOf(change.getNoteId())},
+                        null, null, null);
+                try {
+                    if (cursor != null && cursor.moveToFirst()) {
+                        writeNote(out, cursor, images);
+                    } else {
+                        out.writeByte(RECORD_DELETE);
+                        out.writeLong(change.getNoteId());
+                    }
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+                count++;
+            }
+            out.writeByte(RECORD_END);
+            out.close();
+            written = true;
+
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            if (!written) {
+                closeQuietly(out);
+                file.delete();
+            }
+        }
+
+        prefs.edit()
+                .putInt(KEY_NEXT_INDEX, index + 1)
+                .putLong(KEY_CHECKPOINT_SEQ, checkpoint)
+                .apply();
+        db.checkpointChangeLog(CHANGE_LOG_CONSUMER, checkpoint);
+
+        return count;
+    }
+
+    /**
+     * Replaces every note with the contents of a full backup and its increments.
+     * The increments have to be given in the order they were written.
+     * Nothing is changed if any file is unreadable or breaks the chain.
+     * Tags are not in backups, a restored note keeps the tags it has here.
+     */
+    public void restore(File base, List<File> increments) throws IOException {
+        SQLiteDatabase database = db.getWritableDatabase();
+
+        database.beginTransaction();
+        try {
+            long baseId;
+            DataInputStream in = openInput(base);
+            try {
+                baseId = readHeader(in, TYPE_FULL, base)[0];
+                // deleting the notes deletes their tag assignments, kept aside by note uuid
+                database.execSQL("CREATE TEMP TABLE " + KEPT_TAGS + " AS SELECT n." + Note.COLUMN_UUID
+                        + " AS " + Note.COLUMN_UUID + ", t." + Tag.COLUMN_TAG_ID + " AS " + Tag.COLUMN_TAG_ID
+                        + " FROM " + Tag.JOIN_TABLE_NAME + " t JOIN " + Note.TABLE_NAME + " n ON n."
+                        + Note.COLUMN_ID + " = t." + Tag.COLUMN_NOTE_ID);
+                database.delete(Note.TABLE_NAME, null, null);
+                replay(database, in);
+            } finally {
+                in.close();
+            }
+
+            int expectedIndex = 1;
+            for (File increment : increments) {
+                in = openInput(increment);
+                try {
+                    long[] header = readHeader(in, TYPE_INCREMENTAL, increment);
+                    if (header[0] != baseId || header[1] != expectedIndex) {
+                        throw new IOException(increment + " does not continue the backup chain");
+                    }
+                    replay(database, in);
+                } finally {
+                    in.close();
+                }
+                expectedIndex++;
+            }
+
+            // the triggers on note_tags copy the restored timestamps and deleted flags, and count
+            database.execSQL("INSERT OR IGNORE INTO " + Tag.JOIN_TABLE_NAME + "(" + Tag.COLUMN_TAG_ID + ", "
+                    + Tag.COLUMN_NOTE_ID + ", " + Tag.COLUMN_NOTE_TIMESTAMP + ", " + Tag.COLUMN_NOTE_DELETED + ")"
+                    + " SELECT k." + Tag.COLUMN_TAG_ID + ", n." + Note.COLUMN_ID + ", n." + Note.COLUMN_TIMESTAMP
+                    + ", n." + Note.COLUMN_DELETED + " FROM " + KEPT_TAGS + " k JOIN " + Note.TABLE_NAME
+                    + " n ON n." + Note.COLUMN_UUID + " = k." + Note.COLUMN_UUID);
+            database.execSQL("DROP TABLE " + KEPT_TAGS);
+
+            // the log no longer describes the restored notes, and the history
+            // deltas were made against texts that are gone
+            database.delete(ChangeLog.TABLE_NAME, null, null);
+            database.delete(NoteRevision.TABLE_NAME, null, null);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // the next backup has to be a full one
+        prefs.edit().clear().apply();
+        // purges are not logged, so the backup still holds notes deleted before it
+        db.getJobQueue().enqueue(Job.TYPE_PURGE_DELETED, Job.PRIORITY_LOW, 0);
+    }
+
+    private void replay(SQLiteDatabase database, DataInputStream in) throws IOException {
+        while (true) {
+            byte record = in.readByte();
+            if (record == RECORD_END) {
+                return;
+            } else if (record == RECORD_NOTE) {
+                ContentValues values = readNote(in);
+                if (!values.containsKey(Note.COLUMN_SORT_KEY)) {
+                    // written before notes could be sorted by text
+                    values.put(Note.COLUMN_SORT_KEY, DatabaseHelper.sortKey(values));
+                }
+                database.insertWithOnConflict(Note.TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            } else if (record == RECORD_DELETE) {
+                database.delete(Note.TABLE_NAME, Note.COLUMN_ID + " = ?",
+                        new String[]{String.valueOf(in.readLong())});
+            } else if (record == RECORD_IMAGE) {
+                in.readUTF(); // hash, recomputed by the store
+                db.getImageStore().put(readBytes(in));
+            } else {
+                throw new IOException("Corrupt backup, unknown record " + record);
+            }
+        }
+    }
+
+    // Columns are written with their names and types, so backups keep working as the notes table grows
+    private void writeNote(DataOutputStream out, Cursor cursor, Set<String> images) throws IOException {
+        // the image goes first, so a restored note never points at a missing file
+        String imageHash = cursor.getString(cursor.getColumnIndex(Note.COLUMN_IMAGE_HASH));
+        ImageStore imageStore = db.getImageStore();
+        if (imageHash != null && imageStore.contains(imageHash) && images.add(imageHash)) {
+            out.writeByte(RECORD_IMAGE);
+            out.writeUTF(imageHash);
+            writeBytes(out, imageStore.read(imageHash));
+        }
+
+        int columns = cursor.getColumnCount();
+        out.writeByte(RECORD_NOTE);
+        out.writeShort(columns);
+        for (int i = 0; i < columns; i++) {
+            out.writeUTF(cursor.getColumnName(i));
+            int type = cursor.getType(i);
+            out.writeByte(type);
+            switch (type) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    out.writeLong(cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    out.writeDouble(cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    writeBytes(out, cursor.getString(i).getBytes("UTF-8"));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    writeBytes(out, cursor.getBlob(i));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static ContentValues readNote(DataInputStream in) throws IOException {
+        ContentValues values = new ContentValues();
+        int columns = in.readShort();
+        for (int i = 0; i < columns; i++) {
+            String column = in.readUTF();
+            int type = in.readByte();
+            switch (type) {
+                case Cursor.FIELD_TYPE_NULL:
+                    values.putNull(column);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values.put(column, in.readLong());
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values.put(column, in.readDouble());
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    values.put(column, new String(readBytes(in), "UTF-8"));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values.put(column, readBytes(in));
+                    break;
+                default:
+                    throw new IOException("Corrupt backup, unknown column type " + type);
+            }
+        }
+        return values;
+    }
+
+    private static void writeHeader(DataOutputStream out, byte type, long baseId, int index, long checkpoint)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeByte(type);
+        out.writeLong(baseId);
+        out.writeInt(index);
+        out.writeLong(checkpoint);
+    }
+
+    /**
+     * @return base id and chain index of the backup
+     */
+    private static long[] readHeader(DataInputStream in, byte expectedType, File file) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException(file + " is not a notes backup");
+        }
+        if (in.readByte() != expectedType) {
+            throw new IOException(file + (expectedType == TYPE_FULL
+                    ? " is not a full backup" : " is not an incremental backup"));
+        }
+        long baseId = in.readLong();
+        int index = in.readInt();
+        in.readLong(); // checkpoint, only meaningful on the device that wrote it
+        return new long[]{baseId, index};
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static DataOutputStream openOutput(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file))));
+    }
+
+    private static DataInputStream openInput(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))));
+    }
+
+    private static void closeQuietly(DataOutputStream out) {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static long newBaseId() {
+        long id = 0;
+        while (id == 0) {
+            id = new SecureRandom().nextLong();
+        }
+        return id;
+    }
+}
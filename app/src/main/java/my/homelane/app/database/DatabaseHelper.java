@@ -6,13 +6,37 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.text.TextUtils;
+import android.util.Log;
+import my.homelane.app.BuildConfig;
+import my.homelane.app.crypto.AtRestEncryption;
+import my.homelane.app.crypto.FieldCipher;
 import my.homelane.app.utils.DBBitMapUtility;
+import my.homelane.app.utils.ImageProcessingUtil;
+import my.homelane.app.utils.Metrics;
+import my.homelane.app.utils.TextCompression;
+import my.homelane.app.utils.TextDelta;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
 
+import my.homelane.app.database.model.ChangeLog;
+import my.homelane.app.database.model.Draft;
+import my.homelane.app.database.model.Job;
+import my.homelane.app.database.model.MonthBucket;
 import my.homelane.app.database.model.Note;
+import my.homelane.app.database.model.NoteRevision;
+import my.homelane.app.database.model.Tag;
 
 /**
  * Created by moinadil on 23/04/18.
@@ -20,15 +44,96 @@ import my.homelane.app.database.model.Note;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
 
+    private static final String TAG = DatabaseHelper.class.getSimpleName();
+
     // Database Version
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 12;
 
     // Database Name
     private static final String DATABASE_NAME = "notes_db";
 
+    // every this many revisions one is stored in full instead of as a delta
+    static final int FULL_REVISION_INTERVAL = 16;
+    // older revisions are dropped, reverse deltas never depend on them
+    static final int MAX_REVISIONS = 100;
+
+    // texts longer than this are stored deflated, with a preview for the list
+    private static final int COMPRESS_THRESHOLD_CHARS = 2048;
+    private static final int PREVIEW_CHARS = 200;
+    // sorting by text looks this far into a note
+    private static final int SORT_KEY_CHARS = 64;
+    // rows rewritten per transaction when encryption is turned on or off
+    private static final int REWRITE_BATCH = 200;
+
+    // what the list shows, leaving out legacy image blobs and deflated bodies
+    private static final String[] LIST_COLUMNS = new String[]{
+            Note.COLUMN_ID, Note.COLUMN_NOTE, Note.COLUMN_TIMESTAMP, Note.COLUMN_UUID, Note.COLUMN_VERSION,
+            Note.COLUMN_UPDATED_AT, Note.COLUMN_IMAGE_HASH, Note.COLUMN_DELETED, Note.COLUMN_PREVIEW,
+            Note.COLUMN_SORT_KEY, Note.COLUMN_PLACEHOLDER};
+    // the same, read through a join with note_tags
+    private static final String[] JOINED_LIST_COLUMNS = new String[LIST_COLUMNS.length];
+    // newest first; the id breaks ties between notes saved in the same second
+    private static final String LIST_ORDER = Note.COLUMN_TIMESTAMP + " DESC, " + Note.COLUMN_ID + " DESC";
+
+    static {
+        for (int i = 0; i < LIST_COLUMNS.length; i++) {
+            JOINED_LIST_COLUMNS[i] = "n." + LIST_COLUMNS[i] + " AS " + LIST_COLUMNS[i];
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Metrics.Histogram INSERT_NOTE = Metrics.histogram("db.insertNote");
+    private static final Metrics.Histogram GET_NOTE = Metrics.histogram("db.getNote");
+    private static final Metrics.Histogram GET_ALL_NOTES = Metrics.histogram("db.getAllNotes");
+    private static final Metrics.Histogram LIST_PAGE = Metrics.histogram("db.listPage");
+    private static final Metrics.Histogram COUNT_NOTES = Metrics.histogram("db.getNotesCount");
+    private static final Metrics.Histogram MONTH_BUCKETS = Metrics.histogram("db.getMonthBuckets");
+    private static final Metrics.Histogram UPDATE_NOTE = Metrics.histogram("db.updateNote");
+    private static final Metrics.Histogram SET_DELETED = Metrics.histogram("db.setDeleted");
+    private static final Metrics.Histogram DELETE_NOTE = Metrics.histogram("db.deleteNote");
+    private static final Metrics.Counter ROWS_LISTED = Metrics.counter("db.rowsListed");
+
+    private static DatabaseHelper sInstance;
+
+    private final AtRestEncryption encryption;
+    private final ImageStore imageStore;
+    private final JobQueue jobQueue;
+    private final DatabaseInstrumentation instrumentation;
+
+    /**
+     * One helper, and so one connection, per process. Several threads read and
+     * write the database, and connections closed under each other's feet crash.
+     */
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DatabaseHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
 
     public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    // a separate database, for tests and benchmarks
+    public DatabaseHelper(Context context, String name) {
+        this(context, name, BuildConfig.DEBUG ? new DatabaseInstrumentation() : null);
+    }
+
+    private DatabaseHelper(Context context, String name, DatabaseInstrumentation instrumentation) {
+        super(context, name, instrumentation, DATABASE_VERSION);
+        // before anything reads a note, the static text helpers find the key through it
+        encryption = AtRestEncryption.getInstance(context);
+        imageStore = new ImageStore(context);
+        jobQueue = new JobQueue(this);
+        this.instrumentation = instrumentation;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // only takes effect on a new database, DatabaseMaintenance converts older ones
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
     }
 
     // Creating Tables
@@ -37,121 +142,1730 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
         // create notes table
         db.execSQL(Note.CREATE_TABLE);
+        db.execSQL(Note.CREATE_UUID_INDEX);
+        db.execSQL(Note.CREATE_LIVE_INDEX);
+        db.execSQL(Note.CREATE_IMAGE_HASH_INDEX);
+        db.execSQL(Note.CREATE_UPDATED_INDEX);
+        db.execSQL(Note.CREATE_SORT_KEY_INDEX);
+
+        createChangeLog(db);
+
+        db.execSQL(Draft.CREATE_TABLE);
+
+        db.execSQL(NoteRevision.CREATE_TABLE);
+        db.execSQL(NoteRevision.CREATE_NOTE_INDEX);
+
+        createTags(db);
+
+        db.execSQL(Job.CREATE_TABLE);
+        db.execSQL(Job.CREATE_DUE_INDEX);
     }
 
     // Upgrading database
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Drop older table if existed
-        db.execSQL("DROP TABLE IF EXISTS " + Note.TABLE_NAME);
+        // Upgrade step by step so existing notes survive schema changes
+        if (oldVersion == 2) {
+            // the backfill below must not be logged
+            dropChangeLogTriggers(db);
+        }
+        if (oldVersion < 3) {
+            addSyncColumns(db);
+        }
+
+        if (oldVersion < 2) {
+            createChangeLog(db);
+        } else if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + ChangeLog.TABLE_NAME + " ADD COLUMN " + ChangeLog.COLUMN_NOTE_UUID + " TEXT");
+            db.execSQL("ALTER TABLE " + ChangeLog.TABLE_NAME + " ADD COLUMN " + ChangeLog.COLUMN_NOTE_VERSION + " INTEGER");
+            db.execSQL("ALTER TABLE " + ChangeLog.TABLE_NAME + " ADD COLUMN " + ChangeLog.COLUMN_CHANGED_AT + " INTEGER");
+            db.execSQL(ChangeLog.CREATE_CHECKPOINT_TABLE);
+            createChangeLogTriggers(db);
+        }
+
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + Note.TABLE_NAME + " ADD COLUMN " + Note.COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + Note.TABLE_NAME + " ADD COLUMN " + Note.COLUMN_DELETED_AT + " INTEGER");
+            db.execSQL(Note.CREATE_LIVE_INDEX);
+            db.execSQL(Note.CREATE_IMAGE_HASH_INDEX);
+        }
+
+        if (oldVersion < 5) {
+            db.execSQL(Draft.CREATE_TABLE);
+        }
+
+        if (oldVersion < 6) {
+            db.execSQL(NoteRevision.CREATE_TABLE);
+            db.execSQL(NoteRevision.CREATE_NOTE_INDEX);
+        }
+
+        if (oldVersion < 7) {
+            db.execSQL("ALTER TABLE " + Note.TABLE_NAME + " ADD COLUMN " + Note.COLUMN_PREVIEW + " TEXT");
+            db.execSQL("ALTER TABLE " + Note.TABLE_NAME + " ADD COLUMN " + Note.COLUMN_BODY + " BLOB");
+            // the text does not change, there is nothing to log or sync
+            dropChangeLogTriggers(db);
+            compressLongNotes(db);
+            createChangeLogTriggers(db);
+        }
+
+        if (oldVersion < 8) {
+            createTags(db);
+        }
+
+        if (oldVersion < 9) {
+            db.execSQL("ALTER TABLE " + Note.TABLE_NAME + " ADD COLUMN " + Note.COLUMN_SORT_KEY + " TEXT");
+            // derived from the text, nothing to log or sync
+            dropChangeLogTriggers(db);
+            fillSortKeys(db);
+            createChangeLogTriggers(db);
+            db.execSQL(Note.CREATE_UPDATED_INDEX);
+            db.execSQL(Note.CREATE_SORT_KEY_INDEX);
+        }
+
+        if (oldVersion < 10) {
+            // filled in by DatabaseMaintenance, decoding every image here would hold up the upgrade
+            db.execSQL("ALTER TABLE " + Note.TABLE_NAME + " ADD COLUMN " + Note.COLUMN_PLACEHOLDER + " TEXT");
+        }
+
+        if (oldVersion < 11) {
+            db.execSQL(Job.CREATE_TABLE);
+            db.execSQL(Job.CREATE_DUE_INDEX);
+            // work that was found by scanning before there was a queue
+            enqueueIf(db, Job.TYPE_REENCODE_IMAGE_BLOBS, Job.PRIORITY_HIGH,
+                    Note.COLUMN_IMAGE + " IS NOT NULL");
+            enqueueIf(db, Job.TYPE_PURGE_DELETED, Job.PRIORITY_LOW,
+                    Note.COLUMN_DELETED + " = 1");
+        }
+
+        if (oldVersion < 12) {
+            // the log was kept before anything read it, and for writes nothing carries
+            dropChangeLogTriggers(db);
+            createChangeLogTriggers(db);
+            db.execSQL("DELETE FROM " + ChangeLog.TABLE_NAME + " WHERE NOT EXISTS (SELECT 1 FROM "
+                    + ChangeLog.CHECKPOINT_TABLE_NAME + ")");
+        }
+    }
+
+    // queues a job of which there is only one, if a note matches the condition
+    private void enqueueIf(SQLiteDatabase db, String type, int priority, String condition) {
+        db.execSQL("INSERT INTO " + Job.TABLE_NAME + "(" + Job.COLUMN_TYPE + ", " + Job.COLUMN_KEY + ", "
+                        + Job.COLUMN_PRIORITY + ", " + Job.COLUMN_CREATED_AT + ")"
+                        + " SELECT ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM " + Note.TABLE_NAME
+                        + " WHERE " + condition + ")",
+                new Object[]{type, type, priority, System.currentTimeMillis()});
+    }
+
+    private void createTags(SQLiteDatabase db) {
+        db.execSQL(Tag.CREATE_TABLE);
+        db.execSQL(Tag.CREATE_JOIN_TABLE);
+        db.execSQL(Tag.CREATE_FILTER_INDEX);
+        db.execSQL(Tag.CREATE_NOTE_INDEX);
+        db.execSQL(Tag.CREATE_COUNT_INSERT_TRIGGER);
+        db.execSQL(Tag.CREATE_COUNT_DELETE_TRIGGER);
+        db.execSQL(Tag.CREATE_COUNT_UPDATE_TRIGGER);
+        db.execSQL(Tag.CREATE_NOTE_UPDATE_TRIGGER);
+        db.execSQL(Tag.CREATE_NOTE_DELETE_TRIGGER);
+    }
+
+    private void addSyncColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + Note.TABLE_NAME + " ADD COLUMN " + Note.COLUMN_UUID + " TEXT");
+        db.execSQL("ALTER TABLE " + Note.TABLE_NAME + " ADD COLUMN " + Note.COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 1");
+        db.execSQL("ALTER TABLE " + Note.TABLE_NAME + " ADD COLUMN " + Note.COLUMN_UPDATED_AT + " INTEGER");
+        db.execSQL("ALTER TABLE " + Note.TABLE_NAME + " ADD COLUMN " + Note.COLUMN_IMAGE_HASH + " TEXT");
+        db.execSQL("UPDATE " + Note.TABLE_NAME + " SET "
+                + Note.COLUMN_UUID + " = lower(hex(randomblob(16))), "
+                + Note.COLUMN_UPDATED_AT + " = CAST(strftime('%s', " + Note.COLUMN_TIMESTAMP + ") AS INTEGER) * 1000");
+        db.execSQL(Note.CREATE_UUID_INDEX);
+    }
+
+    private void compressLongNotes(SQLiteDatabase db) {
+        SQLiteStatement statement = db.compileStatement("UPDATE " + Note.TABLE_NAME + " SET "
+                + Note.COLUMN_NOTE + " = NULL, " + Note.COLUMN_PREVIEW + " = ?, " + Note.COLUMN_BODY + " = ?"
+                + " WHERE " + Note.COLUMN_ID + " = ?");
+        Cursor cursor = db.query(Note.TABLE_NAME, new String[]{Note.COLUMN_ID, Note.COLUMN_NOTE},
+                "length(" + Note.COLUMN_NOTE + ") > " + COMPRESS_THRESHOLD_CHARS, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String text = cursor.getString(1);
+                statement.bindString(1, preview(text));
+                statement.bindBlob(2, TextCompression.deflate(text));
+                statement.bindLong(3, cursor.getLong(0));
+                statement.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            statement.close();
+        }
+    }
+
+    private void fillSortKeys(SQLiteDatabase db) {
+        SQLiteStatement statement = db.compileStatement("UPDATE " + Note.TABLE_NAME + " SET "
+                + Note.COLUMN_SORT_KEY + " = ? WHERE " + Note.COLUMN_ID + " = ?");
+        Cursor cursor = db.query(Note.TABLE_NAME, new String[]{Note.COLUMN_ID, Note.COLUMN_NOTE, Note.COLUMN_BODY},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                statement.bindString(1, sortKey(readText(cursor, 1, 2)));
+                statement.bindLong(2, cursor.getLong(0));
+                statement.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            statement.close();
+        }
+    }
+
+    private void createChangeLog(SQLiteDatabase db) {
+        db.execSQL(ChangeLog.CREATE_TABLE);
+        db.execSQL(ChangeLog.CREATE_CHECKPOINT_TABLE);
+        createChangeLogTriggers(db);
+    }
+
+    private void createChangeLogTriggers(SQLiteDatabase db) {
+        db.execSQL(ChangeLog.CREATE_INSERT_TRIGGER);
+        db.execSQL(ChangeLog.CREATE_UPDATE_TRIGGER);
+        db.execSQL(ChangeLog.CREATE_DELETE_TRIGGER);
+    }
 
-        // Create tables again
-        onCreate(db);
+    private void dropChangeLogTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + ChangeLog.TRIGGER_AFTER_INSERT);
+        db.execSQL("DROP TRIGGER IF EXISTS " + ChangeLog.TRIGGER_AFTER_UPDATE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + ChangeLog.TRIGGER_AFTER_DELETE);
+    }
+
+    public ImageStore getImageStore() {
+        return imageStore;
+    }
+
+    public JobQueue getJobQueue() {
+        return jobQueue;
+    }
+
+    /**
+     * Rewrites note texts and placeholders, revisions, drafts and images so they
+     * are encrypted, or plain, as {@link AtRestEncryption} is set now. Versions and
+     * the change log are left alone, to sync nothing changed. Runs in short transactions and
+     * only touches what is not as it should be, so it can be interrupted and run
+     * again. Takes long on a large library, call it in the background.
+     *
+     * @return notes, revisions, drafts and images rewritten
+     */
+    public int rewriteAtRest() throws IOException {
+        boolean encrypt = encryption.isEnabled();
+        SQLiteDatabase db = this.getWritableDatabase();
+        int rewritten = 0;
+
+        long lastId = 0;
+        boolean more = true;
+        while (more) {
+            db.beginTransaction();
+            try {
+                dropChangeLogTriggers(db);
+                Cursor cursor = db.query(Note.TABLE_NAME,
+                        new String[]{Note.COLUMN_ID, Note.COLUMN_NOTE, Note.COLUMN_BODY, Note.COLUMN_PLACEHOLDER},
+                        Note.COLUMN_ID + " > ?", new String[]{String.valueOf(lastId)},
+                        null, null, Note.COLUMN_ID, String.valueOf(REWRITE_BATCH));
+                try {
+                    more = cursor.getCount() == REWRITE_BATCH;
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        boolean text = !(cursor.isNull(1) && cursor.isNull(2)) && isSealed(cursor, 1, 2) != encrypt;
+                        boolean placeholder = !cursor.isNull(3)
+                                && (cursor.getType(3) == Cursor.FIELD_TYPE_BLOB) != encrypt;
+                        if (!text && !placeholder) {
+                            continue;
+                        }
+                        ContentValues values = new ContentValues();
+                        if (text) {
+                            putText(values, readText(cursor, 1, 2));
+                        }
+                        if (placeholder) {
+                            putPlaceholder(values, readTextColumn(cursor, 3));
+                        }
+                        db.update(Note.TABLE_NAME, values, Note.COLUMN_ID + " = ?",
+                                new String[]{String.valueOf(lastId)});
+                        rewritten++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                createChangeLogTriggers(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        lastId = 0;
+        more = true;
+        while (more) {
+            db.beginTransaction();
+            try {
+                Cursor cursor = db.query(NoteRevision.TABLE_NAME,
+                        new String[]{NoteRevision.COLUMN_ID, NoteRevision.COLUMN_DATA},
+                        NoteRevision.COLUMN_ID + " > ?", new String[]{String.valueOf(lastId)},
+                        null, null, NoteRevision.COLUMN_ID, String.valueOf(REWRITE_BATCH));
+                try {
+                    more = cursor.getCount() == REWRITE_BATCH;
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        byte[] data = cursor.getBlob(1);
+                        if (FieldCipher.isSealed(data) == encrypt) {
+                            continue;
+                        }
+                        ContentValues values = new ContentValues();
+                        values.put(NoteRevision.COLUMN_DATA, sealIfEnabled(openIfSealed(data)));
+                        db.update(NoteRevision.TABLE_NAME, values, NoteRevision.COLUMN_ID + " = ?",
+                                new String[]{String.valueOf(lastId)});
+                        rewritten++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        // a few at most, one per note being edited
+        Cursor cursor = db.query(Draft.TABLE_NAME, new String[]{Draft.COLUMN_NOTE_ID, Draft.COLUMN_TEXT},
+                Draft.COLUMN_TEXT + " IS NOT NULL", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if ((cursor.getType(1) == Cursor.FIELD_TYPE_BLOB) != encrypt) {
+                    // keeps the draft's time, it was not edited
+                    ContentValues values = new ContentValues();
+                    putDraftText(values, readTextColumn(cursor, 1));
+                    db.update(Draft.TABLE_NAME, values, Draft.COLUMN_NOTE_ID + " = ?",
+                            new String[]{String.valueOf(cursor.getLong(0))});
+                    rewritten++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return rewritten + imageStore.rewriteAll();
+    }
+
+
+    /**
+     * @return the query counters and leak tracking, null in release builds
+     */
+    public DatabaseInstrumentation getInstrumentation() {
+        return instrumentation;
     }
 
     public long insertNote(String note) {
+        long start = System.nanoTime();
         // get writable database as we want to write data
         SQLiteDatabase db = this.getWritableDatabase();
 
         ContentValues values = new ContentValues();
         // `id` and `timestamp` will be inserted automatically.
         // no need to add them
-        values.put(Note.COLUMN_NOTE, note);
+        putText(values, note);
+        values.put(Note.COLUMN_UUID, UUID.randomUUID().toString());
+        values.put(Note.COLUMN_VERSION, 1);
+        values.put(Note.COLUMN_UPDATED_AT, System.currentTimeMillis());
 
         // insert row
         long id = db.insert(Note.TABLE_NAME, null, values);
-
-        // close db connection
-        db.close();
+        INSERT_NOTE.recordSince(start);
 
         // return newly inserted row id
         return id;
     }
 
     public Note getNote(long id) {
+        long start = System.nanoTime();
         // get readable database as we are not inserting anything
         SQLiteDatabase db = this.getReadableDatabase();
 
         Cursor cursor = db.query(Note.TABLE_NAME,
-                new String[]{Note.COLUMN_ID, Note.COLUMN_NOTE, Note.COLUMN_TIMESTAMP, Note.COLUMN_IMAGE},
+                new String[]{Note.COLUMN_ID, Note.COLUMN_NOTE, Note.COLUMN_TIMESTAMP, Note.COLUMN_IMAGE,
+                        Note.COLUMN_UUID, Note.COLUMN_VERSION, Note.COLUMN_UPDATED_AT, Note.COLUMN_IMAGE_HASH,
+                        Note.COLUMN_DELETED, Note.COLUMN_BODY},
                 Note.COLUMN_ID + "=?",
                 new String[]{String.valueOf(id)}, null, null, null, null);
 
-        if (cursor != null)
-            cursor.moveToFirst();
-
-        // prepare note object
-        Note note = new Note(
-                cursor.getInt(cursor.getColumnIndex(Note.COLUMN_ID)),
-                cursor.getString(cursor.getColumnIndex(Note.COLUMN_NOTE)),
-                cursor.getString(cursor.getColumnIndex(Note.COLUMN_TIMESTAMP)),
-                cursor.getBlob(cursor.getColumnIndex(Note.COLUMN_IMAGE)));
+        // prepare note object, none when the note is gone
+        Note note = cursor.moveToFirst() ? readNote(cursor) : null;
 
         // close the db connection
         cursor.close();
+        GET_NOTE.recordSince(start);
 
         return note;
     }
 
+    /**
+     * Loads the notes for the list. Long notes only come with their preview,
+     * {@link #getNote} inflates the whole text when one is opened.
+     */
     public List<Note> getAllNotes() {
+        long start = System.nanoTime();
         List<Note> notes = new ArrayList<>();
 
-        // Select All Query
-        String selectQuery = "SELECT  * FROM " + Note.TABLE_NAME + " ORDER BY " +
-                Note.COLUMN_TIMESTAMP + " DESC";
-
-        SQLiteDatabase db = this.getWritableDatabase();
-        Cursor cursor = db.rawQuery(selectQuery, null);
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(Note.TABLE_NAME, LIST_COLUMNS, Note.COLUMN_DELETED + " = 0",
+                null, null, null, LIST_ORDER);
 
         // looping through all rows and adding to list
         if (cursor.moveToFirst()) {
             do {
-                Note note = new Note();
-                note.setId(cursor.getInt(cursor.getColumnIndex(Note.COLUMN_ID)));
-                note.setNote(cursor.getString(cursor.getColumnIndex(Note.COLUMN_NOTE)));
-                note.setTimestamp(cursor.getString(cursor.getColumnIndex(Note.COLUMN_TIMESTAMP)));
-                if(cursor.getBlob(1) != null) {
-                    byte[] image = cursor.getBlob(1);
-                        note.setImage((image));
-                    }
-                    notes.add(note);
-
+                notes.add(readNote(cursor));
             } while (cursor.moveToNext());
         }
 
-        // close db connection
-        db.close();
+        cursor.close();
+        GET_ALL_NOTES.recordSince(start);
+        ROWS_LISTED.add(notes.size());
 
         // return notes list
         return notes;
     }
 
-    public int getNotesCount() {
-        String countQuery = "SELECT  * FROM " + Note.TABLE_NAME;
+    /**
+     * Where pages of the list come from, for a {@link NoteQuery}. Each sort
+     * walks an index in list order: notes_live by time written, notes_updated
+     * by last edit, notes_sort_key by text. Sorted by time written, a tag reads
+     * its notes through note_tags, which holds their timestamps, so its filter
+     * index gives them in list order; sorted otherwise the tag is checked for
+     * each note the sort's index yields.
+     */
+    private static final class ListSource {
+        final String tables;
+        // what counting needs to read, without notes when nothing about them is asked
+        final String countTables;
+        final String[] columns;
+        // selection of the live notes of the source
+        final String selection;
+        final String[] selectionArgs;
+        final int sort;
+        final String key;
+        final String id;
+        // the direction of the list order
+        final String direction;
+
+        ListSource(String tables, String countTables, String[] columns, String selection, String[] selectionArgs,
+                   int sort, String key, String id) {
+            this.tables = tables;
+            this.countTables = countTables;
+            this.columns = columns;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+            this.sort = sort;
+            this.key = key;
+            this.id = id;
+            this.direction = sort == NoteQuery.SORT_TEXT ? "ASC" : "DESC";
+        }
+
+        String order() {
+            return key + " " + direction + ", " + id + " " + direction;
+        }
+
+        String reverseOrder() {
+            String reverse = direction.equals("ASC") ? "DESC" : "ASC";
+            return key + " " + reverse + ", " + id + " " + reverse;
+        }
+
+        /**
+         * @param forward the notes following the anchor in list order, else the ones preceding it
+         */
+        String seek(boolean forward) {
+            String comparison = forward == direction.equals("ASC") ? ">" : "<";
+            return key + " " + comparison + "= ? AND (" + key + " " + comparison + " ? OR " + id + " " + comparison + " ?)";
+        }
+
+        String[] seekArgs(Note anchor) {
+            String value;
+            if (sort == NoteQuery.SORT_UPDATED) {
+                value = String.valueOf(anchor.getUpdatedAt());
+            } else if (sort == NoteQuery.SORT_TEXT) {
+                value = anchor.getSortKey() != null ? anchor.getSortKey() : "";
+            } else {
+                value = String.valueOf(anchor.getTimestamp());
+            }
+            return new String[]{value, value, String.valueOf(anchor.getId())};
+        }
+    }
+
+    private static ListSource listSource(NoteQuery query) {
+        String tables;
+        String countTables;
+        String[] columns;
+        StringBuilder selection = new StringBuilder();
+        List<String> args = new ArrayList<>();
+        String key;
+        String id;
+        String prefix;
+        String time;
+        boolean tagged = query.getTagId() != Tag.NO_TAG;
+        if (tagged && query.getSort() == NoteQuery.SORT_CREATED) {
+            tables = Tag.JOIN_TABLE_NAME + " t JOIN " + Note.TABLE_NAME + " n ON n." + Note.COLUMN_ID
+                    + " = t." + Tag.COLUMN_NOTE_ID;
+            countTables = query.isImagesOnly() ? tables : Tag.JOIN_TABLE_NAME + " t";
+            columns = JOINED_LIST_COLUMNS;
+            selection.append("t.").append(Tag.COLUMN_TAG_ID).append(" = ? AND t.")
+                    .append(Tag.COLUMN_NOTE_DELETED).append(" = 0");
+            args.add(String.valueOf(query.getTagId()));
+            key = "t." + Tag.COLUMN_NOTE_TIMESTAMP;
+            id = "t." + Tag.COLUMN_NOTE_ID;
+            prefix = "n.";
+            time = key;
+        } else {
+            tables = Note.TABLE_NAME;
+            countTables = tables;
+            columns = LIST_COLUMNS;
+            selection.append(Note.COLUMN_DELETED).append(" = 0");
+            if (tagged) {
+                selection.append(" AND EXISTS (SELECT 1 FROM ").append(Tag.JOIN_TABLE_NAME)
+                        .append(" WHERE ").append(Tag.COLUMN_TAG_ID).append(" = ? AND ")
+                        .append(Tag.COLUMN_NOTE_ID).append(" = ").append(Note.TABLE_NAME).append('.')
+                        .append(Note.COLUMN_ID).append(")");
+                args.add(String.valueOf(query.getTagId()));
+            }
+            if (query.getSort() == NoteQuery.SORT_UPDATED) {
+                key = Note.COLUMN_UPDATED_AT;
+                time = key;
+            } else if (query.getSort() == NoteQuery.SORT_TEXT) {
+                key = Note.COLUMN_SORT_KEY;
+                // the unary plus keeps SQLite from walking notes_live instead of the sort's index
+                time = "+" + Note.COLUMN_TIMESTAMP;
+            } else {
+                key = Note.COLUMN_TIMESTAMP;
+                time = key;
+            }
+            id = Note.COLUMN_ID;
+            prefix = "";
+        }
+
+        // no partial indexes before SQLite 3.8, so this is checked on the rows the index walk yields
+        if (query.isImagesOnly()) {
+            selection.append(" AND ").append(prefix).append(Note.COLUMN_IMAGE_HASH).append(" IS NOT NULL");
+        }
+        boolean millis = query.getSort() == NoteQuery.SORT_UPDATED;
+        if (query.getFromMillis() != 0) {
+            selection.append(" AND ").append(time).append(" >= ?");
+            args.add(millis ? String.valueOf(query.getFromMillis()) : NoteQuery.toTimestamp(query.getFromMillis()));
+        }
+        if (query.getBeforeMillis() != 0) {
+            selection.append(" AND ").append(time).append(" < ?");
+            args.add(millis ? String.valueOf(query.getBeforeMillis()) : NoteQuery.toTimestamp(query.getBeforeMillis()));
+        }
+        return new ListSource(tables, countTables, columns, selection.toString(),
+                args.toArray(new String[args.size()]), query.getSort(), key, id);
+    }
+
+    /**
+     * One page of the list, the notes following {@code anchor} in list order.
+     * Seeks through the sort's index instead of skipping rows like an offset would.
+     *
+     * @param query  which notes, in which order
+     * @param anchor last note of the previous page, null for the first page
+     */
+    public List<Note> getNotesAfter(NoteQuery query, Note anchor, int limit) {
+        ListSource source = listSource(query);
+        if (anchor == null) {
+            return queryNotes(source, null, null, source.order(), limit);
+        }
+        return queryNotes(source, source.seek(true), source.seekArgs(anchor), source.order(), limit);
+    }
+
+    /**
+     * One page of the list, the notes preceding {@code anchor}, still in list order.
+     *
+     * @param anchor first note of the next page, null for the last page
+     */
+    public List<Note> getNotesBefore(NoteQuery query, Note anchor, int limit) {
+        ListSource source = listSource(query);
+        List<Note> notes;
+        if (anchor == null) {
+            notes = queryNotes(source, null, null, source.reverseOrder(), limit);
+        } else {
+            notes = queryNotes(source, source.seek(false), source.seekArgs(anchor), source.reverseOrder(), limit);
+        }
+        Collections.reverse(notes);
+        return notes;
+    }
+
+    /**
+     * One page of the list by position, for jumps far from any loaded page.
+     */
+    public List<Note> getNotesAt(NoteQuery query, int offset, int limit) {
+        ListSource source = listSource(query);
+        return queryNotes(source, null, null, source.order(), offset + ", " + limit);
+    }
+
+    /**
+     * The first page of a month: its newest notes, followed by older ones.
+     * Months only make sense for the list sorted by time written.
+     *
+     * @param month yyyy-MM
+     */
+    public List<Note> getNotesFromMonth(NoteQuery query, String month, int limit) {
+        if (query.getSort() != NoteQuery.SORT_CREATED) {
+            throw new IllegalArgumentException("Months need the list sorted by time written, not " + query);
+        }
+        ListSource source = listSource(query);
+        // every timestamp of the month sorts before the bare key of the next one
+        return queryNotes(source, source.key + " < ?",
+                new String[]{nextMonth(month)}, source.order(), limit);
+    }
+
+    /**
+     * Live notes per month, newest month first; empty unless the list is sorted
+     * by time written. The live index, or for a tag its filter index, gives
+     * the months in order, so it is one walk of the index, without reading any
+     * note unless only notes with images are asked for.
+     */
+    public List<MonthBucket> getMonthBuckets(NoteQuery query) {
+        List<MonthBucket> buckets = new ArrayList<>();
+        if (query.getSort() != NoteQuery.SORT_CREATED) {
+            return buckets;
+        }
+        long start = System.nanoTime();
+        ListSource source = listSource(query);
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.rawQuery(countQuery, null);
+        Cursor cursor = db.rawQuery("SELECT substr(" + source.key + ", 1, 7) AS month, COUNT(*)"
+                + " FROM " + source.countTables + " WHERE " + source.selection
+                + " GROUP BY month ORDER BY month DESC", source.selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                buckets.add(new MonthBucket(cursor.getString(0), cursor.getInt(1)));
+            }
+        } finally {
+            cursor.close();
+        }
+        MONTH_BUCKETS.recordSince(start);
+        return buckets;
+    }
+
+    private static String nextMonth(String month) {
+        int year = Integer.parseInt(month.substring(0, 4));
+        int monthOfYear = Integer.parseInt(month.substring(5, 7));
+        if (monthOfYear == 12) {
+            year++;
+            monthOfYear = 0;
+        }
+        return String.format(Locale.US, "%04d-%02d", year, monthOfYear + 1);
+    }
 
-        int count = cursor.getCount();
+    private List<Note> queryNotes(ListSource source, String selection, String[] selectionArgs,
+                                  String orderBy, Object limit) {
+        long start = System.nanoTime();
+        String where = source.selection;
+        String[] args = source.selectionArgs;
+        if (selection != null) {
+            where += " AND " + selection;
+            args = new String[source.selectionArgs.length + selectionArgs.length];
+            System.arraycopy(source.selectionArgs, 0, args, 0, source.selectionArgs.length);
+            System.arraycopy(selectionArgs, 0, args, source.selectionArgs.length, selectionArgs.length);
+        }
+
+        List<Note> notes = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(source.tables, source.columns, where, args,
+                null, null, orderBy, String.valueOf(limit));
+        try {
+            while (cursor.moveToNext()) {
+                notes.add(readNote(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        LIST_PAGE.recordSince(start);
+        ROWS_LISTED.add(notes.size());
+        return notes;
+    }
+
+    /**
+     * @param query which notes; the sort does not matter. A tag keeps its
+     *              count, so counting all notes of a tag does not scan anything.
+     */
+    public int getNotesCount(NoteQuery query) {
+        long start = System.nanoTime();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor;
+        if (query.getTagId() != Tag.NO_TAG && !query.hasNoteFilters()) {
+            cursor = db.rawQuery("SELECT " + Tag.COLUMN_NOTE_COUNT + " FROM " + Tag.TABLE_NAME
+                    + " WHERE " + Tag.COLUMN_ID + " = ?", new String[]{String.valueOf(query.getTagId())});
+        } else {
+            // the same notes, counted along the index that needs the fewest rows read
+            ListSource source = listSource(query.withSort(NoteQuery.SORT_CREATED));
+            cursor = db.rawQuery("SELECT COUNT(*) FROM " + source.countTables + " WHERE " + source.selection,
+                    source.selectionArgs);
+        }
+
+        int count = cursor.moveToFirst() ? cursor.getInt(0) : 0;
         cursor.close();
+        COUNT_NOTES.recordSince(start);
 
         return count;
     }
 
+    /**
+     * Adds a tag, or finds the one that has this name already, in any case.
+     *
+     * @return its id
+     */
+    public long addTag(String name) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(Tag.COLUMN_NAME, name.trim());
+        long id = db.insertWithOnConflict(Tag.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        if (id != -1) {
+            return id;
+        }
+        Cursor cursor = db.query(Tag.TABLE_NAME, new String[]{Tag.COLUMN_ID}, Tag.COLUMN_NAME + " = ?",
+                new String[]{name.trim()}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * All tags by name, with their note counts.
+     */
+    public List<Tag> getTags() {
+        List<Tag> tags = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(Tag.TABLE_NAME,
+                new String[]{Tag.COLUMN_ID, Tag.COLUMN_NAME, Tag.COLUMN_NOTE_COUNT},
+                null, null, null, null, Tag.COLUMN_NAME);
+        try {
+            while (cursor.moveToNext()) {
+                tags.add(new Tag(cursor.getLong(0), cursor.getString(1), cursor.getInt(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tags;
+    }
+
+    /**
+     * @return ids of the tags the note has
+     */
+    public Set<Long> getNoteTagIds(long noteId) {
+        Set<Long> tagIds = new HashSet<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(Tag.JOIN_TABLE_NAME, new String[]{Tag.COLUMN_TAG_ID},
+                Tag.COLUMN_NOTE_ID + " = ?", new String[]{String.valueOf(noteId)}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                tagIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tagIds;
+    }
+
+    /**
+     * Gives the note exactly these tags. The triggers on note_tags keep the
+     * tag counts in step, in the same transaction.
+     */
+    public void setNoteTags(long noteId, Set<Long> tagIds) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Set<Long> current = getNoteTagIds(noteId);
+            for (Long tagId : current) {
+                if (!tagIds.contains(tagId)) {
+                    db.delete(Tag.JOIN_TABLE_NAME, Tag.COLUMN_TAG_ID + " = ? AND " + Tag.COLUMN_NOTE_ID + " = ?",
+                            new String[]{String.valueOf(tagId), String.valueOf(noteId)});
+                }
+            }
+            SQLiteStatement insert = compileTagInsert(db);
+            try {
+                for (Long tagId : tagIds) {
+                    if (!current.contains(tagId)) {
+                        insert.bindLong(1, tagId);
+                        insert.bindLong(2, noteId);
+                        insert.executeInsert();
+                    }
+                }
+            } finally {
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Tags all these notes, in one transaction. Notes that have the tag already keep it.
+     */
+    public void addTagToNotes(long tagId, long[] noteIds) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = compileTagInsert(db);
+            try {
+                for (long noteId : noteIds) {
+                    insert.bindLong(1, tagId);
+                    insert.bindLong(2, noteId);
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // binds tag id, note id; copies the note's timestamp and deleted flag from the note itself
+    private static SQLiteStatement compileTagInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT OR IGNORE INTO " + Tag.JOIN_TABLE_NAME + " ("
+                + Tag.COLUMN_TAG_ID + ", " + Tag.COLUMN_NOTE_ID + ", "
+                + Tag.COLUMN_NOTE_TIMESTAMP + ", " + Tag.COLUMN_NOTE_DELETED + ")"
+                + " SELECT ?, " + Note.COLUMN_ID + ", " + Note.COLUMN_TIMESTAMP + ", " + Note.COLUMN_DELETED
+                + " FROM " + Note.TABLE_NAME + " WHERE " + Note.COLUMN_ID + " = ?");
+    }
+
+    /**
+     * Loads these notes with their whole text, in list order, e.g. to export them.
+     * Notes that are gone are left out.
+     */
+    public List<Note> getNotes(long[] ids) {
+        List<Note> notes = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        // SQLite takes at most 999 arguments per statement
+        int chunk = 500;
+        db.beginTransaction();
+        try {
+            for (int start = 0; start < ids.length; start += chunk) {
+                int count = Math.min(chunk, ids.length - start);
+                String[] args = new String[count];
+                for (int i = 0; i < count; i++) {
+                    args[i] = String.valueOf(ids[start + i]);
+                }
+                Cursor cursor = db.query(Note.TABLE_NAME,
+                        new String[]{Note.COLUMN_ID, Note.COLUMN_NOTE, Note.COLUMN_TIMESTAMP, Note.COLUMN_UUID,
+                                Note.COLUMN_VERSION, Note.COLUMN_UPDATED_AT, Note.COLUMN_IMAGE_HASH,
+                                Note.COLUMN_DELETED, Note.COLUMN_BODY},
+                        Note.COLUMN_ID + " IN (" + TextUtils.join(",", Collections.nCopies(count, "?")) + ")",
+                        args, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        notes.add(readNote(cursor));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Collections.sort(notes, new Comparator<Note>() {
+            @Override
+            public int compare(Note a, Note b) {
+                int byTime = String.valueOf(b.getTimestamp()).compareTo(String.valueOf(a.getTimestamp()));
+                return byTime != 0 ? byTime : b.getId() - a.getId();
+            }
+        });
+        return notes;
+    }
+
+    /**
+     * Writes the note text, and the image when one is attached, and bumps the
+     * version sync uses to order concurrent edits. The text it replaces is kept
+     * as a revision.
+     */
     public int updateNote(Note note) {
+        String imageHash = null;
+        if (note.getImage() != null) {
+            try {
+                imageHash = imageStore.put(note.getImage());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not store image of note " + note.getId(), e);
+            }
+        }
+        return updateNote(note, imageHash);
+    }
+
+    /**
+     * {@link #updateNote(Note)} attaching an image that is in the image store already.
+     *
+     * @param imageHash the image, null to keep the one the note has
+     */
+    public int updateNote(Note note, String imageHash) {
+        long start = System.nanoTime();
         SQLiteDatabase db = this.getWritableDatabase();
 
-        ContentValues values = new ContentValues();
-        values.put(Note.COLUMN_NOTE, note.getNote());
+        // may decode the image, not while holding the transaction
+        String placeholder = imageHash != null ? getPlaceholder(imageHash) : null;
+        long updatedAt = System.currentTimeMillis();
+        SQLiteStatement statement = db.compileStatement("UPDATE " + Note.TABLE_NAME + " SET "
+                + Note.COLUMN_NOTE + " = ?, "
+                + Note.COLUMN_PREVIEW + " = ?, "
+                + Note.COLUMN_BODY + " = ?, "
+                + Note.COLUMN_SORT_KEY + " = ?, "
+                + Note.COLUMN_UPDATED_AT + " = ?, "
+                + Note.COLUMN_VERSION + " = " + Note.COLUMN_VERSION + " + 1"
+                + (imageHash != null ? ", " + Note.COLUMN_IMAGE_HASH + " = ?, " + Note.COLUMN_IMAGE + " = NULL, "
+                + Note.COLUMN_PLACEHOLDER + " = ?" : "")
+                + " WHERE " + Note.COLUMN_ID + " = ?");
+        db.beginTransaction();
+        try {
+            saveRevision(note.getId(), note.getNote());
+
+            ContentValues text = new ContentValues();
+            putText(text, note.getNote());
+            int index = 1;
+            bindValue(statement, index++, text.get(Note.COLUMN_NOTE));
+            bindValue(statement, index++, text.get(Note.COLUMN_PREVIEW));
+            bindValue(statement, index++, text.get(Note.COLUMN_BODY));
+            bindValue(statement, index++, text.get(Note.COLUMN_SORT_KEY));
+            statement.bindLong(index++, updatedAt);
+            if (imageHash != null) {
+                statement.bindString(index++, imageHash);
+                bindValue(statement, index++, sealPlaceholder(placeholder));
+            }
+            statement.bindLong(index, note.getId());
 
-        // updating row
-        return db.update(Note.TABLE_NAME, values, Note.COLUMN_ID + " = ?",
-                new String[]{String.valueOf(note.getId())});
+            // updating row
+            int rows = statement.executeUpdateDelete();
+            if (rows > 0) {
+                note.setUpdatedAt(updatedAt);
+                note.setSortKey(text.getAsString(Note.COLUMN_SORT_KEY));
+                note.setVersion(note.getVersion() + 1);
+                if (imageHash != null) {
+                    note.setImageHash(imageHash);
+                    note.setPlaceholder(placeholder);
+                }
+                note.setPreview(null);
+            }
+            db.setTransactionSuccessful();
+            return rows;
+        } finally {
+            db.endTransaction();
+            statement.close();
+            UPDATE_NOTE.recordSince(start);
+        }
+    }
+
+    /**
+     * Attaches an image that is in the image store to the note, e.g. one that
+     * finished encoding after the note was saved.
+     */
+    public int setNoteImage(long noteId, String imageHash) {
+        String placeholder = getPlaceholder(imageHash);
+        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement("UPDATE " + Note.TABLE_NAME + " SET "
+                + Note.COLUMN_IMAGE_HASH + " = ?, "
+                + Note.COLUMN_IMAGE + " = NULL, "
+                + Note.COLUMN_PLACEHOLDER + " = ?, "
+                + Note.COLUMN_UPDATED_AT + " = ?, "
+                + Note.COLUMN_VERSION + " = " + Note.COLUMN_VERSION + " + 1"
+                + " WHERE " + Note.COLUMN_ID + " = ?");
+        try {
+            statement.bindString(1, imageHash);
+            bindValue(statement, 2, sealPlaceholder(placeholder));
+            statement.bindLong(3, System.currentTimeMillis());
+            statement.bindLong(4, noteId);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * The BlurHash to store with a note of this image: the one computed when the
+     * image was stored, another note's with the same image, or else the image
+     * decoded small now, which takes a few milliseconds. Call it in the background.
+     *
+     * @return empty when the image cannot be decoded, null when it is not in the store
+     */
+    public String getPlaceholder(String imageHash) {
+        String placeholder = imageStore.getPlaceholder(imageHash);
+        if (placeholder != null) {
+            return placeholder;
+        }
+        Cursor cursor = this.getReadableDatabase().query(Note.TABLE_NAME, new String[]{Note.COLUMN_PLACEHOLDER},
+                Note.COLUMN_IMAGE_HASH + " = ? AND " + Note.COLUMN_PLACEHOLDER + " IS NOT NULL",
+                new String[]{imageHash}, null, null, null, "1");
+        try {
+            if (cursor.moveToFirst()) {
+                return readTextColumn(cursor, 0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!imageStore.contains(imageHash)) {
+            return null;
+        }
+        try {
+            placeholder = ImageProcessingUtil.loadPlaceholder(imageStore, imageHash);
+        } catch (IOException e) {
+            Log.w(TAG, "No placeholder for image " + imageHash, e);
+            placeholder = "";
+        }
+        imageStore.putPlaceholder(imageHash, placeholder);
+        return placeholder;
+    }
+
+    /**
+     * Fills in the placeholders of image notes saved before there were any, for
+     * up to {@code limit} images after {@code afterHash} in hash order. Versions
+     * and the change log are left alone, there is nothing to sync.
+     *
+     * @return the images looked at, in order; fewer than {@code limit} once there are no more
+     */
+    List<String> fillPlaceholders(String afterHash, int limit) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        List<String> hashes = new ArrayList<>();
+        Cursor cursor = db.query(true, Note.TABLE_NAME, new String[]{Note.COLUMN_IMAGE_HASH},
+                Note.COLUMN_IMAGE_HASH + " > ? AND " + Note.COLUMN_PLACEHOLDER + " IS NULL",
+                new String[]{afterHash}, null, null, Note.COLUMN_IMAGE_HASH, String.valueOf(limit));
+        try {
+            while (cursor.moveToNext()) {
+                hashes.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // decoded before the transaction, so the app's own writes do not wait for it
+        List<String> placeholders = new ArrayList<>(hashes.size());
+        for (String hash : hashes) {
+            placeholders.add(getPlaceholder(hash));
+        }
+
+        SQLiteStatement statement = db.compileStatement("UPDATE " + Note.TABLE_NAME + " SET "
+                + Note.COLUMN_PLACEHOLDER + " = ? WHERE " + Note.COLUMN_IMAGE_HASH + " = ? AND "
+                + Note.COLUMN_PLACEHOLDER + " IS NULL");
+        db.beginTransaction();
+        try {
+            dropChangeLogTriggers(db);
+            for (int i = 0; i < hashes.size(); i++) {
+                // not downloaded yet, sync sets it when the image arrives
+                if (placeholders.get(i) == null) {
+                    continue;
+                }
+                bindValue(statement, 1, sealPlaceholder(placeholders.get(i)));
+                statement.bindString(2, hashes.get(i));
+                statement.executeUpdateDelete();
+            }
+            createChangeLogTriggers(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+        return hashes;
     }
 
     public void deleteNote(Note note) {
+        long start = System.nanoTime();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(Note.TABLE_NAME, Note.COLUMN_ID + " = ?",
+                    new String[]{String.valueOf(note.getId())});
+            deleteRevisions(db, note.getId());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            DELETE_NOTE.recordSince(start);
+        }
+    }
+
+    /**
+     * Keeps the text the note has before it is replaced by {@code newText}.
+     * Has to run in the transaction that writes the new text, the stored
+     * delta is only valid against it.
+     */
+    public void saveRevision(long noteId, String newText) {
+        SQLiteDatabase db = this.getWritableDatabase();
+
+        String oldText;
+        long version;
+        long updatedAt;
+        Cursor cursor = db.query(Note.TABLE_NAME,
+                new String[]{Note.COLUMN_NOTE, Note.COLUMN_VERSION, Note.COLUMN_UPDATED_AT, Note.COLUMN_BODY},
+                Note.COLUMN_ID + " = ?", new String[]{String.valueOf(noteId)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst() || (oldText = readText(cursor, 0, 3)) == null) {
+                return;
+            }
+            version = cursor.getLong(1);
+            updatedAt = cursor.getLong(2);
+        } finally {
+            cursor.close();
+        }
+        if (oldText.equals(newText)) {
+            return;
+        }
+
+        byte[] full = oldText.getBytes(UTF_8);
+        byte[] delta = TextDelta.diff(newText != null ? newText : "", oldText);
+        boolean storeFull = delta.length >= full.length
+                || countDeltaRevisions(db, noteId) >= FULL_REVISION_INTERVAL - 1;
+
+        ContentValues values = new ContentValues();
+        values.put(NoteRevision.COLUMN_NOTE_ID, noteId);
+        values.put(NoteRevision.COLUMN_VERSION, version);
+        values.put(NoteRevision.COLUMN_CREATED_AT, updatedAt);
+        values.put(NoteRevision.COLUMN_KIND, storeFull ? NoteRevision.KIND_FULL : NoteRevision.KIND_DELTA);
+        values.put(NoteRevision.COLUMN_DATA, sealIfEnabled(storeFull ? full : delta));
+        db.insert(NoteRevision.TABLE_NAME, null, values);
+
+        db.execSQL("DELETE FROM " + NoteRevision.TABLE_NAME + " WHERE " + NoteRevision.COLUMN_NOTE_ID + " = ?"
+                        + " AND " + NoteRevision.COLUMN_ID + " <= (SELECT " + NoteRevision.COLUMN_ID
+                        + " FROM " + NoteRevision.TABLE_NAME + " WHERE " + NoteRevision.COLUMN_NOTE_ID + " = ?"
+                        + " ORDER BY " + NoteRevision.COLUMN_ID + " DESC LIMIT 1 OFFSET " + MAX_REVISIONS + ")",
+                new Object[]{noteId, noteId});
+    }
+
+    // deltas stored since the newest full revision of the note
+    private static long countDeltaRevisions(SQLiteDatabase db, long noteId) {
+        String id = String.valueOf(noteId);
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + NoteRevision.TABLE_NAME
+                + " WHERE " + NoteRevision.COLUMN_NOTE_ID + " = ? AND " + NoteRevision.COLUMN_ID + " >"
+                + " (SELECT IFNULL(MAX(" + NoteRevision.COLUMN_ID + "), 0) FROM " + NoteRevision.TABLE_NAME
+                + " WHERE " + NoteRevision.COLUMN_NOTE_ID + " = ? AND "
+                + NoteRevision.COLUMN_KIND + " = " + NoteRevision.KIND_FULL + ")", new String[]{id, id});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void deleteRevisions(SQLiteDatabase db, long noteId) {
+        db.delete(NoteRevision.TABLE_NAME, NoteRevision.COLUMN_NOTE_ID + " = ?",
+                new String[]{String.valueOf(noteId)});
+    }
+
+    /**
+     * @return the earlier versions of the note, newest first, without their text
+     */
+    public List<NoteRevision> getRevisions(long noteId) {
+        List<NoteRevision> revisions = new ArrayList<>();
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(NoteRevision.TABLE_NAME,
+                new String[]{NoteRevision.COLUMN_ID, NoteRevision.COLUMN_VERSION, NoteRevision.COLUMN_CREATED_AT},
+                NoteRevision.COLUMN_NOTE_ID + " = ?", new String[]{String.valueOf(noteId)},
+                null, null, NoteRevision.COLUMN_ID + " DESC");
+        try {
+            while (cursor.moveToNext()) {
+                revisions.add(new NoteRevision(cursor.getLong(0), noteId, cursor.getLong(1),
+                        cursor.getLong(2), null));
+            }
+        } finally {
+            cursor.close();
+        }
+        return revisions;
+    }
+
+    /**
+     * Rebuilds the text of a revision, starting from the nearest newer full
+     * copy, or the current text, and applying the deltas in between.
+     *
+     * @return the text, or null when the revision does not exist or cannot be rebuilt
+     */
+    public String getRevisionText(long noteId, long revisionId) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        String id = String.valueOf(noteId);
+        String since = String.valueOf(revisionId);
+
+        // a transaction, so no edit slips in between the current text and the deltas
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(NoteRevision.TABLE_NAME,
+                    new String[]{NoteRevision.COLUMN_ID, NoteRevision.COLUMN_KIND, NoteRevision.COLUMN_DATA},
+                    NoteRevision.COLUMN_NOTE_ID + " = ? AND " + NoteRevision.COLUMN_ID + " >= ? AND "
+                            + NoteRevision.COLUMN_ID + " <= IFNULL((SELECT MIN(" + NoteRevision.COLUMN_ID + ")"
+                            + " FROM " + NoteRevision.TABLE_NAME + " WHERE " + NoteRevision.COLUMN_NOTE_ID + " = ?"
+                            + " AND " + NoteRevision.COLUMN_ID + " >= ? AND "
+                            + NoteRevision.COLUMN_KIND + " = " + NoteRevision.KIND_FULL + "), " + Long.MAX_VALUE + ")",
+                    new String[]{id, since, id, since}, null, null, NoteRevision.COLUMN_ID + " DESC");
+            try {
+                String text = null;
+                long lastId = -1;
+                while (cursor.moveToNext()) {
+                    byte[] data = openIfSealed(cursor.getBlob(2));
+                    if (cursor.getInt(1) == NoteRevision.KIND_FULL) {
+                        text = new String(data, UTF_8);
+                    } else {
+                        if (text == null) {
+                            text = getCurrentText(db, noteId);
+                        }
+                        text = TextDelta.apply(text, data);
+                    }
+                    lastId = cursor.getLong(0);
+                }
+                db.setTransactionSuccessful();
+                return lastId == revisionId ? text : null;
+            } finally {
+                cursor.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not rebuild revision " + revisionId + " of note " + noteId, e);
+            return null;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String getCurrentText(SQLiteDatabase db, long noteId) {
+        Cursor cursor = db.query(Note.TABLE_NAME, new String[]{Note.COLUMN_NOTE, Note.COLUMN_BODY},
+                Note.COLUMN_ID + " = ?", new String[]{String.valueOf(noteId)}, null, null, null);
+        try {
+            String text = cursor.moveToFirst() ? readText(cursor, 0, 1) : null;
+            return text != null ? text : "";
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Makes the text of a revision the current text of the note. The text it
+     * replaces becomes a revision itself, so a restore can be undone.
+     *
+     * @return the updated note, or null when the revision could not be rebuilt or the note is gone
+     */
+    public Note restoreRevision(long noteId, long revisionId) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            String text = getRevisionText(noteId, revisionId);
+            if (text == null) {
+                return null;
+            }
+            // the history can outlive the note, e.g. when the purge ran while it was open
+            Note note = getNote(noteId);
+            if (note == null) {
+                return null;
+            }
+            note.setNote(text);
+            // only the text goes back in time
+            note.setImage(null);
+            updateNote(note);
+            db.setTransactionSuccessful();
+            return note;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Marks the note deleted. It disappears from the list right away but stays
+     * restorable until {@link #purgeDeletedNotes} removes it for good.
+     */
+    public void softDeleteNote(long id) {
+        setDeleted(new long[]{id}, true);
+    }
+
+    /**
+     * {@link #softDeleteNote} for several notes, in one transaction.
+     */
+    public void softDeleteNotes(long[] ids) {
+        setDeleted(ids, true);
+    }
+
+    /**
+     * Undoes {@link #softDeleteNote}, as long as the note has not been purged yet.
+     */
+    public void restoreNote(long id) {
+        setDeleted(new long[]{id}, false);
+    }
+
+    /**
+     * {@link #restoreNote} for several notes, in one transaction.
+     */
+    public void restoreNotes(long[] ids) {
+        setDeleted(ids, false);
+    }
+
+    private void setDeleted(long[] ids, boolean deleted) {
+        long start = System.nanoTime();
+        SQLiteDatabase db = this.getWritableDatabase();
+        long now = System.currentTimeMillis();
+
+        // a tombstone is a new version of the note, so it syncs like any other edit
+        SQLiteStatement statement = db.compileStatement("UPDATE " + Note.TABLE_NAME + " SET "
+                + Note.COLUMN_DELETED + " = ?, "
+                + Note.COLUMN_DELETED_AT + " = ?, "
+                + Note.COLUMN_UPDATED_AT + " = ?, "
+                + Note.COLUMN_VERSION + " = " + Note.COLUMN_VERSION + " + 1"
+                + " WHERE " + Note.COLUMN_ID + " = ?");
+        db.beginTransaction();
+        try {
+            statement.bindLong(1, deleted ? 1 : 0);
+            if (deleted) {
+                statement.bindLong(2, now);
+            } else {
+                statement.bindNull(2);
+            }
+            statement.bindLong(3, now);
+            for (long id : ids) {
+                statement.bindLong(4, id);
+                statement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+            SET_DELETED.recordSince(start);
+        }
+        if (deleted) {
+            jobQueue.enqueue(Job.TYPE_PURGE_DELETED, Job.PRIORITY_LOW, DeletedNotesPurger.UNDO_GRACE_MILLIS);
+        }
+    }
+
+    /**
+     * Removes up to {@code limit} notes soft deleted before {@code deletedBefore},
+     * together with the images no remaining note refers to.
+     *
+     * @return number of notes removed, less than {@code limit} once nothing is left
+     */
+    public int purgeDeletedNotes(long deletedBefore, int limit) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        List<String> imageHashes = new ArrayList<>();
+        int purged = 0;
+
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(Note.TABLE_NAME, new String[]{Note.COLUMN_ID, Note.COLUMN_IMAGE_HASH},
+                    Note.COLUMN_DELETED + " = 1 AND " + Note.COLUMN_DELETED_AT + " < ?",
+                    new String[]{String.valueOf(deletedBefore)}, null, null, null, String.valueOf(limit));
+            try {
+                while (cursor.moveToNext()) {
+                    purged += db.delete(Note.TABLE_NAME, Note.COLUMN_ID + " = ?",
+                            new String[]{String.valueOf(cursor.getLong(0))});
+                    deleteRevisions(db, cursor.getLong(0));
+                    if (!cursor.isNull(1)) {
+                        imageHashes.add(cursor.getString(1));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // only after the commit, a rolled back purge must not lose images
+        for (String hash : imageHashes) {
+            if (!isImageReferenced(hash)) {
+                imageStore.delete(hash);
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * @return ids of up to {@code limit} notes that still have their photo as a PNG blob, from old versions
+     */
+    List<Long> getNotesWithImageBlobs(int limit) {
+        List<Long> ids = new ArrayList<>();
+        Cursor cursor = this.getReadableDatabase().query(Note.TABLE_NAME, new String[]{Note.COLUMN_ID},
+                Note.COLUMN_IMAGE + " IS NOT NULL", null, null, null, Note.COLUMN_ID, String.valueOf(limit));
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * @return the PNG blob of a note from an old version, null when it has none
+     */
+    byte[] getImageBlob(long noteId) {
+        Cursor cursor = this.getReadableDatabase().query(Note.TABLE_NAME, new String[]{Note.COLUMN_IMAGE},
+                Note.COLUMN_ID + " = ?", new String[]{String.valueOf(noteId)}, null, null, null);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return when the note deleted longest ago was deleted, -1 when no deleted note is left
+     */
+    long getOldestDeletedAt() {
+        Cursor cursor = this.getReadableDatabase().rawQuery("SELECT min(" + Note.COLUMN_DELETED_AT + ") FROM "
+                + Note.TABLE_NAME + " WHERE " + Note.COLUMN_DELETED + " = 1", null);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public boolean isImageReferenced(String imageHash) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(Note.TABLE_NAME, new String[]{Note.COLUMN_ID},
+                Note.COLUMN_IMAGE_HASH + " = ?", new String[]{imageHash}, null, null, null, "1");
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void saveDraft(long noteId, String text) {
+        SQLiteDatabase db = this.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put(Draft.COLUMN_NOTE_ID, noteId);
+        putDraftText(values, text);
+        values.put(Draft.COLUMN_UPDATED_AT, System.currentTimeMillis());
+
+        db.insertWithOnConflict(Draft.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * @return the most recently edited draft, or null when there is none
+     */
+    public Draft getLatestDraft() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(Draft.TABLE_NAME,
+                new String[]{Draft.COLUMN_NOTE_ID, Draft.COLUMN_TEXT, Draft.COLUMN_UPDATED_AT},
+                null, null, null, null, Draft.COLUMN_UPDATED_AT + " DESC", "1");
+        try {
+            return cursor.moveToFirst()
+                    ? new Draft(cursor.getLong(0), readTextColumn(cursor, 1), cursor.getLong(2))
+                    : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void putDraftText(ContentValues values, String text) {
+        if (text != null && encryption.isEnabled()) {
+            values.put(Draft.COLUMN_TEXT, encryption.sealText(text));
+        } else {
+            values.put(Draft.COLUMN_TEXT, text);
+        }
+    }
+
+    public void deleteDraft(long noteId) {
         SQLiteDatabase db = this.getWritableDatabase();
-        db.delete(Note.TABLE_NAME, Note.COLUMN_ID + " = ?",
-                new String[]{String.valueOf(note.getId())});
-        db.close();
+        db.delete(Draft.TABLE_NAME, Draft.COLUMN_NOTE_ID + " = ?",
+                new String[]{String.valueOf(noteId)});
+    }
+
+    /**
+     * @return sequence number of the most recent change log entry, 0 when the log is empty
+     */
+    public long getLatestChangeSeq() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT MAX(" + ChangeLog.COLUMN_SEQ + ") FROM " + ChangeLog.TABLE_NAME, null);
+
+        long seq = 0;
+        if (cursor.moveToFirst()) {
+            seq = cursor.getLong(0);
+        }
+        cursor.close();
+
+        return seq;
+    }
+
+    /**
+     * Where a batch of at most {@code count} change log entries after {@code sinceSeq}
+     * ends, found through the primary key without reading the entries.
+     *
+     * @return the sequence number of the last entry of the batch, {@code sinceSeq} when there is none
+     */
+    public long getChangeBatchEnd(long sinceSeq, int count) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT MAX(" + ChangeLog.COLUMN_SEQ + ") FROM (SELECT " + ChangeLog.COLUMN_SEQ
+                        + " FROM " + ChangeLog.TABLE_NAME + " WHERE " + ChangeLog.COLUMN_SEQ + " > ?"
+                        + " ORDER BY " + ChangeLog.COLUMN_SEQ + " LIMIT ?)",
+                new String[]{String.valueOf(sinceSeq), String.valueOf(count)});
+
+        long seq = sinceSeq;
+        if (cursor.moveToFirst() && !cursor.isNull(0)) {
+            seq = cursor.getLong(0);
+        }
+        cursor.close();
+
+        return seq;
+    }
+
+    /**
+     * Collapses the change log between two checkpoints to one entry per note,
+     * carrying the last operation seen for it, in the order the notes last changed.
+     *
+     * @param sinceSeq exclusive lower bound
+     * @param untilSeq inclusive upper bound
+     */
+    public List<ChangeLog> getChanges(long sinceSeq, long untilSeq) {
+        List<ChangeLog> changes = new ArrayList<>();
+
+        // SQLite returns the bare columns from the row holding MAX(seq)
+        String selectQuery = "SELECT " + ChangeLog.COLUMN_NOTE_ID + ", " + ChangeLog.COLUMN_OPERATION
+                + ", MAX(" + ChangeLog.COLUMN_SEQ + ") AS last_seq, " + ChangeLog.COLUMN_NOTE_UUID
+                + ", " + ChangeLog.COLUMN_NOTE_VERSION + ", " + ChangeLog.COLUMN_CHANGED_AT
+                + " FROM " + ChangeLog.TABLE_NAME
+                + " WHERE " + ChangeLog.COLUMN_SEQ + " > ? AND " + ChangeLog.COLUMN_SEQ + " <= ?"
+                + " GROUP BY " + ChangeLog.COLUMN_NOTE_ID + " ORDER BY last_seq";
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery(selectQuery,
+                new String[]{String.valueOf(sinceSeq), String.valueOf(untilSeq)});
+
+        while (cursor.moveToNext()) {
+            changes.add(new ChangeLog(cursor.getLong(2), cursor.getLong(0), cursor.getString(1),
+                    cursor.getString(3), cursor.getLong(4), cursor.getLong(5)));
+        }
+        cursor.close();
+
+        return changes;
+    }
+
+    /**
+     * Records that {@code consumer} has processed the change log up to {@code seq}
+     * and drops the entries every registered consumer is past.
+     */
+    public void checkpointChangeLog(String consumer, long seq) {
+        SQLiteDatabase db = this.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(ChangeLog.COLUMN_CONSUMER, consumer);
+            values.put(ChangeLog.COLUMN_SEQ, seq);
+            db.insertWithOnConflict(ChangeLog.CHECKPOINT_TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+
+            db.execSQL("DELETE FROM " + ChangeLog.TABLE_NAME + " WHERE " + ChangeLog.COLUMN_SEQ
+                    + " <= (SELECT MIN(" + ChangeLog.COLUMN_SEQ + ") FROM " + ChangeLog.CHECKPOINT_TABLE_NAME + ")");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Builds a note from the current cursor row, reading whichever note columns the query selected.
+     */
+    static Note readNote(Cursor cursor) {
+        Note note = new Note();
+        int index;
+        if ((index = cursor.getColumnIndex(Note.COLUMN_ID)) >= 0) {
+            note.setId(cursor.getInt(index));
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_NOTE)) >= 0) {
+            note.setNote(readTextColumn(cursor, index));
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_TIMESTAMP)) >= 0) {
+            note.setTimestamp(cursor.getString(index));
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_IMAGE)) >= 0 && !cursor.isNull(index)) {
+            note.setImage(cursor.getBlob(index));
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_UUID)) >= 0) {
+            note.setUuid(cursor.getString(index));
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_VERSION)) >= 0) {
+            note.setVersion(cursor.getLong(index));
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_UPDATED_AT)) >= 0) {
+            note.setUpdatedAt(cursor.getLong(index));
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_IMAGE_HASH)) >= 0) {
+            note.setImageHash(cursor.getString(index));
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_DELETED)) >= 0) {
+            note.setDeleted(cursor.getInt(index) != 0);
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_BODY)) >= 0 && !cursor.isNull(index)) {
+            note.setNote(inflateBody(cursor.getBlob(index)));
+        } else if ((index = cursor.getColumnIndex(Note.COLUMN_PREVIEW)) >= 0) {
+            note.setPreview(readTextColumn(cursor, index));
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_SORT_KEY)) >= 0) {
+            note.setSortKey(cursor.getString(index));
+        }
+        if ((index = cursor.getColumnIndex(Note.COLUMN_PLACEHOLDER)) >= 0) {
+            note.setPlaceholder(readTextColumn(cursor, index));
+        }
+        return note;
+    }
+
+    /**
+     * Puts the note text into the note and body columns, deflated when it is long,
+     * and its sort key. With {@link AtRestEncryption} on, the text and preview
+     * are sealed BLOBs, and the sort key is empty: it would give away the start
+     * of the text, so encrypted notes sorted by text keep the order they were written in.
+     */
+    public static void putText(ContentValues values, String text) {
+        AtRestEncryption encryption = AtRestEncryption.current();
+        if (text != null && encryption != null && encryption.isEnabled()) {
+            values.put(Note.COLUMN_SORT_KEY, "");
+            if (shouldCompress(text)) {
+                values.putNull(Note.COLUMN_NOTE);
+                values.put(Note.COLUMN_PREVIEW, encryption.sealText(preview(text)));
+                values.put(Note.COLUMN_BODY, encryption.seal(TextCompression.deflate(text)));
+            } else {
+                values.put(Note.COLUMN_NOTE, encryption.sealText(text));
+                values.putNull(Note.COLUMN_PREVIEW);
+                values.putNull(Note.COLUMN_BODY);
+            }
+            return;
+        }
+        values.put(Note.COLUMN_SORT_KEY, sortKey(text));
+        if (shouldCompress(text)) {
+            values.putNull(Note.COLUMN_NOTE);
+            values.put(Note.COLUMN_PREVIEW, preview(text));
+            values.put(Note.COLUMN_BODY, TextCompression.deflate(text));
+        } else {
+            values.put(Note.COLUMN_NOTE, text);
+            values.putNull(Note.COLUMN_PREVIEW);
+            values.putNull(Note.COLUMN_BODY);
+        }
+    }
+
+    /**
+     * Puts the BlurHash placeholder of the note's image, sealed like the
+     * preview with {@link AtRestEncryption} on: it is a blurred copy of the image.
+     */
+    public static void putPlaceholder(ContentValues values, String placeholder) {
+        Object value = sealPlaceholder(placeholder);
+        if (value instanceof byte[]) {
+            values.put(Note.COLUMN_PLACEHOLDER, (byte[]) value);
+        } else {
+            values.put(Note.COLUMN_PLACEHOLDER, (String) value);
+        }
+    }
+
+    private static Object sealPlaceholder(String placeholder) {
+        AtRestEncryption encryption = AtRestEncryption.current();
+        if (placeholder != null && encryption != null && encryption.isEnabled()) {
+            return encryption.sealText(placeholder);
+        }
+        return placeholder;
+    }
+
+    /**
+     * Reads the note text from a row that selected both the note and the body column.
+     */
+    public static String readText(Cursor cursor, int noteIndex, int bodyIndex) {
+        if (!cursor.isNull(bodyIndex)) {
+            return inflateBody(cursor.getBlob(bodyIndex));
+        }
+        return readTextColumn(cursor, noteIndex);
+    }
+
+    /**
+     * Reads the note text from values holding a row of the notes table, as a backup restores it.
+     */
+    static String readText(ContentValues values) {
+        byte[] body = values.getAsByteArray(Note.COLUMN_BODY);
+        if (body != null) {
+            return inflateBody(body);
+        }
+        Object note = values.get(Note.COLUMN_NOTE);
+        return note instanceof byte[] ? requireEncryption().openText((byte[]) note) : (String) note;
+    }
+
+    /**
+     * The sort key for values holding a row of the notes table, empty for
+     * sealed text just as {@link #putText} leaves it.
+     */
+    static String sortKey(ContentValues values) {
+        byte[] body = values.getAsByteArray(Note.COLUMN_BODY);
+        boolean sealed = body != null ? FieldCipher.isSealed(body) : values.get(Note.COLUMN_NOTE) instanceof byte[];
+        return sealed ? "" : sortKey(readText(values));
+    }
+
+    // a text column holds a sealed BLOB instead when the text was written encrypted
+    private static String readTextColumn(Cursor cursor, int index) {
+        if (cursor.getType(index) == Cursor.FIELD_TYPE_BLOB) {
+            return requireEncryption().openText(cursor.getBlob(index));
+        }
+        return cursor.getString(index);
+    }
+
+    private static String inflateBody(byte[] body) {
+        return TextCompression.inflate(FieldCipher.isSealed(body) ? requireEncryption().open(body) : body);
+    }
+
+    private static boolean isSealed(Cursor cursor, int noteIndex, int bodyIndex) {
+        return cursor.getType(noteIndex) == Cursor.FIELD_TYPE_BLOB
+                || (!cursor.isNull(bodyIndex) && FieldCipher.isSealed(cursor.getBlob(bodyIndex)));
+    }
+
+    private static AtRestEncryption requireEncryption() {
+        AtRestEncryption encryption = AtRestEncryption.current();
+        if (encryption == null) {
+            throw new IllegalStateException("Encrypted text read before the key was set up");
+        }
+        return encryption;
+    }
+
+    // revisions and drafts are sealed whole
+    private static byte[] sealIfEnabled(byte[] value) {
+        AtRestEncryption encryption = AtRestEncryption.current();
+        return encryption != null && encryption.isEnabled() ? encryption.seal(value) : value;
+    }
+
+    private static byte[] openIfSealed(byte[] value) {
+        return FieldCipher.isSealed(value) ? requireEncryption().open(value) : value;
+    }
+
+    private static boolean shouldCompress(String text) {
+        return text != null && text.length() > COMPRESS_THRESHOLD_CHARS;
+    }
+
+    private static String preview(String text) {
+        int end = Math.min(text.length(), PREVIEW_CHARS);
+        if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    /**
+     * @return what notes sorted by text are ordered by: the start of the text,
+     * without leading white space, in lower case
+     */
+    public static String sortKey(String text) {
+        if (text == null) {
+            return "";
+        }
+        int start = 0;
+        while (start < text.length() && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        int end = Math.min(text.length(), start + SORT_KEY_CHARS);
+        if (end > start && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(start, end).toLowerCase(Locale.ROOT);
+    }
+
+    static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            bindNullable(statement, index, (String) value);
+        }
     }
 }
@@ -0,0 +1,215 @@
+package my.homelane.app.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches every cursor the database hands out, in debug builds. It counts
+ * queries, rows read and BLOB bytes read, logs queries slower than
+ * {@link #SLOW_QUERY_MILLIS} with their query plan, and reports cursors that
+ * are garbage collected without being closed together with where they were
+ * opened. Tests read the counters to check what a code path costs, and can
+ * record the SQL a code path runs to check its query plans.
+ *
+ * Installed as the database's cursor factory, SQLiteDatabase itself cannot be wrapped.
+ */
+
+public class DatabaseInstrumentation implements SQLiteDatabase.CursorFactory {
+
+    private static final String TAG = DatabaseInstrumentation.class.getSimpleName();
+
+    public static final long SLOW_QUERY_MILLIS = 50;
+
+    // the query plan is read through this one, so it is not instrumented itself
+    private static final SQLiteDatabase.CursorFactory PLAIN = new SQLiteDatabase.CursorFactory() {
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+            return new SQLiteCursor(driver, editTable, query);
+        }
+    };
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong blobBytesRead = new AtomicLong();
+    private final AtomicLong openCursors = new AtomicLong();
+    private final AtomicLong leakedCursors = new AtomicLong();
+    private final AtomicLong slowQueries = new AtomicLong();
+    // null while not recording
+    private List<String> recorded;
+
+    private class TrackedCursor extends SQLiteCursor {
+        private final String sql;
+        private final Throwable allocation;
+        private boolean executed;
+        private boolean released;
+
+        TrackedCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+            super(driver, editTable, query);
+            // SQLiteQuery does not expose its SQL but prints it
+            this.sql = query.toString().replaceFirst("^SQLiteQuery: ", "");
+            this.allocation = new Throwable("Cursor opened here");
+        }
+
+        // the query runs when the first window is filled, which is what asking for the count does
+        @Override
+        public int getCount() {
+            if (executed) {
+                return super.getCount();
+            }
+            executed = true;
+            long start = SystemClock.elapsedRealtime();
+            int count = super.getCount();
+            long millis = SystemClock.elapsedRealtime() - start;
+            if (millis >= SLOW_QUERY_MILLIS) {
+                slowQueries.incrementAndGet();
+                Log.w(TAG, "Slow query, " + millis + " ms for " + count + " rows: " + sql
+                        + "\n" + explain(getDatabase(), sql));
+            }
+            return count;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            boolean moved = super.onMove(oldPosition, newPosition);
+            if (moved && oldPosition != newPosition) {
+                rowsRead.incrementAndGet();
+            }
+            return moved;
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            byte[] blob = super.getBlob(columnIndex);
+            if (blob != null) {
+                blobBytesRead.addAndGet(blob.length);
+            }
+            return blob;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            release();
+        }
+
+        @Override
+        protected void finalize() {
+            try {
+                if (!isClosed()) {
+                    leakedCursors.incrementAndGet();
+                    Log.e(TAG, "Cursor was never closed: " + sql, allocation);
+                    release();
+                }
+            } finally {
+                super.finalize();
+            }
+        }
+
+        private synchronized void release() {
+            if (!released) {
+                released = true;
+                openCursors.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+        queries.incrementAndGet();
+        openCursors.incrementAndGet();
+        TrackedCursor cursor = new TrackedCursor(driver, editTable, query);
+        synchronized (this) {
+            if (recorded != null) {
+                recorded.add(cursor.sql);
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Starts or stops recording the SQL of every query. Starting drops what was recorded before.
+     */
+    public synchronized void setRecording(boolean recording) {
+        recorded = recording ? new ArrayList<String>() : null;
+    }
+
+    /**
+     * @return the SQL of the queries since recording started, in the order they ran
+     */
+    public synchronized List<String> getRecordedQueries() {
+        return recorded != null ? new ArrayList<>(recorded) : new ArrayList<String>();
+    }
+
+    /**
+     * @return how SQLite runs the query, one step per line; parameters are left unbound
+     */
+    public static String explain(SQLiteDatabase db, String sql) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQueryWithFactory(PLAIN, "EXPLAIN QUERY PLAN " + sql, null, null);
+            while (cursor.moveToNext()) {
+                // the detail column is the last one, whatever the SQLite version
+                plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+            }
+        } catch (RuntimeException e) {
+            plan.append("no plan: ").append(e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return plan.toString();
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    public long getBlobBytesRead() {
+        return blobBytesRead.get();
+    }
+
+    /**
+     * @return cursors opened and neither closed nor collected yet
+     */
+    public long getOpenCursors() {
+        return openCursors.get();
+    }
+
+    /**
+     * @return cursors garbage collected without being closed
+     */
+    public long getLeakedCursors() {
+        return leakedCursors.get();
+    }
+
+    public long getSlowQueries() {
+        return slowQueries.get();
+    }
+
+    /**
+     * Starts the query, row and byte counts over, e.g. before the code path a test measures.
+     * Open cursors are still counted.
+     */
+    public void reset() {
+        queries.set(0);
+        rowsRead.set(0);
+        blobBytesRead.set(0);
+        leakedCursors.set(0);
+        slowQueries.set(0);
+    }
+}
@@ -0,0 +1,266 @@
+package my.homelane.app.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import my.homelane.app.database.model.Note;
+import my.homelane.app.utils.IdleTaskScheduler;
+import my.homelane.app.utils.ImageProcessingUtil;
+
+/**
+ * Keeps notes_db and the image files from growing without bound. Run in idle
+ * time, each run does whatever is due:
+ *
+ * - converts the database to incremental auto-vacuum once, then returns free
+ *   pages to the file system a slice at a time
+ * - refreshes the query planner statistics after many changes
+ * - deletes image files no note refers to, and stale temp files
+ * - computes the placeholders of image notes saved before there were any, or
+ *   restored from a backup without them, a batch of images at a time
+ *
+ * Every run that did something is logged with the space reclaimed and the time it took.
+ */
+
+public class DatabaseMaintenance implements IdleTaskScheduler.Task {
+
+    private static final String TAG = DatabaseMaintenance.class.getSimpleName();
+
+    // auto_vacuum values reported by the pragma
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final int VACUUM_SLICE_PAGES = 256;
+    private static final int MIN_FREE_PAGES = 64;
+    private static final long ANALYZE_AFTER_CHANGES = 500;
+    private static final long FILE_GC_INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+    // files this young may still be in the middle of being written and committed
+    private static final long MIN_FILE_AGE_MILLIS = 60 * 60 * 1000L;
+    // each image is decoded, a batch takes about a second on a slow phone
+    private static final int PLACEHOLDER_BATCH = 50;
+
+    private static final String PREFS_NAME = "maintenance_prefs";
+    private static final String KEY_ANALYZED_SEQ = "analyzed_seq";
+    private static final String KEY_FILE_GC_AT = "file_gc_at";
+    // the last image looked at while a pass is under way, and when the last pass ended
+    private static final String KEY_PLACEHOLDERS_AFTER = "placeholders_after";
+    private static final String KEY_PLACEHOLDERS_AT = "placeholders_at";
+
+    /**
+     * What a maintenance run did.
+     */
+    public static class Report {
+        public long databaseBytesReclaimed;
+        public long fileBytesReclaimed;
+        public int filesDeleted;
+        public int placeholdersFilled;
+        public boolean analyzed;
+        public boolean convertedToIncrementalVacuum;
+        public long durationMillis;
+
+        public boolean isEmpty() {
+            return databaseBytesReclaimed == 0 && filesDeleted == 0 && placeholdersFilled == 0 && !analyzed
+                    && !convertedToIncrementalVacuum;
+        }
+
+        @Override
+        public String toString() {
+            return "reclaimed " + databaseBytesReclaimed + " database bytes, "
+                    + fileBytesReclaimed + " bytes in " + filesDeleted + " files"
+                    + (placeholdersFilled > 0 ? ", " + placeholdersFilled + " placeholders" : "")
+                    + (analyzed ? ", analyzed" : "")
+                    + (convertedToIncrementalVacuum ? ", enabled incremental vacuum" : "")
+                    + " in " + durationMillis + " ms";
+        }
+    }
+
+    private final DatabaseHelper db;
+    private final SharedPreferences prefs;
+    private final File filesDir;
+    private final File cacheDir;
+
+    private volatile Report lastReport;
+
+    public DatabaseMaintenance(Context context, DatabaseHelper db) {
+        this.db = db;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.filesDir = context.getFilesDir();
+        this.cacheDir = context.getCacheDir();
+    }
+
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    @Override
+    public boolean run() {
+        long start = SystemClock.elapsedRealtime();
+        Report report = new Report();
+        SQLiteDatabase database = db.getWritableDatabase();
+
+        boolean moreWork = false;
+        if (queryLong(database, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            enableIncrementalVacuum(database, report);
+        } else {
+            moreWork = incrementalVacuum(database, report);
+        }
+
+        long latestSeq = db.getLatestChangeSeq();
+        if (latestSeq - prefs.getLong(KEY_ANALYZED_SEQ, 0) >= ANALYZE_AFTER_CHANGES) {
+            analyze(database);
+            report.analyzed = true;
+            prefs.edit().putLong(KEY_ANALYZED_SEQ, latestSeq).apply();
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - prefs.getLong(KEY_FILE_GC_AT, 0) >= FILE_GC_INTERVAL_MILLIS) {
+            collectGarbageFiles(now, report);
+            prefs.edit().putLong(KEY_FILE_GC_AT, now).apply();
+        }
+
+        if (prefs.contains(KEY_PLACEHOLDERS_AFTER)
+                || now - prefs.getLong(KEY_PLACEHOLDERS_AT, 0) >= FILE_GC_INTERVAL_MILLIS) {
+            moreWork |= fillPlaceholders(now, report);
+        }
+
+        report.durationMillis = SystemClock.elapsedRealtime() - start;
+        if (!report.isEmpty()) {
+            lastReport = report;
+            Log.i(TAG, "maintenance " + report);
+        }
+        return moreWork;
+    }
+
+    /**
+     * New image notes get their placeholder when saved, so an occasional pass
+     * over the images in hash order finds the few without one.
+     *
+     * @return whether the pass has more images to look at
+     */
+    private boolean fillPlaceholders(long now, Report report) {
+        List<String> hashes = db.fillPlaceholders(prefs.getString(KEY_PLACEHOLDERS_AFTER, ""), PLACEHOLDER_BATCH);
+        report.placeholdersFilled = hashes.size();
+        if (hashes.size() < PLACEHOLDER_BATCH) {
+            prefs.edit().putLong(KEY_PLACEHOLDERS_AT, now).remove(KEY_PLACEHOLDERS_AFTER).apply();
+            return false;
+        }
+        prefs.edit().putString(KEY_PLACEHOLDERS_AFTER, hashes.get(hashes.size() - 1)).apply();
+        return true;
+    }
+
+    /**
+     * auto_vacuum can only be switched on an existing database by rebuilding it once.
+     * New databases get it from {@link DatabaseHelper#onConfigure}.
+     */
+    private void enableIncrementalVacuum(SQLiteDatabase database, Report report) {
+        long before = databaseBytes(database);
+        try {
+            database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            database.execSQL("VACUUM");
+            report.convertedToIncrementalVacuum = true;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Could not enable incremental vacuum", e);
+        }
+        report.databaseBytesReclaimed += Math.max(0, before - databaseBytes(database));
+    }
+
+    /**
+     * @return true when free pages are left for another slice
+     */
+    private boolean incrementalVacuum(SQLiteDatabase database, Report report) {
+        long freePages = queryLong(database, "PRAGMA freelist_count");
+        if (freePages < MIN_FREE_PAGES) {
+            return false;
+        }
+        long before = databaseBytes(database);
+        queryLong(database, "PRAGMA incremental_vacuum(" + VACUUM_SLICE_PAGES + ")");
+        report.databaseBytesReclaimed += Math.max(0, before - databaseBytes(database));
+        return freePages > VACUUM_SLICE_PAGES;
+    }
+
+    private void analyze(SQLiteDatabase database) {
+        try {
+            // SQLite 3.18+ only re-analyzes what the planner actually needs
+            queryLong(database, "PRAGMA optimize");
+        } catch (SQLiteException e) {
+            database.execSQL("ANALYZE");
+        }
+    }
+
+    private void collectGarbageFiles(long now, Report report) {
+        // images of tombstoned notes still count, the purge deletes those
+        Set<String> referenced = new HashSet<>();
+        Cursor cursor = db.getReadableDatabase().query(true, Note.TABLE_NAME,
+                new String[]{Note.COLUMN_IMAGE_HASH}, Note.COLUMN_IMAGE_HASH + " IS NOT NULL",
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                referenced.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        File[] images = db.getImageStore().getDirectory().listFiles();
+        if (images != null) {
+            for (File file : images) {
+                if (!referenced.contains(file.getName())) {
+                    deleteIfStale(file, now, report);
+                }
+            }
+        }
+
+        // only our own temp files, and not below: cache/sync holds downloads sync resumes
+        deleteStaleTempFiles(filesDir, now, report);
+        deleteStaleTempFiles(cacheDir, now, report);
+    }
+
+    private static void deleteStaleTempFiles(File directory, long now, Report report) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile() && file.getName().startsWith(ImageProcessingUtil.TEMP_FILE_PREFIX)) {
+                deleteIfStale(file, now, report);
+            }
+        }
+    }
+
+    private static void deleteIfStale(File file, long now, Report report) {
+        if (now - file.lastModified() < MIN_FILE_AGE_MILLIS) {
+            return;
+        }
+        long length = file.length();
+        if (file.delete()) {
+            report.filesDeleted++;
+            report.fileBytesReclaimed += length;
+        }
+    }
+
+    private static long databaseBytes(SQLiteDatabase database) {
+        return queryLong(database, "PRAGMA page_count") * queryLong(database, "PRAGMA page_size");
+    }
+
+    // pragmas go through rawQuery, execSQL refuses statements that return rows
+    private static long queryLong(SQLiteDatabase database, String sql) {
+        Cursor cursor = database.rawQuery(sql, null);
+        try {
+            long value = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            while (cursor.moveToNext()) {
+                // step through, some pragmas do their work row by row
+            }
+            return value;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package my.homelane.app.database;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import my.homelane.app.database.model.Note;
+
+/**
+ * Fills a database with made up notes, to reproduce what the app does with
+ * the tens of thousands of notes and photos of a long time user. The same
+ * {@link Spec} gives the same notes, byte for byte, on every run and device.
+ *
+ * Note lengths follow a log-normal distribution, most notes a few lines and
+ * a long tail past the compression threshold. A share of the notes has a
+ * photo, drawn from a limited set of distinct images so the image store stays
+ * a realistic size; some notes are tagged and some are deleted but not purged yet.
+ */
+
+public class DatasetGenerator {
+
+    // 2018-06-01 UTC; the newest note is written then, older ones spread over the days before
+    private static final long NEWEST_MILLIS = 1527811200000L;
+    private static final int BATCH = 1000;
+
+    private static final String[] WORDS = {
+            "wall", "damp", "corner", "kitchen", "bathroom", "tiles", "grout", "ceiling", "crack", "paint",
+            "window", "frame", "sill", "door", "hinge", "floor", "boards", "joist", "skirting", "socket",
+            "boiler", "radiator", "pipe", "leak", "valve", "meter", "fuse", "wiring", "roof", "gutter",
+            "measured", "checked", "replaced", "ordered", "quoted", "cleaned", "sealed", "sanded", "fitted",
+            "client", "asked", "about", "the", "a", "and", "to", "of", "before", "after", "next", "week",
+            "north", "south", "east", "west", "upstairs", "downstairs", "left", "right", "2m", "40cm", "x3"};
+
+    /**
+     * Writes the bytes of a stand-in photo of about the given size.
+     */
+    public interface ImageFactory {
+        byte[] create(Random random, int bytes);
+    }
+
+    /**
+     * Random bytes, as large and as incompressible as a JPEG but not decodable.
+     * Enough for everything but the thumbnails.
+     */
+    public static final ImageFactory NOISE = new ImageFactory() {
+        @Override
+        public byte[] create(Random random, int bytes) {
+            byte[] image = new byte[bytes];
+            random.nextBytes(image);
+            return image;
+        }
+    };
+
+    /**
+     * What to generate. Immutable, the with* methods return a changed copy.
+     */
+    public static class Spec {
+        final long seed;
+        final int notes;
+        final int medianTextChars;
+        // spread of the log-normal text lengths, 1 puts about 1 in 40 notes past 7x the median
+        final double textSigma;
+        final int maxTextChars;
+        final double imageFraction;
+        final int imageBytes;
+        final int distinctImages;
+        final int tags;
+        final double deletedFraction;
+        final int days;
+
+        Spec(long seed, int notes, int medianTextChars, double textSigma, int maxTextChars,
+             double imageFraction, int imageBytes, int distinctImages, int tags, double deletedFraction, int days) {
+            this.seed = seed;
+            this.notes = notes;
+            this.medianTextChars = medianTextChars;
+            this.textSigma = textSigma;
+            this.maxTextChars = maxTextChars;
+            this.imageFraction = imageFraction;
+            this.imageBytes = imageBytes;
+            this.distinctImages = distinctImages;
+            this.tags = tags;
+            this.deletedFraction = deletedFraction;
+            this.days = days;
+        }
+
+        /**
+         * A few years of notes, a third with a photo of about 150 KB.
+         */
+        public static Spec notes(int notes) {
+            return new Spec(42, notes, 160, 1.0, 20000, 0.3, 150 * 1024, 100, 20, 0.02, 3 * 365);
+        }
+
+        public Spec withSeed(long seed) {
+            return new Spec(seed, notes, medianTextChars, textSigma, maxTextChars, imageFraction, imageBytes,
+                    distinctImages, tags, deletedFraction, days);
+        }
+
+        public Spec withText(int medianChars, double sigma, int maxChars) {
+            return new Spec(seed, notes, medianChars, sigma, maxChars, imageFraction, imageBytes,
+                    distinctImages, tags, deletedFraction, days);
+        }
+
+        /**
+         * @param fraction share of the notes with a photo
+         * @param bytes    size of a photo, give or take half
+         * @param distinct photos to choose from, notes share them beyond that
+         */
+        public Spec withImages(double fraction, int bytes, int distinct) {
+            return new Spec(seed, notes, medianTextChars, textSigma, maxTextChars, fraction, bytes,
+                    distinct, tags, deletedFraction, days);
+        }
+
+        public Spec withTags(int tags) {
+            return new Spec(seed, notes, medianTextChars, textSigma, maxTextChars, imageFraction, imageBytes,
+                    distinctImages, tags, deletedFraction, days);
+        }
+
+        public Spec withDeleted(double fraction) {
+            return new Spec(seed, notes, medianTextChars, textSigma, maxTextChars, imageFraction, imageBytes,
+                    distinctImages, tags, fraction, days);
+        }
+
+        public int getNotes() {
+            return notes;
+        }
+
+        @Override
+        public String toString() {
+            return notes + " notes, median " + medianTextChars + " chars, "
+                    + Math.round(imageFraction * 100) + "% with " + imageBytes / 1024 + " KB photos, seed " + seed;
+        }
+    }
+
+    /**
+     * What a run wrote.
+     */
+    public static class Result {
+        public int notes;
+        public int liveNotes;
+        public int notesWithImages;
+        public long textChars;
+        public long durationMillis;
+
+        @Override
+        public String toString() {
+            return notes + " notes (" + liveNotes + " live, " + notesWithImages + " with images, "
+                    + textChars + " chars) in " + durationMillis + " ms";
+        }
+    }
+
+    private final Spec spec;
+    private final ImageFactory imageFactory;
+
+    public DatasetGenerator(Spec spec) {
+        this(spec, NOISE);
+    }
+
+    public DatasetGenerator(Spec spec, ImageFactory imageFactory) {
+        this.spec = spec;
+        this.imageFactory = imageFactory;
+    }
+
+    /**
+     * Adds the notes, their photos and tags to the database, next to whatever
+     * it has already. Takes long for large specs, call it in the background.
+     */
+    public Result seed(DatabaseHelper db) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        Random random = new Random(spec.seed);
+        Result result = new Result();
+
+        // the photos first, notes only refer to them by hash
+        String[] images = new String[spec.imageFraction > 0 ? spec.distinctImages : 0];
+        for (int i = 0; i < images.length; i++) {
+            int bytes = spec.imageBytes / 2 + random.nextInt(spec.imageBytes + 1);
+            images[i] = db.getImageStore().put(imageFactory.create(random, bytes));
+        }
+
+        long[] tagIds = new long[spec.tags];
+        List<List<Long>> tagged = new ArrayList<>();
+        for (int i = 0; i < tagIds.length; i++) {
+            tagIds[i] = db.addTag("Tag " + (i + 1));
+            tagged.add(new ArrayList<Long>());
+        }
+
+        SQLiteDatabase database = db.getWritableDatabase();
+        long spanMillis = spec.days * 24L * 60 * 60 * 1000;
+        for (int first = 0; first < spec.notes; first += BATCH) {
+            database.beginTransaction();
+            try {
+                for (int i = first; i < Math.min(spec.notes, first + BATCH); i++) {
+                    // oldest first, like a user writing them
+                    long created = NEWEST_MILLIS - spanMillis + spanMillis * i / spec.notes / 1000 * 1000;
+                    String text = text(random, textLength(random));
+                    ContentValues values = new ContentValues();
+                    DatabaseHelper.putText(values, text);
+                    values.put(Note.COLUMN_TIMESTAMP, NoteQuery.toTimestamp(created));
+                    values.put(Note.COLUMN_UUID, new UUID(random.nextLong(), random.nextLong()).toString());
+                    int edits = random.nextInt(4);
+                    values.put(Note.COLUMN_VERSION, 1 + edits);
+                    values.put(Note.COLUMN_UPDATED_AT, created + edits * (long) random.nextInt(30 * 24 * 60 * 60) * 1000);
+                    if (images.length > 0 && random.nextDouble() < spec.imageFraction) {
+                        values.put(Note.COLUMN_IMAGE_HASH, images[random.nextInt(images.length)]);
+                        result.notesWithImages++;
+                    }
+                    boolean deleted = random.nextDouble() < spec.deletedFraction;
+                    if (deleted) {
+                        values.put(Note.COLUMN_DELETED, 1);
+                        values.put(Note.COLUMN_DELETED_AT, NEWEST_MILLIS);
+                    } else {
+                        result.liveNotes++;
+                    }
+                    long id = database.insertOrThrow(Note.TABLE_NAME, null, values);
+
+                    // a few tags are on most notes, the rest on few
+                    for (int t = 0; t < tagIds.length; t++) {
+                        if (random.nextDouble() < 0.5 / (t + 1)) {
+                            tagged.get(t).add(id);
+                        }
+                    }
+                    result.notes++;
+                    result.textChars += text.length();
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        for (int t = 0; t < tagIds.length; t++) {
+            List<Long> ids = tagged.get(t);
+            long[] noteIds = new long[ids.size()];
+            for (int i = 0; i < noteIds.length; i++) {
+                noteIds[i] = ids.get(i);
+            }
+            db.addTagToNotes(tagIds[t], noteIds);
+        }
+
+        result.durationMillis = SystemClock.elapsedRealtime() - start;
+        return result;
+    }
+
+    int textLength(Random random) {
+        double length = spec.medianTextChars * Math.exp(spec.textSigma * random.nextGaussian());
+        return (int) Math.max(1, Math.min(spec.maxTextChars, Math.round(length)));
+    }
+
+    static String text(Random random, int length) {
+        StringBuilder text = new StringBuilder(length + 16);
+        boolean sentenceStart = true;
+        while (text.length() < length) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if (sentenceStart) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            }
+            text.append(word);
+            sentenceStart = random.nextInt(10) == 0;
+            if (sentenceStart) {
+                text.append(random.nextInt(6) == 0 ? ".\n" : ". ");
+            } else {
+                text.append(' ');
+            }
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+}
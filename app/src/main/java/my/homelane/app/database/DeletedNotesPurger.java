@@ -0,0 +1,45 @@
+package my.homelane.app.database;
+
+import android.util.Log;
+
+import my.homelane.app.database.model.Job;
+
+/**
+ * Job that physically removes soft deleted notes and their images, a small
+ * batch per run so a bulk delete never holds the database for long. Notes stay
+ * around for a grace period first, so undo keeps working; deleting one queues
+ * the job to run once the grace period is over.
+ */
+
+public class DeletedNotesPurger implements JobRunner.Handler {
+
+    private static final String TAG = DeletedNotesPurger.class.getSimpleName();
+
+    public static final long UNDO_GRACE_MILLIS = 60 * 1000;
+    private static final int BATCH_SIZE = 50;
+
+    private final DatabaseHelper db;
+
+    public DeletedNotesPurger(DatabaseHelper db) {
+        this.db = db;
+    }
+
+    @Override
+    public boolean run(Job job) {
+        long now = System.currentTimeMillis();
+        int purged = db.purgeDeletedNotes(now - UNDO_GRACE_MILLIS, BATCH_SIZE);
+        if (purged > 0) {
+            Log.d(TAG, "purged " + purged + " deleted notes");
+        }
+        if (purged == BATCH_SIZE) {
+            return true;
+        }
+        // notes deleted since are not due yet, come back for them when they are
+        long oldest = db.getOldestDeletedAt();
+        if (oldest >= 0) {
+            db.getJobQueue().enqueue(Job.TYPE_PURGE_DELETED, Job.PRIORITY_LOW,
+                    Math.max(0, oldest + UNDO_GRACE_MILLIS - now));
+        }
+        return false;
+    }
+}
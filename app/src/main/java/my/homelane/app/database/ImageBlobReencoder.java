@@ -0,0 +1,54 @@
+package my.homelane.app.database;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+
+import my.homelane.app.database.model.Job;
+import my.homelane.app.utils.ImageProcessingUtil;
+
+/**
+ * Job that moves the photos old versions kept as PNG blobs in the notes table
+ * into the image store, re-encoded like a newly attached photo. The list only
+ * shows thumbnails from the store, and the blobs bloat every page the table
+ * reads. Attaching the stored image is an edit, so the photo syncs from then on.
+ */
+
+public class ImageBlobReencoder implements JobRunner.Handler {
+
+    private static final String TAG = ImageBlobReencoder.class.getSimpleName();
+
+    // the blobs are uncompressed camera pictures of a few MB each
+    private static final int BATCH_SIZE = 5;
+
+    private final DatabaseHelper db;
+
+    public ImageBlobReencoder(DatabaseHelper db) {
+        this.db = db;
+    }
+
+    @Override
+    public boolean run(Job job) throws IOException {
+        List<Long> ids = db.getNotesWithImageBlobs(BATCH_SIZE);
+        for (long id : ids) {
+            byte[] image = db.getImageBlob(id);
+            if (image == null) {
+                continue;
+            }
+            String hash;
+            try {
+                hash = ImageProcessingUtil.storeDownsampled(image, db.getImageStore());
+            } catch (IOException e) {
+                // kept as it is rather than lost, the store does not care what it holds
+                Log.w(TAG, "Could not re-encode the image of note " + id + ", storing it as it is", e);
+                hash = db.getImageStore().put(image);
+            }
+            db.setNoteImage(id, hash);
+        }
+        if (!ids.isEmpty()) {
+            Log.d(TAG, "re-encoded the images of " + ids.size() + " notes");
+        }
+        return ids.size() == BATCH_SIZE;
+    }
+}
@@ -0,0 +1,434 @@
+package my.homelane.app.database;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.SecretKey;
+
+import my.homelane.app.crypto.AtRestEncryption;
+import my.homelane.app.crypto.ChunkedCipher;
+import my.homelane.app.utils.HashUtil;
+
+/**
+ * Content addressed storage for note images. Every image lives in its own file
+ * named after the SHA-1 of its bytes, so identical images are stored once and
+ * peers can tell from the hash alone whether they already have an image.
+ *
+ * With {@link AtRestEncryption} on, images are written encrypted with
+ * {@link ChunkedCipher}, the hash still being that of the plain image. Files
+ * are read through {@link #open}, which tells encrypted ones apart by their
+ * header, so both kinds can be in the store at the same time.
+ */
+
+public class ImageStore {
+
+    private static final String DIRECTORY = "images";
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    // images stored recently whose notes may still be about to be saved
+    private static final int PLACEHOLDER_CACHE_SIZE = 32;
+
+    /**
+     * Writes an image into a file next to the store, encrypting it if that is on
+     * and hashing the plain bytes on the way, and moves it in on {@link #commit}.
+     */
+    public class Writer extends OutputStream {
+        private final File temp;
+        private final MessageDigest digest = HashUtil.newDigest();
+        private final OutputStream out;
+        private long length;
+        private boolean closed;
+
+        Writer() throws IOException {
+            temp = createTempFile();
+            final FileOutputStream file = new FileOutputStream(temp);
+            // synced before it is closed, the encrypting stream writes its last chunk on close
+            OutputStream synced = new FilterOutputStream(file) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    file.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        file.getFD().sync();
+                    } finally {
+                        file.close();
+                    }
+                }
+            };
+            try {
+                out = encryption.isEnabled() ? ChunkedCipher.encrypt(getKey(), synced) : synced;
+            } catch (IOException e) {
+                file.close();
+                temp.delete();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            digest.update(b, off, len);
+            out.write(b, off, len);
+            length += len;
+        }
+
+        /**
+         * @return bytes of the plain image written so far
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Moves the image into the store, unless it is there already.
+         *
+         * @return hash the image can be looked up with
+         */
+        public String commit() throws IOException {
+            try {
+                close();
+            } catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+            String hash = HashUtil.toHex(digest.digest());
+            if (contains(hash)) {
+                temp.delete();
+                return hash;
+            }
+            moveIntoPlace(temp, hash);
+            return hash;
+        }
+
+        /**
+         * Drops what was written.
+         */
+        public void abort() {
+            try {
+                close();
+            } catch (IOException ignored) {
+                // deleted anyway
+            }
+            temp.delete();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        }
+    }
+
+    private final File directory;
+    private final AtRestEncryption encryption;
+    private final LruCache<String, String> placeholders = new LruCache<>(PLACEHOLDER_CACHE_SIZE);
+
+    public ImageStore(Context context) {
+        this.directory = new File(context.getFilesDir(), DIRECTORY);
+        this.encryption = AtRestEncryption.getInstance(context);
+        directory.mkdirs();
+    }
+
+    /**
+     * Starts writing an image, e.g. while it is encoded, so it never is on disk in plain when encryption is on.
+     */
+    public Writer newWriter() throws IOException {
+        return new Writer();
+    }
+
+    /**
+     * Stores the image unless it is already present.
+     *
+     * @return hash the image can be looked up with
+     */
+    public String put(byte[] image) throws IOException {
+        String hash = HashUtil.sha1Hex(image);
+        if (contains(hash)) {
+            return hash;
+        }
+
+        Writer writer = newWriter();
+        try {
+            writer.write(image);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        return writer.commit();
+    }
+
+    /**
+     * Moves a file that was written elsewhere, e.g. a finished download, into the store
+     * after checking it has the expected contents.
+     *
+     * @throws IOException when the file does not hash to {@code expectedHash}; the file is deleted
+     */
+    public void importFile(File source, String expectedHash) throws IOException {
+        String hash = hash(source);
+        if (!hash.equals(expectedHash)) {
+            source.delete();
+            throw new IOException("Image " + expectedHash + " arrived corrupted");
+        }
+        if (contains(hash)) {
+            source.delete();
+            return;
+        }
+        moveIntoStore(source, hash);
+    }
+
+    /**
+     * Moves a file written elsewhere, e.g. an encoded photo, into the store under its hash.
+     *
+     * @return hash the image can be looked up with
+     */
+    public String add(File source) throws IOException {
+        String hash = hash(source);
+        if (contains(hash)) {
+            source.delete();
+            return hash;
+        }
+        moveIntoStore(source, hash);
+        return hash;
+    }
+
+    /**
+     * A file next to the store to write an image into before {@link #add}ing it,
+     * so it moves in by a rename.
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile("image", ".tmp", directory);
+    }
+
+    /**
+     * Remembers the BlurHash computed while an image was stored, for the note
+     * saved with it to pick up without decoding the image again.
+     */
+    public void putPlaceholder(String hash, String placeholder) {
+        placeholders.put(hash, placeholder);
+    }
+
+    /**
+     * @return the BlurHash remembered for the image, null when there is none
+     */
+    public String getPlaceholder(String hash) {
+        return hash != null ? placeholders.get(hash) : null;
+    }
+
+    public boolean contains(String hash) {
+        return hash != null && getFile(hash).exists();
+    }
+
+    /**
+     * @return the stored file, encrypted or not; read it through {@link #open}
+     */
+    public File getFile(String hash) {
+        return new File(directory, hash);
+    }
+
+    /**
+     * @return the plain image, decrypted on the fly if it is stored encrypted
+     */
+    public InputStream open(String hash) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(getFile(hash)), BUFFER_BYTES);
+        try {
+            if (isEncrypted(in)) {
+                return ChunkedCipher.decrypt(getKey(), in);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    public boolean isEncrypted(String hash) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(getFile(hash)), ChunkedCipher.HEADER_BYTES);
+        try {
+            return isEncrypted(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The plain image as a file, e.g. to upload it in parts: the stored file
+     * itself, or a decrypted copy in {@code directory} when it is encrypted.
+     * The caller deletes a copy once done with it.
+     */
+    public File exportFile(String hash, File directory) throws IOException {
+        if (!isEncrypted(hash)) {
+            return getFile(hash);
+        }
+        directory.mkdirs();
+        File copy = new File(directory, hash);
+        InputStream in = open(hash);
+        try {
+            FileOutputStream out = new FileOutputStream(copy);
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            copy.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        return copy;
+    }
+
+    /**
+     * Encrypts every plain image, or decrypts every encrypted one when encryption
+     * is off. Each file is replaced by a rename, an interrupted run leaves every
+     * image readable and can simply be run again.
+     *
+     * @return images rewritten
+     */
+    public int rewriteAll() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int rewritten = 0;
+        for (File file : files) {
+            String hash = file.getName();
+            // temp files being written have a suffix, images are named by their hash alone
+            if (hash.indexOf('.') >= 0 || isEncrypted(hash) == encryption.isEnabled()) {
+                continue;
+            }
+            Writer writer = newWriter();
+            InputStream in = open(hash);
+            try {
+                copy(in, writer);
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            } finally {
+                in.close();
+            }
+            writer.close();
+            moveIntoPlace(writer.temp, hash);
+            rewritten++;
+        }
+        return rewritten;
+    }
+
+    public byte[] read(String hash) throws IOException {
+        File file = getFile(hash);
+        InputStream in = open(hash);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    public boolean delete(String hash) {
+        return getFile(hash).delete();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public static String hash(File file) throws IOException {
+        MessageDigest digest = HashUtil.newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return HashUtil.toHex(digest.digest());
+    }
+
+    // a plain file written elsewhere, encrypted on the way in when encryption is on
+    private void moveIntoStore(File source, String hash) throws IOException {
+        if (!encryption.isEnabled()) {
+            moveIntoPlace(source, hash);
+            return;
+        }
+        Writer writer = newWriter();
+        InputStream in = new FileInputStream(source);
+        try {
+            copy(in, writer);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } finally {
+            in.close();
+        }
+        writer.commit();
+        source.delete();
+    }
+
+    private SecretKey getKey() throws IOException {
+        try {
+            return encryption.getKey();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No key for the encrypted images", e);
+        }
+    }
+
+    private static boolean isEncrypted(InputStream in) throws IOException {
+        byte[] header = new byte[ChunkedCipher.HEADER_BYTES];
+        in.mark(header.length);
+        int length = 0;
+        int n;
+        while (length < header.length && (n = in.read(header, length, header.length - length)) >= 0) {
+            length += n;
+        }
+        in.reset();
+        return ChunkedCipher.isEncrypted(header, length);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_BYTES];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private void moveIntoPlace(File source, String hash) throws IOException {
+        File target = getFile(hash);
+        if (!source.renameTo(target)) {
+            source.delete();
+            if (!target.exists()) {
+                throw new IOException("Could not store image " + hash);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package my.homelane.app.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import my.homelane.app.database.model.Job;
+import my.homelane.app.utils.Metrics;
+
+/**
+ * Deferred background work, kept in notes_db so it survives the process. Jobs
+ * are taken out by {@link JobRunner} in order of priority once due; a failed
+ * one is retried later and later, and given up after {@link #MAX_ATTEMPTS}.
+ * Safe to use from any thread.
+ */
+
+public class JobQueue {
+
+    private static final String TAG = JobQueue.class.getSimpleName();
+
+    private static final Metrics.Counter ENQUEUED = Metrics.counter("jobs.enqueued");
+    private static final Metrics.Counter FAILED = Metrics.counter("jobs.failed");
+    private static final Metrics.Counter GIVEN_UP = Metrics.counter("jobs.givenUp");
+
+    public static final int MAX_ATTEMPTS = 8;
+    // the first retry waits this long, every later one twice as long as the one before
+    private static final long BACKOFF_MILLIS = 30 * 1000;
+    private static final long MAX_BACKOFF_MILLIS = 6 * 60 * 60 * 1000L;
+
+    private static final String[] JOB_COLUMNS = new String[]{
+            Job.COLUMN_ID, Job.COLUMN_TYPE, Job.COLUMN_KEY, Job.COLUMN_PAYLOAD, Job.COLUMN_PRIORITY,
+            Job.COLUMN_ATTEMPTS, Job.COLUMN_REQUESTS};
+
+    private final DatabaseHelper db;
+
+    JobQueue(DatabaseHelper db) {
+        this.db = db;
+    }
+
+    /**
+     * {@link #enqueue(String, String, String, int, long)} for a job of which
+     * there is only ever one, keyed by its type.
+     */
+    public void enqueue(String type, int priority, long delayMillis) {
+        enqueue(type, type, null, priority, delayMillis);
+    }
+
+    /**
+     * Adds a job unless one with the same key is waiting; that one then runs no
+     * later and at no lower priority than asked for here. A job asked for while
+     * it runs runs again once it is done, after the delay given here.
+     */
+    public void enqueue(String type, String key, String payload, int priority, long delayMillis) {
+        SQLiteDatabase database = db.getWritableDatabase();
+        long runAfter = System.currentTimeMillis() + delayMillis;
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.query(Job.TABLE_NAME, new String[]{Job.COLUMN_ID, Job.COLUMN_RUNNING},
+                    Job.COLUMN_KEY + " = ?", new String[]{key}, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    ContentValues values = new ContentValues();
+                    values.put(Job.COLUMN_TYPE, type);
+                    values.put(Job.COLUMN_KEY, key);
+                    values.put(Job.COLUMN_PAYLOAD, payload);
+                    values.put(Job.COLUMN_PRIORITY, priority);
+                    values.put(Job.COLUMN_RUN_AFTER, runAfter);
+                    values.put(Job.COLUMN_CREATED_AT, System.currentTimeMillis());
+                    database.insert(Job.TABLE_NAME, null, values);
+                } else {
+                    boolean running = cursor.getInt(1) != 0;
+                    // what a running job started from is stale, the next run starts from what is asked now
+                    database.execSQL("UPDATE " + Job.TABLE_NAME + " SET "
+                                    + Job.COLUMN_PAYLOAD + " = ?, "
+                                    + Job.COLUMN_PRIORITY + " = max(" + Job.COLUMN_PRIORITY + ", ?), "
+                                    + Job.COLUMN_RUN_AFTER + " = "
+                                    + (running ? "?" : "min(" + Job.COLUMN_RUN_AFTER + ", ?)") + ", "
+                                    + Job.COLUMN_REQUESTS + " = " + Job.COLUMN_REQUESTS + " + 1"
+                                    + " WHERE " + Job.COLUMN_ID + " = ?",
+                            new Object[]{payload, priority, runAfter, cursor.getLong(0)});
+                }
+            } finally {
+                cursor.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        ENQUEUED.increment();
+    }
+
+    /**
+     * Takes out up to {@code limit} jobs that are due, the highest priority
+     * first, and marks them running so they are not taken out twice.
+     */
+    List<Job> claim(int limit) {
+        SQLiteDatabase database = db.getWritableDatabase();
+        List<Job> jobs = new ArrayList<>();
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.query(Job.TABLE_NAME, JOB_COLUMNS,
+                    Job.COLUMN_RUNNING + " = 0 AND " + Job.COLUMN_RUN_AFTER + " <= ?",
+                    new String[]{String.valueOf(System.currentTimeMillis())}, null, null,
+                    Job.COLUMN_PRIORITY + " DESC, " + Job.COLUMN_RUN_AFTER + ", " + Job.COLUMN_ID,
+                    String.valueOf(limit));
+            try {
+                while (cursor.moveToNext()) {
+                    jobs.add(new Job(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                            cursor.getString(3), cursor.getInt(4), cursor.getInt(5), cursor.getLong(6)));
+                }
+            } finally {
+                cursor.close();
+            }
+            for (Job job : jobs) {
+                database.execSQL("UPDATE " + Job.TABLE_NAME + " SET " + Job.COLUMN_RUNNING + " = 1"
+                        + " WHERE " + Job.COLUMN_ID + " = ?", new Object[]{job.getId()});
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return jobs;
+    }
+
+    /**
+     * Removes a job that ran, unless it was asked for again meanwhile.
+     */
+    void complete(Job job) {
+        SQLiteDatabase database = db.getWritableDatabase();
+        int removed = database.delete(Job.TABLE_NAME, Job.COLUMN_ID + " = ? AND " + Job.COLUMN_REQUESTS + " = ?",
+                new String[]{String.valueOf(job.getId()), String.valueOf(job.getRequests())});
+        if (removed == 0) {
+            database.execSQL("UPDATE " + Job.TABLE_NAME + " SET " + Job.COLUMN_RUNNING + " = 0, "
+                    + Job.COLUMN_ATTEMPTS + " = 0 WHERE " + Job.COLUMN_ID + " = ?", new Object[]{job.getId()});
+        }
+    }
+
+    /**
+     * Puts back a job that did a slice of its work, to run again at the next chance.
+     */
+    void again(Job job) {
+        db.getWritableDatabase().execSQL("UPDATE " + Job.TABLE_NAME + " SET "
+                        + Job.COLUMN_RUNNING + " = 0, "
+                        + Job.COLUMN_ATTEMPTS + " = 0, "
+                        + Job.COLUMN_RUN_AFTER + " = min(" + Job.COLUMN_RUN_AFTER + ", ?)"
+                        + " WHERE " + Job.COLUMN_ID + " = ?",
+                new Object[]{System.currentTimeMillis(), job.getId()});
+    }
+
+    /**
+     * Puts back a job that failed, to be retried after a backoff, or drops it
+     * once it failed {@link #MAX_ATTEMPTS} times.
+     */
+    void retry(Job job, Throwable error) {
+        FAILED.increment();
+        SQLiteDatabase database = db.getWritableDatabase();
+        int attempts = job.getAttempts() + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            GIVEN_UP.increment();
+            Log.e(TAG, "Giving up on job " + job + " after " + attempts + " attempts", error);
+            database.delete(Job.TABLE_NAME, Job.COLUMN_ID + " = ?", new String[]{String.valueOf(job.getId())});
+            return;
+        }
+        long runAfter = System.currentTimeMillis() + backoffMillis(attempts);
+        Log.w(TAG, "Job " + job + " failed, retrying in " + backoffMillis(attempts) / 1000 + " s", error);
+        database.execSQL("UPDATE " + Job.TABLE_NAME + " SET "
+                        + Job.COLUMN_RUNNING + " = 0, "
+                        + Job.COLUMN_ATTEMPTS + " = ?, "
+                        + Job.COLUMN_RUN_AFTER + " = ?, "
+                        + Job.COLUMN_LAST_ERROR + " = ?"
+                        + " WHERE " + Job.COLUMN_ID + " = ?",
+                new Object[]{attempts, runAfter, String.valueOf(error), job.getId()});
+    }
+
+    /**
+     * Drops a job, e.g. of a type this version does not know.
+     */
+    void discard(Job job) {
+        db.getWritableDatabase().delete(Job.TABLE_NAME, Job.COLUMN_ID + " = ?",
+                new String[]{String.valueOf(job.getId())});
+    }
+
+    /**
+     * Puts back the jobs the process died in the middle of, they run again from the start.
+     *
+     * @return number of jobs put back
+     */
+    int requeueInterrupted() {
+        ContentValues values = new ContentValues();
+        values.put(Job.COLUMN_RUNNING, 0);
+        return db.getWritableDatabase().update(Job.TABLE_NAME, values, Job.COLUMN_RUNNING + " = 1", null);
+    }
+
+    /**
+     * @return whether a job is waiting that may run now
+     */
+    boolean hasDue() {
+        Cursor cursor = db.getReadableDatabase().query(Job.TABLE_NAME, new String[]{Job.COLUMN_ID},
+                Job.COLUMN_RUNNING + " = 0 AND " + Job.COLUMN_RUN_AFTER + " <= ?",
+                new String[]{String.valueOf(System.currentTimeMillis())}, null, null, null, "1");
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return jobs waiting or running
+     */
+    public long size() {
+        Cursor cursor = db.getReadableDatabase().rawQuery("SELECT count(*) FROM " + Job.TABLE_NAME, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static long backoffMillis(int attempts) {
+        long backoff = BACKOFF_MILLIS;
+        for (int i = 1; i < attempts && backoff < MAX_BACKOFF_MILLIS; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, MAX_BACKOFF_MILLIS);
+    }
+}
@@ -0,0 +1,142 @@
+package my.homelane.app.database;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import my.homelane.app.database.model.Job;
+import my.homelane.app.utils.IdleTaskScheduler;
+import my.homelane.app.utils.Metrics;
+
+/**
+ * Idle time task that takes due jobs out of the {@link JobQueue} and runs
+ * them on a small pool of background threads, never more at once than the
+ * pool has threads. Taking jobs out is quick and happens only at idle
+ * moments; a job that is done early asks the scheduler for the next idle
+ * moment to take out more.
+ *
+ * Jobs should do a slice of their work per run and report whether there is
+ * more, like any idle task. A job that throws is retried with a backoff.
+ */
+
+public class JobRunner implements IdleTaskScheduler.Task {
+
+    private static final String TAG = JobRunner.class.getSimpleName();
+
+    private static final Metrics.Histogram RUN = Metrics.histogram("jobs.run");
+
+    /**
+     * Does the work of one type of job.
+     */
+    public interface Handler {
+        /**
+         * @return true when work is left over and the job wants to run again soon
+         * @throws IOException for the job to be retried later
+         */
+        boolean run(Job job) throws IOException;
+    }
+
+    private final JobQueue queue;
+    private final ExecutorService workers;
+    private final int workerCount;
+    private final Executor mainThread;
+    private final IdleTaskScheduler scheduler;
+    private final Map<String, Handler> handlers = new HashMap<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile boolean recovered;
+
+    /**
+     * @param workers runs the jobs, at most {@code workerCount} at a time
+     * @param scheduler the scheduler this runner is scheduled with, to take out more jobs soon
+     */
+    public JobRunner(JobQueue queue, ExecutorService workers, int workerCount, Executor mainThread,
+                     IdleTaskScheduler scheduler) {
+        this.queue = queue;
+        this.workers = workers;
+        this.workerCount = workerCount;
+        this.mainThread = mainThread;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets what runs jobs of a type. Register all of them before scheduling the runner.
+     */
+    public void register(String type, Handler handler) {
+        handlers.put(type, handler);
+    }
+
+    @Override
+    public boolean run() {
+        if (!recovered) {
+            // nothing can be running yet, what is marked so was cut short by the process dying
+            int interrupted = queue.requeueInterrupted();
+            if (interrupted > 0) {
+                Log.i(TAG, "Requeued " + interrupted + " interrupted jobs");
+            }
+            recovered = true;
+        }
+
+        int free = workerCount - running.get();
+        if (free <= 0) {
+            return false;
+        }
+        List<Job> jobs = queue.claim(free);
+        for (final Job job : jobs) {
+            running.incrementAndGet();
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runJob(job);
+                    } finally {
+                        running.decrementAndGet();
+                        takeMoreSoon();
+                    }
+                }
+            });
+        }
+        return false;
+    }
+
+    private void runJob(Job job) {
+        Handler handler = handlers.get(job.getType());
+        if (handler == null) {
+            // e.g. queued by a newer version before a downgrade
+            Log.w(TAG, "No handler for job " + job + ", dropping it");
+            queue.discard(job);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            if (handler.run(job)) {
+                queue.again(job);
+            } else {
+                queue.complete(job);
+            }
+        } catch (IOException e) {
+            queue.retry(job, e);
+        } catch (RuntimeException e) {
+            queue.retry(job, e);
+        } finally {
+            RUN.recordSince(start);
+        }
+    }
+
+    private void takeMoreSoon() {
+        if (!queue.hasDue()) {
+            return;
+        }
+        mainThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.runSoon(JobRunner.this);
+            }
+        });
+    }
+}
@@ -0,0 +1,145 @@
+package my.homelane.app.database;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import my.homelane.app.database.model.Tag;
+
+/**
+ * Which notes the list shows and in what order: an optional tag, a sort, and
+ * filters on images and dates. Immutable, the with* methods return a changed copy.
+ *
+ * Every combination is served by an index walked in list order, so a page
+ * never sorts or scans the whole table; the androidTest QueryPlanTest checks
+ * the query plans of all of them.
+ */
+
+public class NoteQuery {
+
+    // newest first, the order month sections and the fast scroller go by
+    public static final int SORT_CREATED = 0;
+    // most recently edited first
+    public static final int SORT_UPDATED = 1;
+    // by the start of the text, A to Z
+    public static final int SORT_TEXT = 2;
+
+    public static final NoteQuery ALL = new NoteQuery(Tag.NO_TAG, SORT_CREATED, false, 0, 0);
+
+    private final long tagId;
+    private final int sort;
+    private final boolean imagesOnly;
+    private final long fromMillis;
+    private final long beforeMillis;
+
+    private NoteQuery(long tagId, int sort, boolean imagesOnly, long fromMillis, long beforeMillis) {
+        this.tagId = tagId;
+        this.sort = sort;
+        this.imagesOnly = imagesOnly;
+        this.fromMillis = fromMillis;
+        this.beforeMillis = beforeMillis;
+    }
+
+    public static NoteQuery forTag(long tagId) {
+        return ALL.withTag(tagId);
+    }
+
+    /**
+     * @param tagId the tag, or {@link Tag#NO_TAG} for all notes
+     */
+    public NoteQuery withTag(long tagId) {
+        return new NoteQuery(tagId, sort, imagesOnly, fromMillis, beforeMillis);
+    }
+
+    public NoteQuery withSort(int sort) {
+        if (sort != SORT_CREATED && sort != SORT_UPDATED && sort != SORT_TEXT) {
+            throw new IllegalArgumentException("Unknown sort " + sort);
+        }
+        return new NoteQuery(tagId, sort, imagesOnly, fromMillis, beforeMillis);
+    }
+
+    public NoteQuery withImagesOnly(boolean imagesOnly) {
+        return new NoteQuery(tagId, sort, imagesOnly, fromMillis, beforeMillis);
+    }
+
+    /**
+     * Only notes from this time range. Sorted by last edit it is the time of the
+     * last edit, otherwise the time the note was written.
+     *
+     * @param fromMillis   start of the range, 0 for none
+     * @param beforeMillis end of the range, excluded, 0 for none
+     */
+    public NoteQuery withRange(long fromMillis, long beforeMillis) {
+        return new NoteQuery(tagId, sort, imagesOnly, fromMillis, beforeMillis);
+    }
+
+    public long getTagId() {
+        return tagId;
+    }
+
+    public int getSort() {
+        return sort;
+    }
+
+    public boolean isImagesOnly() {
+        return imagesOnly;
+    }
+
+    public long getFromMillis() {
+        return fromMillis;
+    }
+
+    public long getBeforeMillis() {
+        return beforeMillis;
+    }
+
+    public boolean hasRange() {
+        return fromMillis != 0 || beforeMillis != 0;
+    }
+
+    /**
+     * @return whether notes are filtered by anything besides the tag
+     */
+    public boolean hasNoteFilters() {
+        return imagesOnly || hasRange();
+    }
+
+    /**
+     * @return the time as note timestamps store it, in UTC like CURRENT_TIMESTAMP
+     */
+    static String toTimestamp(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NoteQuery)) {
+            return false;
+        }
+        NoteQuery other = (NoteQuery) o;
+        return tagId == other.tagId && sort == other.sort && imagesOnly == other.imagesOnly
+                && fromMillis == other.fromMillis && beforeMillis == other.beforeMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (tagId ^ (tagId >>> 32));
+        result = 31 * result + sort;
+        result = 31 * result + (imagesOnly ? 1 : 0);
+        result = 31 * result + (int) (fromMillis ^ (fromMillis >>> 32));
+        result = 31 * result + (int) (beforeMillis ^ (beforeMillis >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "NoteQuery{tag=" + tagId + ", sort=" + sort + ", imagesOnly=" + imagesOnly
+                + ", from=" + fromMillis + ", before=" + beforeMillis + "}";
+    }
+}
@@ -0,0 +1,129 @@
+package my.homelane.app.database.model;
+
+/**
+ * One entry of the trigger maintained change log. Every insert, update and
+ * delete on the notes table appends a row here, so consumers such as the
+ * incremental backup only have to look at notes touched since their checkpoint.
+ * Nothing is logged until a consumer registered its first checkpoint, and
+ * updates only when they touch what a consumer carries.
+ */
+
+public class ChangeLog {
+    public static final String TABLE_NAME = "change_log";
+
+    public static final String COLUMN_SEQ = "seq";
+    public static final String COLUMN_NOTE_ID = "note_id";
+    public static final String COLUMN_OPERATION = "operation";
+    public static final String COLUMN_NOTE_UUID = "note_uuid";
+    public static final String COLUMN_NOTE_VERSION = "note_version";
+    public static final String COLUMN_CHANGED_AT = "changed_at";
+
+    // Last sequence each consumer of the log has processed
+    public static final String CHECKPOINT_TABLE_NAME = "change_log_checkpoints";
+    public static final String COLUMN_CONSUMER = "consumer";
+
+    public static final String OP_INSERT = "I";
+    public static final String OP_UPDATE = "U";
+    public static final String OP_DELETE = "D";
+
+    private long seq;
+    private long noteId;
+    private String operation;
+    private String noteUuid;
+    private long noteVersion;
+    private long changedAt;
+
+
+    // Create table SQL query
+    public static final String CREATE_TABLE =
+            "CREATE TABLE " + TABLE_NAME + "("
+                    + COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                    + COLUMN_OPERATION + " TEXT NOT NULL,"
+                    + COLUMN_NOTE_UUID + " TEXT,"
+                    + COLUMN_NOTE_VERSION + " INTEGER,"
+                    + COLUMN_CHANGED_AT + " INTEGER"
+                    + ")";
+
+    public static final String CREATE_CHECKPOINT_TABLE =
+            "CREATE TABLE " + CHECKPOINT_TABLE_NAME + "("
+                    + COLUMN_CONSUMER + " TEXT PRIMARY KEY,"
+                    + COLUMN_SEQ + " INTEGER NOT NULL"
+                    + ")";
+
+    public static final String TRIGGER_AFTER_INSERT = TABLE_NAME + "_after_insert";
+    public static final String TRIGGER_AFTER_UPDATE = TABLE_NAME + "_after_update";
+    public static final String TRIGGER_AFTER_DELETE = TABLE_NAME + "_after_delete";
+
+    private static final String NOW_MILLIS = "CAST(strftime('%s', 'now') AS INTEGER) * 1000";
+
+    // nobody reads the log before a consumer registered, it would only grow
+    private static final String WHEN_CONSUMED = " WHEN EXISTS (SELECT 1 FROM " + CHECKPOINT_TABLE_NAME + ")";
+
+    // what backup and sync carry; preview, sort key and placeholder are derived from these
+    private static final String LOGGED_COLUMNS = Note.COLUMN_NOTE + ", " + Note.COLUMN_BODY + ", "
+            + Note.COLUMN_TIMESTAMP + ", " + Note.COLUMN_IMAGE + ", " + Note.COLUMN_IMAGE_HASH + ", "
+            + Note.COLUMN_UUID + ", " + Note.COLUMN_VERSION + ", " + Note.COLUMN_UPDATED_AT + ", "
+            + Note.COLUMN_DELETED + ", " + Note.COLUMN_DELETED_AT;
+
+    private static final String INSERT_ENTRY = " BEGIN INSERT INTO " + TABLE_NAME + "("
+            + COLUMN_NOTE_ID + ", " + COLUMN_OPERATION + ", " + COLUMN_NOTE_UUID + ", "
+            + COLUMN_NOTE_VERSION + ", " + COLUMN_CHANGED_AT + ")";
+
+    // Triggers keeping the log in step with the notes table
+    public static final String CREATE_INSERT_TRIGGER =
+            "CREATE TRIGGER " + TRIGGER_AFTER_INSERT + " AFTER INSERT ON " + Note.TABLE_NAME + WHEN_CONSUMED
+                    + INSERT_ENTRY + " VALUES (new." + Note.COLUMN_ID + ", '" + OP_INSERT + "', new."
+                    + Note.COLUMN_UUID + ", new." + Note.COLUMN_VERSION + ", " + NOW_MILLIS + "); END";
+
+    public static final String CREATE_UPDATE_TRIGGER =
+            "CREATE TRIGGER " + TRIGGER_AFTER_UPDATE + " AFTER UPDATE OF " + LOGGED_COLUMNS
+                    + " ON " + Note.TABLE_NAME + WHEN_CONSUMED
+                    + INSERT_ENTRY + " VALUES (new." + Note.COLUMN_ID + ", '" + OP_UPDATE + "', new."
+                    + Note.COLUMN_UUID + ", new." + Note.COLUMN_VERSION + ", " + NOW_MILLIS + "); END";
+
+    // a delete is one more version of the note, so it outranks the edit it removes. Purging
+    // a soft deleted note is not logged, its tombstone went out with the update that deleted it
+    public static final String CREATE_DELETE_TRIGGER =
+            "CREATE TRIGGER " + TRIGGER_AFTER_DELETE + " AFTER DELETE ON " + Note.TABLE_NAME + WHEN_CONSUMED
+                    + " AND old." + Note.COLUMN_DELETED + " = 0"
+                    + INSERT_ENTRY + " VALUES (old." + Note.COLUMN_ID + ", '" + OP_DELETE + "', old."
+                    + Note.COLUMN_UUID + ", old." + Note.COLUMN_VERSION + " + 1, " + NOW_MILLIS + "); END";
+
+    public ChangeLog(long seq, long noteId, String operation, String noteUuid, long noteVersion, long changedAt) {
+        this.seq = seq;
+        this.noteId = noteId;
+        this.operation = operation;
+        this.noteUuid = noteUuid;
+        this.noteVersion = noteVersion;
+        this.changedAt = changedAt;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getNoteId() {
+        return noteId;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getNoteUuid() {
+        return noteUuid;
+    }
+
+    public long getNoteVersion() {
+        return noteVersion;
+    }
+
+    public long getChangedAt() {
+        return changedAt;
+    }
+
+    public boolean isDelete() {
+        return OP_DELETE.equals(operation);
+    }
+}
@@ -0,0 +1,52 @@
+package my.homelane.app.database.model;
+
+/**
+ * Unsaved text of the note editor, written behind the user's typing so it
+ * survives the process being killed while the editor is open.
+ */
+
+public class Draft {
+    public static final String TABLE_NAME = "drafts";
+
+    public static final String COLUMN_NOTE_ID = "note_id";
+    public static final String COLUMN_TEXT = "text";
+    public static final String COLUMN_UPDATED_AT = "updated_at";
+
+    // Draft of a note that has not been saved yet
+    public static final long NEW_NOTE_ID = -1;
+
+    private long noteId;
+    private String text;
+    private long updatedAt;
+
+
+    // Create table SQL query
+    public static final String CREATE_TABLE =
+            "CREATE TABLE " + TABLE_NAME + "("
+                    + COLUMN_NOTE_ID + " INTEGER PRIMARY KEY,"
+                    + COLUMN_TEXT + " TEXT,"
+                    + COLUMN_UPDATED_AT + " INTEGER NOT NULL"
+                    + ")";
+
+    public Draft(long noteId, String text, long updatedAt) {
+        this.noteId = noteId;
+        this.text = text;
+        this.updatedAt = updatedAt;
+    }
+
+    public long getNoteId() {
+        return noteId;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public boolean isNewNote() {
+        return noteId == NEW_NOTE_ID;
+    }
+}
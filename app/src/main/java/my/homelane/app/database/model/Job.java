@@ -0,0 +1,111 @@
+package my.homelane.app.database.model;
+
+/**
+ * A piece of deferred background work in the job queue. Jobs are typed, and
+ * one with the same key is never queued twice: asking again only makes the
+ * waiting one run sooner or at a higher priority.
+ */
+
+public class Job {
+    public static final String TABLE_NAME = "jobs";
+
+    public static final String COLUMN_ID = "id";
+    public static final String COLUMN_TYPE = "type";
+    public static final String COLUMN_KEY = "key";
+    public static final String COLUMN_PAYLOAD = "payload";
+    public static final String COLUMN_PRIORITY = "priority";
+    // wall clock millis the job may run from
+    public static final String COLUMN_RUN_AFTER = "run_after";
+    public static final String COLUMN_ATTEMPTS = "attempts";
+    public static final String COLUMN_RUNNING = "running";
+    // counts the times the job was asked for, one asked for again while it runs runs once more
+    public static final String COLUMN_REQUESTS = "requests";
+    public static final String COLUMN_LAST_ERROR = "last_error";
+    public static final String COLUMN_CREATED_AT = "created_at";
+
+    // Old versions stored photos as PNG blobs in notes.image, moves them into the image store
+    public static final String TYPE_REENCODE_IMAGE_BLOBS = "reencode_image_blobs";
+    // Removes soft deleted notes once undo can no longer bring them back
+    public static final String TYPE_PURGE_DELETED = "purge_deleted";
+
+    // Nobody waits for it
+    public static final int PRIORITY_LOW = 0;
+    // What the user sees is missing until it ran
+    public static final int PRIORITY_HIGH = 10;
+
+    private long id;
+    private String type;
+    private String key;
+    private String payload;
+    private int priority;
+    private int attempts;
+    private long requests;
+
+    public static final String CREATE_TABLE =
+            "CREATE TABLE " + TABLE_NAME + "("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + COLUMN_TYPE + " TEXT NOT NULL,"
+                    + COLUMN_KEY + " TEXT NOT NULL UNIQUE,"
+                    + COLUMN_PAYLOAD + " TEXT,"
+                    + COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT 0,"
+                    + COLUMN_RUN_AFTER + " INTEGER NOT NULL DEFAULT 0,"
+                    + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0,"
+                    + COLUMN_RUNNING + " INTEGER NOT NULL DEFAULT 0,"
+                    + COLUMN_REQUESTS + " INTEGER NOT NULL DEFAULT 1,"
+                    + COLUMN_LAST_ERROR + " TEXT,"
+                    + COLUMN_CREATED_AT + " INTEGER"
+                    + ")";
+
+    // Finds the jobs that are due, waiting ones first
+    public static final String CREATE_DUE_INDEX =
+            "CREATE INDEX " + TABLE_NAME + "_due ON " + TABLE_NAME + "(" + COLUMN_RUNNING + ", " + COLUMN_RUN_AFTER + ")";
+
+    public Job(long id, String type, String key, String payload, int priority, int attempts, long requests) {
+        this.id = id;
+        this.type = type;
+        this.key = key;
+        this.payload = payload;
+        this.priority = priority;
+        this.attempts = attempts;
+        this.requests = requests;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return what the job works on, if its type needs to know, else null
+     */
+    public String getPayload() {
+        return payload;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return runs that failed so far
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + key + (attempts > 0 ? " (attempt " + (attempts + 1) + ")" : "");
+    }
+}
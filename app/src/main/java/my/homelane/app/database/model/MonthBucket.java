@@ -0,0 +1,27 @@
+package my.homelane.app.database.model;
+
+/**
+ * Number of live notes saved in one month, as counted for the fast scroller.
+ */
+
+public class MonthBucket {
+
+    private final String month;
+    private final int count;
+
+    public MonthBucket(String month, int count) {
+        this.month = month;
+        this.count = count;
+    }
+
+    /**
+     * @return the month as stored in note timestamps, yyyy-MM
+     */
+    public String getMonth() {
+        return month;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
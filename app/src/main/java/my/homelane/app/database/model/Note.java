@@ -11,11 +11,34 @@ public class Note implements CharSequence {
     public static final String COLUMN_NOTE = "note";
     public static final String COLUMN_TIMESTAMP = "timestamp";
     public static final String COLUMN_IMAGE = "image";
+    public static final String COLUMN_UUID = "uuid";
+    public static final String COLUMN_VERSION = "version";
+    public static final String COLUMN_UPDATED_AT = "updated_at";
+    public static final String COLUMN_IMAGE_HASH = "image_hash";
+    public static final String COLUMN_DELETED = "deleted";
+    public static final String COLUMN_DELETED_AT = "deleted_at";
+    // Long notes keep their text deflated in body, with note NULL and the
+    // start of the text in preview for the list
+    public static final String COLUMN_PREVIEW = "preview";
+    public static final String COLUMN_BODY = "body";
+    // The start of the text, lower case, for sorting by text
+    public static final String COLUMN_SORT_KEY = "sort_key";
+    // BlurHash of the image, drawn in the list until the thumbnail is decoded;
+    // empty when the image could not be decoded
+    public static final String COLUMN_PLACEHOLDER = "placeholder";
 
     private int id;
     private String note;
     private String timestamp;
     private byte[] image;
+    private String uuid;
+    private long version;
+    private long updatedAt;
+    private String imageHash;
+    private boolean deleted;
+    private String preview;
+    private String sortKey;
+    private String placeholder;
 
 
     // Create table SQL query
@@ -24,9 +47,36 @@ public class Note implements CharSequence {
                     + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
                     + COLUMN_NOTE + " TEXT,"
                     + COLUMN_TIMESTAMP + " DATETIME DEFAULT CURRENT_TIMESTAMP,"
-                    + COLUMN_IMAGE + " BLOB"
+                    + COLUMN_IMAGE + " BLOB,"
+                    + COLUMN_UUID + " TEXT,"
+                    + COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 1,"
+                    + COLUMN_UPDATED_AT + " INTEGER,"
+                    + COLUMN_IMAGE_HASH + " TEXT,"
+                    + COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0,"
+                    + COLUMN_DELETED_AT + " INTEGER,"
+                    + COLUMN_PREVIEW + " TEXT,"
+                    + COLUMN_BODY + " BLOB,"
+                    + COLUMN_SORT_KEY + " TEXT,"
+                    + COLUMN_PLACEHOLDER + " TEXT"
                     + ")";
 
+    public static final String CREATE_UUID_INDEX =
+            "CREATE UNIQUE INDEX " + TABLE_NAME + "_uuid ON " + TABLE_NAME + "(" + COLUMN_UUID + ")";
+
+    // Serves the list: live notes only, newest first, tombstones sorted out by the index
+    public static final String CREATE_LIVE_INDEX =
+            "CREATE INDEX " + TABLE_NAME + "_live ON " + TABLE_NAME + "(" + COLUMN_DELETED + ", " + COLUMN_TIMESTAMP + ")";
+
+    // Serve the list sorted by last edit and by text, the id breaking ties as in the live index
+    public static final String CREATE_UPDATED_INDEX =
+            "CREATE INDEX " + TABLE_NAME + "_updated ON " + TABLE_NAME + "(" + COLUMN_DELETED + ", " + COLUMN_UPDATED_AT + ")";
+
+    public static final String CREATE_SORT_KEY_INDEX =
+            "CREATE INDEX " + TABLE_NAME + "_sort_key ON " + TABLE_NAME + "(" + COLUMN_DELETED + ", " + COLUMN_SORT_KEY + ")";
+
+    public static final String CREATE_IMAGE_HASH_INDEX =
+            "CREATE INDEX " + TABLE_NAME + "_image_hash ON " + TABLE_NAME + "(" + COLUMN_IMAGE_HASH + ")";
+
     public Note(int id, String note, String timestamp, byte[] image) {
         this.id = id;
         this.note = note;
@@ -70,6 +120,83 @@ public class Note implements CharSequence {
         this.image = image;
     }
 
+    public String getUuid() {
+        return uuid;
+    }
+
+    public void setUuid(String uuid) {
+        this.uuid = uuid;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public String getImageHash() {
+        return imageHash;
+    }
+
+    public void setImageHash(String imageHash) {
+        this.imageHash = imageHash;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
+
+    /**
+     * @return the start of a long note as loaded for the list, otherwise the whole text
+     */
+    public String getPreview() {
+        return preview != null ? preview : note;
+    }
+
+    public void setPreview(String preview) {
+        this.preview = preview;
+    }
+
+    public String getSortKey() {
+        return sortKey;
+    }
+
+    public void setSortKey(String sortKey) {
+        this.sortKey = sortKey;
+    }
+
+    /**
+     * @return the BlurHash of the image, null or empty when there is none
+     */
+    public String getPlaceholder() {
+        return placeholder;
+    }
+
+    public void setPlaceholder(String placeholder) {
+        this.placeholder = placeholder;
+    }
+
+    /**
+     * @return false when only the preview of a long note was loaded
+     */
+    public boolean isTextLoaded() {
+        return note != null || preview == null;
+    }
+
     @Override
     public int length() {
         return 0;
@@ -0,0 +1,79 @@
+package my.homelane.app.database.model;
+
+/**
+ * An earlier text of a note. The notes table only holds the latest text; each
+ * revision is stored as a reverse delta that turns the next newer text back
+ * into this one, with a full copy every few revisions so an old revision can
+ * be rebuilt without replaying the whole history.
+ */
+
+public class NoteRevision {
+    public static final String TABLE_NAME = "note_revisions";
+
+    public static final String COLUMN_ID = "id";
+    public static final String COLUMN_NOTE_ID = "note_id";
+    public static final String COLUMN_VERSION = "version";
+    public static final String COLUMN_CREATED_AT = "created_at";
+    public static final String COLUMN_KIND = "kind";
+    public static final String COLUMN_DATA = "data";
+
+    // data is a TextDelta against the next newer text
+    public static final int KIND_DELTA = 0;
+    // data is the UTF-8 encoded text itself
+    public static final int KIND_FULL = 1;
+
+    private long id;
+    private long noteId;
+    private long version;
+    private long createdAt;
+    private String text;
+
+
+    // Create table SQL query
+    public static final String CREATE_TABLE =
+            "CREATE TABLE " + TABLE_NAME + "("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                    + COLUMN_VERSION + " INTEGER NOT NULL,"
+                    + COLUMN_CREATED_AT + " INTEGER,"
+                    + COLUMN_KIND + " INTEGER NOT NULL,"
+                    + COLUMN_DATA + " BLOB NOT NULL"
+                    + ")";
+
+    public static final String CREATE_NOTE_INDEX =
+            "CREATE INDEX " + TABLE_NAME + "_note ON " + TABLE_NAME + "(" + COLUMN_NOTE_ID + ", " + COLUMN_ID + ")";
+
+    public NoteRevision(long id, long noteId, long version, long createdAt, String text) {
+        this.id = id;
+        this.noteId = noteId;
+        this.version = version;
+        this.createdAt = createdAt;
+        this.text = text;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getNoteId() {
+        return noteId;
+    }
+
+    /**
+     * @return the note version that had this text
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return when this text was saved, epoch millis
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,119 @@
+package my.homelane.app.database.model;
+
+/**
+ * A label such as a site, client or room. Notes and tags are joined many to
+ * many through note_tags, which also carries each note's timestamp and deleted
+ * flag, so the notes of a tag come in list order from its index alone.
+ * Triggers keep those copies and the per tag note count up to date.
+ */
+
+public class Tag {
+    public static final String TABLE_NAME = "tags";
+
+    public static final String COLUMN_ID = "id";
+    public static final String COLUMN_NAME = "name";
+    public static final String COLUMN_NOTE_COUNT = "note_count";
+
+    public static final String JOIN_TABLE_NAME = "note_tags";
+    public static final String COLUMN_TAG_ID = "tag_id";
+    public static final String COLUMN_NOTE_ID = "note_id";
+    public static final String COLUMN_NOTE_TIMESTAMP = "note_timestamp";
+    public static final String COLUMN_NOTE_DELETED = "note_deleted";
+
+    // Tag id standing for no tag filter, every note
+    public static final long NO_TAG = 0;
+
+    private long id;
+    private String name;
+    private int noteCount;
+
+
+    // Create table SQL query
+    public static final String CREATE_TABLE =
+            "CREATE TABLE " + TABLE_NAME + "("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + COLUMN_NAME + " TEXT NOT NULL UNIQUE COLLATE NOCASE,"
+                    + COLUMN_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                    + ")";
+
+    public static final String CREATE_JOIN_TABLE =
+            "CREATE TABLE " + JOIN_TABLE_NAME + "("
+                    + COLUMN_TAG_ID + " INTEGER NOT NULL,"
+                    + COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                    + COLUMN_NOTE_TIMESTAMP + " DATETIME,"
+                    + COLUMN_NOTE_DELETED + " INTEGER NOT NULL DEFAULT 0,"
+                    + "PRIMARY KEY (" + COLUMN_TAG_ID + ", " + COLUMN_NOTE_ID + ")"
+                    + ")";
+
+    // Serves filter by tag: live notes of the tag, newest first, id breaking ties
+    public static final String CREATE_FILTER_INDEX =
+            "CREATE INDEX " + JOIN_TABLE_NAME + "_filter ON " + JOIN_TABLE_NAME + "("
+                    + COLUMN_TAG_ID + ", " + COLUMN_NOTE_DELETED + ", " + COLUMN_NOTE_TIMESTAMP + ", " + COLUMN_NOTE_ID + ")";
+
+    // Serves the tags of one note, and the cleanup when a note goes
+    public static final String CREATE_NOTE_INDEX =
+            "CREATE INDEX " + JOIN_TABLE_NAME + "_note ON " + JOIN_TABLE_NAME + "(" + COLUMN_NOTE_ID + ")";
+
+    public static final String TRIGGER_COUNT_INSERT = TABLE_NAME + "_count_insert";
+    public static final String TRIGGER_COUNT_DELETE = TABLE_NAME + "_count_delete";
+    public static final String TRIGGER_COUNT_UPDATE = TABLE_NAME + "_count_update";
+    public static final String TRIGGER_NOTE_UPDATE = JOIN_TABLE_NAME + "_note_update";
+    public static final String TRIGGER_NOTE_DELETE = JOIN_TABLE_NAME + "_note_delete";
+
+    // note_count counts live notes only
+    public static final String CREATE_COUNT_INSERT_TRIGGER =
+            "CREATE TRIGGER " + TRIGGER_COUNT_INSERT + " AFTER INSERT ON " + JOIN_TABLE_NAME
+                    + " WHEN new." + COLUMN_NOTE_DELETED + " = 0"
+                    + " BEGIN UPDATE " + TABLE_NAME + " SET " + COLUMN_NOTE_COUNT + " = " + COLUMN_NOTE_COUNT + " + 1"
+                    + " WHERE " + COLUMN_ID + " = new." + COLUMN_TAG_ID + "; END";
+
+    public static final String CREATE_COUNT_DELETE_TRIGGER =
+            "CREATE TRIGGER " + TRIGGER_COUNT_DELETE + " AFTER DELETE ON " + JOIN_TABLE_NAME
+                    + " WHEN old." + COLUMN_NOTE_DELETED + " = 0"
+                    + " BEGIN UPDATE " + TABLE_NAME + " SET " + COLUMN_NOTE_COUNT + " = " + COLUMN_NOTE_COUNT + " - 1"
+                    + " WHERE " + COLUMN_ID + " = old." + COLUMN_TAG_ID + "; END";
+
+    public static final String CREATE_COUNT_UPDATE_TRIGGER =
+            "CREATE TRIGGER " + TRIGGER_COUNT_UPDATE + " AFTER UPDATE OF " + COLUMN_NOTE_DELETED + " ON " + JOIN_TABLE_NAME
+                    + " WHEN old." + COLUMN_NOTE_DELETED + " != new." + COLUMN_NOTE_DELETED
+                    + " BEGIN UPDATE " + TABLE_NAME + " SET " + COLUMN_NOTE_COUNT + " = " + COLUMN_NOTE_COUNT
+                    + " + (CASE WHEN new." + COLUMN_NOTE_DELETED + " = 0 THEN 1 ELSE -1 END)"
+                    + " WHERE " + COLUMN_ID + " = new." + COLUMN_TAG_ID + "; END";
+
+    // copies a note's timestamp and deleted flag along when they change
+    public static final String CREATE_NOTE_UPDATE_TRIGGER =
+            "CREATE TRIGGER " + TRIGGER_NOTE_UPDATE + " AFTER UPDATE OF "
+                    + Note.COLUMN_DELETED + ", " + Note.COLUMN_TIMESTAMP + " ON " + Note.TABLE_NAME
+                    + " WHEN old." + Note.COLUMN_DELETED + " != new." + Note.COLUMN_DELETED
+                    + " OR old." + Note.COLUMN_TIMESTAMP + " IS NOT new." + Note.COLUMN_TIMESTAMP
+                    + " BEGIN UPDATE " + JOIN_TABLE_NAME + " SET "
+                    + COLUMN_NOTE_DELETED + " = new." + Note.COLUMN_DELETED + ", "
+                    + COLUMN_NOTE_TIMESTAMP + " = new." + Note.COLUMN_TIMESTAMP
+                    + " WHERE " + COLUMN_NOTE_ID + " = new." + Note.COLUMN_ID + "; END";
+
+    public static final String CREATE_NOTE_DELETE_TRIGGER =
+            "CREATE TRIGGER " + TRIGGER_NOTE_DELETE + " AFTER DELETE ON " + Note.TABLE_NAME
+                    + " BEGIN DELETE FROM " + JOIN_TABLE_NAME
+                    + " WHERE " + COLUMN_NOTE_ID + " = old." + Note.COLUMN_ID + "; END";
+
+    public Tag(long id, String name, int noteCount) {
+        this.id = id;
+        this.name = name;
+        this.noteCount = noteCount;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of live notes with this tag
+     */
+    public int getNoteCount() {
+        return noteCount;
+    }
+}
@@ -0,0 +1,155 @@
+package my.homelane.app.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Wire format of the sync protocol. Every payload is a gzip compressed stream
+ * of length prefixed fields; a batch only carries the notes that changed
+ * since the cursor it was requested for.
+ */
+
+public class DeltaCodec {
+
+    public static final String CONTENT_TYPE = "application/x-homelane-delta";
+
+    /**
+     * A batch of changes handed out by the server, together with the
+     * cursor to continue from.
+     */
+    public static class Page {
+        public final long cursor;
+        public final boolean hasMore;
+        public final List<SyncRecord> records;
+
+        public Page(long cursor, boolean hasMore, List<SyncRecord> records) {
+            this.cursor = cursor;
+            this.hasMore = hasMore;
+            this.records = records;
+        }
+    }
+
+    public static byte[] encodeRecords(List<SyncRecord> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        writeRecords(out, records);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static List<SyncRecord> decodeRecords(byte[] payload) throws IOException {
+        DataInputStream in = open(payload);
+        try {
+            return readRecords(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static byte[] encodePage(Page page) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        out.writeLong(page.cursor);
+        out.writeBoolean(page.hasMore);
+        writeRecords(out, page.records);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static Page decodePage(byte[] payload) throws IOException {
+        DataInputStream in = open(payload);
+        try {
+            long cursor = in.readLong();
+            boolean hasMore = in.readBoolean();
+            return new Page(cursor, hasMore, readRecords(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    public static byte[] encodeHashes(List<String> hashes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        out.writeInt(hashes.size());
+        for (String hash : hashes) {
+            out.writeUTF(hash);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static List<String> decodeHashes(byte[] payload) throws IOException {
+        DataInputStream in = open(payload);
+        try {
+            int count = in.readInt();
+            List<String> hashes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                hashes.add(in.readUTF());
+            }
+            return hashes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeRecords(DataOutputStream out, List<SyncRecord> records) throws IOException {
+        out.writeInt(records.size());
+        for (SyncRecord record : records) {
+            out.writeUTF(record.getUuid());
+            out.writeLong(record.getVersion());
+            out.writeLong(record.getUpdatedAt());
+            out.writeBoolean(record.isDeleted());
+            writeString(out, record.getNote());
+            writeString(out, record.getTimestamp());
+            writeString(out, record.getImageHash());
+        }
+    }
+
+    private static List<SyncRecord> readRecords(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<SyncRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String uuid = in.readUTF();
+            long version = in.readLong();
+            long updatedAt = in.readLong();
+            boolean deleted = in.readBoolean();
+            String note = readString(in);
+            String timestamp = readString(in);
+            String imageHash = readString(in);
+            records.add(new SyncRecord(uuid, version, updatedAt, deleted, note, timestamp, imageHash));
+        }
+        return records;
+    }
+
+    // writeUTF is limited to 64K, note bodies are not
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static DataInputStream open(byte[] payload) throws IOException {
+        return new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(payload)));
+    }
+}
@@ -0,0 +1,434 @@
+package my.homelane.app.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import my.homelane.app.utils.HashUtil;
+
+/**
+ * In-memory stand-in for the sync server, speaking the same HTTP protocol as the
+ * real backend. It binds to the loopback interface only and is meant for
+ * exercising the sync engine and measuring its throughput without a network.
+ *
+ * <pre>
+ * POST /changes                  upload a batch, answers with the records the server kept instead
+ * GET  /changes?since=N&amp;limit=M  download the changes after cursor N
+ * POST /images/missing           answers with the hashes the server does not have
+ * GET  /images/{hash}            download an image, honours "Range: bytes=N-"
+ * GET  /images/{hash}/offset     bytes received so far of an interrupted upload
+ * PUT  /images/{hash}            upload a chunk at "X-Upload-Offset" of "X-Upload-Length" bytes
+ * </pre>
+ */
+
+public class LocalSyncServer {
+
+    public static final String HEADER_UPLOAD_OFFSET = "X-Upload-Offset";
+    public static final String HEADER_UPLOAD_LENGTH = "X-Upload-Length";
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private final Map<String, SyncRecord> records = new HashMap<>();
+    // one entry per note, keyed by the sequence of its latest accepted change
+    private final TreeMap<Long, String> changes = new TreeMap<>();
+    private final Map<String, Long> changeSeqByUuid = new HashMap<>();
+    private long lastSeq;
+
+    private final Map<String, byte[]> images = new HashMap<>();
+    private final Map<String, ByteArrayOutputStream> partialUploads = new HashMap<>();
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    private ServerSocket serverSocket;
+    private ExecutorService workers;
+
+    /**
+     * Starts listening on the given loopback port, 0 picks a free one.
+     */
+    public synchronized void start(int port) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        workers = Executors.newFixedThreadPool(4);
+
+        final ServerSocket socket = serverSocket;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(socket);
+            }
+        }, "LocalSyncServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        workers.shutdownNow();
+        serverSocket = null;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public synchronized int getRecordCount() {
+        return records.size();
+    }
+
+    public synchronized SyncRecord getRecord(String uuid) {
+        return records.get(uuid);
+    }
+
+    public synchronized boolean hasImage(String hash) {
+        return images.containsKey(hash);
+    }
+
+    // ---------------------------------------------------------------------
+    // Protocol
+    // ---------------------------------------------------------------------
+
+    /**
+     * Applies an uploaded batch and returns the records the server kept over the uploaded ones.
+     */
+    synchronized List<SyncRecord> applyUpload(List<SyncRecord> batch) {
+        List<SyncRecord> rejected = new ArrayList<>();
+        for (SyncRecord incoming : batch) {
+            SyncRecord current = records.get(incoming.getUuid());
+            if (incoming.sameContent(current)) {
+                continue;
+            }
+            if (!incoming.wins(current)) {
+                rejected.add(current);
+                continue;
+            }
+            records.put(incoming.getUuid(), incoming);
+            Long previousSeq = changeSeqByUuid.remove(incoming.getUuid());
+            if (previousSeq != null) {
+                changes.remove(previousSeq);
+            }
+            lastSeq++;
+            changes.put(lastSeq, incoming.getUuid());
+            changeSeqByUuid.put(incoming.getUuid(), lastSeq);
+        }
+        return rejected;
+    }
+
+    synchronized DeltaCodec.Page changesSince(long since, int limit) {
+        List<SyncRecord> page = new ArrayList<>();
+        long cursor = since;
+        Iterator<Map.Entry<Long, String>> it = changes.tailMap(since, false).entrySet().iterator();
+        while (it.hasNext() && page.size() < limit) {
+            Map.Entry<Long, String> entry = it.next();
+            page.add(records.get(entry.getValue()));
+            cursor = entry.getKey();
+        }
+        return new DeltaCodec.Page(cursor, it.hasNext(), page);
+    }
+
+    synchronized List<String> missingImages(List<String> hashes) {
+        List<String> missing = new ArrayList<>();
+        for (String hash : hashes) {
+            if (!images.containsKey(hash)) {
+                missing.add(hash);
+            }
+        }
+        return missing;
+    }
+
+    synchronized long uploadOffset(String hash) {
+        if (images.containsKey(hash)) {
+            return images.get(hash).length;
+        }
+        ByteArrayOutputStream partial = partialUploads.get(hash);
+        return partial == null ? 0 : partial.size();
+    }
+
+    /**
+     * @return the status code to answer the chunk with
+     */
+    synchronized int appendUpload(String hash, long offset, long length, byte[] chunk) {
+        if (images.containsKey(hash)) {
+            return 200;
+        }
+        ByteArrayOutputStream partial = partialUploads.get(hash);
+        if (partial == null) {
+            partial = new ByteArrayOutputStream();
+            partialUploads.put(hash, partial);
+        }
+        if (offset != partial.size()) {
+            return 409;
+        }
+        partial.write(chunk, 0, chunk.length);
+        if (partial.size() < length) {
+            return 202;
+        }
+        partialUploads.remove(hash);
+        byte[] image = partial.toByteArray();
+        if (image.length != length || !HashUtil.sha1Hex(image).equals(hash)) {
+            return 422;
+        }
+        images.put(hash, image);
+        return 201;
+    }
+
+    // ---------------------------------------------------------------------
+    // HTTP plumbing
+    // ---------------------------------------------------------------------
+
+    private void acceptLoop(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            } catch (IOException e) {
+                // socket closed by stop()
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = new BufferedOutputStream(client.getOutputStream());
+            boolean keepAlive = true;
+            while (keepAlive) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    break;
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                byte[] body = readBody(in, headers);
+                requests.incrementAndGet();
+                bytesReceived.addAndGet(body.length);
+
+                String[] parts = requestLine.split(" ");
+                Response response = parts.length < 2
+                        ? new Response(400, null)
+                        : handle(parts[0], parts[1], headers, body);
+                keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+                writeResponse(out, response, keepAlive);
+            }
+        } catch (SocketException ignored) {
+            // client went away mid request, which is exactly what resume is for
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Response handle(String method, String target, Map<String, String> headers, byte[] body)
+            throws IOException {
+        String path = target;
+        Map<String, String> query = new HashMap<>();
+        int questionMark = target.indexOf('?');
+        if (questionMark >= 0) {
+            path = target.substring(0, questionMark);
+            for (String pair : target.substring(questionMark + 1).split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    query.put(pair.substring(0, equals), pair.substring(equals + 1));
+                }
+            }
+        }
+
+        if ("/changes".equals(path)) {
+            if ("POST".equals(method)) {
+                return new Response(200, DeltaCodec.encodeRecords(applyUpload(DeltaCodec.decodeRecords(body))));
+            } else if ("GET".equals(method)) {
+                long since = parseLong(query.get("since"), 0);
+                int limit = (int) Math.min(parseLong(query.get("limit"), 100), MAX_PAGE_SIZE);
+                return new Response(200, DeltaCodec.encodePage(changesSince(since, limit)));
+            }
+        } else if ("/images/missing".equals(path) && "POST".equals(method)) {
+            return new Response(200, DeltaCodec.encodeHashes(missingImages(DeltaCodec.decodeHashes(body))));
+        } else if (path.startsWith("/images/")) {
+            String rest = path.substring("/images/".length());
+            if (rest.endsWith("/offset") && "GET".equals(method)) {
+                String hash = rest.substring(0, rest.length() - "/offset".length());
+                return new Response(200, String.valueOf(uploadOffset(hash)).getBytes("UTF-8"));
+            } else if ("PUT".equals(method)) {
+                long offset = parseLong(headers.get(HEADER_UPLOAD_OFFSET.toLowerCase(Locale.US)), 0);
+                long length = parseLong(headers.get(HEADER_UPLOAD_LENGTH.toLowerCase(Locale.US)), body.length);
+                int status = appendUpload(rest, offset, length, body);
+                return new Response(status, String.valueOf(uploadOffset(rest)).getBytes("UTF-8"));
+            } else if ("GET".equals(method)) {
+                return imageResponse(rest, headers.get("range"));
+            }
+        }
+        return new Response(404, null);
+    }
+
+    private Response imageResponse(String hash, String range) {
+        byte[] image;
+        synchronized (this) {
+            image = images.get(hash);
+        }
+        if (image == null) {
+            return new Response(404, null);
+        }
+        if (range == null || !range.startsWith("bytes=")) {
+            return new Response(200, image);
+        }
+        int dash = range.indexOf('-');
+        int start = (int) parseLong(range.substring("bytes=".length(), dash < 0 ? range.length() : dash), 0);
+        if (start >= image.length) {
+            return new Response(416, null);
+        }
+        byte[] tail = new byte[image.length - start];
+        System.arraycopy(image, start, tail, 0, tail.length);
+        Response response = new Response(206, tail);
+        response.contentRange = "bytes " + start + "-" + (image.length - 1) + "/" + image.length;
+        return response;
+    }
+
+    private void writeResponse(OutputStream out, Response response, boolean keepAlive) throws IOException {
+        byte[] body = response.body == null ? new byte[0] : response.body;
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+        head.append("Content-Type: ").append(DeltaCodec.CONTENT_TYPE).append("\r\n");
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        if (response.contentRange != null) {
+            head.append("Content-Range: ").append(response.contentRange).append("\r\n");
+        }
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+        out.write(body);
+        out.flush();
+        bytesSent.addAndGet(body.length);
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        int length = (int) parseLong(headers.get("content-length"), 0);
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) {
+                throw new SocketException("Connection closed mid body");
+            }
+            read += n;
+        }
+        return body;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static long parseLong(String value, long fallback) {
+        if (value == null || value.isEmpty()) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 201:
+                return "Created";
+            case 202:
+                return "Accepted";
+            case 206:
+                return "Partial Content";
+            case 404:
+                return "Not Found";
+            case 409:
+                return "Conflict";
+            case 416:
+                return "Range Not Satisfiable";
+            case 422:
+                return "Unprocessable Entity";
+            default:
+                return "Bad Request";
+        }
+    }
+
+    private static class Response {
+        final int status;
+        final byte[] body;
+        String contentRange;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package my.homelane.app.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * HTTP side of the sync protocol described in {@link LocalSyncServer}.
+ * Image transfers are chunked and pick up where an interrupted transfer stopped.
+ */
+
+public class SyncClient {
+
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+    private final String baseUrl;
+    private final int chunkSize;
+
+    public SyncClient(String baseUrl) {
+        this(baseUrl, DEFAULT_CHUNK_SIZE);
+    }
+
+    public SyncClient(String baseUrl, int chunkSize) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Uploads a batch of local changes.
+     *
+     * @return the records the server kept instead of the uploaded ones
+     */
+    public List<SyncRecord> upload(List<SyncRecord> batch) throws IOException {
+        HttpURLConnection connection = open("/changes", "POST");
+        send(connection, DeltaCodec.encodeRecords(batch));
+        return DeltaCodec.decodeRecords(receive(connection, 200));
+    }
+
+    public DeltaCodec.Page download(long since, int limit) throws IOException {
+        HttpURLConnection connection = open("/changes?since=" + since + "&limit=" + limit, "GET");
+        return DeltaCodec.decodePage(receive(connection, 200));
+    }
+
+    public List<String> missingImages(List<String> hashes) throws IOException {
+        HttpURLConnection connection = open("/images/missing", "POST");
+        send(connection, DeltaCodec.encodeHashes(hashes));
+        return DeltaCodec.decodeHashes(receive(connection, 200));
+    }
+
+    /**
+     * Uploads an image in chunks, continuing at the offset the server already holds.
+     */
+    public void uploadImage(String hash, File file) throws IOException {
+        long length = file.length();
+        long offset = Long.parseLong(new String(receive(open("/images/" + hash + "/offset", "GET"), 200), "UTF-8"));
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] buffer = new byte[chunkSize];
+            while (offset < length) {
+                in.seek(offset);
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - offset));
+                if (read < 0) {
+                    throw new IOException(file + " shrank during upload");
+                }
+
+                HttpURLConnection connection = open("/images/" + hash, "PUT");
+                connection.setRequestProperty(LocalSyncServer.HEADER_UPLOAD_OFFSET, String.valueOf(offset));
+                connection.setRequestProperty(LocalSyncServer.HEADER_UPLOAD_LENGTH, String.valueOf(length));
+                byte[] chunk = buffer;
+                if (read != buffer.length) {
+                    chunk = new byte[read];
+                    System.arraycopy(buffer, 0, chunk, 0, read);
+                }
+                send(connection, chunk);
+
+                int status = connection.getResponseCode();
+                byte[] body = readFully(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+                if (status == 200 || status == 201) {
+                    return;
+                } else if (status == 202 || status == 409) {
+                    // 409: our idea of the offset was stale, continue from the server's
+                    offset = Long.parseLong(new String(body, "UTF-8"));
+                } else {
+                    throw new IOException("Server rejected image " + hash + " with " + status);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Downloads an image into {@code partFile}, appending to whatever an earlier,
+     * interrupted attempt left there.
+     */
+    public void downloadImage(String hash, File partFile) throws IOException {
+        long offset = partFile.exists() ? partFile.length() : 0;
+        HttpURLConnection connection = open("/images/" + hash, "GET");
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+
+        int status = connection.getResponseCode();
+        if (status == 416) {
+            // nothing left to fetch
+            connection.disconnect();
+            return;
+        }
+        if (status != 200 && status != 206) {
+            readFully(connection.getErrorStream());
+            throw new IOException("Image " + hash + " not available: " + status);
+        }
+
+        OutputStream out = new FileOutputStream(partFile, status == 206);
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[chunkSize];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private HttpURLConnection open(String path, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("Content-Type", DeltaCodec.CONTENT_TYPE);
+        return connection;
+    }
+
+    private static void send(HttpURLConnection connection, byte[] body) throws IOException {
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] receive(HttpURLConnection connection, int expectedStatus) throws IOException {
+        int status = connection.getResponseCode();
+        if (status != expectedStatus) {
+            readFully(connection.getErrorStream());
+            throw new IOException(connection.getRequestMethod() + " " + connection.getURL()
+                    + " failed with " + status);
+        }
+        return readFully(connection.getInputStream());
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package my.homelane.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import my.homelane.app.database.DatabaseHelper;
+import my.homelane.app.database.DeletedNotesPurger;
+import my.homelane.app.database.ImageStore;
+import my.homelane.app.database.model.ChangeLog;
+import my.homelane.app.database.model.Job;
+import my.homelane.app.database.model.Note;
+
+/**
+ * Two way sync of the notes table with a {@link SyncClient} endpoint.
+ *
+ * Local changes are read from the change log and uploaded in batches; remote
+ * changes are downloaded page by page from the server's cursor. Both cursors are
+ * persisted after every batch, so an interrupted sync resumes where it stopped.
+ * Images only travel when the other side does not have their hash yet.
+ *
+ * {@link #sync()} blocks on the network and must not run on the main thread.
+ */
+
+public class SyncEngine {
+
+    private static final String TAG = SyncEngine.class.getSimpleName();
+
+    private static final String CHANGE_LOG_CONSUMER = "sync";
+    private static final int BATCH_SIZE = 200;
+
+    private static final String PREFS_NAME = "sync_prefs";
+    private static final String KEY_UPLOAD_SEQ = "upload_seq";
+    private static final String KEY_DOWNLOAD_CURSOR = "download_cursor";
+    // first sync uploads every note, resumable by row id
+    private static final String KEY_INITIAL_SEQ = "initial_seq";
+    private static final String KEY_INITIAL_LAST_ID = "initial_last_id";
+
+    private static final String[] RECORD_COLUMNS = new String[]{
+            Note.COLUMN_ID, Note.COLUMN_UUID, Note.COLUMN_VERSION, Note.COLUMN_UPDATED_AT,
+            Note.COLUMN_NOTE, Note.COLUMN_TIMESTAMP, Note.COLUMN_IMAGE_HASH, Note.COLUMN_DELETED,
+            Note.COLUMN_BODY};
+
+    /**
+     * What one call to {@link #sync()} transferred.
+     */
+    public static class Result {
+        public int uploaded;
+        public int downloaded;
+        public int conflicts;
+        public int imagesUploaded;
+        public int imagesDownloaded;
+
+        @Override
+        public String toString() {
+            return "uploaded " + uploaded + ", downloaded " + downloaded + ", conflicts " + conflicts
+                    + ", images up " + imagesUploaded + ", images down " + imagesDownloaded;
+        }
+    }
+
+    private final DatabaseHelper db;
+    private final ImageStore imageStore;
+    private final SyncClient client;
+    private final SharedPreferences prefs;
+    private final File partialDownloads;
+    private final File uploads;
+
+    public SyncEngine(Context context, DatabaseHelper db, SyncClient client) {
+        this.db = db;
+        this.imageStore = db.getImageStore();
+        this.client = client;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.partialDownloads = new File(context.getCacheDir(), "sync");
+        partialDownloads.mkdirs();
+        this.uploads = new File(partialDownloads, "upload");
+    }
+
+    public synchronized Result sync() throws IOException {
+        Result result = new Result();
+        if (!prefs.contains(KEY_UPLOAD_SEQ)) {
+            initialUpload(result);
+        }
+        upload(result);
+        download(result);
+        Log.d(TAG, "sync finished: " + result);
+        return result;
+    }
+
+    private void initialUpload(Result result) throws IOException {
+        long initialSeq = prefs.getLong(KEY_INITIAL_SEQ, -1);
+        if (initialSeq < 0) {
+            // registering as a consumer keeps every later change in the log until we uploaded it
+            initialSeq = db.getLatestChangeSeq();
+            db.checkpointChangeLog(CHANGE_LOG_CONSUMER, initialSeq);
+            prefs.edit().putLong(KEY_INITIAL_SEQ, initialSeq).apply();
+        }
+
+        long lastId = prefs.getLong(KEY_INITIAL_LAST_ID, 0);
+        while (true) {
+            List<SyncRecord> batch = new ArrayList<>();
+            Cursor cursor = db.getReadableDatabase().query(Note.TABLE_NAME, RECORD_COLUMNS,
+                    Note.COLUMN_ID + " > ?", new String[]{String.valueOf(lastId)},
+                    null, null, Note.COLUMN_ID, String.valueOf(BATCH_SIZE));
+            try {
+                while (cursor.moveToNext()) {
+                    batch.add(readRecord(cursor));
+                    lastId = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            uploadBatch(batch, result);
+            prefs.edit().putLong(KEY_INITIAL_LAST_ID, lastId).apply();
+        }
+
+        prefs.edit()
+                .putLong(KEY_UPLOAD_SEQ, initialSeq)
+                .remove(KEY_INITIAL_SEQ)
+                .remove(KEY_INITIAL_LAST_ID)
+                .apply();
+    }
+
+    private void upload(Result result) throws IOException {
+        while (true) {
+            long uploadSeq = prefs.getLong(KEY_UPLOAD_SEQ, 0);
+            // a window of the log at a time, a long backlog is not read again for every batch
+            long batchSeq = db.getChangeBatchEnd(uploadSeq, BATCH_SIZE);
+            if (batchSeq <= uploadSeq) {
+                return;
+            }
+
+            List<ChangeLog> changes = db.getChanges(uploadSeq, batchSeq);
+            List<SyncRecord> records = new ArrayList<>(changes.size());
+            for (ChangeLog change : changes) {
+                SyncRecord record = change.isDelete()
+                        ? SyncRecord.tombstone(change.getNoteUuid(), change.getNoteVersion(), change.getChangedAt())
+                        : loadRecord(change.getNoteId());
+                if (record != null && record.getUuid() != null) {
+                    records.add(record);
+                }
+            }
+            uploadBatch(records, result);
+
+            prefs.edit().putLong(KEY_UPLOAD_SEQ, batchSeq).apply();
+            db.checkpointChangeLog(CHANGE_LOG_CONSUMER, batchSeq);
+        }
+    }
+
+    private void uploadBatch(List<SyncRecord> records, Result result) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        // images first, so the server never hands out a note whose image it lacks
+        Set<String> hashes = new LinkedHashSet<>();
+        for (SyncRecord record : records) {
+            if (record.getImageHash() != null && imageStore.contains(record.getImageHash())) {
+                hashes.add(record.getImageHash());
+            }
+        }
+        if (!hashes.isEmpty()) {
+            for (String hash : client.missingImages(new ArrayList<>(hashes))) {
+                // the server gets the plain image, an encrypted one is decrypted for the upload only
+                File file = imageStore.exportFile(hash, uploads);
+                try {
+                    client.uploadImage(hash, file);
+                } finally {
+                    if (!file.equals(imageStore.getFile(hash))) {
+                        file.delete();
+                    }
+                }
+                result.imagesUploaded++;
+            }
+        }
+
+        List<SyncRecord> rejected = client.upload(records);
+        result.uploaded += records.size() - rejected.size();
+        result.conflicts += rejected.size();
+        // the server kept its own version of these, take it over
+        if (!rejected.isEmpty()) {
+            apply(rejected, result);
+        }
+    }
+
+    private void download(Result result) throws IOException {
+        DeltaCodec.Page page;
+        do {
+            long cursor = prefs.getLong(KEY_DOWNLOAD_CURSOR, 0);
+            page = client.download(cursor, BATCH_SIZE);
+            result.downloaded += apply(page.records, result);
+            prefs.edit().putLong(KEY_DOWNLOAD_CURSOR, page.cursor).apply();
+        } while (page.hasMore);
+    }
+
+    /**
+     * Applies remote records that win over the local state.
+     *
+     * @return number of records that changed a local note
+     */
+    private int apply(List<SyncRecord> records, Result result) throws IOException {
+        // placeholders may need the image decoded, done before the transaction
+        Map<String, String> placeholders = new HashMap<>();
+        for (SyncRecord record : records) {
+            if (!record.isDeleted() && record.getImageHash() != null) {
+                fetchImage(record.getImageHash(), result);
+                if (!placeholders.containsKey(record.getImageHash())) {
+                    placeholders.put(record.getImageHash(), db.getPlaceholder(record.getImageHash()));
+                }
+            }
+        }
+
+        SQLiteDatabase database = db.getWritableDatabase();
+        int applied = 0;
+        boolean deletedAny = false;
+        long echoSeq = -1;
+        database.beginTransaction();
+        try {
+            long seqBefore = db.getLatestChangeSeq();
+
+            for (SyncRecord record : records) {
+                long localId = -1;
+                SyncRecord local = null;
+                Cursor cursor = database.query(Note.TABLE_NAME, RECORD_COLUMNS, Note.COLUMN_UUID + " = ?",
+                        new String[]{record.getUuid()}, null, null, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        localId = cursor.getLong(0);
+                        local = readRecord(cursor);
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                if (local == null && record.isDeleted()) {
+                    continue;
+                }
+                if (record.sameContent(local) || !record.wins(local)) {
+                    continue;
+                }
+
+                ContentValues values = new ContentValues();
+                values.put(Note.COLUMN_UUID, record.getUuid());
+                values.put(Note.COLUMN_VERSION, record.getVersion());
+                values.put(Note.COLUMN_UPDATED_AT, record.getUpdatedAt());
+                if (record.isDeleted()) {
+                    // tombstones go through the same purge as local deletes
+                    values.put(Note.COLUMN_DELETED, 1);
+                    values.put(Note.COLUMN_DELETED_AT, System.currentTimeMillis());
+                    deletedAny = true;
+                } else {
+                    values.put(Note.COLUMN_DELETED, 0);
+                    values.putNull(Note.COLUMN_DELETED_AT);
+                    DatabaseHelper.putText(values, record.getNote());
+                    values.put(Note.COLUMN_IMAGE_HASH, record.getImageHash());
+                    DatabaseHelper.putPlaceholder(values, placeholders.get(record.getImageHash()));
+                    if (record.getTimestamp() != null) {
+                        values.put(Note.COLUMN_TIMESTAMP, record.getTimestamp());
+                    }
+                }
+                if (local == null) {
+                    database.insert(Note.TABLE_NAME, null, values);
+                } else {
+                    if (!record.isDeleted()) {
+                        values.putNull(Note.COLUMN_IMAGE);
+                        // the local text stays in the history, like any other edit
+                        db.saveRevision(localId, record.getNote());
+                    }
+                    database.update(Note.TABLE_NAME, values, Note.COLUMN_ID + " = ?",
+                            new String[]{String.valueOf(localId)});
+                }
+                applied++;
+            }
+
+            // don't echo what we just received back to the server, unless
+            // there are local edits waiting in front of it anyway
+            if (prefs.getLong(KEY_UPLOAD_SEQ, -1) == seqBefore) {
+                echoSeq = db.getLatestChangeSeq();
+            }
+
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (echoSeq >= 0) {
+            prefs.edit().putLong(KEY_UPLOAD_SEQ, echoSeq).apply();
+            db.checkpointChangeLog(CHANGE_LOG_CONSUMER, echoSeq);
+        }
+        if (deletedAny) {
+            db.getJobQueue().enqueue(Job.TYPE_PURGE_DELETED, Job.PRIORITY_LOW, DeletedNotesPurger.UNDO_GRACE_MILLIS);
+        }
+        return applied;
+    }
+
+    private void fetchImage(String hash, Result result) throws IOException {
+        if (imageStore.contains(hash)) {
+            return;
+        }
+        // a leftover part file from an interrupted sync is continued, not restarted
+        File part = new File(partialDownloads, hash + ".part");
+        client.downloadImage(hash, part);
+        imageStore.importFile(part, hash);
+        result.imagesDownloaded++;
+    }
+
+    private SyncRecord loadRecord(long noteId) {
+        Cursor cursor = db.getReadableDatabase().query(Note.TABLE_NAME, RECORD_COLUMNS,
+                Note.COLUMN_ID + " = ?", new String[]{String.valueOf(noteId)}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? readRecord(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // expects the RECORD_COLUMNS projection
+    private static SyncRecord readRecord(Cursor cursor) {
+        return new SyncRecord(
+                cursor.getString(1),
+                cursor.getLong(2),
+                cursor.getLong(3),
+                cursor.getInt(7) != 0,
+                DatabaseHelper.readText(cursor, 4, 8),
+                cursor.getString(5),
+                cursor.getString(6));
+    }
+}
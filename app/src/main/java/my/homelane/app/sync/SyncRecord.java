@@ -0,0 +1,99 @@
+package my.homelane.app.sync;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+
+import my.homelane.app.utils.HashUtil;
+
+/**
+ * The state of one note as exchanged between devices and the sync server.
+ * Notes are identified by their uuid, local row ids never leave the device.
+ */
+
+public class SyncRecord {
+
+    private final String uuid;
+    private final long version;
+    private final long updatedAt;
+    private final boolean deleted;
+    private final String note;
+    private final String timestamp;
+    private final String imageHash;
+
+    public SyncRecord(String uuid, long version, long updatedAt, boolean deleted,
+                      String note, String timestamp, String imageHash) {
+        this.uuid = uuid;
+        this.version = version;
+        this.updatedAt = updatedAt;
+        this.deleted = deleted;
+        this.note = note;
+        this.timestamp = timestamp;
+        this.imageHash = imageHash;
+    }
+
+    public static SyncRecord tombstone(String uuid, long version, long updatedAt) {
+        return new SyncRecord(uuid, version, updatedAt, true, null, null, null);
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public String getNote() {
+        return note;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public String getImageHash() {
+        return imageHash;
+    }
+
+    /**
+     * Conflict rule shared by the server and every client: the higher version wins,
+     * then the later edit, then the larger content digest. Every replica therefore
+     * settles on the same record no matter in which order it saw the edits.
+     */
+    public boolean wins(SyncRecord other) {
+        if (other == null) {
+            return true;
+        }
+        if (version != other.version) {
+            return version > other.version;
+        }
+        if (updatedAt != other.updatedAt) {
+            return updatedAt > other.updatedAt;
+        }
+        return contentDigest().compareTo(other.contentDigest()) > 0;
+    }
+
+    public boolean sameContent(SyncRecord other) {
+        return other != null && version == other.version && contentDigest().equals(other.contentDigest());
+    }
+
+    private String contentDigest() {
+        try {
+            MessageDigest digest = HashUtil.newDigest();
+            digest.update((deleted ? "1" : "0").getBytes("UTF-8"));
+            digest.update(String.valueOf(note).getBytes("UTF-8"));
+            digest.update(String.valueOf(imageHash).getBytes("UTF-8"));
+            return HashUtil.toHex(digest.digest());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
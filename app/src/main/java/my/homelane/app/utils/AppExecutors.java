@@ -0,0 +1,89 @@
+package my.homelane.app.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide executors. Database and file work goes to {@link #diskIO()}, a single
+ * background thread, so writes are serialised and never run on the UI thread;
+ * image decoding goes to {@link #imageDecode()}, so it never waits behind database
+ * work; deferred heavy work from the job queue goes to {@link #jobs()}; results
+ * are handed back through {@link #mainThread()}.
+ */
+
+public class AppExecutors {
+
+    private static AppExecutors sInstance;
+
+    private static final int IMAGE_DECODE_THREADS = 2;
+    public static final int JOB_THREADS = 2;
+
+    private final ScheduledExecutorService diskIO;
+    private final ExecutorService imageDecode;
+    private final ExecutorService jobs;
+    private final Executor mainThread;
+
+    public static synchronized AppExecutors getInstance() {
+        if (sInstance == null) {
+            sInstance = new AppExecutors();
+        }
+        return sInstance;
+    }
+
+    private AppExecutors() {
+        diskIO = new ScheduledThreadPoolExecutor(1, backgroundThreads("disk-io"));
+        imageDecode = new ThreadPoolExecutor(IMAGE_DECODE_THREADS, IMAGE_DECODE_THREADS,
+                0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), backgroundThreads("image-decode"));
+        jobs = new ThreadPoolExecutor(JOB_THREADS, JOB_THREADS,
+                0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), backgroundThreads("jobs"));
+
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mainThread = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    private static ThreadFactory backgroundThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name);
+            }
+        };
+    }
+
+    public ScheduledExecutorService diskIO() {
+        return diskIO;
+    }
+
+    public ExecutorService imageDecode() {
+        return imageDecode;
+    }
+
+    public ExecutorService jobs() {
+        return jobs;
+    }
+
+    public Executor mainThread() {
+        return mainThread;
+    }
+}
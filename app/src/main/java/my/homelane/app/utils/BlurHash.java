@@ -0,0 +1,209 @@
+package my.homelane.app.utils;
+
+/**
+ * BlurHash: an image as a few cosine components, written as a short base 83
+ * string. About 30 characters draw a blurred stand-in of the image, for the
+ * list to show until the thumbnail is decoded.
+ *
+ * Pixels are ARGB ints, as Bitmap.getPixels gives them; alpha is ignored.
+ * Follows the reference implementation, so hashes are interchangeable.
+ */
+
+public class BlurHash {
+
+    private static final String CHARS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+
+    private static final double[] SRGB_TO_LINEAR = new double[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double v = i / 255.0;
+            SRGB_TO_LINEAR[i] = v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+        }
+    }
+
+    private BlurHash() {
+    }
+
+    /**
+     * @param componentsX horizontal detail, 1 to 9; 4 by 3 suits a landscape photo
+     */
+    public static String encode(int[] pixels, int width, int height, int componentsX, int componentsY) {
+        if (componentsX < 1 || componentsX > 9 || componentsY < 1 || componentsY > 9) {
+            throw new IllegalArgumentException("Components " + componentsX + "x" + componentsY);
+        }
+        if (width <= 0 || height <= 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("Image " + width + "x" + height + " of " + pixels.length + " pixels");
+        }
+
+        double[][] factors = new double[componentsX * componentsY][];
+        double[] cosX = new double[width];
+        double[] cosY = new double[height];
+        for (int j = 0; j < componentsY; j++) {
+            for (int i = 0; i < componentsX; i++) {
+                for (int x = 0; x < width; x++) {
+                    cosX[x] = Math.cos(Math.PI * i * x / width);
+                }
+                for (int y = 0; y < height; y++) {
+                    cosY[y] = Math.cos(Math.PI * j * y / height);
+                }
+                double r = 0;
+                double g = 0;
+                double b = 0;
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        double basis = cosX[x] * cosY[y];
+                        int pixel = pixels[y * width + x];
+                        r += basis * SRGB_TO_LINEAR[(pixel >> 16) & 0xFF];
+                        g += basis * SRGB_TO_LINEAR[(pixel >> 8) & 0xFF];
+                        b += basis * SRGB_TO_LINEAR[pixel & 0xFF];
+                    }
+                }
+                double scale = (i == 0 && j == 0 ? 1.0 : 2.0) / (width * height);
+                factors[j * componentsX + i] = new double[]{r * scale, g * scale, b * scale};
+            }
+        }
+
+        StringBuilder hash = new StringBuilder(4 + 2 * factors.length);
+        appendBase83(hash, (componentsX - 1) + (componentsY - 1) * 9, 1);
+
+        double maximumValue;
+        if (factors.length > 1) {
+            double actualMaximum = 0;
+            for (int k = 1; k < factors.length; k++) {
+                for (double value : factors[k]) {
+                    actualMaximum = Math.max(actualMaximum, Math.abs(value));
+                }
+            }
+            int quantisedMaximum = (int) Math.max(0, Math.min(82, Math.floor(actualMaximum * 166 - 0.5)));
+            maximumValue = (quantisedMaximum + 1) / 166.0;
+            appendBase83(hash, quantisedMaximum, 1);
+        } else {
+            maximumValue = 1;
+            appendBase83(hash, 0, 1);
+        }
+
+        double[] dc = factors[0];
+        appendBase83(hash, (linearToSrgb(dc[0]) << 16) + (linearToSrgb(dc[1]) << 8) + linearToSrgb(dc[2]), 4);
+        for (int k = 1; k < factors.length; k++) {
+            double[] ac = factors[k];
+            appendBase83(hash, quantiseAc(ac[0], maximumValue) * 19 * 19
+                    + quantiseAc(ac[1], maximumValue) * 19 + quantiseAc(ac[2], maximumValue), 2);
+        }
+        return hash.toString();
+    }
+
+    /**
+     * @return ARGB pixels of the blurred image at the given size
+     * @throws IllegalArgumentException when the hash is not a valid BlurHash
+     */
+    public static int[] decode(String hash, int width, int height) {
+        if (hash == null || hash.length() < 6) {
+            throw new IllegalArgumentException("Not a BlurHash: " + hash);
+        }
+        int sizeFlag = decodeBase83(hash, 0, 1);
+        int componentsX = sizeFlag % 9 + 1;
+        int componentsY = sizeFlag / 9 + 1;
+        if (hash.length() != 4 + 2 * componentsX * componentsY) {
+            throw new IllegalArgumentException("BlurHash of " + componentsX + "x" + componentsY
+                    + " components has length " + hash.length());
+        }
+        double maximumValue = (decodeBase83(hash, 1, 1) + 1) / 166.0;
+
+        double[][] colors = new double[componentsX * componentsY][];
+        int dc = decodeBase83(hash, 2, 4);
+        colors[0] = new double[]{
+                SRGB_TO_LINEAR[(dc >> 16) & 0xFF], SRGB_TO_LINEAR[(dc >> 8) & 0xFF], SRGB_TO_LINEAR[dc & 0xFF]};
+        for (int k = 1; k < colors.length; k++) {
+            int ac = decodeBase83(hash, 4 + k * 2, 2);
+            colors[k] = new double[]{
+                    signPow((ac / (19 * 19) - 9) / 9.0, 2) * maximumValue,
+                    signPow((ac / 19 % 19 - 9) / 9.0, 2) * maximumValue,
+                    signPow((ac % 19 - 9) / 9.0, 2) * maximumValue};
+        }
+
+        // the cosines only depend on the column or the row
+        double[][] cosX = new double[componentsX][width];
+        for (int i = 0; i < componentsX; i++) {
+            for (int x = 0; x < width; x++) {
+                cosX[i][x] = Math.cos(Math.PI * x * i / width);
+            }
+        }
+        double[][] cosY = new double[componentsY][height];
+        for (int j = 0; j < componentsY; j++) {
+            for (int y = 0; y < height; y++) {
+                cosY[j][y] = Math.cos(Math.PI * y * j / height);
+            }
+        }
+
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double r = 0;
+                double g = 0;
+                double b = 0;
+                for (int j = 0; j < componentsY; j++) {
+                    for (int i = 0; i < componentsX; i++) {
+                        double basis = cosX[i][x] * cosY[j][y];
+                        double[] color = colors[j * componentsX + i];
+                        r += color[0] * basis;
+                        g += color[1] * basis;
+                        b += color[2] * basis;
+                    }
+                }
+                pixels[y * width + x] = 0xFF000000 | linearToSrgb(r) << 16 | linearToSrgb(g) << 8 | linearToSrgb(b);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * @return how many components across the hash has, to decode it in about the image's proportions
+     */
+    public static int getComponentsX(String hash) {
+        return decodeBase83(hash, 0, 1) % 9 + 1;
+    }
+
+    public static int getComponentsY(String hash) {
+        return decodeBase83(hash, 0, 1) / 9 + 1;
+    }
+
+    private static int quantiseAc(double value, double maximumValue) {
+        return (int) Math.max(0, Math.min(18, Math.floor(signPow(value / maximumValue, 0.5) * 9 + 9.5)));
+    }
+
+    private static int linearToSrgb(double value) {
+        double v = Math.max(0, Math.min(1, value));
+        if (v <= 0.0031308) {
+            return (int) (v * 12.92 * 255 + 0.5);
+        }
+        return (int) ((1.055 * Math.pow(v, 1 / 2.4) - 0.055) * 255 + 0.5);
+    }
+
+    private static double signPow(double value, double exponent) {
+        return Math.copySign(Math.pow(Math.abs(value), exponent), value);
+    }
+
+    private static void appendBase83(StringBuilder out, int value, int length) {
+        for (int i = 1; i <= length; i++) {
+            int divisor = 1;
+            for (int k = 0; k < length - i; k++) {
+                divisor *= 83;
+            }
+            out.append(CHARS.charAt(value / divisor % 83));
+        }
+    }
+
+    private static int decodeBase83(String hash, int start, int length) {
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            int digit = CHARS.indexOf(hash.charAt(i));
+            if (digit < 0) {
+                throw new IllegalArgumentException("Not a BlurHash: " + hash);
+            }
+            value = value * 83 + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,158 @@
+package my.homelane.app.utils;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the in-memory caches together under one budget, derived from the
+ * device's memory class. Caches register with a priority; when together they
+ * grow past the budget, or the system asks us to trim, the lowest priority
+ * ones give back memory first.
+ *
+ * Only accessed on the main thread, which is where the system's trim
+ * callbacks arrive.
+ */
+
+public class CacheCoordinator {
+
+    private static final String TAG = CacheCoordinator.class.getSimpleName();
+
+    private static final Metrics.Counter TRIMMED_BYTES = Metrics.counter("cache.trimmedBytes");
+
+    // of the heap the memory class allows us, the part all caches share
+    private static final int BUDGET_FRACTION = 4;
+
+    // rebuilt from disk cheaply, e.g. decoded thumbnails
+    public static final int PRIORITY_LOW = 0;
+    // what the screen is showing is built from it
+    public static final int PRIORITY_HIGH = 10;
+
+    public interface Cache {
+        /**
+         * @return the bytes held, an estimate where they cannot be counted exactly
+         */
+        long getSizeBytes();
+
+        /**
+         * Gives back memory until at most {@code maxBytes} are held, or as close as the
+         * cache can get without dropping what is on screen.
+         */
+        void trimTo(long maxBytes);
+    }
+
+    private static class Entry {
+        final Cache cache;
+        final int priority;
+
+        Entry(Cache cache, int priority) {
+            this.cache = cache;
+            this.priority = priority;
+        }
+    }
+
+    private final long budgetBytes;
+    // lowest priority first
+    private final List<Entry> entries = new ArrayList<>();
+
+    public CacheCoordinator(Context context) {
+        this(budgetFor(context));
+    }
+
+    public CacheCoordinator(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    private static long budgetFor(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager.getMemoryClass() * 1024L * 1024L / BUDGET_FRACTION;
+    }
+
+    /**
+     * @return the bytes all registered caches may hold together
+     */
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public void register(Cache cache, int priority) {
+        int index = 0;
+        while (index < entries.size() && entries.get(index).priority <= priority) {
+            index++;
+        }
+        entries.add(index, new Entry(cache, priority));
+    }
+
+    public void unregister(Cache cache) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).cache == cache) {
+                entries.remove(i);
+                return;
+            }
+        }
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.cache.getSizeBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Called by a cache after it grew, brings everything back under the budget.
+     */
+    public void checkBudget() {
+        trimTotalTo(budgetBytes);
+    }
+
+    /**
+     * Forwarded from {@link ComponentCallbacks2#onTrimMemory}. The further we are
+     * from being kept around, or the scarcer memory is while we are in front,
+     * the less of the budget stays in use.
+     */
+    public void onTrimMemory(int level) {
+        long target;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            target = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            target = budgetBytes / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            target = budgetBytes / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            target = budgetBytes / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            target = budgetBytes / 2;
+        } else {
+            target = budgetBytes * 3 / 4;
+        }
+        long before = getTotalBytes();
+        trimTotalTo(target);
+        Log.d(TAG, "Trim level " + level + ", caches went from " + before + " to " + getTotalBytes() + " bytes");
+    }
+
+    /**
+     * Forwarded from {@link ComponentCallbacks2#onLowMemory}, gives back all there is.
+     */
+    public void onLowMemory() {
+        trimTotalTo(0);
+    }
+
+    // the lowest priority caches are emptied before the next ones give anything back
+    private void trimTotalTo(long target) {
+        long total = getTotalBytes();
+        for (int i = 0; i < entries.size() && total > target; i++) {
+            Cache cache = entries.get(i).cache;
+            long size = cache.getSizeBytes();
+            cache.trimTo(Math.max(0, size - (total - target)));
+            long trimmed = size - cache.getSizeBytes();
+            TRIMMED_BYTES.add(trimmed);
+            total -= trimmed;
+        }
+    }
+}
@@ -12,16 +12,23 @@ import java.io.ByteArrayOutputStream;
 
 public class DBBitMapUtility {
 
+    private static final Metrics.Histogram GET_BYTES = Metrics.histogram("image.getBytes");
+    private static final Metrics.Histogram GET_IMAGE = Metrics.histogram("image.getImage");
+
     // convert from bitmap to byte array
     public static byte[] getBytes(Bitmap bitmap) {
+        long start = System.nanoTime();
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         bitmap.compress(Bitmap.CompressFormat.PNG, 0, stream);
+        GET_BYTES.recordSince(start);
         return stream.toByteArray();
     }
 
     // convert from byte array to bitmap
     public static Bitmap getImage(byte[] image) {
+        long start = System.nanoTime();
         Bitmap bit = BitmapFactory.decodeByteArray(image, 0, image.length);
+        GET_IMAGE.recordSince(start);
         return bit;
     }
 
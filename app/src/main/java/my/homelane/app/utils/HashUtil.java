@@ -0,0 +1,37 @@
+package my.homelane.app.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hashes used to address images and to compare note contents.
+ */
+
+public class HashUtil {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to ship SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String sha1Hex(byte[] bytes) {
+        MessageDigest digest = newDigest();
+        digest.update(bytes);
+        return toHex(digest.digest());
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,145 @@
+package my.homelane.app.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs housekeeping tasks in the background, but only once the main thread has
+ * run out of work, so they never compete with scrolling or input handling.
+ * Each task runs at most once per interval and never overlaps with itself;
+ * a task that reports work left over runs again at the next idle moment, which
+ * keeps long jobs in small slices.
+ *
+ * Must be started and stopped on the main thread.
+ */
+
+public class IdleTaskScheduler implements MessageQueue.IdleHandler {
+
+    private static final String TAG = IdleTaskScheduler.class.getSimpleName();
+
+    private final Executor executor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Entry> entries = new ArrayList<>();
+    private boolean started;
+
+    // Wakes the message queue when the next task falls due, so it gets another chance to go idle
+    private final Runnable wakeUp = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * A slice of background work.
+     */
+    public interface Task {
+        /**
+         * @return true when work is left over and the task wants to run again soon
+         */
+        boolean run();
+    }
+
+    private static class Entry {
+        final Task task;
+        final long intervalMillis;
+        final AtomicBoolean running = new AtomicBoolean();
+        volatile long lastRun;
+
+        Entry(Task task, long intervalMillis) {
+            this.task = task;
+            this.intervalMillis = intervalMillis;
+        }
+    }
+
+    public IdleTaskScheduler(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a task that runs in idle time, at most once every {@code intervalMillis}.
+     * Its first run waits for one full interval.
+     */
+    public void schedule(Task task, long intervalMillis) {
+        Entry entry = new Entry(task, intervalMillis);
+        entry.lastRun = SystemClock.elapsedRealtime();
+        entries.add(entry);
+    }
+
+    /**
+     * Lets a task run at the next idle moment instead of waiting out its interval.
+     */
+    public void runSoon(Task task) {
+        for (Entry entry : entries) {
+            if (entry.task == task) {
+                entry.lastRun = 0;
+            }
+        }
+        if (started) {
+            handler.post(wakeUp);
+        }
+    }
+
+    public void start() {
+        if (!started) {
+            started = true;
+            Looper.myQueue().addIdleHandler(this);
+        }
+    }
+
+    public void stop() {
+        if (started) {
+            started = false;
+            Looper.myQueue().removeIdleHandler(this);
+            handler.removeCallbacks(wakeUp);
+        }
+    }
+
+    @Override
+    public boolean queueIdle() {
+        long now = SystemClock.elapsedRealtime();
+        long nextDue = Long.MAX_VALUE;
+
+        for (final Entry entry : entries) {
+            long due = entry.lastRun + entry.intervalMillis;
+            if (due > now) {
+                nextDue = Math.min(nextDue, due);
+                continue;
+            }
+            if (!entry.running.compareAndSet(false, true)) {
+                continue;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean moreWork = false;
+                    try {
+                        moreWork = entry.task.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Idle task failed", e);
+                    } finally {
+                        entry.lastRun = moreWork ? 0 : SystemClock.elapsedRealtime();
+                        entry.running.set(false);
+                    }
+                    if (moreWork) {
+                        handler.post(wakeUp);
+                    }
+                }
+            });
+            nextDue = Math.min(nextDue, now + entry.intervalMillis);
+        }
+
+        handler.removeCallbacks(wakeUp);
+        if (nextDue != Long.MAX_VALUE) {
+            handler.postDelayed(wakeUp, nextDue - now);
+        }
+        return started;
+    }
+}
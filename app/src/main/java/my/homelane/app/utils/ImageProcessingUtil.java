@@ -1,5 +1,6 @@
 package my.homelane.app.utils;
 
+import android.annotation.TargetApi;
 import android.app.Application;
 import android.content.ContentResolver;
 import android.content.ContentUris;
@@ -7,101 +8,236 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
+import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.support.v4.content.FileProvider;
 import android.util.Log;
-import android.util.Pair;
+import android.util.LruCache;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import my.homelane.app.database.ImageStore;
+
 /**
  * Created by moinadil on 23/04/18.
  */
 
 public class ImageProcessingUtil {
     private static final String TAG = ImageProcessingUtil.class.getSimpleName();
+    // rotated images of earlier versions were left in filesDir under this prefix
+    public static final String TEMP_FILE_PREFIX = "_temp";
+    // FileProvider authority is the application id plus this, as declared in the manifest
+    public static final String FILE_PROVIDER_SUFFIX = ".fileprovider";
+    // longest side of a stored photo, plenty for a note and a fraction of a camera picture
+    public static final int MAX_IMAGE_SIDE_PX = 1600;
+    private static final int JPEG_QUALITY = 85;
+    // placeholders are computed from the image scaled down to this, more pixels change nothing that shows
+    private static final int PLACEHOLDER_SOURCE_PX = 32;
+
+    private static final Metrics.Histogram ROTATE_IMAGE = Metrics.histogram("image.getRotatedImageFile");
+    private static final Metrics.Histogram STORE_DOWNSAMPLED = Metrics.histogram("image.storeDownsampled");
+    private static final Metrics.Counter IMAGE_BYTES_STORED = Metrics.counter("image.bytesStored");
+    private static final Metrics.Histogram PLACEHOLDER = Metrics.histogram("image.placeholder");
+    private static final Metrics.Histogram RESOLVE_URI = Metrics.histogram("image.resolveUri");
+    private static final Metrics.Counter URI_CACHE_HITS = Metrics.counter("image.uriCacheHits");
+    private static final Metrics.Counter URI_COPIES = Metrics.counter("image.uriCopies");
+
+    private static final int METADATA_CACHE_SIZE = 64;
+    // a provider may change what is behind a URI without telling us, entries we cannot check expire
+    private static final long METADATA_MAX_AGE_MILLIS = 30 * 1000;
+
+    /**
+     * What is known about an image URI, read with one provider query. Fields the
+     * provider does not report are null or -1.
+     */
+    public static class Metadata {
+        private final String path;
+        private final String displayName;
+        private final String mimeType;
+        private final long sizeBytes;
+        private final int orientation;
+        private final long loadedAt;
+        // of the file at path when it was read, to notice it changed
+        private final long fileLength;
+        private final long fileModified;
+
+        Metadata(String path, String displayName, String mimeType, long sizeBytes, int orientation) {
+            this.path = path;
+            this.displayName = displayName;
+            this.mimeType = mimeType;
+            this.sizeBytes = sizeBytes;
+            this.orientation = orientation;
+            this.loadedAt = SystemClock.elapsedRealtime();
+            File file = path != null ? new File(path) : null;
+            this.fileLength = file != null ? file.length() : -1;
+            this.fileModified = file != null ? file.lastModified() : -1;
+        }
+
+        /**
+         * @return a readable filesystem path, null for content only reachable through the resolver
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public long getSizeBytes() {
+            return sizeBytes;
+        }
+
+        /**
+         * @return clockwise rotation in degrees the provider reports, -1 when it does not
+         */
+        public int getOrientation() {
+            return orientation;
+        }
+
+        boolean isCurrent() {
+            if (path != null && fileModified > 0) {
+                File file = new File(path);
+                return file.length() == fileLength && file.lastModified() == fileModified;
+            }
+            return SystemClock.elapsedRealtime() - loadedAt < METADATA_MAX_AGE_MILLIS;
+        }
+    }
+
     private final ContentResolver mContentResolver;
-    private final String filesDir;
+    private final ScratchSpace scratchSpace;
     private final Application application;
+    private final LruCache<Uri, Metadata> metadataCache = new LruCache<>(METADATA_CACHE_SIZE);
 
     public ImageProcessingUtil(Application application) {
         this.application = application;
         this.mContentResolver = application.getContentResolver();
-        this.filesDir = application.getFilesDir().getAbsolutePath();
+        this.scratchSpace = ScratchSpace.getInstance(application);
+    }
+
+    /**
+     * Path, size, type and orientation of an image, cached so that looking at the
+     * same URI again costs no provider round trip. Call it in the background.
+     */
+    public Metadata getMetadata(Uri uri) {
+        Metadata metadata = metadataCache.get(uri);
+        if (metadata != null && metadata.isCurrent()) {
+            URI_CACHE_HITS.increment();
+            return metadata;
+        }
+        long start = System.nanoTime();
+        metadata = loadMetadata(uri);
+        metadataCache.put(uri, metadata);
+        RESOLVE_URI.recordSince(start);
+        return metadata;
+    }
+
+    /**
+     * Forgets what was read about a URI, e.g. after writing to it.
+     */
+    public void invalidate(Uri uri) {
+        metadataCache.remove(uri);
+    }
+
+    /**
+     * Opens an image for reading whether or not it has a filesystem path.
+     */
+    public ParcelFileDescriptor openFileDescriptor(Uri uri) throws IOException {
+        ParcelFileDescriptor descriptor = mContentResolver.openFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        return descriptor;
     }
 
     /**
      * @param uri URI of image to be processed
-     * @return Pair of Boolean and File
-     *         Boolean - indicates whether returned File is temporary and has to be deleted after use
-     *         File - is the File object of the image
+     * @return lease on the upright image, a scratch file if it had to be rotated or
+     *         has no path; the caller releases it when done. Null if it cannot be read
      **/
-    public Pair<Boolean, File> getProcessedImageFile(Uri uri) {
-        Cursor cursor = mContentResolver.query(uri,
-            new String[] { MediaStore.Images.ImageColumns.ORIENTATION},
-            null, null, null);
-        File processedFile;
-        Boolean isTemp;
-
-        if (cursor == null || cursor.getCount() != 1 || cursor.getColumnCount() == 0) {
-            processedFile = new File(getFilePathFromUri(uri));
-            isTemp = false;
-        } else {
-            cursor.moveToFirst();
-            int rotation = cursor.getInt(0);
-            cursor.close();
-            Log.v("Kanj", "rotation of " + uri.getPath() + " = " + rotation);
-            try {
-                processedFile = getRotatedImageFile(uri, rotation);
-                isTemp = true;
-            } catch (IOException ioe) {
-                Log.e(TAG, "Error", ioe);
-                processedFile = new File(getFilePathFromUri(uri));
-                isTemp = false;
-            }
+    public ScratchSpace.Lease getProcessedImageFile(Uri uri) {
+        Metadata metadata = getMetadata(uri);
+        if (metadata.getPath() != null && metadata.getOrientation() <= 0) {
+            return scratchSpace.wrap(new File(metadata.getPath()));
         }
 
-        return new Pair<>(isTemp, processedFile);
+        int rotation = Math.max(0, metadata.getOrientation());
+        Log.v("Kanj", "rotation of " + uri.getPath() + " = " + rotation);
+        try {
+            return getRotatedImageFile(uri, rotation);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Error", ioe);
+            return metadata.getPath() != null ? scratchSpace.wrap(new File(metadata.getPath())) : null;
+        }
     }
 
-    private File getRotatedImageFile(Uri originalImage, int rotation) throws IOException {
+    private ScratchSpace.Lease getRotatedImageFile(Uri originalImage, int rotation) throws IOException {
+        long start = System.nanoTime();
         InputStream inputStream = mContentResolver.openInputStream(originalImage);
-        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
+        if (inputStream == null) {
+            throw new IOException("Could not open " + originalImage);
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + originalImage);
+        }
         Matrix matrix = new Matrix();
         matrix.postRotate(rotation);
 
         bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
             bitmap.getHeight(), matrix, true);
 
-        File tempImageFile = File.createTempFile("_temp",
-            ".jpg", new File(filesDir));
-
-        FileOutputStream outputStream = new FileOutputStream(tempImageFile);
-
-        // Compress method to format PNG is lossless but it will result in file larger than the original file.
-        // It is important that this rotated image has smaller file size than the original because we have already
-        // calculated that max upload size is not being exceeded based on original file sizes.
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 80, outputStream);
-
-        outputStream.flush();
-        outputStream.close();
+        ScratchSpace.Lease lease = scratchSpace.acquire();
+        FileOutputStream outputStream = new FileOutputStream(lease.getFile());
+        try {
+            // Compress method to format PNG is lossless but it will result in file larger than the original file.
+            // It is important that this rotated image has smaller file size than the original because we have already
+            // calculated that max upload size is not being exceeded based on original file sizes.
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 80, outputStream);
+            outputStream.flush();
+        } catch (IOException e) {
+            lease.release();
+            throw e;
+        } finally {
+            outputStream.close();
+            bitmap.recycle();
+        }
 
         Log.v("Moin", "rotated " + originalImage.getPath() + " by " + rotation + " to "
-            + tempImageFile.getAbsolutePath());
-        return tempImageFile;
+            + lease.getFile().getAbsolutePath());
+        ROTATE_IMAGE.recordSince(start);
+        return lease;
     }
 
+    /**
+     * A file for the camera app to write a photo into. It is the app's own, shared
+     * through the FileProvider, and only lives until the photo is in the image store.
+     */
     public File createImageFile() throws IOException {
         String timeStamp = new SimpleDateFormat("yyyyMMdd").format(new Date());
         String imageFileName = "Property_image_" + timeStamp + "_";
-        File storageDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        File storageDir = getCaptureDirectory();
         storageDir.mkdirs();
         File image = File.createTempFile(
             imageFileName,  /* prefix */
@@ -111,12 +247,358 @@ public class ImageProcessingUtil {
         return image;
     }
 
+    public Uri getUriForCapture(File file) {
+        return FileProvider.getUriForFile(application, getFileProviderAuthority(), file);
+    }
+
+    /**
+     * Puts a photo into the image store downsampled to {@link #MAX_IMAGE_SIDE_PX},
+     * turned upright as its EXIF orientation says and encoded as JPEG. Decodes at
+     * most twice the stored size and writes straight into the store's directory,
+     * the full size image is never in memory. Call it in the background.
+     *
+     * @return hash of the stored image
+     */
+    public static String storeDownsampled(File source, ImageStore store) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            return storeDownsampled(in, getExifRotation(source), source.toString(), store);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Like {@link #storeDownsampled(File, ImageStore)} for a picked image. It is
+     * decoded straight from the provider's file descriptor, whether or not it has
+     * a path. Only content streamed through a pipe, or without an orientation from
+     * the provider before N, where EXIF cannot be read from a descriptor, is copied
+     * to a file first.
+     */
+    public String storeDownsampledFrom(Uri uri, ImageStore store) throws IOException {
+        Metadata metadata = getMetadata(uri);
+        if (metadata.getPath() != null && new File(metadata.getPath()).canRead()) {
+            return storeDownsampled(new File(metadata.getPath()), store);
+        }
+        FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(openFileDescriptor(uri));
+        try {
+            if (isSeekable(in)) {
+                int rotation = metadata.getOrientation();
+                if (rotation < 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    rotation = getExifRotation(in);
+                }
+                if (rotation >= 0) {
+                    return storeDownsampled(in, rotation, uri.toString(), store);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return storeCopy(uri, store);
+    }
+
+    // the copy goes to scratch space, EXIF can be read from a file on every version
+    private String storeCopy(Uri uri, ImageStore store) throws IOException {
+        URI_COPIES.increment();
+        InputStream in = mContentResolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        ScratchSpace.Lease copy;
+        try {
+            copy = scratchSpace.acquire();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(copy.getFile());
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+            return storeDownsampled(copy.getFile(), store);
+        } finally {
+            in.close();
+            copy.release();
+        }
+    }
+
+    // both decodes read from the start of the descriptor, which has to be seekable
+    private static String storeDownsampled(FileInputStream in, int rotation, String name, ImageStore store)
+            throws IOException {
+        long start = System.nanoTime();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        in.getChannel().position(0);
+        BitmapFactory.decodeFileDescriptor(in.getFD(), null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + name);
+        }
+
+        int longestSide = Math.max(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (longestSide / (sampleSize * 2) >= MAX_IMAGE_SIDE_PX) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        in.getChannel().position(0);
+        Bitmap bitmap = BitmapFactory.decodeFileDescriptor(in.getFD(), null, options);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + name);
+        }
+        return storeUpright(bitmap, rotation, store, start);
+    }
+
+    /**
+     * Like {@link #storeDownsampled(File, ImageStore)} for an image in memory,
+     * e.g. a PNG blob an old version kept in the database.
+     */
+    public static String storeDownsampled(byte[] image, ImageStore store) throws IOException {
+        long start = System.nanoTime();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + image.length + " bytes");
+        }
+
+        int longestSide = Math.max(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (longestSide / (sampleSize * 2) >= MAX_IMAGE_SIDE_PX) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + image.length + " bytes");
+        }
+        return storeUpright(bitmap, 0, store, start);
+    }
+
+    // takes over the bitmap, it is recycled
+    private static String storeUpright(Bitmap bitmap, int rotation, ImageStore store, long start)
+            throws IOException {
+        // scaling the rest of the way and rotating is one transform
+        Matrix matrix = new Matrix();
+        float scale = Math.min(1f, (float) MAX_IMAGE_SIDE_PX / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        matrix.postScale(scale, scale);
+        matrix.postRotate(rotation);
+        Bitmap upright = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (upright != bitmap) {
+            bitmap.recycle();
+        }
+
+        ImageStore.Writer out = store.newWriter();
+        String hash;
+        String placeholder;
+        try {
+            placeholder = placeholderOf(upright);
+            upright.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            hash = out.commit();
+        } catch (IOException e) {
+            out.abort();
+            throw e;
+        } finally {
+            upright.recycle();
+        }
+        store.putPlaceholder(hash, placeholder);
+        IMAGE_BYTES_STORED.add(out.getLength());
+        STORE_DOWNSAMPLED.recordSince(start);
+        return hash;
+    }
+
+    /**
+     * Decodes a stored image just large enough to compute its placeholder, for
+     * images stored before there were placeholders or that arrived by sync.
+     */
+    public static String loadPlaceholder(ImageStore store, String hash) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = store.open(hash);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + hash);
+        }
+
+        int longestSide = Math.max(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (longestSide / (sampleSize * 2) >= PLACEHOLDER_SOURCE_PX) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        in = store.open(hash);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + hash);
+        }
+        try {
+            return placeholderOf(bitmap);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @return the BlurHash of the image, with more detail along its longer side
+     */
+    public static String placeholderOf(Bitmap bitmap) {
+        long start = System.nanoTime();
+        float scale = Math.min(1f, (float) PLACEHOLDER_SOURCE_PX / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        int[] pixels = new int[width * height];
+        small.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (small != bitmap) {
+            small.recycle();
+        }
+
+        int componentsX = 3;
+        int componentsY = 3;
+        if (width * 4 > height * 5) {
+            componentsX = 4;
+        } else if (height * 4 > width * 5) {
+            componentsY = 4;
+        }
+        String placeholder = BlurHash.encode(pixels, width, height, componentsX, componentsY);
+        PLACEHOLDER.recordSince(start);
+        return placeholder;
+    }
+
+    private static int getExifRotation(File file) {
+        try {
+            return toRotation(new ExifInterface(file.getPath()));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read orientation of " + file, e);
+            return 0;
+        }
+    }
+
+    // only called from N on, where ExifInterface reads a descriptor
+    @TargetApi(Build.VERSION_CODES.N)
+    private static int getExifRotation(FileInputStream in) {
+        try {
+            in.getChannel().position(0);
+            return toRotation(new ExifInterface(in.getFD()));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read orientation", e);
+            return 0;
+        }
+    }
+
+    private static int toRotation(ExifInterface exif) {
+        int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    // a pipe from a provider streaming the content can only be read once, front to back
+    private static boolean isSeekable(FileInputStream in) {
+        try {
+            in.getChannel().position(0);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private File getCaptureDirectory() {
+        // external storage may be unmounted, the camera writes through the provider either way
+        File base = application.getExternalFilesDir(null);
+        return new File(base != null ? base : application.getFilesDir(), Environment.DIRECTORY_PICTURES);
+    }
+
+    private String getFileProviderAuthority() {
+        return application.getPackageName() + FILE_PROVIDER_SUFFIX;
+    }
+
     public String getFilePathFromUri(final Uri uri) {
+        return getMetadata(uri).getPath();
+    }
+
+    // one query for the columns the provider has of these, the projection is left
+    // open as providers differ in the columns they accept
+    private Metadata loadMetadata(Uri uri) {
+        String displayName = null;
+        String data = null;
+        long size = -1;
+        int orientation = -1;
+        if ("content".equalsIgnoreCase(uri.getScheme())) {
+            Cursor cursor = null;
+            try {
+                cursor = mContentResolver.query(uri, null, null, null, null);
+                if (cursor != null && cursor.moveToFirst()) {
+                    int index = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                    if (index >= 0) {
+                        displayName = cursor.getString(index);
+                    }
+                    index = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    if (index >= 0 && !cursor.isNull(index)) {
+                        size = cursor.getLong(index);
+                    }
+                    index = cursor.getColumnIndex(MediaStore.Images.ImageColumns.ORIENTATION);
+                    if (index >= 0 && !cursor.isNull(index)) {
+                        orientation = cursor.getInt(index);
+                    }
+                    index = cursor.getColumnIndex(MediaStore.MediaColumns.DATA);
+                    if (index >= 0) {
+                        data = cursor.getString(index);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // e.g. a provider that rejects the query, the content can still be opened
+                Log.w(TAG, "Could not query " + uri, e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        String path = data;
+        if (path == null) {
+            try {
+                path = resolvePath(uri);
+            } catch (RuntimeException e) {
+                // a document id or provider we do not understand, the content can still be opened
+                Log.w(TAG, "Could not resolve a path for " + uri, e);
+            }
+        }
+        if (path != null && size < 0) {
+            size = new File(path).length();
+        }
+        return new Metadata(path, displayName, mContentResolver.getType(uri), size, orientation);
+    }
+
+    private String resolvePath(final Uri uri) {
         // Captured photo
         if (isCapturedPhoto(uri)) {
-            return Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES)
-                .getAbsolutePath()
-                + "/" + uri.getLastPathSegment();
+            return getCaptureDirectory().getAbsolutePath() + "/" + uri.getLastPathSegment();
         }
 
         // DocumentProvider
@@ -161,13 +643,10 @@ public class ImageProcessingUtil {
             }
         }
         // MediaStore (and general)
+        // the data column was read with the metadata already, remote content
+        // such as Google Photos has no path and is read through the resolver
         else if ("content".equalsIgnoreCase(uri.getScheme())) {
-
-            // Return the remote address
-            if (isGooglePhotosUri(uri))
-                return uri.getLastPathSegment();
-
-            return getDataColumn(uri, null, null);
+            return null;
         }
         // File
         else if ("file".equalsIgnoreCase(uri.getScheme())) {
@@ -215,11 +694,7 @@ public class ImageProcessingUtil {
     }
 
 
-    private static boolean isGooglePhotosUri(Uri uri) {
-        return "com.google.android.apps.photos.content".equals(uri.getAuthority());
-    }
-
-    private static boolean isCapturedPhoto(Uri uri) {
-        return "com.owners.buyer.fileprovider".equals(uri.getAuthority());
+    private boolean isCapturedPhoto(Uri uri) {
+        return getFileProviderAuthority().equals(uri.getAuthority());
     }
 }
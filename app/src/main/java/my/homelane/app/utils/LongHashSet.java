@@ -0,0 +1,151 @@
+package my.homelane.app.utils;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs kept in one open addressed array, without boxing every
+ * element like a HashSet of Long would. Not thread safe.
+ */
+
+public class LongHashSet {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // 0 marks a free slot, a 0 in the set is tracked on its own
+    private long[] slots;
+    private boolean hasZero;
+    private int size;
+
+    public LongHashSet() {
+        slots = new long[MIN_CAPACITY];
+    }
+
+    /**
+     * @return true if it was not in the set yet
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int index = indexOf(value);
+        if (slots[index] == value) {
+            return false;
+        }
+        slots[index] = value;
+        size++;
+        // at most half full, so probe runs stay short
+        if (size * 2 > slots.length) {
+            resize(slots.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if it was in the set
+     */
+    public boolean remove(long value) {
+        if (value == 0) {
+            if (!hasZero) {
+                return false;
+            }
+            hasZero = false;
+            size--;
+            return true;
+        }
+        int index = indexOf(value);
+        if (slots[index] != value) {
+            return false;
+        }
+        slots[index] = 0;
+        size--;
+
+        // move later entries of the probe run back over the gap, so lookups still find them
+        int mask = slots.length - 1;
+        int gap = index;
+        for (int i = (gap + 1) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int home = hash(slots[i]) & mask;
+            // the entry may fill the gap if its home is not between the gap and its slot
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                slots[gap] = slots[i];
+                slots[i] = 0;
+                gap = i;
+            }
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return hasZero;
+        }
+        return slots[indexOf(value)] == value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, 0);
+        hasZero = false;
+        size = 0;
+    }
+
+    /**
+     * @return the values, in no particular order
+     */
+    public long[] toArray() {
+        long[] values = new long[size];
+        int count = 0;
+        if (hasZero) {
+            values[count++] = 0;
+        }
+        for (long slot : slots) {
+            if (slot != 0) {
+                values[count++] = slot;
+            }
+        }
+        return values;
+    }
+
+    public void addAll(long[] values) {
+        for (long value : values) {
+            add(value);
+        }
+    }
+
+    // the slot holding the value, or the free slot it would go to
+    private int indexOf(long value) {
+        int mask = slots.length - 1;
+        int index = hash(value) & mask;
+        while (slots[index] != 0 && slots[index] != value) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void resize(int capacity) {
+        long[] old = slots;
+        slots = new long[capacity];
+        for (long value : old) {
+            if (value != 0) {
+                slots[indexOf(value)] = value;
+            }
+        }
+    }
+
+    // ids are sequential, spread them over the table
+    private static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,256 @@
+package my.homelane.app.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counters and latency histograms. Metrics are looked up once,
+ * into static fields of the class that records them; recording is a few
+ * atomic increments without locks or allocation, so it can stay on in
+ * release builds.
+ *
+ * Histograms have fixed power of two buckets in microseconds, the same on
+ * every device and release, so dumps from anywhere can be compared and
+ * merged bucket by bucket.
+ */
+
+public class Metrics {
+
+    // bucket i holds durations of [2^i, 2^(i+1)) microseconds, the first also everything shorter
+    public static final int BUCKETS = 32;
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    public static class Counter {
+        private final String name;
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static class Histogram {
+        private final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records the time since {@code startNanos}, taken from {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public void record(long micros) {
+            buckets.incrementAndGet(bucketOf(micros));
+            count.incrementAndGet();
+            totalMicros.addAndGet(Math.max(0, micros));
+            long max = maxMicros.get();
+            while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+                max = maxMicros.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMaxMicros() {
+            return maxMicros.get();
+        }
+
+        public long getMeanMicros() {
+            long n = count.get();
+            return n == 0 ? 0 : totalMicros.get() / n;
+        }
+
+        public long getBucket(int index) {
+            return buckets.get(index);
+        }
+
+        /**
+         * @param quantile e.g. 0.99
+         * @return upper bound in microseconds of the bucket the quantile falls in, 0 when empty
+         */
+        public long getPercentileMicros(double quantile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return upperBoundMicros(i);
+                }
+            }
+            return upperBoundMicros(BUCKETS - 1);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            totalMicros.set(0);
+            maxMicros.set(0);
+        }
+    }
+
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter(name);
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram(name);
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    static int bucketOf(long micros) {
+        if (micros <= 1) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    static long upperBoundMicros(int bucket) {
+        return 1L << (bucket + 1);
+    }
+
+    /**
+     * A table for reading on screen: count, mean, p50, p90, p99 and max per histogram,
+     * then the counters.
+     */
+    public static String format() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.US, "%-28s %7s %8s %8s %8s %8s %8s%n",
+                "latency (us)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Histogram h : sortedHistograms()) {
+            text.append(String.format(Locale.US, "%-28s %7d %8d %8d %8d %8d %8d%n",
+                    h.getName(), h.getCount(), h.getMeanMicros(), h.getPercentileMicros(0.5),
+                    h.getPercentileMicros(0.9), h.getPercentileMicros(0.99), h.getMaxMicros()));
+        }
+        text.append('\n');
+        for (Counter c : sortedCounters()) {
+            text.append(String.format(Locale.US, "%-28s %7d%n", c.getName(), c.get()));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes everything as tab separated lines, after the header lines describing
+     * the device and build. Histogram lines carry the raw bucket counts, so dumps
+     * can be merged and percentiles recomputed:
+     * <pre>
+     * # key	value
+     * histogram	name	count	mean_us	max_us	bucket0 ... bucket31
+     * counter	name	value
+     * </pre>
+     */
+    public static void dump(Writer out, List<String> header) throws IOException {
+        out.write("# metrics v1, bucket i counts durations below 2^(i+1) us\n");
+        for (String line : header) {
+            out.write("# " + line + "\n");
+        }
+        for (Histogram h : sortedHistograms()) {
+            StringBuilder line = new StringBuilder("histogram\t").append(h.getName())
+                    .append('\t').append(h.getCount())
+                    .append('\t').append(h.getMeanMicros())
+                    .append('\t').append(h.getMaxMicros());
+            for (int i = 0; i < BUCKETS; i++) {
+                line.append('\t').append(h.getBucket(i));
+            }
+            out.write(line.append('\n').toString());
+        }
+        for (Counter c : sortedCounters()) {
+            out.write("counter\t" + c.getName() + "\t" + c.get() + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Starts every histogram over, e.g. before a measured run. Counters keep counting.
+     */
+    public static void resetHistograms() {
+        for (Histogram h : histograms.values()) {
+            h.reset();
+        }
+    }
+
+    private static List<Histogram> sortedHistograms() {
+        List<String> names = new ArrayList<>(histograms.keySet());
+        Collections.sort(names);
+        List<Histogram> sorted = new ArrayList<>();
+        for (String name : names) {
+            sorted.add(histograms.get(name));
+        }
+        return sorted;
+    }
+
+    private static List<Counter> sortedCounters() {
+        List<String> names = new ArrayList<>(counters.keySet());
+        Collections.sort(names);
+        List<Counter> sorted = new ArrayList<>();
+        for (String name : names) {
+            sorted.add(counters.get(name));
+        }
+        return sorted;
+    }
+}
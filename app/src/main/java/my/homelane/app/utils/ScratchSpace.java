@@ -0,0 +1,173 @@
+package my.homelane.app.utils;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The scratch files image processing writes intermediate results to, in one
+ * directory of their own. A file is leased and reference counted; when the
+ * last reference is released it goes back to the pool to be reused by the next
+ * lease, until the pool is over its byte quota and the least recently used
+ * free files are deleted. Whatever a previous process left behind is deleted
+ * before the first lease.
+ */
+
+public class ScratchSpace {
+
+    private static final String DIRECTORY = "scratch";
+    public static final long QUOTA_BYTES = 32L * 1024 * 1024;
+    // free files kept for reuse, however small
+    private static final int MAX_FREE_FILES = 4;
+
+    private static final Metrics.Counter CREATED = Metrics.counter("scratch.created");
+    private static final Metrics.Counter REUSED = Metrics.counter("scratch.reused");
+    private static final Metrics.Counter EVICTED_BYTES = Metrics.counter("scratch.evictedBytes");
+
+    private static ScratchSpace sInstance;
+
+    /**
+     * A scratch file in use. Holders that pass it on {@link #retain} it, and
+     * everyone {@link #release}s it when done; after that the file may be
+     * overwritten or deleted at any time.
+     */
+    public class Lease {
+        private final File file;
+        private final boolean pooled;
+        private int references = 1;
+
+        Lease(File file, boolean pooled) {
+            this.file = file;
+            this.pooled = pooled;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public void retain() {
+            synchronized (ScratchSpace.this) {
+                if (references == 0) {
+                    throw new IllegalStateException("Lease of " + file + " was released");
+                }
+                references++;
+            }
+        }
+
+        public void release() {
+            synchronized (ScratchSpace.this) {
+                if (references == 0) {
+                    throw new IllegalStateException("Lease of " + file + " was released");
+                }
+                if (--references == 0 && pooled) {
+                    returnToPool(file);
+                }
+            }
+        }
+    }
+
+    private final File directory;
+    private final long quotaBytes;
+    private final Set<File> leased = new HashSet<>();
+    // least recently released first
+    private final Deque<File> free = new ArrayDeque<>();
+    private boolean cleaned;
+
+    public static synchronized ScratchSpace getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ScratchSpace(new File(context.getFilesDir(), DIRECTORY), QUOTA_BYTES);
+        }
+        return sInstance;
+    }
+
+    ScratchSpace(File directory, long quotaBytes) {
+        this.directory = directory;
+        this.quotaBytes = quotaBytes;
+    }
+
+    /**
+     * Leases an empty scratch file, one released before if there is one. Call it in the background.
+     */
+    public synchronized Lease acquire() throws IOException {
+        deleteStaleOnce();
+        // the most recently released, its blocks are the likeliest to still be cached
+        File file = free.pollLast();
+        if (file != null) {
+            new FileOutputStream(file).close();
+            REUSED.increment();
+        } else {
+            file = File.createTempFile("scratch", ".tmp", directory);
+            CREATED.increment();
+        }
+        leased.add(file);
+        return new Lease(file, true);
+    }
+
+    /**
+     * A lease on a file that is not ours, e.g. an original that needed no
+     * processing, so callers release whatever they got alike. Releasing it
+     * leaves the file alone.
+     */
+    public Lease wrap(File file) {
+        return new Lease(file, false);
+    }
+
+    /**
+     * @return bytes of the scratch files, leased or free
+     */
+    public synchronized long getSizeBytes() {
+        long total = 0;
+        for (File file : leased) {
+            total += file.length();
+        }
+        for (File file : free) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    synchronized int getFreeCount() {
+        return free.size();
+    }
+
+    synchronized int getLeasedCount() {
+        return leased.size();
+    }
+
+    private void returnToPool(File file) {
+        leased.remove(file);
+        free.addLast(file);
+        long total = getSizeBytes();
+        while (!free.isEmpty() && (total > quotaBytes || free.size() > MAX_FREE_FILES)) {
+            File evicted = free.pollFirst();
+            long length = evicted.length();
+            if (evicted.delete()) {
+                total -= length;
+                EVICTED_BYTES.add(length);
+            }
+        }
+    }
+
+    // nothing is leased before the first acquire, so everything there is left over
+    private void deleteStaleOnce() throws IOException {
+        if (cleaned) {
+            return;
+        }
+        cleaned = true;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+    }
+}
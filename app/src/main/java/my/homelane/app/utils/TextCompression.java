@@ -0,0 +1,66 @@
+package my.homelane.app.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate for note texts. Raw deflate without a gzip or zlib header, the
+ * few bytes saved add up over many notes.
+ */
+
+public class TextCompression {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TextCompression() {
+    }
+
+    public static byte[] deflate(String text) {
+        byte[] input = text.getBytes(UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 3 + 16);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            // the native zlib state is not left for the finalizer
+            deflater.end();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException when the data was not made by {@link #deflate}
+     */
+    public static String inflate(byte[] data) {
+        // raw inflate wants one extra byte after the input
+        byte[] input = new byte[data.length + 1];
+        System.arraycopy(data, 0, input, 0, data.length);
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed text");
+                }
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed text", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package my.homelane.app.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Copy/insert deltas between two texts, compact enough to keep every revision
+ * of a note.
+ *
+ * A delta rebuilds the target from slices of the source plus the characters
+ * the source does not have. Common runs are found by hashing fixed size blocks
+ * of the source, so a few edits anywhere in a long note cost a few bytes each.
+ */
+
+public class TextDelta {
+
+    private static final int BLOCK = 12;
+    private static final int HASH_BASE = 31;
+    // writeUTF takes at most 64 KB, three bytes per char in the worst case
+    private static final int MAX_INSERT_CHARS = 16 * 1024;
+
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_INSERT = 2;
+
+    private TextDelta() {
+    }
+
+    /**
+     * @return a delta that turns {@code source} into {@code target}
+     */
+    public static byte[] diff(String source, String target) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeVarInt(out, source.length());
+            writeVarInt(out, target.length());
+
+            int sourceLength = source.length();
+            int targetLength = target.length();
+            int prefix = 0;
+            int max = Math.min(sourceLength, targetLength);
+            while (prefix < max && source.charAt(prefix) == target.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            max -= prefix;
+            while (suffix < max
+                    && source.charAt(sourceLength - 1 - suffix) == target.charAt(targetLength - 1 - suffix)) {
+                suffix++;
+            }
+
+            if (prefix > 0) {
+                writeCopy(out, 0, prefix);
+            }
+            diffMiddle(out, source, prefix, sourceLength - suffix, target, prefix, targetLength - suffix);
+            if (suffix > 0) {
+                writeCopy(out, sourceLength - suffix, suffix);
+            }
+            out.writeByte(OP_END);
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException when the delta is corrupt or was not made from {@code source}
+     */
+    public static String apply(String source, byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        if (readVarInt(in) != source.length()) {
+            throw new IOException("Delta was made from a different text");
+        }
+        int targetLength = readVarInt(in);
+        StringBuilder target = new StringBuilder(targetLength);
+        while (true) {
+            byte op = in.readByte();
+            if (op == OP_END) {
+                break;
+            } else if (op == OP_COPY) {
+                int start = readVarInt(in);
+                int length = readVarInt(in);
+                if (start + length > source.length() || start + length < 0) {
+                    throw new IOException("Corrupt delta, copy out of range");
+                }
+                target.append(source, start, start + length);
+            } else if (op == OP_INSERT) {
+                target.append(in.readUTF());
+            } else {
+                throw new IOException("Corrupt delta, unknown op " + op);
+            }
+        }
+        if (target.length() != targetLength) {
+            throw new IOException("Corrupt delta, expected " + targetLength + " chars");
+        }
+        return target.toString();
+    }
+
+    private static void diffMiddle(DataOutputStream out, String source, int sourceStart, int sourceEnd,
+                                   String target, int targetStart, int targetEnd) throws IOException {
+        if (sourceEnd - sourceStart < BLOCK || targetEnd - targetStart < BLOCK) {
+            writeInsert(out, target, targetStart, targetEnd);
+            return;
+        }
+
+        // open addressed table of block hash -> first source offset of a block with that hash
+        int blocks = (sourceEnd - sourceStart) / BLOCK;
+        int capacity = Integer.highestOneBit(blocks * 2 - 1) << 1;
+        int[] table = new int[capacity];
+        int[] hashes = new int[capacity];
+        for (int offset = sourceStart; offset + BLOCK <= sourceEnd; offset += BLOCK) {
+            int hash = hash(source, offset);
+            int slot = hash & (capacity - 1);
+            while (table[slot] != 0 && hashes[slot] != hash) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if (table[slot] == 0) {
+                table[slot] = offset + 1;
+                hashes[slot] = hash;
+            }
+        }
+
+        int power = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            power *= HASH_BASE;
+        }
+
+        int pending = targetStart;
+        int position = targetStart;
+        int hash = hash(target, position);
+        while (position + BLOCK <= targetEnd) {
+            int match = lookup(table, hashes, hash, source, target, position);
+            if (match >= 0) {
+                int start = match;
+                int end = match + BLOCK;
+                int targetFrom = position;
+                int targetTo = position + BLOCK;
+                // grow the match both ways as far as the texts agree
+                while (start > sourceStart && targetFrom > pending
+                        && source.charAt(start - 1) == target.charAt(targetFrom - 1)) {
+                    start--;
+                    targetFrom--;
+                }
+                while (end < sourceEnd && targetTo < targetEnd && source.charAt(end) == target.charAt(targetTo)) {
+                    end++;
+                    targetTo++;
+                }
+                writeInsert(out, target, pending, targetFrom);
+                writeCopy(out, start, end - start);
+
+                pending = targetTo;
+                position = targetTo;
+                if (position + BLOCK <= targetEnd) {
+                    hash = hash(target, position);
+                }
+            } else {
+                if (position + BLOCK < targetEnd) {
+                    hash = (hash - target.charAt(position) * power) * HASH_BASE + target.charAt(position + BLOCK);
+                }
+                position++;
+            }
+        }
+        writeInsert(out, target, pending, targetEnd);
+    }
+
+    private static int lookup(int[] table, int[] hashes, int hash, String source, String target, int position) {
+        int slot = hash & (table.length - 1);
+        while (table[slot] != 0) {
+            if (hashes[slot] == hash) {
+                int offset = table[slot] - 1;
+                return source.regionMatches(offset, target, position, BLOCK) ? offset : -1;
+            }
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return -1;
+    }
+
+    private static int hash(String text, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            hash = hash * HASH_BASE + text.charAt(i);
+        }
+        return hash;
+    }
+
+    private static void writeCopy(DataOutputStream out, int start, int length) throws IOException {
+        out.writeByte(OP_COPY);
+        writeVarInt(out, start);
+        writeVarInt(out, length);
+    }
+
+    private static void writeInsert(DataOutputStream out, String text, int start, int end) throws IOException {
+        for (int from = start; from < end; from += MAX_INSERT_CHARS) {
+            out.writeByte(OP_INSERT);
+            // modified UTF-8 encodes char by char, so a chunk may split a surrogate pair
+            out.writeUTF(text.substring(from, Math.min(end, from + MAX_INSERT_CHARS)));
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt delta, malformed length");
+    }
+}
@@ -0,0 +1,203 @@
+package my.homelane.app.view;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import my.homelane.app.database.ImageStore;
+import my.homelane.app.utils.ImageProcessingUtil;
+
+/**
+ * The image picked or photographed for the next save. Rotating, downsampling
+ * and encoding it into the image store starts the moment it is staged, so by
+ * the time the note is saved there is only a hash left to write.
+ *
+ * A note has one image, staging another replaces the one before. An image
+ * staged but never saved stays unreferenced in the store until maintenance
+ * collects it. Only accessed on the main thread.
+ */
+
+public class AttachmentStager {
+
+    private static final String TAG = AttachmentStager.class.getSimpleName();
+
+    private static final String STATE_URI = "attachment_uri";
+    static final String STATE_IMAGE_HASH = "attachment_image_hash";
+
+    public interface Callback {
+        /**
+         * @param imageHash the stored image, null when it could not be read
+         */
+        void onReady(String imageHash);
+    }
+
+    private class Encode implements Runnable {
+        final Uri uri;
+        final File file;
+        final List<Callback> callbacks = new ArrayList<>();
+        boolean done;
+        String imageHash;
+        Future<?> future;
+
+        Encode(Uri uri, File file) {
+            this.uri = uri;
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            String stored = null;
+            try {
+                stored = file != null ? encodeFile(file) : encodeUri(uri);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not stage image " + (file != null ? file : uri), e);
+            }
+            final String result = stored;
+            mainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    done = true;
+                    imageHash = result;
+                    for (Callback callback : callbacks) {
+                        callback.onReady(result);
+                    }
+                    callbacks.clear();
+                }
+            });
+        }
+    }
+
+    private final ImageProcessingUtil imageProcessingUtil;
+    private final ImageStore imageStore;
+    private final ExecutorService executor;
+    private final Executor mainThread;
+
+    private Encode staged;
+
+    public AttachmentStager(ImageProcessingUtil imageProcessingUtil, ImageStore imageStore,
+                            ExecutorService executor, Executor mainThread) {
+        this.imageProcessingUtil = imageProcessingUtil;
+        this.imageStore = imageStore;
+        this.executor = executor;
+        this.mainThread = mainThread;
+    }
+
+    /**
+     * Stages an image picked from a gallery or file manager.
+     */
+    public void stage(Uri uri) {
+        start(new Encode(uri, null));
+    }
+
+    /**
+     * Stages a photo the camera app wrote into one of our files. The file is
+     * deleted once the photo is in the store.
+     */
+    public void stage(File photo) {
+        start(new Encode(null, photo));
+    }
+
+    public boolean hasAttachment() {
+        return staged != null;
+    }
+
+    /**
+     * Calls back once the staged image is in the store, right away if it is already.
+     * A callback for an image that has been replaced or taken since is not called.
+     */
+    public void whenReady(Callback callback) {
+        if (staged == null) {
+            return;
+        }
+        if (staged.done) {
+            callback.onReady(staged.imageHash);
+        } else {
+            staged.callbacks.add(callback);
+        }
+    }
+
+    /**
+     * Unstages the image for the save that attaches it.
+     *
+     * @return its hash if it is in the store already, else null and the callback
+     * gets it when it is, even though it is no longer staged
+     */
+    public String take(Callback whenStored) {
+        Encode encode = staged;
+        staged = null;
+        if (encode == null) {
+            return null;
+        }
+        if (encode.done) {
+            return encode.imageHash;
+        }
+        encode.callbacks.clear();
+        encode.callbacks.add(whenStored);
+        return null;
+    }
+
+    /**
+     * Drops the staged image, e.g. when the edit is cancelled.
+     */
+    public void clear() {
+        if (staged != null) {
+            // one restored after a configuration change is in the store already, nothing runs
+            if (staged.future != null) {
+                staged.future.cancel(false);
+            }
+            staged.callbacks.clear();
+            staged = null;
+        }
+    }
+
+    public void saveState(Bundle outState) {
+        if (staged == null) {
+            return;
+        }
+        if (staged.done) {
+            outState.putString(STATE_IMAGE_HASH, staged.imageHash);
+        } else if (staged.uri != null) {
+            outState.putParcelable(STATE_URI, staged.uri);
+        }
+        // a photo file still being encoded is lost with the process, as the camera app would lose it
+    }
+
+    public void restoreState(Bundle savedState) {
+        String imageHash = savedState.getString(STATE_IMAGE_HASH);
+        Uri uri = savedState.getParcelable(STATE_URI);
+        if (imageHash != null) {
+            Encode encode = new Encode(null, null);
+            encode.done = true;
+            encode.imageHash = imageHash;
+            staged = encode;
+        } else if (uri != null) {
+            stage(uri);
+        }
+    }
+
+    private void start(Encode encode) {
+        clear();
+        staged = encode;
+        encode.future = executor.submit(encode);
+    }
+
+    private String encodeFile(File photo) throws IOException {
+        try {
+            return ImageProcessingUtil.storeDownsampled(photo, imageStore);
+        } finally {
+            photo.delete();
+        }
+    }
+
+    private String encodeUri(Uri uri) throws IOException {
+        return imageProcessingUtil.storeDownsampledFrom(uri, imageStore);
+    }
+}
@@ -0,0 +1,123 @@
+package my.homelane.app.view;
+
+import android.text.Editable;
+import android.text.TextWatcher;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import my.homelane.app.database.DatabaseHelper;
+
+/**
+ * Write-behind buffer between the note editor and the drafts table.
+ *
+ * Keystrokes only replace the pending text in memory; the first one after a
+ * write schedules the next write on the disk executor, so however fast the user
+ * types there is at most one database write per interval, and none on the UI thread.
+ */
+
+public class DraftAutosaver implements TextWatcher {
+
+    private static final long WRITE_INTERVAL_MILLIS = 1000;
+
+    private final DatabaseHelper db;
+    private final ScheduledExecutorService executor;
+    private final long noteId;
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private String pendingText;
+    private ScheduledFuture<?> scheduledWrite;
+    private boolean discarded;
+
+    // only touched on the executor
+    private String writtenText;
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            String text;
+            synchronized (lock) {
+                text = pendingText;
+                pendingText = null;
+                scheduledWrite = null;
+                if (discarded) {
+                    return;
+                }
+            }
+            if (text != null && !text.equals(writtenText)) {
+                db.saveDraft(noteId, text);
+                writtenText = text;
+            }
+        }
+    };
+
+    public DraftAutosaver(DatabaseHelper db, ScheduledExecutorService executor, long noteId) {
+        this.db = db;
+        this.executor = executor;
+        this.noteId = noteId;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        String text = s.toString();
+        synchronized (lock) {
+            if (discarded) {
+                return;
+            }
+            pendingText = text;
+            if (scheduledWrite == null) {
+                scheduledWrite = executor.schedule(writeTask, WRITE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending text now instead of at the end of the interval,
+     * e.g. when the activity goes to the background and may be killed.
+     */
+    public void flush() {
+        synchronized (lock) {
+            if (discarded || pendingText == null) {
+                return;
+            }
+            if (scheduledWrite != null) {
+                scheduledWrite.cancel(false);
+            }
+            scheduledWrite = executor.schedule(writeTask, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drops the draft once the note was saved or the edit cancelled.
+     */
+    public void discard() {
+        synchronized (lock) {
+            if (discarded) {
+                return;
+            }
+            discarded = true;
+            pendingText = null;
+            if (scheduledWrite != null) {
+                scheduledWrite.cancel(false);
+                scheduledWrite = null;
+            }
+        }
+        // queued behind any write already running, so the draft cannot come back
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                db.deleteDraft(noteId);
+            }
+        });
+    }
+}
@@ -0,0 +1,70 @@
+package my.homelane.app.view;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.widget.Toast;
+
+import my.homelane.app.R;
+import my.homelane.app.database.DatabaseHelper;
+import my.homelane.app.utils.AppExecutors;
+import my.homelane.app.utils.CacheCoordinator;
+
+/**
+ * A note's image full screen, zoomable down to its own pixels. It is decoded
+ * in tiles, only those in view and only as fine as the zoom needs, so even a
+ * large photo takes about a screenful of memory.
+ */
+
+public class ImageViewerActivity extends AppCompatActivity {
+
+    private static final String EXTRA_IMAGE_HASH = "image_hash";
+
+    private CacheCoordinator cacheCoordinator;
+    private TileLoader tileLoader;
+
+    public static Intent newIntent(Context context, String imageHash) {
+        return new Intent(context, ImageViewerActivity.class).putExtra(EXTRA_IMAGE_HASH, imageHash);
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_image_viewer);
+
+        AppExecutors executors = AppExecutors.getInstance();
+        cacheCoordinator = new CacheCoordinator(this);
+        tileLoader = new TileLoader(DatabaseHelper.getInstance(this).getImageStore(),
+                getIntent().getStringExtra(EXTRA_IMAGE_HASH), executors.imageDecode(), executors.mainThread(),
+                cacheCoordinator);
+
+        TiledImageView imageView = findViewById(R.id.image);
+        imageView.setListener(new TiledImageView.Listener() {
+            @Override
+            public void onImageFailed() {
+                Toast.makeText(ImageViewerActivity.this, R.string.msg_image_failed, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        });
+        imageView.setTileLoader(tileLoader);
+    }
+
+    @Override
+    protected void onDestroy() {
+        tileLoader.close();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        cacheCoordinator.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        cacheCoordinator.onLowMemory();
+    }
+}
@@ -12,34 +12,60 @@ import android.os.Bundle;
 import android.provider.MediaStore;
 import android.support.design.widget.CoordinatorLayout;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
 import android.support.v4.content.FileProvider;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.view.ActionMode;
 import android.support.v7.widget.AppCompatImageHelper;
 import android.support.v7.widget.DefaultItemAnimator;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ImageView;
+import android.widget.RadioGroup;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import my.homelane.app.utils.DBBitMapUtility;
 import my.homelane.app.utils.ImageProcessingUtil;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+import my.homelane.app.BuildConfig;
 import my.homelane.app.R;
+import my.homelane.app.crypto.AtRestEncryption;
 import my.homelane.app.database.DatabaseHelper;
+import my.homelane.app.database.DatabaseMaintenance;
+import my.homelane.app.database.DeletedNotesPurger;
+import my.homelane.app.database.ImageBlobReencoder;
+import my.homelane.app.database.JobRunner;
+import my.homelane.app.database.NoteQuery;
+import my.homelane.app.database.model.Draft;
+import my.homelane.app.database.model.Job;
+import my.homelane.app.database.model.MonthBucket;
 import my.homelane.app.database.model.Note;
+import my.homelane.app.database.model.NoteRevision;
+import my.homelane.app.database.model.Tag;
+import my.homelane.app.utils.AppExecutors;
+import my.homelane.app.utils.CacheCoordinator;
+import my.homelane.app.utils.IdleTaskScheduler;
+import my.homelane.app.utils.LongHashSet;
 import my.homelane.app.utils.MyDividerItemDecoration;
 import my.homelane.app.utils.RecyclerTouchListener;
 
@@ -48,18 +74,54 @@ import my.homelane.app.utils.RecyclerTouchListener;
  */
 
 public class MainActivity extends AppCompatActivity {
+    private static final String TAG = MainActivity.class.getSimpleName();
     private static final int PERMISSIONS_REQUEST_CODE = 99;
+    private static final long MAINTENANCE_INTERVAL_MILLIS = 5 * 60 * 1000;
+    // how often an idle moment looks for due jobs, a purge queued by a delete is due after its grace period
+    private static final long JOB_INTERVAL_MILLIS = 30 * 1000;
+    private static final String STATE_SELECTION = "selection";
+
+    // the time ranges the sort dialog offers, in days back from now, 0 for any time
+    private static final int[] RANGE_DAYS = {0, 7, 30, 365};
+
+    // list order sorted by time written, as the database returns it
+    private static final Comparator<Note> NEWEST_FIRST = new Comparator<Note>() {
+        @Override
+        public int compare(Note a, Note b) {
+            int byTime = String.valueOf(b.getTimestamp()).compareTo(String.valueOf(a.getTimestamp()));
+            return byTime != 0 ? byTime : b.getId() - a.getId();
+        }
+    };
     int SELECT_IMAGES_REQUEST = 90;
+    int CAPTURE_IMAGE_REQUEST = 91;
+    private static final String STATE_CAPTURED_PHOTO = "captured_photo";
     private NotesAdapter mAdapter;
-    private List<Note> notesList = new ArrayList<>();
+    private PagedNoteList notesList;
+    private ThumbnailLoader thumbnailLoader;
+    // the list pages and thumbnails share one memory budget through it
+    private CacheCoordinator cacheCoordinator;
+    // frame timing of the list, in debug builds
+    private ScrollJankMonitor scrollJankMonitor;
+    private MonthSections monthSections = new MonthSections();
+    private MonthFastScroller fastScroller;
     private CoordinatorLayout coordinatorLayout;
     private RecyclerView recyclerView;
     private TextView noNotesView;
-    private ArrayList<Uri> inputImages;
     private ImageProcessingUtil mImageProcessingUtil;
 
     private DatabaseHelper db;
-    Bitmap bitmapImage = null;
+    private AppExecutors executors;
+    private IdleTaskScheduler idleTaskScheduler;
+    private DraftAutosaver draftAutosaver;
+    // ids of the selected notes, positions change as pages load and notes come and go
+    private final LongHashSet selection = new LongHashSet();
+    private ActionMode actionMode;
+    // the image to attach on the next save, encoded in the background meanwhile
+    private AttachmentStager attachmentStager;
+    // the file the camera app is writing to, while it is open
+    private File capturedPhotoFile;
+    // which of RANGE_DAYS the list is limited to
+    private int rangeIndex;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -72,29 +134,70 @@ public class MainActivity extends AppCompatActivity {
         recyclerView = findViewById(R.id.recycler_view);
         noNotesView = findViewById(R.id.empty_notes_view);
 
-        db = new DatabaseHelper(this);
+        db = DatabaseHelper.getInstance(this);
+        executors = AppExecutors.getInstance();
 
-        inputImages = new ArrayList<>();
+        idleTaskScheduler = new IdleTaskScheduler(executors.diskIO());
+        JobRunner jobRunner = new JobRunner(db.getJobQueue(), executors.jobs(), AppExecutors.JOB_THREADS,
+                executors.mainThread(), idleTaskScheduler);
+        jobRunner.register(Job.TYPE_PURGE_DELETED, new DeletedNotesPurger(db));
+        jobRunner.register(Job.TYPE_REENCODE_IMAGE_BLOBS, new ImageBlobReencoder(db));
+        idleTaskScheduler.schedule(jobRunner, JOB_INTERVAL_MILLIS);
+        idleTaskScheduler.schedule(new DatabaseMaintenance(this, db), MAINTENANCE_INTERVAL_MILLIS);
+
+        cacheCoordinator = new CacheCoordinator(this);
+        notesList = new PagedNoteList(db, executors.diskIO(), executors.mainThread(),
+                new PagedNoteList.Listener() {
+                    @Override
+                    public void onLoaded() {
+                        mAdapter.notifyDataSetChanged();
+                        toggleEmptyNotes();
+                    }
 
-        notesList.addAll(db.getAllNotes());
+                    @Override
+                    public void onRowsLoaded(int position, int count) {
+                        mAdapter.notifyItemRangeChanged(position, count);
+                    }
+                }, cacheCoordinator);
+        thumbnailLoader = new ThumbnailLoader(db.getImageStore(), executors.imageDecode(), executors.mainThread(),
+                getResources().getDimensionPixelSize(R.dimen.thumbnail_size), cacheCoordinator);
         mImageProcessingUtil = new ImageProcessingUtil(getApplication());
+        attachmentStager = new AttachmentStager(mImageProcessingUtil, db.getImageStore(),
+                executors.imageDecode(), executors.mainThread());
 
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                showNoteDialog(false, null, -1);
+                showNoteDialog(false, null);
             }
         });
 
-        mAdapter = new NotesAdapter(this, notesList);
-        RecyclerView.LayoutManager mLayoutManager = new LinearLayoutManager(getApplicationContext());
+        mAdapter = new NotesAdapter(this, notesList, thumbnailLoader, selection);
+        final LinearLayoutManager mLayoutManager = new LinearLayoutManager(getApplicationContext());
         recyclerView.setLayoutManager(mLayoutManager);
         recyclerView.setItemAnimator(new DefaultItemAnimator());
-        recyclerView.addItemDecoration(new MyDividerItemDecoration(this, LinearLayoutManager.VERTICAL, 16));
+        if (BuildConfig.DEBUG) {
+            scrollJankMonitor = ScrollJankMonitor.attach(recyclerView);
+            mAdapter.setScrollJankMonitor(scrollJankMonitor);
+        }
+        recyclerView.addItemDecoration(timed(new MyDividerItemDecoration(this, LinearLayoutManager.VERTICAL, 16)));
         recyclerView.setAdapter(mAdapter);
+        recyclerView.addOnScrollListener(new ScrollPrefetcher(mLayoutManager, notesList, thumbnailLoader));
+        recyclerView.addItemDecoration(timed(new MonthHeaderDecoration(this, monthSections)));
 
-        toggleEmptyNotes();
+        fastScroller = findViewById(R.id.fast_scroller);
+        fastScroller.attach(recyclerView, mLayoutManager, monthSections, new MonthFastScroller.Listener() {
+            @Override
+            public void onMonthSelected(int section) {
+                // one page seeking to the month, instead of scrolling through everything before it
+                int position = monthSections.getOffset(section);
+                notesList.loadMonth(position, monthSections.getMonth(section));
+                mLayoutManager.scrollToPositionWithOffset(position, 0);
+            }
+        });
+
+        reloadNotes();
 
         /**
          * On long press on RecyclerView item, open alert dialog
@@ -105,81 +208,380 @@ public class MainActivity extends AppCompatActivity {
                 recyclerView, new RecyclerTouchListener.ClickListener() {
             @Override
             public void onClick(View view, final int position) {
+                if (actionMode != null) {
+                    toggleSelection(position);
+                    return;
+                }
                 onCameraIconClick();
             }
 
             @Override
             public void onLongClick(View view, int position) {
-                showActionsDialog(position);
+                if (actionMode != null) {
+                    toggleSelection(position);
+                    return;
+                }
+                // nothing to act on until the row is loaded
+                if (position != RecyclerView.NO_POSITION && notesList.get(position) != null) {
+                    showActionsDialog(position);
+                }
             }
         }));
+
+        if (savedInstanceState != null) {
+            // we may have been killed while the camera app had the screen
+            String capturedPhoto = savedInstanceState.getString(STATE_CAPTURED_PHOTO);
+            capturedPhotoFile = capturedPhoto != null ? new File(capturedPhoto) : null;
+            attachmentStager.restoreState(savedInstanceState);
+        }
+        if (savedInstanceState != null && savedInstanceState.getLongArray(STATE_SELECTION) != null) {
+            selection.addAll(savedInstanceState.getLongArray(STATE_SELECTION));
+            if (!selection.isEmpty()) {
+                actionMode = startSupportActionMode(selectionCallback);
+                updateSelectionTitle();
+            }
+        }
+
+        restoreDraft();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (actionMode != null) {
+            outState.putLongArray(STATE_SELECTION, selection.toArray());
+        }
+        if (capturedPhotoFile != null) {
+            outState.putString(STATE_CAPTURED_PHOTO, capturedPhotoFile.getPath());
+        }
+        attachmentStager.saveState(outState);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_metrics).setVisible(BuildConfig.DEBUG);
+        menu.findItem(R.id.action_encrypt).setVisible(AtRestEncryption.isSupported())
+                .setChecked(AtRestEncryption.getInstance(this).isEnabled());
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_filter) {
+            showTagFilterDialog();
+            return true;
+        } else if (item.getItemId() == R.id.action_sort) {
+            showSortDialog();
+            return true;
+        } else if (item.getItemId() == R.id.action_metrics) {
+            startActivity(new Intent(this, MetricsActivity.class));
+            return true;
+        } else if (item.getItemId() == R.id.action_encrypt) {
+            item.setChecked(!item.isChecked());
+            setEncryption(item.isChecked());
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private RecyclerView.ItemDecoration timed(RecyclerView.ItemDecoration decoration) {
+        return scrollJankMonitor != null ? scrollJankMonitor.timed(decoration) : decoration;
     }
 
     /**
-     * Inserting new note in db
-     * and refreshing the list
+     * @return the frame timing of the list, null in release builds
      */
-    private void createNote(String note) {
-        // inserting note in db and getting
-        // newly inserted note id
-        long id = db.insertNote(note);
+    ScrollJankMonitor getScrollJankMonitor() {
+        return scrollJankMonitor;
+    }
 
-        // get the newly inserted note from db
-        Note n = db.getNote(id);
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        cacheCoordinator.onTrimMemory(level);
+    }
 
-        if (n != null) {
-            // adding new note to array list at 0 position
-            notesList.add(0, n);
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        cacheCoordinator.onLowMemory();
+    }
 
-            // refreshing the list
-            mAdapter.notifyDataSetChanged();
+    @Override
+    protected void onResume() {
+        super.onResume();
+        idleTaskScheduler.start();
+    }
 
-            toggleEmptyNotes();
+    @Override
+    protected void onPause() {
+        idleTaskScheduler.stop();
+        if (draftAutosaver != null) {
+            // we may not come back, get the last keystrokes to disk
+            draftAutosaver.flush();
         }
+        super.onPause();
     }
 
     /**
-     * Updating note in db and updating
-     * item in the list by its position
+     * Reopens the editor with the draft left behind when the app was
+     * killed, or the activity recreated, while a note was being edited
      */
-    private void updateNote(String note, int position, byte[] image) {
-        Note n = notesList.get(position);
-        // updating note text
-        n.setNote(note);
-        n.setImage(image);
+    private void restoreDraft() {
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Draft draft = db.getLatestDraft();
+                if (draft == null) {
+                    return;
+                }
+                // the note may be further down than the list has loaded
+                final Note note = draft.isNewNote() ? null : db.getNote(draft.getNoteId());
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        if (draft.isNewNote()) {
+                            showNoteDialog(false, null, draft.getText());
+                            return;
+                        }
+                        if (note != null && !note.isDeleted()) {
+                            int position = notesList.indexOfId(note.getId());
+                            showNoteDialog(true, position >= 0 ? notesList.get(position) : note, draft.getText());
+                            return;
+                        }
+                        // the note is gone, and so is the point of its draft
+                        executors.diskIO().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                db.deleteDraft(draft.getNoteId());
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
 
-        // updating note in db
-        db.updateNote(n);
+    private void loadMonthSections() {
+        final NoteQuery query = notesList.getQuery();
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<MonthBucket> buckets = db.getMonthBuckets(query);
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!query.equals(notesList.getQuery())) {
+                            return;
+                        }
+                        monthSections.setBuckets(buckets);
+                        onMonthSectionsChanged();
+                    }
+                });
+            }
+        });
+    }
 
-        // refreshing the list
-        notesList.set(position, n);
-        mAdapter.notifyItemChanged(position);
+    private void onMonthSectionsChanged() {
+        recyclerView.invalidateItemDecorations();
+        fastScroller.invalidate();
+    }
 
-        toggleEmptyNotes();
+    /**
+     * Inserting new note in db in the background
+     * and refreshing the list
+     */
+    private void createNote(final String note) {
+        final NoteQuery query = notesList.getQuery();
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                // inserting note in db and getting
+                // newly inserted note id
+                long id = db.insertNote(note);
+
+                // a note written while the list is filtered gets the tag it is filtered by
+                if (query.getTagId() != Tag.NO_TAG) {
+                    db.setNoteTags(id, Collections.singleton(query.getTagId()));
+                }
+
+                // get the newly inserted note from db
+                final Note n = db.getNote(id);
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing() || n == null) {
+                            return;
+                        }
+                        if (!query.equals(notesList.getQuery()) || !isNewestFirst(query)) {
+                            // whether and where it shows is up to the database
+                            reloadNotes();
+                            return;
+                        }
+
+                        // adding new note to array list at 0 position
+                        notesList.add(0, n);
+                        monthSections.add(n);
+                        onMonthSectionsChanged();
+
+                        // refreshing the list
+                        mAdapter.notifyDataSetChanged();
+
+                        toggleEmptyNotes();
+                    }
+                });
+            }
+        });
     }
 
     /**
-     * Deleting note from SQLite and removing the
-     * item from the list by its position
+     * Updating note in db in the background, keeping its earlier
+     * text in the history, then updating its item in the list, if loaded
+     */
+    private void updateNote(Note n, String note, final String imageHash) {
+        final Note edited = new Note(n.getId(), note, n.getTimestamp(), null);
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                // a staged image is in the image store already
+                if (db.updateNote(edited, imageHash) == 0) {
+                    return;
+                }
+                final Note saved = db.getNote(edited.getId());
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing() || saved == null) {
+                            return;
+                        }
+                        if (notesList.getQuery().getSort() != NoteQuery.SORT_CREATED) {
+                            // the edit moves the note
+                            reloadNotes();
+                            return;
+                        }
+                        showSaved(saved);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Attaching an image that was still being encoded when the note was saved.
+     * Queued behind the update of its text, so it never gets overwritten by it.
+     */
+    private void attachImage(final int noteId, final String imageHash) {
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (db.setNoteImage(noteId, imageHash) == 0) {
+                    return;
+                }
+                final Note saved = db.getNote(noteId);
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing() && saved != null) {
+                            showSaved(saved);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Replacing the item of a note that was written in the background, if loaded
+     */
+    private void showSaved(Note saved) {
+        int position = notesList.indexOfId(saved.getId());
+        if (position >= 0) {
+            notesList.set(position, saved);
+            mAdapter.notifyItemChanged(position);
+        }
+    }
+
+    /**
+     * Soft deleting the note in the background and removing the
+     * item from the list by its position. The snackbar offers to
+     * undo until the purge removes the note for good.
      */
     private void deleteNote(int position) {
-        // deleting the note from db
-        db.deleteNote(notesList.get(position));
+        final Note note = notesList.get(position);
+        final NoteQuery query = notesList.getQuery();
 
         // removing the note from the list
         notesList.remove(position);
         mAdapter.notifyItemRemoved(position);
+        monthSections.remove(note);
+        onMonthSectionsChanged();
 
         toggleEmptyNotes();
+
+        // marking the note deleted in db
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                db.softDeleteNote(note.getId());
+            }
+        });
+
+        Snackbar.make(coordinatorLayout, R.string.msg_note_deleted, Snackbar.LENGTH_LONG)
+                .setAction(R.string.action_undo, new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        undoDelete(note, query);
+                    }
+                })
+                .show();
     }
 
     /**
-     * Opens dialog with Edit - Delete options
+     * Restoring a soft deleted note and putting it back
+     * at its place in the list
+     *
+     * @param query the notes of the list it was deleted from
+     */
+    private void undoDelete(final Note note, NoteQuery query) {
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                db.restoreNote(note.getId());
+            }
+        });
+
+        if (!query.equals(notesList.getQuery()) || query.getSort() != NoteQuery.SORT_CREATED) {
+            // filtered or sorted differently since, or its place is not known here
+            reloadNotes();
+            return;
+        }
+
+        int position = notesList.insertSorted(note, NEWEST_FIRST);
+        mAdapter.notifyItemInserted(position);
+        monthSections.add(note);
+        onMonthSectionsChanged();
+
+        toggleEmptyNotes();
+    }
+
+    /**
+     * Opens dialog with Edit - Delete - History - Tags - Select options
      * Edit - 0
-     * Delete - 0
+     * Delete - 1
+     * History - 2
+     * Tags - 3
+     * Select - 4
+     * View photo - 5, for notes with one
      */
     private void showActionsDialog(final int position) {
-        CharSequence colors[] = new CharSequence[]{"Edit", "Delete"};
+        final Note note = notesList.get(position);
+        CharSequence colors[] = note.getImageHash() != null
+                ? new CharSequence[]{"Edit", "Delete", "History", "Tags", "Select", "View photo"}
+                : new CharSequence[]{"Edit", "Delete", "History", "Tags", "Select"};
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("Choose option");
@@ -187,15 +589,624 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 if (which == 0) {
-                    showNoteDialog(true, notesList.get(position), position);
-                } else {
+                    editNote(notesList.get(position));
+                } else if (which == 1) {
                     deleteNote(position);
+                } else if (which == 2) {
+                    showHistoryDialog(notesList.get(position));
+                } else if (which == 3) {
+                    showNoteTagsDialog(notesList.get(position), null);
+                } else if (which == 5) {
+                    startActivity(ImageViewerActivity.newIntent(MainActivity.this, note.getImageHash()));
+                } else {
+                    actionMode = startSupportActionMode(selectionCallback);
+                    toggleSelection(position);
                 }
             }
         });
         builder.show();
     }
 
+    /**
+     * Opens the editor on a note. The list only holds the preview of long
+     * notes, their whole text is inflated in the background first.
+     */
+    private void editNote(final Note note) {
+        if (note.isTextLoaded()) {
+            showNoteDialog(true, note);
+            return;
+        }
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Note loaded = db.getNote(note.getId());
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing() || loaded == null || notesList.indexOf(note) < 0) {
+                            return;
+                        }
+                        note.setNote(loaded.getNote());
+                        note.setPreview(null);
+                        showNoteDialog(true, note);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Lists the earlier versions of a note, newest first
+     */
+    private void showHistoryDialog(final Note note) {
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<NoteRevision> revisions = db.getRevisions(note.getId());
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        if (revisions.isEmpty()) {
+                            Toast.makeText(MainActivity.this, R.string.msg_no_history, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        CharSequence[] items = new CharSequence[revisions.size()];
+                        for (int i = 0; i < items.length; i++) {
+                            items[i] = revisionTitle(revisions.get(i));
+                        }
+                        new AlertDialog.Builder(MainActivity.this)
+                                .setTitle(R.string.lbl_history_title)
+                                .setItems(items, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        showRevisionDialog(note, revisions.get(which));
+                                    }
+                                })
+                                .show();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Shows the text of one version, with the option to restore it.
+     * The text is only rebuilt from its deltas when it is looked at.
+     */
+    private void showRevisionDialog(final Note note, final NoteRevision revision) {
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final String text = db.getRevisionText(note.getId(), revision.getId());
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        if (text == null) {
+                            Toast.makeText(MainActivity.this, R.string.msg_revision_unavailable,
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        new AlertDialog.Builder(MainActivity.this)
+                                .setTitle(revisionTitle(revision))
+                                .setMessage(text)
+                                .setPositiveButton(R.string.action_restore, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        restoreRevision(note, revision);
+                                    }
+                                })
+                                .setNegativeButton(R.string.action_close, null)
+                                .show();
+                    }
+                });
+            }
+        });
+    }
+
+    private void restoreRevision(final Note note, final NoteRevision revision) {
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Note restored = db.restoreRevision(note.getId(), revision.getId());
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (restored == null) {
+                            Toast.makeText(MainActivity.this, R.string.msg_revision_unavailable,
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        // the list may have changed while we were on disk
+                        int position = notesList.indexOfId(restored.getId());
+                        if (position >= 0) {
+                            notesList.set(position, restored);
+                            mAdapter.notifyItemChanged(position);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private final ActionMode.Callback selectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.menu_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            if (item.getItemId() == R.id.action_delete) {
+                deleteSelected();
+                return true;
+            } else if (item.getItemId() == R.id.action_tag) {
+                showSelectionTagDialog();
+                return true;
+            } else if (item.getItemId() == R.id.action_export) {
+                exportSelected();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            actionMode = null;
+            selection.clear();
+            mAdapter.notifyDataSetChanged();
+        }
+    };
+
+    private void toggleSelection(int position) {
+        Note note = position != RecyclerView.NO_POSITION ? notesList.get(position) : null;
+        if (note == null) {
+            return;
+        }
+        if (!selection.remove(note.getId())) {
+            selection.add(note.getId());
+        }
+        mAdapter.notifyItemChanged(position);
+        if (selection.isEmpty()) {
+            actionMode.finish();
+        } else {
+            updateSelectionTitle();
+        }
+    }
+
+    private void updateSelectionTitle() {
+        actionMode.setTitle(getString(R.string.lbl_selected_count, selection.size()));
+    }
+
+    /**
+     * Soft deletes the selected notes in one transaction, with one undo for all of them
+     */
+    private void deleteSelected() {
+        final long[] ids = selection.toArray();
+        actionMode.finish();
+
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                db.softDeleteNotes(ids);
+            }
+        });
+
+        // selected rows may have been unloaded by a reload since, then the list is reloaded
+        boolean allLoaded = true;
+        for (long id : ids) {
+            int position = notesList.indexOfId(id);
+            if (position < 0) {
+                allLoaded = false;
+                continue;
+            }
+            monthSections.remove(notesList.remove(position));
+            mAdapter.notifyItemRemoved(position);
+        }
+        if (allLoaded) {
+            onMonthSectionsChanged();
+            toggleEmptyNotes();
+        } else {
+            reloadNotes();
+        }
+
+        Snackbar.make(coordinatorLayout, getString(R.string.msg_notes_deleted, ids.length), Snackbar.LENGTH_LONG)
+                .setAction(R.string.action_undo, new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        executors.diskIO().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                db.restoreNotes(ids);
+                            }
+                        });
+                        reloadNotes();
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Adds a tag, an existing or a new one, to all selected notes
+     */
+    private void showSelectionTagDialog() {
+        final long[] ids = selection.toArray();
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Tag> tags = db.getTags();
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        CharSequence[] items = new CharSequence[tags.size()];
+                        for (int i = 0; i < items.length; i++) {
+                            items[i] = tags.get(i).getName();
+                        }
+                        final EditText inputName = new EditText(MainActivity.this);
+                        inputName.setHint(R.string.hint_tag_name);
+                        inputName.setSingleLine();
+                        new AlertDialog.Builder(MainActivity.this)
+                                .setTitle(R.string.action_tag)
+                                .setItems(items, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        tagNotes(tags.get(which).getId(), null, ids);
+                                    }
+                                })
+                                .setView(inputName)
+                                .setPositiveButton(R.string.action_new_tag, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        String name = inputName.getText().toString().trim();
+                                        if (!TextUtils.isEmpty(name)) {
+                                            tagNotes(Tag.NO_TAG, name, ids);
+                                        }
+                                    }
+                                })
+                                .setNegativeButton(R.string.action_cancel, null)
+                                .show();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param tagId the tag, or {@link Tag#NO_TAG} to add one named {@code newName}
+     */
+    private void tagNotes(final long tagId, final String newName, final long[] ids) {
+        if (actionMode != null) {
+            actionMode.finish();
+        }
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                db.addTagToNotes(tagId != Tag.NO_TAG ? tagId : db.addTag(newName), ids);
+            }
+        });
+    }
+
+    /**
+     * Shares the whole text of the selected notes, read in one go in the background
+     */
+    private void exportSelected() {
+        final long[] ids = selection.toArray();
+        actionMode.finish();
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final StringBuilder text = new StringBuilder();
+                for (Note note : db.getNotes(ids)) {
+                    text.append(note.getTimestamp()).append('\n').append(note.getNote()).append("\n\n");
+                }
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        Intent send = new Intent(Intent.ACTION_SEND);
+                        send.setType("text/plain");
+                        send.putExtra(Intent.EXTRA_TEXT, text.toString().trim());
+                        startActivity(Intent.createChooser(send, getString(R.string.lbl_export_title)));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Lets the user pick the tag to filter the list by, or all notes
+     */
+    private void showTagFilterDialog() {
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Tag> tags = db.getTags();
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        CharSequence[] items = new CharSequence[tags.size() + 1];
+                        int checked = 0;
+                        items[0] = getString(R.string.lbl_all_notes);
+                        for (int i = 0; i < tags.size(); i++) {
+                            Tag tag = tags.get(i);
+                            items[i + 1] = getString(R.string.lbl_tag_count, tag.getName(), tag.getNoteCount());
+                            if (tag.getId() == notesList.getQuery().getTagId()) {
+                                checked = i + 1;
+                            }
+                        }
+                        new AlertDialog.Builder(MainActivity.this)
+                                .setTitle(R.string.lbl_filter_title)
+                                .setSingleChoiceItems(items, checked, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        dialog.dismiss();
+                                        setTagFilter(which == 0 ? null : tags.get(which - 1));
+                                    }
+                                })
+                                .show();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param tag the tag to show the notes of, null for all notes
+     */
+    private void setTagFilter(Tag tag) {
+        long tagId = tag != null ? tag.getId() : Tag.NO_TAG;
+        if (tagId == notesList.getQuery().getTagId()) {
+            return;
+        }
+        notesList.setQuery(notesList.getQuery().withTag(tagId));
+        getSupportActionBar().setSubtitle(tag != null ? tag.getName() : null);
+        reloadNotes();
+    }
+
+    /**
+     * Lets the user pick the order of the list, and whether to show only notes
+     * with photos or from a recent time range
+     */
+    private void showSortDialog() {
+        View view = LayoutInflater.from(this).inflate(R.layout.sort_dialog, null);
+        final RadioGroup sort = view.findViewById(R.id.sort);
+        final CheckBox imagesOnly = view.findViewById(R.id.images_only);
+        final Spinner range = view.findViewById(R.id.range);
+
+        NoteQuery query = notesList.getQuery();
+        if (query.getSort() == NoteQuery.SORT_UPDATED) {
+            sort.check(R.id.sort_updated);
+        } else if (query.getSort() == NoteQuery.SORT_TEXT) {
+            sort.check(R.id.sort_text);
+        } else {
+            sort.check(R.id.sort_created);
+        }
+        imagesOnly.setChecked(query.isImagesOnly());
+        range.setSelection(rangeIndex);
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.lbl_sort_title)
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        int checked = sort.getCheckedRadioButtonId();
+                        setSort(checked == R.id.sort_updated ? NoteQuery.SORT_UPDATED
+                                        : checked == R.id.sort_text ? NoteQuery.SORT_TEXT : NoteQuery.SORT_CREATED,
+                                imagesOnly.isChecked(), range.getSelectedItemPosition());
+                    }
+                })
+                .setNegativeButton(R.string.action_cancel, null)
+                .show();
+    }
+
+    /**
+     * @param rangeIndex which of {@link #RANGE_DAYS} to limit the list to
+     */
+    private void setSort(int sort, boolean imagesOnly, int rangeIndex) {
+        long from = RANGE_DAYS[rangeIndex] != 0
+                ? System.currentTimeMillis() - RANGE_DAYS[rangeIndex] * DateUtils.DAY_IN_MILLIS : 0;
+        NoteQuery query = notesList.getQuery().withSort(sort).withImagesOnly(imagesOnly).withRange(from, 0);
+        if (query.equals(notesList.getQuery())) {
+            return;
+        }
+        this.rangeIndex = rangeIndex;
+        notesList.setQuery(query);
+        reloadNotes();
+    }
+
+    /**
+     * @return whether a new note goes on top of the list and into its month, so it
+     * can be put there without asking the database
+     */
+    private static boolean isNewestFirst(NoteQuery query) {
+        return query.getSort() == NoteQuery.SORT_CREATED && !query.hasNoteFilters();
+    }
+
+    /**
+     * Turns encryption at rest on or off and rewrites what is stored to match,
+     * which takes a while on a large library.
+     */
+    private void setEncryption(final boolean enabled) {
+        Toast.makeText(this, enabled ? R.string.msg_encrypting : R.string.msg_decrypting, Toast.LENGTH_SHORT).show();
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean done = false;
+                try {
+                    AtRestEncryption.getInstance(MainActivity.this).setEnabled(enabled);
+                    Log.d(TAG, "Rewrote " + db.rewriteAtRest() + " notes and images");
+                    done = true;
+                } catch (GeneralSecurityException | IOException e) {
+                    Log.e(TAG, "Could not " + (enabled ? "encrypt" : "decrypt") + " the notes", e);
+                }
+                final boolean succeeded = done;
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        Toast.makeText(MainActivity.this, !succeeded ? R.string.msg_encryption_failed
+                                : enabled ? R.string.msg_encrypted : R.string.msg_decrypted, Toast.LENGTH_SHORT).show();
+                        invalidateOptionsMenu();
+                        // sorted by text, encrypted notes move
+                        reloadNotes();
+                    }
+                });
+            }
+        });
+    }
+
+    private void reloadNotes() {
+        // the empty view waits for the count
+        noNotesView.setVisibility(View.GONE);
+        notesList.load();
+        loadMonthSections();
+    }
+
+    /**
+     * Shows all tags with the ones of the note checked
+     *
+     * @param selection tags to show checked, null for the ones the note has
+     */
+    private void showNoteTagsDialog(final Note note, final Set<Long> selection) {
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Tag> tags = db.getTags();
+                final Set<Long> checkedIds = selection != null ? selection : db.getNoteTagIds(note.getId());
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        CharSequence[] items = new CharSequence[tags.size()];
+                        boolean[] checked = new boolean[tags.size()];
+                        for (int i = 0; i < items.length; i++) {
+                            items[i] = tags.get(i).getName();
+                            checked[i] = checkedIds.contains(tags.get(i).getId());
+                        }
+                        new AlertDialog.Builder(MainActivity.this)
+                                .setTitle(R.string.lbl_tags_title)
+                                .setMultiChoiceItems(items, checked, new DialogInterface.OnMultiChoiceClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                                        if (isChecked) {
+                                            checkedIds.add(tags.get(which).getId());
+                                        } else {
+                                            checkedIds.remove(tags.get(which).getId());
+                                        }
+                                    }
+                                })
+                                .setPositiveButton(R.string.action_save, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        saveNoteTags(note, checkedIds);
+                                    }
+                                })
+                                .setNeutralButton(R.string.action_new_tag, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        showNewTagDialog(note, checkedIds);
+                                    }
+                                })
+                                .setNegativeButton(R.string.action_cancel, null)
+                                .show();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Asks for the name of a tag and goes back to the tags of the note with it checked
+     */
+    private void showNewTagDialog(final Note note, final Set<Long> selection) {
+        final EditText inputName = new EditText(this);
+        inputName.setHint(R.string.hint_tag_name);
+        inputName.setSingleLine();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.lbl_new_tag_title)
+                .setView(inputName)
+                .setPositiveButton(R.string.action_save, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final String name = inputName.getText().toString().trim();
+                        if (TextUtils.isEmpty(name)) {
+                            showNoteTagsDialog(note, selection);
+                            return;
+                        }
+                        executors.diskIO().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                selection.add(db.addTag(name));
+                                executors.mainThread().execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        showNoteTagsDialog(note, selection);
+                                    }
+                                });
+                            }
+                        });
+                    }
+                })
+                .setNegativeButton(R.string.action_cancel, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showNoteTagsDialog(note, selection);
+                    }
+                })
+                .show();
+    }
+
+    private void saveNoteTags(final Note note, Set<Long> tagIds) {
+        final Set<Long> saved = new HashSet<>(tagIds);
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                db.setNoteTags(note.getId(), saved);
+            }
+        });
+
+        // untagged from the tag the list is filtered by, it leaves the list
+        long tagId = notesList.getQuery().getTagId();
+        int position = notesList.indexOfId(note.getId());
+        if (tagId != Tag.NO_TAG && !saved.contains(tagId) && position >= 0) {
+            notesList.remove(position);
+            mAdapter.notifyItemRemoved(position);
+            monthSections.remove(note);
+            onMonthSectionsChanged();
+            toggleEmptyNotes();
+        }
+    }
+
+    private String revisionTitle(NoteRevision revision) {
+        return getString(R.string.lbl_revision_title, revision.getVersion(),
+                DateUtils.formatDateTime(this, revision.getCreatedAt(),
+                        DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME));
+    }
+
 
     /**
      * Shows alert dialog with EditText options to enter / edit
@@ -203,7 +1214,14 @@ public class MainActivity extends AppCompatActivity {
      * when shouldUpdate=true, it automatically displays old note and changes the
      * button text to UPDATE
      */
-    private void showNoteDialog(final boolean shouldUpdate, final Note note, final int position) {
+    private void showNoteDialog(final boolean shouldUpdate, final Note note) {
+        showNoteDialog(shouldUpdate, note, null);
+    }
+
+    /**
+     * @param draftText text to start with instead of the saved note, when restoring a draft
+     */
+    private void showNoteDialog(final boolean shouldUpdate, final Note note, String draftText) {
         LayoutInflater layoutInflaterAndroid = LayoutInflater.from(getApplicationContext());
         View view = layoutInflaterAndroid.inflate(R.layout.note_dialog, null);
 
@@ -214,9 +1232,45 @@ public class MainActivity extends AppCompatActivity {
         TextView dialogTitle = view.findViewById(R.id.dialog_title);
         dialogTitle.setText(!shouldUpdate ? getString(R.string.lbl_new_note_title) : getString(R.string.lbl_edit_note_title));
 
-        if (shouldUpdate && note != null) {
+        if (draftText != null) {
+            inputNote.setText(draftText);
+        } else if (shouldUpdate && note != null) {
             inputNote.setText(note.getNote());
         }
+
+        // the staged image goes with the next update, show which one
+        if (shouldUpdate) {
+            final ImageView preview = view.findViewById(R.id.attachment_preview);
+            attachmentStager.whenReady(new AttachmentStager.Callback() {
+                @Override
+                public void onReady(String imageHash) {
+                    if (imageHash == null) {
+                        return;
+                    }
+                    ThumbnailLoader.Callback show = new ThumbnailLoader.Callback() {
+                        @Override
+                        public void onThumbnail(String imageHash, Bitmap thumbnail) {
+                            preview.setImageBitmap(thumbnail);
+                            preview.setVisibility(View.VISIBLE);
+                        }
+                    };
+                    Bitmap thumbnail = thumbnailLoader.get(imageHash);
+                    if (thumbnail != null) {
+                        show.onThumbnail(imageHash, thumbnail);
+                    } else {
+                        thumbnailLoader.load(imageHash, show);
+                    }
+                }
+            });
+        }
+
+        // typing is autosaved as a draft until the note is saved or the edit cancelled
+        if (draftAutosaver != null) {
+            draftAutosaver.discard();
+        }
+        draftAutosaver = new DraftAutosaver(db, executors.diskIO(),
+                shouldUpdate && note != null ? note.getId() : Draft.NEW_NOTE_ID);
+        inputNote.addTextChangedListener(draftAutosaver);
         alertDialogBuilderUserInput
                 .setCancelable(false)
                 .setPositiveButton(shouldUpdate ? "update" : "save", new DialogInterface.OnClickListener() {
@@ -227,6 +1281,10 @@ public class MainActivity extends AppCompatActivity {
                 .setNegativeButton("cancel",
                         new DialogInterface.OnClickListener() {
                             public void onClick(DialogInterface dialogBox, int id) {
+                                discardDraft();
+                                if (shouldUpdate) {
+                                    attachmentStager.clear();
+                                }
                                 dialogBox.cancel();
                             }
                         });
@@ -242,29 +1300,44 @@ public class MainActivity extends AppCompatActivity {
                     Toast.makeText(MainActivity.this, "Enter note!", Toast.LENGTH_SHORT).show();
                     return;
                 } else {
+                    discardDraft();
                     alertDialog.dismiss();
                 }
 
                 // check if user updating note
                 if (shouldUpdate && note != null) {
                     // update note by it's id
-                    updateNote(inputNote.getText().toString(), position, DBBitMapUtility.getBytes(bitmapImage));
+                    // normally encoded by now, else it follows the text once it is
+                    String imageHash = attachmentStager.take(new AttachmentStager.Callback() {
+                        @Override
+                        public void onReady(String imageHash) {
+                            if (imageHash != null) {
+                                attachImage(note.getId(), imageHash);
+                            }
+                        }
+                    });
+                    updateNote(note, inputNote.getText().toString(), imageHash);
                 } else {
                     // create new note
-                    //byte [] image = DBBitMapUtility.getBytes(bitmapImage);
                     createNote(inputNote.getText().toString());
                 }
             }
         });
     }
 
+    private void discardDraft() {
+        if (draftAutosaver != null) {
+            draftAutosaver.discard();
+            draftAutosaver = null;
+        }
+    }
+
     /**
      * Toggling list and empty notes view
      */
     private void toggleEmptyNotes() {
-        // you can check notesList.size() > 0
-
-        if (db.getNotesCount() > 0) {
+        // the list is authoritative, asking the db would mean I/O on the UI thread
+        if (notesList.size() > 0) {
             noNotesView.setVisibility(View.GONE);
         } else {
             noNotesView.setVisibility(View.VISIBLE);
@@ -279,14 +1352,14 @@ public class MainActivity extends AppCompatActivity {
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
             builder.setTitle("Upload a photo");
             builder.setMessage("Please upload a picture");
-            /*builder.setPositiveButton("Camera",
+            builder.setPositiveButton("Camera",
                 new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         launchCamera();
                         dialog.cancel();
                     }
-                });*/
+                });
             builder.setNegativeButton("Photo Library",
                 new DialogInterface.OnClickListener() {
                     @Override
@@ -322,36 +1395,62 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
+    /**
+     * Has the camera app write the photo into a file of ours, instead of
+     * handing back a bitmap
+     */
+    private void launchCamera() {
+        Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
+        if (intent.resolveActivity(getPackageManager()) == null) {
+            Toast.makeText(this, R.string.msg_no_camera, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        try {
+            capturedPhotoFile = mImageProcessingUtil.createImageFile();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create a file for the photo", e);
+            Toast.makeText(this, R.string.msg_photo_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Uri uri = mImageProcessingUtil.getUriForCapture(capturedPhotoFile);
+        intent.putExtra(MediaStore.EXTRA_OUTPUT, uri);
+        // before Lollipop the grant only reaches the camera app through the clip data
+        intent.setClipData(ClipData.newRawUri("", uri));
+        intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION | Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivityForResult(intent, CAPTURE_IMAGE_REQUEST);
+    }
+
+    /**
+     * Stages the photo, it is downsampled and encoded into the image store in
+     * the background and the full size file dropped
+     */
+    private void onPhotoCaptured(boolean taken) {
+        File photo = capturedPhotoFile;
+        capturedPhotoFile = null;
+        if (photo == null) {
+            return;
+        }
+        if (taken) {
+            attachmentStager.stage(photo);
+        } else {
+            photo.delete();
+        }
+    }
+
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == CAPTURE_IMAGE_REQUEST) {
+            // the photo is in our file, the result carries no data
+            onPhotoCaptured(resultCode == RESULT_OK);
+            return;
+        }
         if (data != null && requestCode == SELECT_IMAGES_REQUEST) {
+            // a note has one image, of several picked the first is staged
             ClipData clipData = data.getClipData();
-            if (clipData != null) {
-                int itemCount = clipData.getItemCount();
-                for (int i = 0; i < itemCount; i++) {
-                    Uri uri = clipData.getItemAt(i).getUri();
-                }
-            } else {
-                ImageView image = findViewById(R.id.icon_camera);
-                Uri imageUri = data.getData();
-                if (imageUri != null) {
-                    addImageToInput(imageUri);
-                    try {
-                        bitmapImage = MediaStore.Images.Media.getBitmap(this.getContentResolver(), imageUri);
-                    } catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    image.setImageBitmap(bitmapImage);
-                }
+            Uri imageUri = clipData != null && clipData.getItemCount() > 0
+                    ? clipData.getItemAt(0).getUri() : data.getData();
+            if (imageUri != null) {
+                attachmentStager.stage(imageUri);
             }
         }
     }
-    // Returns false when size or count limit is exceeded, true otherwise
-    private boolean addImageToInput(Uri uri) {
-        if (!inputImages.contains(uri)) {
-            File imageFile = new File(mImageProcessingUtil.getFilePathFromUri(uri));
-        }
-        return true;
-    }
 }
@@ -0,0 +1,190 @@
+package my.homelane.app.view;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.v7.app.AlertDialog;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import my.homelane.app.BuildConfig;
+import my.homelane.app.R;
+import my.homelane.app.database.DatabaseHelper;
+import my.homelane.app.database.DatasetGenerator;
+import my.homelane.app.utils.AppExecutors;
+import my.homelane.app.utils.Metrics;
+
+/**
+ * Debug screen with the latency histograms and counters, and a dump of them
+ * to a file for comparing devices and releases. It can also fill the notes
+ * with generated ones, to see how the app copes with many.
+ */
+
+public class MetricsActivity extends AppCompatActivity {
+
+    private static final String TAG = MetricsActivity.class.getSimpleName();
+
+    private static final int[] SEED_NOTES = {1000, 10000, 100000};
+
+    // decodable stand-ins, so thumbnails cost something; noise compresses to about 2 bytes a pixel
+    private static final DatasetGenerator.ImageFactory JPEG_NOISE = new DatasetGenerator.ImageFactory() {
+        @Override
+        public byte[] create(Random random, int bytes) {
+            int side = Math.max(16, (int) Math.sqrt(bytes / 2));
+            int[] pixels = new int[side * side];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+            }
+            Bitmap bitmap = Bitmap.createBitmap(pixels, side, side, Bitmap.Config.ARGB_8888);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            bitmap.recycle();
+            return out.toByteArray();
+        }
+    };
+
+    private TextView metricsView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        metricsView = findViewById(R.id.metrics);
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        metricsView.setText(Metrics.format());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_metrics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_refresh) {
+            metricsView.setText(Metrics.format());
+            return true;
+        } else if (item.getItemId() == R.id.action_dump) {
+            dump();
+            return true;
+        } else if (item.getItemId() == R.id.action_reset) {
+            Metrics.resetHistograms();
+            metricsView.setText(Metrics.format());
+            return true;
+        } else if (item.getItemId() == R.id.action_seed) {
+            showSeedDialog();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showSeedDialog() {
+        CharSequence[] items = new CharSequence[SEED_NOTES.length];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = getString(R.string.lbl_seed_notes, SEED_NOTES[i]);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_seed)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        seed(DatasetGenerator.Spec.notes(SEED_NOTES[which]));
+                    }
+                })
+                .show();
+    }
+
+    // adds to the real notes, the list shows them after a restart
+    private void seed(final DatasetGenerator.Spec spec) {
+        final Context context = getApplicationContext();
+        Toast.makeText(context, getString(R.string.msg_seeding, spec.getNotes()), Toast.LENGTH_SHORT).show();
+        final AppExecutors executors = AppExecutors.getInstance();
+        executors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    DatasetGenerator.Result result = new DatasetGenerator(spec, JPEG_NOISE)
+                            .seed(DatabaseHelper.getInstance(context));
+                    Log.i(TAG, "Seeded " + spec + ": " + result);
+                    message = context.getString(R.string.msg_seeded, result.notes, result.durationMillis / 1000);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not seed " + spec, e);
+                    message = context.getString(R.string.msg_seed_failed);
+                }
+                final String text = message;
+                executors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(context, text, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+    }
+
+    // small enough to write on the main thread, and it is a debug screen
+    private void dump() {
+        File directory = getExternalFilesDir("metrics");
+        if (directory == null) {
+            directory = new File(getFilesDir(), "metrics");
+        }
+        directory.mkdirs();
+        File file = new File(directory, "metrics-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".tsv");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                Metrics.dump(out, header());
+            } finally {
+                out.close();
+            }
+            Toast.makeText(this, getString(R.string.msg_metrics_dumped, file.getPath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+            Toast.makeText(this, R.string.msg_metrics_dump_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // what a dump needs to be compared with others
+    private List<String> header() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        List<String> header = new ArrayList<>();
+        header.add("app\t" + BuildConfig.APPLICATION_ID + " " + BuildConfig.VERSION_NAME
+                + " (" + BuildConfig.VERSION_CODE + ") " + BuildConfig.BUILD_TYPE);
+        header.add("device\t" + Build.MANUFACTURER + " " + Build.MODEL);
+        header.add("sdk\t" + Build.VERSION.SDK_INT);
+        header.add("memory_class_mb\t" + activityManager.getMemoryClass());
+        header.add("cpus\t" + Runtime.getRuntime().availableProcessors());
+        header.add("written_at\t" + System.currentTimeMillis());
+        return header;
+    }
+}
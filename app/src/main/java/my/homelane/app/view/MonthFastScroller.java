@@ -0,0 +1,151 @@
+package my.homelane.app.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+import my.homelane.app.R;
+
+/**
+ * A rail along the right edge of the notes list. Dragging it picks a month,
+ * shown in a bubble next to the thumb, and jumps the list straight to it.
+ * Touches away from the rail fall through to the list underneath.
+ */
+
+public class MonthFastScroller extends View {
+
+    public interface Listener {
+        void onMonthSelected(int section);
+    }
+
+    // not worth a rail below this
+    private static final int MIN_ROWS = 50;
+
+    private final Paint trackPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint thumbPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF rect = new RectF();
+    private final float density;
+
+    private LinearLayoutManager layoutManager;
+    private MonthSections sections;
+    private Listener listener;
+
+    private boolean dragging;
+    private float dragFraction;
+    private int dragSection = -1;
+
+    public MonthFastScroller(Context context) {
+        this(context, null);
+    }
+
+    public MonthFastScroller(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        density = context.getResources().getDisplayMetrics().density;
+        trackPaint.setColor(0x22000000);
+        thumbPaint.setColor(ContextCompat.getColor(context, R.color.colorAccent));
+        textPaint.setColor(0xffffffff);
+        textPaint.setTextSize(context.getResources().getDimension(R.dimen.month_header_text));
+        textPaint.setFakeBoldText(true);
+    }
+
+    public void attach(RecyclerView recyclerView, LinearLayoutManager layoutManager, MonthSections sections,
+                       Listener listener) {
+        this.layoutManager = layoutManager;
+        this.sections = sections;
+        this.listener = listener;
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                invalidate();
+            }
+        });
+    }
+
+    private boolean isActive() {
+        return sections != null && sections.size() > 1 && layoutManager.getItemCount() > MIN_ROWS;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (!isActive()) {
+            return;
+        }
+        float trackWidth = 4 * density;
+        float thumbWidth = 8 * density;
+        float thumbHeight = 40 * density;
+        float right = getWidth() - 4 * density;
+
+        rect.set(right - trackWidth, 0, right, getHeight());
+        canvas.drawRoundRect(rect, trackWidth / 2, trackWidth / 2, trackPaint);
+
+        float fraction = dragging ? dragFraction : scrollFraction();
+        float thumbTop = fraction * (getHeight() - thumbHeight);
+        rect.set(right - thumbWidth, thumbTop, right, thumbTop + thumbHeight);
+        canvas.drawRoundRect(rect, thumbWidth / 2, thumbWidth / 2, thumbPaint);
+
+        if (dragging && dragSection >= 0) {
+            String label = sections.getLabel(dragSection);
+            float padding = 12 * density;
+            float bubbleRight = right - thumbWidth - padding;
+            float bubbleLeft = bubbleRight - textPaint.measureText(label) - 2 * padding;
+            float bubbleTop = Math.max(0, thumbTop + thumbHeight / 2 - 24 * density);
+            rect.set(bubbleLeft, bubbleTop, bubbleRight, bubbleTop + 48 * density);
+            canvas.drawRoundRect(rect, 24 * density, 24 * density, thumbPaint);
+            canvas.drawText(label, bubbleLeft + padding,
+                    rect.centerY() - (textPaint.ascent() + textPaint.descent()) / 2, textPaint);
+        }
+    }
+
+    private float scrollFraction() {
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int count = layoutManager.getItemCount();
+        return first <= 0 || count <= 1 ? 0 : Math.min(1f, first / (float) (count - 1));
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                if (!isActive() || event.getX() < getWidth() - 32 * density) {
+                    return false;
+                }
+                dragging = true;
+                getParent().requestDisallowInterceptTouchEvent(true);
+                drag(event.getY());
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                if (dragging) {
+                    drag(event.getY());
+                }
+                return dragging;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                dragging = false;
+                dragSection = -1;
+                invalidate();
+                return true;
+            default:
+                return dragging;
+        }
+    }
+
+    private void drag(float y) {
+        dragFraction = Math.max(0, Math.min(1, y / getHeight()));
+        int position = Math.round(dragFraction * (layoutManager.getItemCount() - 1));
+        int section = sections.sectionAt(position);
+        // one jump per month crossed, not per pixel
+        if (section != dragSection) {
+            dragSection = section;
+            listener.onMonthSelected(section);
+        }
+        invalidate();
+    }
+}
@@ -0,0 +1,57 @@
+package my.homelane.app.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import my.homelane.app.R;
+
+/**
+ * Draws a month header above the newest note of every month.
+ */
+
+public class MonthHeaderDecoration extends RecyclerView.ItemDecoration {
+
+    private final MonthSections sections;
+    private final int headerHeight;
+    private final int textPadding;
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    public MonthHeaderDecoration(Context context, MonthSections sections) {
+        this.sections = sections;
+        this.headerHeight = context.getResources().getDimensionPixelSize(R.dimen.month_header_height);
+        this.textPadding = context.getResources().getDimensionPixelSize(R.dimen.activity_margin);
+        paint.setColor(ContextCompat.getColor(context, R.color.colorAccent));
+        paint.setTextSize(context.getResources().getDimension(R.dimen.month_header_text));
+        paint.setFakeBoldText(true);
+    }
+
+    @Override
+    public void getItemOffsets(Rect outRect, View view, RecyclerView parent, RecyclerView.State state) {
+        int position = parent.getChildAdapterPosition(view);
+        if (position != RecyclerView.NO_POSITION && sections.isSectionStart(position)) {
+            outRect.top = headerHeight;
+        } else {
+            outRect.top = 0;
+        }
+    }
+
+    @Override
+    public void onDraw(Canvas c, RecyclerView parent, RecyclerView.State state) {
+        float baseline = (headerHeight - paint.ascent() - paint.descent()) / 2;
+        for (int i = 0; i < parent.getChildCount(); i++) {
+            View child = parent.getChildAt(i);
+            int position = parent.getChildAdapterPosition(child);
+            if (position == RecyclerView.NO_POSITION || !sections.isSectionStart(position)) {
+                continue;
+            }
+            int top = child.getTop() - headerHeight + Math.round(child.getTranslationY());
+            c.drawText(sections.getLabel(sections.sectionAt(position)),
+                    parent.getPaddingLeft() + textPadding, top + baseline, paint);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package my.homelane.app.view;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import my.homelane.app.database.model.MonthBucket;
+import my.homelane.app.database.model.Note;
+
+/**
+ * Where each month starts in the notes list, for the section headers and the
+ * fast scroller. Built from one aggregate query and then kept in step with
+ * inserts and deletes in memory. Only accessed on the main thread.
+ */
+
+public class MonthSections {
+
+    private static class Section {
+        final String month;
+        int count;
+        int offset;
+        String label;
+
+        Section(String month, int count) {
+            this.month = month;
+            this.count = count;
+        }
+    }
+
+    // newest month first, like the list
+    private final List<Section> sections = new ArrayList<>();
+    private final SimpleDateFormat monthFormat = new SimpleDateFormat("yyyy-MM", Locale.US);
+    private final SimpleDateFormat labelFormat = new SimpleDateFormat("MMM yyyy", Locale.getDefault());
+
+    public void setBuckets(List<MonthBucket> buckets) {
+        sections.clear();
+        for (MonthBucket bucket : buckets) {
+            sections.add(new Section(bucket.getMonth(), bucket.getCount()));
+        }
+        updateOffsets();
+    }
+
+    public void add(Note note) {
+        String month = monthOf(note);
+        int index = 0;
+        while (index < sections.size() && sections.get(index).month.compareTo(month) > 0) {
+            index++;
+        }
+        if (index < sections.size() && sections.get(index).month.equals(month)) {
+            sections.get(index).count++;
+        } else {
+            sections.add(index, new Section(month, 1));
+        }
+        updateOffsets();
+    }
+
+    public void remove(Note note) {
+        String month = monthOf(note);
+        for (int i = 0; i < sections.size(); i++) {
+            Section section = sections.get(i);
+            if (section.month.equals(month)) {
+                if (--section.count == 0) {
+                    sections.remove(i);
+                }
+                updateOffsets();
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return sections.size();
+    }
+
+    /**
+     * @return the section holding the list position
+     */
+    public int sectionAt(int position) {
+        int low = 0;
+        int high = sections.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (sections.get(middle).offset <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    public boolean isSectionStart(int position) {
+        return !sections.isEmpty() && sections.get(sectionAt(position)).offset == position;
+    }
+
+    /**
+     * @return yyyy-MM
+     */
+    public String getMonth(int section) {
+        return sections.get(section).month;
+    }
+
+    /**
+     * @return list position of the newest note of the month
+     */
+    public int getOffset(int section) {
+        return sections.get(section).offset;
+    }
+
+    /**
+     * @return the month for headers, e.g. Apr 2018
+     */
+    public String getLabel(int section) {
+        // drawn every frame while scrolling, so formatted once
+        Section s = sections.get(section);
+        if (s.label == null) {
+            try {
+                s.label = labelFormat.format(monthFormat.parse(s.month));
+            } catch (ParseException e) {
+                s.label = s.month;
+            }
+        }
+        return s.label;
+    }
+
+    private void updateOffsets() {
+        int offset = 0;
+        for (Section section : sections) {
+            section.offset = offset;
+            offset += section.count;
+        }
+    }
+
+    private static String monthOf(Note note) {
+        String timestamp = String.valueOf(note.getTimestamp());
+        return timestamp.length() >= 7 ? timestamp.substring(0, 7) : timestamp;
+    }
+}
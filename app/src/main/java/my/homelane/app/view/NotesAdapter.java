@@ -1,9 +1,11 @@
 package my.homelane.app.view;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.support.v7.widget.RecyclerView;
 import android.text.Html;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -12,11 +14,12 @@ import android.widget.TextView;
 
 import android.widget.Toast;
 import butterknife.OnClick;
+import my.homelane.app.utils.BlurHash;
 import my.homelane.app.utils.DBBitMapUtility;
+import my.homelane.app.utils.LongHashSet;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
 
 import my.homelane.app.R;
 import my.homelane.app.database.model.Note;
@@ -27,14 +30,28 @@ import my.homelane.app.database.model.Note;
 
 public class NotesAdapter extends RecyclerView.Adapter<NotesAdapter.MyViewHolder> {
 
-    private Context context;
-    private List<Note> notesList;
+    private static final String TAG = NotesAdapter.class.getSimpleName();
+
+    // a few screens of rows; a placeholder bitmap is a few KB
+    private static final int PLACEHOLDER_CACHE_SIZE = 64;
+    // pixels per placeholder component, the image view scales it up smoothly
+    private static final int PLACEHOLDER_PX_PER_COMPONENT = 8;
 
-    public class MyViewHolder extends RecyclerView.ViewHolder {
+    private Context context;
+    private PagedNoteList notesList;
+    private ThumbnailLoader thumbnailLoader;
+    private LongHashSet selection;
+    // times the binds in debug builds, null otherwise
+    private ScrollJankMonitor jankMonitor;
+    private final LruCache<String, Bitmap> placeholders = new LruCache<>(PLACEHOLDER_CACHE_SIZE);
+
+    public class MyViewHolder extends RecyclerView.ViewHolder implements ThumbnailLoader.Callback {
         public TextView note;
         public TextView dot;
         public TextView timestamp;
         public ImageView image;
+        // image the row shows now, a thumbnail for an earlier one arriving late is ignored
+        String imageHash;
 
         public MyViewHolder(View view) {
             super(view);
@@ -43,12 +60,29 @@ public class NotesAdapter extends RecyclerView.Adapter<NotesAdapter.MyViewHolder
             timestamp = view.findViewById(R.id.timestamp);
             image   = view.findViewById(R.id.icon_camera);
         }
+
+        @Override
+        public void onThumbnail(String imageHash, Bitmap thumbnail) {
+            if (imageHash.equals(this.imageHash)) {
+                image.setImageBitmap(thumbnail);
+            }
+        }
     }
 
 
-    public NotesAdapter(Context context, List<Note> notesList) {
+    /**
+     * @param selection ids of the selected notes, their rows are shown activated
+     */
+    public NotesAdapter(Context context, PagedNoteList notesList, ThumbnailLoader thumbnailLoader,
+                        LongHashSet selection) {
         this.context = context;
         this.notesList = notesList;
+        this.thumbnailLoader = thumbnailLoader;
+        this.selection = selection;
+    }
+
+    public void setScrollJankMonitor(ScrollJankMonitor jankMonitor) {
+        this.jankMonitor = jankMonitor;
     }
 
     @Override
@@ -61,15 +95,78 @@ public class NotesAdapter extends RecyclerView.Adapter<NotesAdapter.MyViewHolder
 
     @Override
     public void onBindViewHolder(MyViewHolder holder, int position) {
+        long start = System.nanoTime();
+        bind(holder, position);
+        if (jankMonitor != null) {
+            jankMonitor.recordBind(start);
+        }
+    }
+
+    private void bind(MyViewHolder holder, int position) {
         Note note = notesList.get(position);
 
-        holder.note.setText(note.getNote());
+        if (note == null) {
+            // an empty row until its page arrives, normally prefetched before it gets here
+            holder.note.setText("");
+            holder.dot.setText("");
+            holder.timestamp.setText("");
+            holder.itemView.setActivated(false);
+            bindThumbnail(holder, null, null);
+            notesList.loadRange(position, position);
+            return;
+        }
+
+        holder.note.setText(note.getPreview());
 
         // Displaying dot from HTML character code
         holder.dot.setText(Html.fromHtml("&#8226;"));
 
         // Formatting and displaying timestamp
         holder.timestamp.setText(formatDate(note.getTimestamp()));
+
+        holder.itemView.setActivated(selection.contains(note.getId()));
+
+        bindThumbnail(holder, note.getImageHash(), note.getPlaceholder());
+    }
+
+    private void bindThumbnail(MyViewHolder holder, String imageHash, String placeholder) {
+        holder.imageHash = imageHash;
+        Bitmap thumbnail = imageHash != null ? thumbnailLoader.get(imageHash) : null;
+        if (thumbnail != null) {
+            holder.image.setImageBitmap(thumbnail);
+            return;
+        }
+        Bitmap blurred = imageHash != null ? getPlaceholder(placeholder) : null;
+        if (blurred != null) {
+            holder.image.setImageBitmap(blurred);
+        } else {
+            holder.image.setImageResource(R.drawable.ic_camera);
+        }
+        if (imageHash != null) {
+            thumbnailLoader.load(imageHash, holder);
+        }
+    }
+
+    // decoding one is well under a millisecond, cheap enough for the bind
+    private Bitmap getPlaceholder(String placeholder) {
+        if (placeholder == null || placeholder.isEmpty()) {
+            return null;
+        }
+        Bitmap bitmap = placeholders.get(placeholder);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        try {
+            int width = BlurHash.getComponentsX(placeholder) * PLACEHOLDER_PX_PER_COMPONENT;
+            int height = BlurHash.getComponentsY(placeholder) * PLACEHOLDER_PX_PER_COMPONENT;
+            bitmap = Bitmap.createBitmap(BlurHash.decode(placeholder, width, height), width, height,
+                    Bitmap.Config.ARGB_8888);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Bad placeholder " + placeholder, e);
+            return null;
+        }
+        placeholders.put(placeholder, bitmap);
+        return bitmap;
     }
 
     @Override
@@ -0,0 +1,425 @@
+package my.homelane.app.view;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import my.homelane.app.database.DatabaseHelper;
+import my.homelane.app.database.NoteQuery;
+import my.homelane.app.database.model.Note;
+import my.homelane.app.utils.CacheCoordinator;
+
+/**
+ * The notes list, loaded a page at a time. Every live note has a slot from the
+ * start, rows that are not loaded yet are null until their page arrives.
+ *
+ * Pages are read in the background by seeking from the neighbouring loaded
+ * note, so loading next to what is on screen costs the same however far down
+ * the list it is. Under memory pressure the rows furthest from the screen are
+ * emptied again, they come back like any other page when scrolled to.
+ * Only accessed on the main thread.
+ */
+
+public class PagedNoteList extends AbstractList<Note> implements CacheCoordinator.Cache {
+
+    public static final int PAGE_SIZE = 50;
+
+    // object headers, fields and the strings' own overhead, a rough figure
+    private static final int ROW_OVERHEAD_BYTES = 200;
+
+    public interface Listener {
+        void onLoaded();
+
+        void onRowsLoaded(int position, int count);
+    }
+
+    private static final int SEEK_AFTER = 0;
+    private static final int SEEK_BEFORE = 1;
+    private static final int OFFSET = 2;
+    private static final int MONTH = 3;
+
+    /**
+     * A page on its way in, filling the empty slots from {@link #from} to {@link #to}.
+     */
+    private class PageLoad implements Runnable {
+        final int mode;
+        final Note anchor;
+        final String month;
+        final int from;
+        final int to;
+        final boolean prefetch;
+        final NoteQuery query;
+        final int generation;
+        Future<?> future;
+
+        PageLoad(int mode, Note anchor, int from, int to, boolean prefetch) {
+            this(mode, anchor, null, from, to, prefetch);
+        }
+
+        PageLoad(int mode, Note anchor, String month, int from, int to, boolean prefetch) {
+            this.mode = mode;
+            this.anchor = anchor;
+            this.month = month;
+            this.from = from;
+            this.to = to;
+            this.prefetch = prefetch;
+            this.query = PagedNoteList.this.query;
+            this.generation = PagedNoteList.this.generation;
+        }
+
+        @Override
+        public void run() {
+            int limit = to - from + 1;
+            final List<Note> notes;
+            if (mode == SEEK_AFTER) {
+                notes = db.getNotesAfter(query, anchor, limit);
+            } else if (mode == SEEK_BEFORE) {
+                notes = db.getNotesBefore(query, anchor, limit);
+            } else if (mode == MONTH) {
+                notes = db.getNotesFromMonth(query, month, limit);
+            } else {
+                notes = db.getNotesAt(query, from, limit);
+            }
+            mainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pending.remove(PageLoad.this);
+                    if (generation == PagedNoteList.this.generation) {
+                        fill(PageLoad.this, notes);
+                    }
+                }
+            });
+        }
+    }
+
+    private final DatabaseHelper db;
+    private final ExecutorService executor;
+    private final Executor mainThread;
+    private final Listener listener;
+    private final CacheCoordinator cacheCoordinator;
+
+    private final ArrayList<Note> rows = new ArrayList<>();
+    private final List<PageLoad> pending = new ArrayList<>();
+    private NoteQuery query = NoteQuery.ALL;
+    // bumped whenever positions shift, loads requested before can no longer be placed
+    private int generation;
+    // estimated size of the loaded rows
+    private long loadedBytes;
+    // rows around these stay loaded when memory is trimmed
+    private int visibleFrom;
+    private int visibleTo;
+
+    public PagedNoteList(DatabaseHelper db, ExecutorService executor, Executor mainThread, Listener listener,
+                         CacheCoordinator cacheCoordinator) {
+        this.db = db;
+        this.executor = executor;
+        this.mainThread = mainThread;
+        this.listener = listener;
+        this.cacheCoordinator = cacheCoordinator;
+        cacheCoordinator.register(this, CacheCoordinator.PRIORITY_HIGH);
+    }
+
+    /**
+     * Shows these notes, in this order, from the next {@link #load} on.
+     */
+    public void setQuery(NoteQuery query) {
+        this.query = query;
+    }
+
+    public NoteQuery getQuery() {
+        return query;
+    }
+
+    /**
+     * Counts the notes and loads the first page.
+     */
+    public void load() {
+        positionsShifted();
+        final int generation = this.generation;
+        final NoteQuery query = this.query;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int count = db.getNotesCount(query);
+                final List<Note> first = db.getNotesAfter(query, null, PAGE_SIZE);
+                mainThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != PagedNoteList.this.generation) {
+                            return;
+                        }
+                        rows.clear();
+                        rows.addAll(first);
+                        rows.addAll(Collections.<Note>nCopies(Math.max(0, count - first.size()), null));
+                        loadedBytes = 0;
+                        for (Note note : first) {
+                            loadedBytes += sizeOf(note);
+                        }
+                        listener.onLoaded();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the note, or null while its page is not loaded
+     */
+    @Override
+    public Note get(int index) {
+        return rows.get(index);
+    }
+
+    @Override
+    public int size() {
+        return rows.size();
+    }
+
+    @Override
+    public Note set(int index, Note note) {
+        Note previous = rows.set(index, note);
+        loadedBytes += sizeOf(note) - sizeOf(previous);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Note note) {
+        rows.add(index, note);
+        loadedBytes += sizeOf(note);
+        positionsShifted();
+    }
+
+    @Override
+    public Note remove(int index) {
+        Note note = rows.remove(index);
+        loadedBytes -= sizeOf(note);
+        positionsShifted();
+        return note;
+    }
+
+    /**
+     * Tells which rows are on screen, they and a page either side are kept when memory is trimmed.
+     */
+    public void setVisibleRange(int from, int to) {
+        visibleFrom = from;
+        visibleTo = to;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return loadedBytes;
+    }
+
+    /**
+     * Empties loaded rows from the ends of the list inwards, whichever end is
+     * further from the screen first.
+     */
+    @Override
+    public void trimTo(long maxBytes) {
+        int keepFrom = Math.max(0, visibleFrom - PAGE_SIZE);
+        int keepTo = Math.min(rows.size() - 1, visibleTo + PAGE_SIZE);
+        int low = 0;
+        int high = rows.size() - 1;
+        while (loadedBytes > maxBytes && (low < keepFrom || high > keepTo)) {
+            int position;
+            if (low < keepFrom && (high <= keepTo || visibleFrom - low >= high - visibleTo)) {
+                position = low++;
+            } else {
+                position = high--;
+            }
+            Note note = rows.get(position);
+            if (note != null) {
+                loadedBytes -= sizeOf(note);
+                rows.set(position, null);
+            }
+        }
+    }
+
+    /**
+     * @return position of the loaded note with that id, or -1
+     */
+    public int indexOfId(long id) {
+        for (int i = 0; i < rows.size(); i++) {
+            Note note = rows.get(i);
+            if (note != null && note.getId() == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Puts a note back at its place in list order. Inside a stretch that is not
+     * loaded yet its exact place is unknown, so it gets an empty slot there and
+     * comes back with that page.
+     *
+     * @return the position it went to
+     */
+    public int insertSorted(Note note, Comparator<Note> order) {
+        int previous = -1;
+        int next = rows.size();
+        for (int i = 0; i < rows.size(); i++) {
+            Note row = rows.get(i);
+            if (row == null) {
+                continue;
+            }
+            if (order.compare(row, note) > 0) {
+                next = i;
+                break;
+            }
+            previous = i;
+        }
+        int position = previous + 1;
+        add(position, next == position ? note : null);
+        return position;
+    }
+
+    /**
+     * Loads the pages holding these positions, for rows that are about to be shown.
+     */
+    public void loadRange(int from, int to) {
+        request(from, to, true, false);
+    }
+
+    /**
+     * Loads the pages holding these positions ahead of the scroll. Unlike
+     * {@link #loadRange} these are dropped by {@link #cancelPrefetches}.
+     *
+     * @param forward the direction of the scroll, pages are read towards it
+     */
+    public void prefetch(int from, int to, boolean forward) {
+        request(from, to, forward, true);
+    }
+
+    /**
+     * Loads the page starting at the first note of a month, for a jump of the
+     * fast scroller. Seeks to the month like the other pages seek to their neighbour.
+     *
+     * @param position where the month starts in the list
+     * @param month    yyyy-MM
+     */
+    public void loadMonth(int position, String month) {
+        if (position < 0 || position >= rows.size() || rows.get(position) != null || isPending(position)) {
+            return;
+        }
+        int to = position;
+        while (to < rows.size() - 1 && to - position < PAGE_SIZE - 1 && rows.get(to + 1) == null) {
+            to++;
+        }
+        setVisibleRange(position, to);
+        PageLoad load = new PageLoad(MONTH, null, month, position, to, false);
+        load.future = executor.submit(load);
+        pending.add(load);
+    }
+
+    /**
+     * Cancels the prefetches that have not started yet, e.g. when the scroll turns around.
+     */
+    public void cancelPrefetches() {
+        Iterator<PageLoad> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            PageLoad load = iterator.next();
+            if (load.prefetch && load.future.cancel(false)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void request(int from, int to, boolean forward, boolean prefetch) {
+        from = Math.max(0, from);
+        to = Math.min(rows.size() - 1, to);
+        int position = forward ? from : to;
+        while (from <= position && position <= to) {
+            if (rows.get(position) != null || isPending(position)) {
+                position += forward ? 1 : -1;
+                continue;
+            }
+            PageLoad load = pageFor(position, forward, prefetch);
+            load.future = executor.submit(load);
+            pending.add(load);
+            position = forward ? load.to + 1 : load.from - 1;
+        }
+    }
+
+    // seek from a neighbouring loaded row when there is one close by, else fall back to the offset
+    private PageLoad pageFor(int position, boolean forward, boolean prefetch) {
+        int gapStart = position;
+        while (gapStart > 0 && rows.get(gapStart - 1) == null) {
+            gapStart--;
+        }
+        int gapEnd = position;
+        while (gapEnd < rows.size() - 1 && rows.get(gapEnd + 1) == null) {
+            gapEnd++;
+        }
+
+        if (forward && position - gapStart < PAGE_SIZE) {
+            return new PageLoad(SEEK_AFTER, gapStart > 0 ? rows.get(gapStart - 1) : null,
+                    gapStart, Math.min(gapEnd, gapStart + PAGE_SIZE - 1), prefetch);
+        }
+        if (!forward && gapEnd - position < PAGE_SIZE) {
+            return new PageLoad(SEEK_BEFORE, gapEnd < rows.size() - 1 ? rows.get(gapEnd + 1) : null,
+                    Math.max(gapStart, gapEnd - PAGE_SIZE + 1), gapEnd, prefetch);
+        }
+        int from = forward ? position : Math.max(gapStart, position - PAGE_SIZE + 1);
+        return new PageLoad(OFFSET, null, from, Math.min(gapEnd, from + PAGE_SIZE - 1), prefetch);
+    }
+
+    private boolean isPending(int position) {
+        for (PageLoad load : pending) {
+            if (load.from <= position && position <= load.to) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void fill(PageLoad load, List<Note> notes) {
+        int count = Math.min(notes.size(), load.to - load.from + 1);
+        if (count == 0) {
+            return;
+        }
+        // a page seeking backwards ends at the anchor, the others start at their first slot
+        int from = load.mode == SEEK_BEFORE ? load.to - count + 1 : load.from;
+        int offset = load.mode == SEEK_BEFORE ? notes.size() - count : 0;
+        for (int i = 0; i < count; i++) {
+            if (rows.get(from + i) == null) {
+                rows.set(from + i, notes.get(offset + i));
+                loadedBytes += sizeOf(notes.get(offset + i));
+            }
+        }
+        listener.onRowsLoaded(from, count);
+        cacheCoordinator.checkBudget();
+    }
+
+    private static long sizeOf(Note note) {
+        if (note == null) {
+            return 0;
+        }
+        long bytes = ROW_OVERHEAD_BYTES;
+        bytes += 2L * (length(note.getNote()) + length(note.getPreview()) + length(note.getTimestamp())
+                + length(note.getUuid()) + length(note.getImageHash()) + length(note.getSortKey())
+                + length(note.getPlaceholder()));
+        if (note.getImage() != null) {
+            bytes += note.getImage().length;
+        }
+        return bytes;
+    }
+
+    private static int length(String s) {
+        return s != null ? s.length() : 0;
+    }
+
+    private void positionsShifted() {
+        generation++;
+        for (PageLoad load : pending) {
+            load.future.cancel(false);
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,275 @@
+package my.homelane.app.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.View;
+import android.view.WindowManager;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import my.homelane.app.utils.Metrics;
+
+/**
+ * Frame timing while the notes list scrolls, for debug builds. Frames are
+ * timed from one Choreographer callback to the next, so a frame that misses
+ * its vsync shows as a long interval; one over one and a half vsyncs is
+ * janky. The adapter and the item decorations report the time they take, so a
+ * report also tells how much went to binding rows and to drawing decorations,
+ * and how many frames ran while item animations did.
+ *
+ * A report covers one scroll, from leaving idle to idle again, or everything
+ * between {@link #startCapture} and {@link #stopCapture}. Only accessed on the
+ * main thread.
+ */
+
+public class ScrollJankMonitor extends RecyclerView.OnScrollListener implements Choreographer.FrameCallback {
+
+    private static final String TAG = ScrollJankMonitor.class.getSimpleName();
+
+    private static final Metrics.Histogram FRAME = Metrics.histogram("ui.scrollFrame");
+    private static final Metrics.Histogram BIND = Metrics.histogram("ui.bind");
+    private static final Metrics.Histogram DECORATION_DRAW = Metrics.histogram("ui.decorationDraw");
+    private static final Metrics.Counter JANKY_FRAMES = Metrics.counter("ui.jankyFrames");
+
+    // frames kept per report, a minute of scrolling at 60 Hz
+    private static final int MAX_FRAMES = 3600;
+
+    /**
+     * Frame timing over a scroll or a capture.
+     */
+    public static class Report {
+        public final long vsyncNanos;
+        public final long[] frameNanos;
+        public final int jankyFrames;
+        // vsyncs that passed without a new frame
+        public final int droppedFrames;
+        public final int animatingFrames;
+        public final int binds;
+        public final long bindNanos;
+        public final long decorationNanos;
+        public final long durationNanos;
+
+        Report(long vsyncNanos, long[] frameNanos, int jankyFrames, int droppedFrames, int animatingFrames,
+               int binds, long bindNanos, long decorationNanos, long durationNanos) {
+            this.vsyncNanos = vsyncNanos;
+            this.frameNanos = frameNanos;
+            this.jankyFrames = jankyFrames;
+            this.droppedFrames = droppedFrames;
+            this.animatingFrames = animatingFrames;
+            this.binds = binds;
+            this.bindNanos = bindNanos;
+            this.decorationNanos = decorationNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        public int getFrames() {
+            return frameNanos.length;
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         */
+        public long getPercentileNanos(double quantile) {
+            if (frameNanos.length == 0) {
+                return 0;
+            }
+            long[] sorted = frameNanos.clone();
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d frames in %d ms, %d janky, %d dropped, %d animating;"
+                            + " p50 %.1f ms, p90 %.1f ms, p99 %.1f ms; %d binds %.1f ms, decorations %.1f ms",
+                    getFrames(), durationNanos / 1000000, jankyFrames, droppedFrames, animatingFrames,
+                    getPercentileNanos(0.5) / 1e6, getPercentileNanos(0.9) / 1e6, getPercentileNanos(0.99) / 1e6,
+                    binds, bindNanos / 1e6, decorationNanos / 1e6);
+        }
+    }
+
+    private final RecyclerView recyclerView;
+    private final long vsyncNanos;
+
+    private boolean scrolling;
+    private boolean capturing;
+    private boolean frameCallbackPosted;
+    private long firstFrameTime;
+    private long lastFrameTime;
+    private final long[] frames = new long[MAX_FRAMES];
+    private int frameCount;
+    private int jankyFrames;
+    private int droppedFrames;
+    private int animatingFrames;
+    private int binds;
+    private long bindNanos;
+    private long decorationNanos;
+    private Report lastReport;
+
+    private ScrollJankMonitor(RecyclerView recyclerView, long vsyncNanos) {
+        this.recyclerView = recyclerView;
+        this.vsyncNanos = vsyncNanos;
+    }
+
+    /**
+     * Starts timing the scrolls of the list.
+     */
+    public static ScrollJankMonitor attach(RecyclerView recyclerView) {
+        WindowManager windowManager = (WindowManager) recyclerView.getContext().getSystemService(Context.WINDOW_SERVICE);
+        Display display = windowManager.getDefaultDisplay();
+        float refreshRate = display.getRefreshRate() > 1 ? display.getRefreshRate() : 60;
+        ScrollJankMonitor monitor = new ScrollJankMonitor(recyclerView, (long) (1e9 / refreshRate));
+        recyclerView.addOnScrollListener(monitor);
+        return monitor;
+    }
+
+    /**
+     * Times the decoration's drawing into the reports; add the result to the list instead of it.
+     */
+    public RecyclerView.ItemDecoration timed(final RecyclerView.ItemDecoration decoration) {
+        return new RecyclerView.ItemDecoration() {
+            @Override
+            public void getItemOffsets(Rect outRect, View view, RecyclerView parent, RecyclerView.State state) {
+                decoration.getItemOffsets(outRect, view, parent, state);
+            }
+
+            @Override
+            public void onDraw(Canvas c, RecyclerView parent, RecyclerView.State state) {
+                long start = System.nanoTime();
+                decoration.onDraw(c, parent, state);
+                recordDecorationDraw(start);
+            }
+
+            @Override
+            public void onDrawOver(Canvas c, RecyclerView parent, RecyclerView.State state) {
+                long start = System.nanoTime();
+                decoration.onDrawOver(c, parent, state);
+                recordDecorationDraw(start);
+            }
+        };
+    }
+
+    /**
+     * Called by the adapter after binding a row.
+     */
+    public void recordBind(long startNanos) {
+        if (isTiming()) {
+            binds++;
+            bindNanos += System.nanoTime() - startNanos;
+            BIND.recordSince(startNanos);
+        }
+    }
+
+    private void recordDecorationDraw(long startNanos) {
+        if (isTiming()) {
+            decorationNanos += System.nanoTime() - startNanos;
+            DECORATION_DRAW.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Times every frame from now on, scrolling or not, until {@link #stopCapture}, e.g. over a scripted scroll.
+     */
+    public void startCapture() {
+        if (!scrolling) {
+            reset();
+        }
+        capturing = true;
+        postFrameCallback();
+    }
+
+    public Report stopCapture() {
+        capturing = false;
+        finish();
+        return lastReport;
+    }
+
+    /**
+     * @return the report of the latest scroll or capture, null before the first
+     */
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+        boolean nowScrolling = newState != RecyclerView.SCROLL_STATE_IDLE;
+        if (nowScrolling == scrolling) {
+            return;
+        }
+        scrolling = nowScrolling;
+        if (capturing) {
+            return;
+        }
+        if (scrolling) {
+            reset();
+            postFrameCallback();
+        } else {
+            finish();
+            Log.d(TAG, "Scroll: " + lastReport);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameCallbackPosted = false;
+        if (!isTiming()) {
+            return;
+        }
+        if (lastFrameTime == 0) {
+            firstFrameTime = frameTimeNanos;
+        } else {
+            long interval = frameTimeNanos - lastFrameTime;
+            if (frameCount < frames.length) {
+                frames[frameCount++] = interval;
+            }
+            FRAME.record(interval / 1000);
+            if (interval * 2 > vsyncNanos * 3) {
+                jankyFrames++;
+                JANKY_FRAMES.increment();
+            }
+            droppedFrames += Math.max(0, Math.round((double) interval / vsyncNanos) - 1);
+            RecyclerView.ItemAnimator animator = recyclerView.getItemAnimator();
+            if (animator != null && animator.isRunning()) {
+                animatingFrames++;
+            }
+        }
+        lastFrameTime = frameTimeNanos;
+        postFrameCallback();
+    }
+
+    private boolean isTiming() {
+        return scrolling || capturing;
+    }
+
+    private void postFrameCallback() {
+        if (!frameCallbackPosted) {
+            frameCallbackPosted = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    private void reset() {
+        firstFrameTime = 0;
+        lastFrameTime = 0;
+        frameCount = 0;
+        jankyFrames = 0;
+        droppedFrames = 0;
+        animatingFrames = 0;
+        binds = 0;
+        bindNanos = 0;
+        decorationNanos = 0;
+    }
+
+    private void finish() {
+        lastReport = new Report(vsyncNanos, Arrays.copyOf(frames, frameCount), jankyFrames, droppedFrames,
+                animatingFrames, binds, bindNanos, decorationNanos, lastFrameTime - firstFrameTime);
+    }
+}
@@ -0,0 +1,101 @@
+package my.homelane.app.view;
+
+import android.os.SystemClock;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+/**
+ * Loads the rows and thumbnails the list is about to scroll onto.
+ *
+ * The scroll speed in rows per second decides how far ahead to look, so a
+ * fling prefetches several pages while a slow drag only tops up the next few
+ * rows. When the scroll turns around, whatever was queued for the old
+ * direction is cancelled before it takes the background threads.
+ */
+
+public class ScrollPrefetcher extends RecyclerView.OnScrollListener {
+
+    // how far ahead in time to have rows ready
+    private static final long LOOKAHEAD_MILLIS = 600;
+    private static final int MIN_LOOKAHEAD_ROWS = PagedNoteList.PAGE_SIZE / 2;
+    private static final int MAX_LOOKAHEAD_ROWS = PagedNoteList.PAGE_SIZE * 4;
+    // thumbnails are dearer than rows, fetch them over a shorter stretch
+    private static final int MAX_THUMBNAIL_ROWS = 20;
+    // weight of the latest sample in the smoothed velocity
+    private static final float SMOOTHING = 0.3f;
+
+    private final LinearLayoutManager layoutManager;
+    private final PagedNoteList notes;
+    private final ThumbnailLoader thumbnails;
+
+    private int direction;
+    private float rowsPerSecond;
+    private int lastFirstVisible = RecyclerView.NO_POSITION;
+    private long lastSampleTime;
+
+    public ScrollPrefetcher(LinearLayoutManager layoutManager, PagedNoteList notes, ThumbnailLoader thumbnails) {
+        this.layoutManager = layoutManager;
+        this.notes = notes;
+        this.thumbnails = thumbnails;
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            rowsPerSecond = 0;
+            lastFirstVisible = RecyclerView.NO_POSITION;
+        }
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            return;
+        }
+        notes.setVisibleRange(first, last);
+        if (dy == 0) {
+            return;
+        }
+
+        int newDirection = dy > 0 ? 1 : -1;
+        if (newDirection != direction) {
+            direction = newDirection;
+            rowsPerSecond = 0;
+            notes.cancelPrefetches();
+            thumbnails.cancelPrefetches();
+        }
+
+        long now = SystemClock.uptimeMillis();
+        // sampled per row crossed, a scroll callback moves by a few pixels only
+        if (lastFirstVisible == RecyclerView.NO_POSITION) {
+            lastFirstVisible = first;
+            lastSampleTime = now;
+        } else if (first != lastFirstVisible && now > lastSampleTime) {
+            float sample = Math.abs(first - lastFirstVisible) * 1000f / (now - lastSampleTime);
+            rowsPerSecond += SMOOTHING * (sample - rowsPerSecond);
+            lastFirstVisible = first;
+            lastSampleTime = now;
+        }
+
+        int lookahead = (int) (rowsPerSecond * LOOKAHEAD_MILLIS / 1000) + (last - first + 1);
+        lookahead = Math.max(MIN_LOOKAHEAD_ROWS, Math.min(MAX_LOOKAHEAD_ROWS, lookahead));
+
+        boolean forward = direction > 0;
+        int from = forward ? last + 1 : first - lookahead;
+        int to = forward ? last + lookahead : first - 1;
+        notes.prefetch(from, to, forward);
+        prefetchThumbnails(forward ? from : to, Math.min(lookahead, MAX_THUMBNAIL_ROWS), direction);
+    }
+
+    private void prefetchThumbnails(int start, int count, int step) {
+        for (int i = 0, position = start; i < count && position >= 0 && position < notes.size();
+             i++, position += step) {
+            String imageHash = notes.get(position) != null ? notes.get(position).getImageHash() : null;
+            if (imageHash != null) {
+                thumbnails.prefetch(imageHash);
+            }
+        }
+    }
+}
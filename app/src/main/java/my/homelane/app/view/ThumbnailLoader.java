@@ -0,0 +1,195 @@
+package my.homelane.app.view;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import my.homelane.app.database.ImageStore;
+import my.homelane.app.utils.CacheCoordinator;
+import my.homelane.app.utils.Metrics;
+
+/**
+ * Decodes list thumbnails of note images in the background, downsampled to the
+ * size they are shown at, and keeps the recent ones in memory, as much of the
+ * shared cache budget as it is left. Only accessed on the main thread.
+ */
+
+public class ThumbnailLoader implements CacheCoordinator.Cache {
+
+    private static final String TAG = ThumbnailLoader.class.getSimpleName();
+
+    private static final Metrics.Histogram DECODE = Metrics.histogram("image.decodeThumbnail");
+
+    public interface Callback {
+        void onThumbnail(String imageHash, Bitmap thumbnail);
+    }
+
+    private class Decode implements Runnable {
+        final String imageHash;
+        final List<Callback> callbacks = new ArrayList<>();
+        boolean prefetch = true;
+        Future<?> future;
+
+        Decode(String imageHash) {
+            this.imageHash = imageHash;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            final Bitmap thumbnail = decode(imageHash);
+            DECODE.recordSince(start);
+            mainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (pending.get(imageHash) == Decode.this) {
+                        pending.remove(imageHash);
+                    }
+                    if (thumbnail == null) {
+                        return;
+                    }
+                    cache.put(imageHash, thumbnail);
+                    cacheCoordinator.checkBudget();
+                    for (Callback callback : callbacks) {
+                        callback.onThumbnail(imageHash, thumbnail);
+                    }
+                }
+            });
+        }
+    }
+
+    private final ImageStore imageStore;
+    private final ExecutorService executor;
+    private final Executor mainThread;
+    private final int sizePx;
+    private final LruCache<String, Bitmap> cache;
+    private final Map<String, Decode> pending = new HashMap<>();
+    private final CacheCoordinator cacheCoordinator;
+
+    public ThumbnailLoader(ImageStore imageStore, ExecutorService executor, Executor mainThread,
+                           int sizePx, CacheCoordinator cacheCoordinator) {
+        this.imageStore = imageStore;
+        this.executor = executor;
+        this.mainThread = mainThread;
+        this.sizePx = sizePx;
+        this.cacheCoordinator = cacheCoordinator;
+        this.cache = new LruCache<String, Bitmap>((int) cacheCoordinator.getBudgetBytes()) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        cacheCoordinator.register(this, CacheCoordinator.PRIORITY_LOW);
+    }
+
+    /**
+     * @return the thumbnail if it is in memory, else null
+     */
+    public Bitmap get(String imageHash) {
+        return cache.get(imageHash);
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return cache.size();
+    }
+
+    /**
+     * Drops the least recently shown thumbnails, rows on screen decode theirs again when bound.
+     */
+    @Override
+    public void trimTo(long maxBytes) {
+        cache.trimToSize((int) Math.min(Integer.MAX_VALUE, maxBytes));
+    }
+
+    /**
+     * Decodes the thumbnail for a row on screen; the callback runs on the main thread.
+     */
+    public void load(String imageHash, Callback callback) {
+        Decode decode = start(imageHash);
+        if (decode != null) {
+            decode.prefetch = false;
+            decode.callbacks.add(callback);
+        }
+    }
+
+    /**
+     * Decodes the thumbnail of a row that is about to scroll into view.
+     */
+    public void prefetch(String imageHash) {
+        start(imageHash);
+    }
+
+    /**
+     * Drops queued prefetches no row on screen waits for.
+     */
+    public void cancelPrefetches() {
+        Iterator<Decode> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Decode decode = iterator.next();
+            if (decode.prefetch && decode.future.cancel(false)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // null when it is already in memory
+    private Decode start(String imageHash) {
+        if (cache.get(imageHash) != null) {
+            return null;
+        }
+        Decode decode = pending.get(imageHash);
+        if (decode == null) {
+            decode = new Decode(imageHash);
+            decode.future = executor.submit(decode);
+            pending.put(imageHash, decode);
+        }
+        return decode;
+    }
+
+    // read twice, for the size and then the pixels, decrypting each time if the image is encrypted
+    private Bitmap decode(String imageHash) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decode(imageHash, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            // the largest power of two that keeps both sides at least the shown size
+            int sampleSize = 1;
+            while (options.outWidth / (sampleSize * 2) >= sizePx && options.outHeight / (sampleSize * 2) >= sizePx) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            return decode(imageHash, options);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read image " + imageHash, e);
+            return null;
+        }
+    }
+
+    private Bitmap decode(String imageHash, BitmapFactory.Options options) throws IOException {
+        InputStream in = imageStore.open(imageHash);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
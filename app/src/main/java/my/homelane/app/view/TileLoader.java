@@ -0,0 +1,348 @@
+package my.homelane.app.view;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import my.homelane.app.database.ImageStore;
+import my.homelane.app.utils.CacheCoordinator;
+import my.homelane.app.utils.Metrics;
+
+/**
+ * Decodes one stored image a tile at a time with {@link BitmapRegionDecoder},
+ * so it can be looked at in full detail without ever being decoded whole. A
+ * tile is {@link #TILE_PX} pixels square once decoded; at a sample size of 4
+ * it covers four times that of the image. Decoded tiles are kept in memory, as
+ * much of the shared cache budget as they are left, and tiles that scroll out
+ * of view before their turn are not decoded at all.
+ *
+ * Accessed on the main thread, except for the decoder, which the decode
+ * threads share under its lock.
+ */
+
+public class TileLoader implements CacheCoordinator.Cache {
+
+    private static final String TAG = TileLoader.class.getSimpleName();
+
+    private static final Metrics.Histogram OPEN = Metrics.histogram("image.openRegionDecoder");
+    private static final Metrics.Histogram DECODE = Metrics.histogram("image.decodeTile");
+
+    public static final int TILE_PX = 256;
+
+    public interface Callback {
+        /**
+         * The image is ready to be drawn from.
+         *
+         * @param preview the whole image at a sample size that fills the screen, null if it cannot be decoded
+         */
+        void onOpened(int width, int height, int previewSampleSize, Bitmap preview);
+
+        void onTile(Tile tile, Bitmap bitmap);
+    }
+
+    /**
+     * A square of the image at a sample size.
+     */
+    public static final class Tile {
+        final int sampleSize;
+        final int column;
+        final int row;
+
+        public Tile(int sampleSize, int column, int row) {
+            this.sampleSize = sampleSize;
+            this.column = column;
+            this.row = row;
+        }
+
+        /**
+         * @return the part of the image it covers, cut off at the image's edges
+         */
+        public Rect getBounds(int imageWidth, int imageHeight) {
+            int side = TILE_PX * sampleSize;
+            return new Rect(column * side, row * side,
+                    Math.min(imageWidth, (column + 1) * side), Math.min(imageHeight, (row + 1) * side));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Tile)) {
+                return false;
+            }
+            Tile other = (Tile) o;
+            return sampleSize == other.sampleSize && column == other.column && row == other.row;
+        }
+
+        @Override
+        public int hashCode() {
+            return (sampleSize * 31 + column) * 31 + row;
+        }
+    }
+
+    private class Decode implements Runnable {
+        final Tile tile;
+        Future<?> future;
+
+        Decode(Tile tile) {
+            this.tile = tile;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            final Bitmap bitmap = decodeTile(tile);
+            DECODE.recordSince(start);
+            mainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (pending.get(tile) == Decode.this) {
+                        pending.remove(tile);
+                    }
+                    if (bitmap == null || closed) {
+                        return;
+                    }
+                    cache.put(tile, bitmap);
+                    cacheCoordinator.checkBudget();
+                    callback.onTile(tile, bitmap);
+                }
+            });
+        }
+    }
+
+    private final ImageStore imageStore;
+    private final String imageHash;
+    private final ExecutorService executor;
+    private final Executor mainThread;
+    private final CacheCoordinator cacheCoordinator;
+    private final LruCache<Tile, Bitmap> cache;
+    private final Map<Tile, Decode> pending = new HashMap<>();
+    private final Object decoderLock = new Object();
+
+    // guarded by decoderLock, null until opened and after closing
+    private BitmapRegionDecoder decoder;
+    private int imageWidth;
+    private int imageHeight;
+    private Callback callback;
+    private boolean closed;
+
+    public TileLoader(ImageStore imageStore, String imageHash, ExecutorService executor, Executor mainThread,
+                      CacheCoordinator cacheCoordinator) {
+        this.imageStore = imageStore;
+        this.imageHash = imageHash;
+        this.executor = executor;
+        this.mainThread = mainThread;
+        this.cacheCoordinator = cacheCoordinator;
+        this.cache = new LruCache<Tile, Bitmap>((int) cacheCoordinator.getBudgetBytes()) {
+            @Override
+            protected int sizeOf(Tile key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        cacheCoordinator.register(this, CacheCoordinator.PRIORITY_HIGH);
+    }
+
+    /**
+     * Reads the image's size and a preview in the background, the callback
+     * hears about them and about every tile decoded later, on the main thread.
+     *
+     * @param viewWidth the preview is decoded to about the size of the view
+     */
+    public void open(final int viewWidth, final int viewHeight, Callback callback) {
+        this.callback = callback;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                BitmapRegionDecoder opened = openDecoder();
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                final Bitmap preview = decodePreview(viewWidth, viewHeight, options);
+                synchronized (decoderLock) {
+                    if (closed) {
+                        if (opened != null) {
+                            opened.recycle();
+                        }
+                        return;
+                    }
+                    decoder = opened;
+                }
+                OPEN.recordSince(start);
+                final int width = options.outWidth;
+                final int height = options.outHeight;
+                final int previewSampleSize = options.inSampleSize;
+                mainThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (closed) {
+                            return;
+                        }
+                        imageWidth = width;
+                        imageHeight = height;
+                        TileLoader.this.callback.onOpened(width, height, previewSampleSize, preview);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return whether tiles can be decoded, false when the format has no region decoder
+     */
+    public boolean canDecodeTiles() {
+        synchronized (decoderLock) {
+            return decoder != null;
+        }
+    }
+
+    /**
+     * @return the tile if it is in memory, else null
+     */
+    public Bitmap get(Tile tile) {
+        return cache.get(tile);
+    }
+
+    /**
+     * Queues the decoding of a tile that is in view, unless it is in memory or queued already.
+     */
+    public void load(Tile tile) {
+        if (closed || cache.get(tile) != null || pending.containsKey(tile)) {
+            return;
+        }
+        Decode decode = new Decode(tile);
+        decode.future = executor.submit(decode);
+        pending.put(tile, decode);
+    }
+
+    /**
+     * Drops queued decodes of tiles that are no longer in view, e.g. after a
+     * fast pan or a change of zoom, so the ones in view come sooner.
+     */
+    public void retain(Collection<Tile> visible) {
+        Iterator<Map.Entry<Tile, Decode>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Tile, Decode> entry = iterator.next();
+            if (!visible.contains(entry.getKey()) && entry.getValue().future.cancel(false)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return cache.size();
+    }
+
+    /**
+     * Drops the least recently drawn tiles, the view decodes the ones it is missing again.
+     */
+    @Override
+    public void trimTo(long maxBytes) {
+        cache.trimToSize((int) Math.min(Integer.MAX_VALUE, maxBytes));
+    }
+
+    /**
+     * Cancels what is queued and frees the decoder and the tiles; a decode
+     * already running finishes first.
+     */
+    public void close() {
+        closed = true;
+        List<Decode> queued = new ArrayList<>(pending.values());
+        for (Decode decode : queued) {
+            decode.future.cancel(false);
+        }
+        pending.clear();
+        cache.evictAll();
+        cacheCoordinator.unregister(this);
+        synchronized (decoderLock) {
+            if (decoder != null) {
+                decoder.recycle();
+                decoder = null;
+            }
+        }
+    }
+
+    // a plain file is read where it lies; an encrypted one is decrypted into the decoder, which keeps it in memory
+    private BitmapRegionDecoder openDecoder() {
+        try {
+            if (!imageStore.isEncrypted(imageHash)) {
+                return BitmapRegionDecoder.newInstance(imageStore.getFile(imageHash).getPath(), false);
+            }
+            InputStream in = imageStore.open(imageHash);
+            try {
+                return BitmapRegionDecoder.newInstance(in, false);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // e.g. a format without region decoding, the preview is all there is then
+            Log.w(TAG, "No region decoder for image " + imageHash, e);
+            return null;
+        }
+    }
+
+    // leaves the image's size and the sample size of the preview in options
+    private Bitmap decodePreview(int viewWidth, int viewHeight, BitmapFactory.Options options) {
+        try {
+            options.inJustDecodeBounds = true;
+            decode(options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            // the largest power of two that still fills the view at least as well as fitting it
+            int sampleSize = 1;
+            while (options.outWidth / (sampleSize * 2) >= viewWidth || options.outHeight / (sampleSize * 2) >= viewHeight) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            int width = options.outWidth;
+            int height = options.outHeight;
+            Bitmap preview = decode(options);
+            // decoding overwrites them with the preview's size
+            options.outWidth = width;
+            options.outHeight = height;
+            return preview;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read image " + imageHash, e);
+            return null;
+        }
+    }
+
+    private Bitmap decode(BitmapFactory.Options options) throws IOException {
+        InputStream in = imageStore.open(imageHash);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    private Bitmap decodeTile(Tile tile) {
+        Rect bounds = tile.getBounds(imageWidth, imageHeight);
+        if (bounds.isEmpty()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = tile.sampleSize;
+        synchronized (decoderLock) {
+            if (decoder == null) {
+                return null;
+            }
+            return decoder.decodeRegion(bounds, options);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package my.homelane.app.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Shows an image fitted to the screen, to be zoomed with a pinch or a double
+ * tap and panned with a finger. The preview {@link TileLoader} decoded is drawn
+ * underneath; on top, once zoomed in past what it holds, are the tiles in view
+ * at the sample size the zoom needs, decoded as they come into view.
+ */
+
+public class TiledImageView extends View implements TileLoader.Callback {
+
+    // zoomed all the way in, an image pixel is this many screen pixels
+    private static final float MAX_SCALE = 2f;
+
+    public interface Listener {
+        /**
+         * The image could not be read or decoded, there is nothing to show.
+         */
+        void onImageFailed();
+    }
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final ScaleGestureDetector scaleDetector;
+    private final GestureDetector gestureDetector;
+    private final Set<TileLoader.Tile> visible = new HashSet<>();
+    private final Rect source = new Rect();
+    private final RectF destination = new RectF();
+
+    private TileLoader loader;
+    private Listener listener;
+    private int imageWidth;
+    private int imageHeight;
+    private Bitmap preview;
+    private int previewSampleSize;
+
+    // screen = image * scale + translation
+    private float scale;
+    private float minScale;
+    private float translateX;
+    private float translateY;
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoomTo(scale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                translateX -= distanceX;
+                translateY -= distanceY;
+                clampTranslation();
+                invalidate();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                // between fitting the screen and one image pixel per screen pixel
+                zoomTo(scale > minScale * 1.01f ? minScale : Math.max(1f, minScale * 2), e.getX(), e.getY());
+                return true;
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts loading the image, once the view knows its size. The view does
+     * not close the loader, its owner does.
+     */
+    public void setTileLoader(final TileLoader loader) {
+        this.loader = loader;
+        if (getWidth() > 0 && getHeight() > 0) {
+            loader.open(getWidth(), getHeight(), this);
+            return;
+        }
+        addOnLayoutChangeListener(new OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                       int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                removeOnLayoutChangeListener(this);
+                loader.open(getWidth(), getHeight(), TiledImageView.this);
+            }
+        });
+    }
+
+    @Override
+    public void onOpened(int width, int height, int previewSampleSize, Bitmap preview) {
+        this.imageWidth = width;
+        this.imageHeight = height;
+        this.preview = preview;
+        this.previewSampleSize = previewSampleSize;
+        if (preview == null) {
+            imageWidth = 0;
+            if (listener != null) {
+                listener.onImageFailed();
+            }
+            return;
+        }
+        fit();
+        invalidate();
+    }
+
+    @Override
+    public void onTile(TileLoader.Tile tile, Bitmap bitmap) {
+        if (visible.contains(tile)) {
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (imageWidth > 0) {
+            fit();
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (imageWidth <= 0) {
+            return false;
+        }
+        scaleDetector.onTouchEvent(event);
+        gestureDetector.onTouchEvent(event);
+        return true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (imageWidth <= 0 || preview == null) {
+            return;
+        }
+        destination.set(translateX, translateY, translateX + imageWidth * scale, translateY + imageHeight * scale);
+        canvas.drawBitmap(preview, null, destination, paint);
+
+        visible.clear();
+        int sampleSize = sampleSizeFor(scale);
+        if (sampleSize < previewSampleSize && loader.canDecodeTiles()) {
+            drawTiles(canvas, sampleSize);
+        }
+        loader.retain(visible);
+    }
+
+    private void drawTiles(Canvas canvas, int sampleSize) {
+        int side = TileLoader.TILE_PX * sampleSize;
+        // the part of the image on screen
+        int left = Math.max(0, (int) (-translateX / scale));
+        int top = Math.max(0, (int) (-translateY / scale));
+        int right = Math.min(imageWidth, (int) Math.ceil((getWidth() - translateX) / scale));
+        int bottom = Math.min(imageHeight, (int) Math.ceil((getHeight() - translateY) / scale));
+        for (int row = top / side; row * side < bottom; row++) {
+            for (int column = left / side; column * side < right; column++) {
+                TileLoader.Tile tile = new TileLoader.Tile(sampleSize, column, row);
+                visible.add(tile);
+                Bitmap bitmap = loader.get(tile);
+                if (bitmap == null) {
+                    loader.load(tile);
+                    continue;
+                }
+                Rect bounds = tile.getBounds(imageWidth, imageHeight);
+                source.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+                destination.set(translateX + bounds.left * scale, translateY + bounds.top * scale,
+                        translateX + bounds.right * scale, translateY + bounds.bottom * scale);
+                canvas.drawBitmap(bitmap, source, destination, paint);
+            }
+        }
+    }
+
+    // the largest power of two that decodes at least one image pixel per screen pixel
+    private static int sampleSizeFor(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void fit() {
+        minScale = Math.min((float) getWidth() / imageWidth, (float) getHeight() / imageHeight);
+        scale = minScale;
+        clampTranslation();
+    }
+
+    private void zoomTo(float newScale, float focusX, float focusY) {
+        newScale = Math.max(minScale, Math.min(Math.max(minScale, MAX_SCALE), newScale));
+        // the image point under the focus stays there
+        translateX = focusX - (focusX - translateX) * newScale / scale;
+        translateY = focusY - (focusY - translateY) * newScale / scale;
+        scale = newScale;
+        clampTranslation();
+        invalidate();
+    }
+
+    // centred along a side smaller than the view, else kept from leaving a gap at the edges
+    private void clampTranslation() {
+        float width = imageWidth * scale;
+        float height = imageHeight * scale;
+        if (width <= getWidth()) {
+            translateX = (getWidth() - width) / 2;
+        } else {
+            translateX = Math.max(getWidth() - width, Math.min(0, translateX));
+        }
+        if (height <= getHeight()) {
+            translateY = (getHeight() - height) / 2;
+        } else {
+            translateY = Math.max(getHeight() - height, Math.min(0, translateY));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package my.homelane.app.crypto;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of the chunked stream format and the sealed fields, and the
+ * ways a stream can be tampered with, on the host JVM.
+ */
+public class ChunkedCipherTest {
+
+    private static final int CHUNK = 1024;
+
+    private SecretKey key;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        random = new Random(7);
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        key = new SecretKeySpec(bytes, "AES");
+    }
+
+    @Test
+    public void roundTripsAroundChunkBoundaries() throws IOException {
+        int[] sizes = {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK, 3 * CHUNK + 17};
+        for (int size : sizes) {
+            byte[] plain = randomBytes(size);
+            byte[] encrypted = encrypt(plain);
+            assertTrue(ChunkedCipher.isEncrypted(encrypted, encrypted.length));
+            assertArrayEquals("size " + size, plain, decrypt(encrypted));
+        }
+    }
+
+    @Test
+    public void largeImageStreamsInChunks() throws IOException {
+        byte[] plain = randomBytes(10 * 1024 * 1024);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = ChunkedCipher.encrypt(key, sink);
+        // written in odd pieces, like an encoder would
+        for (int offset = 0; offset < plain.length; offset += 7919) {
+            out.write(plain, offset, Math.min(7919, plain.length - offset));
+        }
+        out.close();
+        byte[] encrypted = sink.toByteArray();
+        int chunks = (plain.length + ChunkedCipher.DEFAULT_CHUNK_BYTES - 1) / ChunkedCipher.DEFAULT_CHUNK_BYTES;
+        assertEquals(ChunkedCipher.HEADER_BYTES + plain.length + chunks * 16, encrypted.length);
+        assertArrayEquals(plain, readAll(ChunkedCipher.decrypt(key, new ByteArrayInputStream(encrypted))));
+    }
+
+    @Test
+    public void plainImagesAreNotTakenForEncrypted() {
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F'};
+        assertFalse(ChunkedCipher.isEncrypted(jpeg, jpeg.length));
+        assertFalse(ChunkedCipher.isEncrypted(new byte[0], 0));
+    }
+
+    @Test
+    public void truncationAtAChunkBoundaryIsDetected() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK));
+        int sealedChunk = CHUNK + 16;
+        assertFails(Arrays.copyOf(encrypted, ChunkedCipher.HEADER_BYTES + 2 * sealedChunk));
+        assertFails(Arrays.copyOf(encrypted, ChunkedCipher.HEADER_BYTES));
+        assertFails(Arrays.copyOf(encrypted, encrypted.length - 1));
+    }
+
+    @Test
+    public void reorderedChunksAreDetected() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK));
+        int sealedChunk = CHUNK + 16;
+        byte[] swapped = encrypted.clone();
+        System.arraycopy(encrypted, ChunkedCipher.HEADER_BYTES, swapped,
+                ChunkedCipher.HEADER_BYTES + sealedChunk, sealedChunk);
+        System.arraycopy(encrypted, ChunkedCipher.HEADER_BYTES + sealedChunk, swapped,
+                ChunkedCipher.HEADER_BYTES, sealedChunk);
+        assertFails(swapped);
+    }
+
+    @Test
+    public void alteredBytesAreDetected() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(2 * CHUNK));
+        for (int position : new int[]{ChunkedCipher.HEADER_BYTES - 1, ChunkedCipher.HEADER_BYTES + 5,
+                encrypted.length - 1}) {
+            byte[] altered = encrypted.clone();
+            altered[position] ^= 1;
+            assertFails(altered);
+        }
+    }
+
+    @Test
+    public void otherKeyCannotDecrypt() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(100));
+        byte[] other = new byte[32];
+        key = new SecretKeySpec(other, "AES");
+        assertFails(encrypted);
+    }
+
+    @Test
+    public void sealedFieldsRoundTripAndAreMarked() throws Exception {
+        byte[] text = "12 Elm Street, flat 3".getBytes("UTF-8");
+        byte[] sealed = FieldCipher.seal(key, text);
+        assertTrue(FieldCipher.isSealed(sealed));
+        assertFalse(FieldCipher.isSealed(text));
+        assertArrayEquals(text, FieldCipher.open(key, sealed));
+        // a new nonce every time
+        assertFalse(Arrays.equals(sealed, FieldCipher.seal(key, text)));
+    }
+
+    private byte[] encrypt(byte[] plain) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = ChunkedCipher.encrypt(key, sink, CHUNK);
+        out.write(plain);
+        out.close();
+        return sink.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] encrypted) throws IOException {
+        return readAll(ChunkedCipher.decrypt(key, new ByteArrayInputStream(encrypted)));
+    }
+
+    private void assertFails(byte[] encrypted) {
+        try {
+            decrypt(encrypted);
+            fail("decrypted " + encrypted.length + " bytes that were tampered with");
+        } catch (IOException expected) {
+            // the point
+        }
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,86 @@
+package my.homelane.app.database;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.Collections;
+
+import my.homelane.app.database.model.Tag;
+
+import static org.junit.Assert.*;
+
+/**
+ * Backup and restore of the notes, on the host JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BackupManagerTest {
+
+    private static final String DATABASE = "backup_test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Context context;
+    private DatabaseHelper db;
+    private BackupManager backups;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE);
+        backups = new BackupManager(context, db);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void restoreKeepsTags() throws Exception {
+        long tagged = db.insertNote("kitchen tiles");
+        long untagged = db.insertNote("hallway");
+        long tagId = db.addTag("Smith house");
+        db.setNoteTags(tagged, Collections.singleton(tagId));
+
+        File base = folder.newFile("base.bak");
+        backups.writeFullBackup(base);
+        db.updateNote(db.getNote(tagged), null);
+        File increment = folder.newFile("increment.bak");
+        backups.writeIncrementalBackup(increment);
+
+        backups.restore(base, Collections.singletonList(increment));
+
+        assertEquals(Collections.singleton(tagId), db.getNoteTagIds(tagged));
+        assertTrue(db.getNoteTagIds(untagged).isEmpty());
+        Tag tag = db.getTags().get(0);
+        assertEquals(tagId, tag.getId());
+        assertEquals(1, tag.getNoteCount());
+    }
+
+    @Test
+    public void restoreDropsTagsOfNotesNotInTheBackup() throws Exception {
+        File base = folder.newFile("base.bak");
+        backups.writeFullBackup(base);
+
+        long later = db.insertNote("written after the backup");
+        long tagId = db.addTag("Smith house");
+        db.setNoteTags(later, Collections.singleton(tagId));
+
+        backups.restore(base, Collections.<File>emptyList());
+
+        assertNull(db.getNote(later));
+        assertEquals(0, db.getTags().get(0).getNoteCount());
+    }
+}
@@ -0,0 +1,139 @@
+package my.homelane.app.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import my.homelane.app.database.model.Note;
+import my.homelane.app.utils.ImageProcessingUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * Idle time maintenance on the host JVM: free pages going back to the file
+ * system and image and temp files nothing refers to being deleted.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DatabaseMaintenanceTest {
+
+    private static final String DATABASE = "maintenance_test";
+    private static final long TWO_HOURS = 2 * 60 * 60 * 1000L;
+
+    private Context context;
+    private DatabaseHelper db;
+    private DatabaseMaintenance maintenance;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE);
+        maintenance = new DatabaseMaintenance(context, db);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void freePagesGoBackToTheFileSystem() {
+        SQLiteDatabase database = db.getWritableDatabase();
+        database.execSQL("CREATE TABLE filler (data BLOB)");
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < 500; i++) {
+                database.execSQL("INSERT INTO filler VALUES (randomblob(4000))");
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        database.execSQL("DROP TABLE filler");
+        long pagesBefore = queryLong(database, "PRAGMA page_count");
+        assertTrue(queryLong(database, "PRAGMA freelist_count") > 256);
+
+        // a slice at a time, each run says whether there is more
+        int runs = 0;
+        while (maintenance.run()) {
+            assertTrue("still vacuuming after " + runs + " runs", ++runs < 100);
+        }
+
+        assertEquals(2, queryLong(database, "PRAGMA auto_vacuum"));
+        assertTrue(queryLong(database, "PRAGMA freelist_count") < 64);
+        assertTrue(queryLong(database, "PRAGMA page_count") < pagesBefore);
+        assertTrue(maintenance.getLastReport().databaseBytesReclaimed > 0);
+    }
+
+    @Test
+    public void onlyStaleUnreferencedFilesAreDeleted() throws IOException {
+        ImageStore images = db.getImageStore();
+        String orphan = images.put(new byte[]{1, 2, 3});
+        String kept = images.put(new byte[]{4, 5, 6});
+        String fresh = images.put(new byte[]{7, 8, 9});
+        age(images.getFile(orphan));
+        age(images.getFile(kept));
+
+        // the placeholder is set, so maintenance has nothing to decode
+        ContentValues values = new ContentValues();
+        values.put(Note.COLUMN_IMAGE_HASH, kept);
+        values.put(Note.COLUMN_PLACEHOLDER, "");
+        db.getWritableDatabase().update(Note.TABLE_NAME, values, Note.COLUMN_ID + " = ?",
+                new String[]{String.valueOf(db.insertNote("Tiles for the bathroom"))});
+
+        File staleTemp = age(write(new File(context.getCacheDir(), ImageProcessingUtil.TEMP_FILE_PREFIX + "1.jpg")));
+        File freshTemp = write(new File(context.getCacheDir(), ImageProcessingUtil.TEMP_FILE_PREFIX + "2.jpg"));
+        File other = age(write(new File(context.getCacheDir(), "thumbnail.jpg")));
+        File syncDir = new File(context.getCacheDir(), "sync");
+        assertTrue(syncDir.mkdirs());
+        File download = age(write(new File(syncDir, ImageProcessingUtil.TEMP_FILE_PREFIX + "3.jpg")));
+
+        maintenance.run();
+
+        assertFalse(images.contains(orphan));
+        assertTrue(images.contains(kept));
+        assertTrue(images.contains(fresh));
+        assertFalse(staleTemp.exists());
+        assertTrue(freshTemp.exists());
+        assertTrue(other.exists());
+        assertTrue(download.exists());
+        assertEquals(2, maintenance.getLastReport().filesDeleted);
+    }
+
+    private static File write(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{0});
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static File age(File file) {
+        assertTrue(file.setLastModified(System.currentTimeMillis() - TWO_HOURS));
+        return file;
+    }
+
+    private static long queryLong(SQLiteDatabase database, String sql) {
+        Cursor cursor = database.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package my.homelane.app.database;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import my.homelane.app.database.model.Note;
+
+import static org.junit.Assert.*;
+
+/**
+ * The generated datasets, on the host JVM: the same spec gives the same notes.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DatasetGeneratorTest {
+
+    private static final String FIRST = "generator_first";
+    private static final String SECOND = "generator_second";
+
+    private static final DatasetGenerator.Spec SPEC = DatasetGenerator.Spec.notes(500)
+            .withImages(0.3, 4096, 10);
+
+    private Context context;
+    private DatabaseHelper first;
+    private DatabaseHelper second;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        first = new DatabaseHelper(context, FIRST);
+        second = new DatabaseHelper(context, SECOND);
+    }
+
+    @After
+    public void tearDown() {
+        first.close();
+        second.close();
+        context.deleteDatabase(FIRST);
+        context.deleteDatabase(SECOND);
+    }
+
+    @Test
+    public void sameSpecSameNotes() throws Exception {
+        DatasetGenerator.Result result = new DatasetGenerator(SPEC).seed(first);
+        new DatasetGenerator(SPEC).seed(second);
+
+        assertEquals(500, result.notes);
+        assertTrue(result.notesWithImages > 100 && result.notesWithImages < 200);
+        assertTrue(result.liveNotes < result.notes);
+        assertEquals(rows(first), rows(second));
+        assertEquals(first.getNotesCount(NoteQuery.forTag(first.getTags().get(0).getId())),
+                second.getNotesCount(NoteQuery.forTag(second.getTags().get(0).getId())));
+    }
+
+    @Test
+    public void otherSeedOtherNotes() throws Exception {
+        new DatasetGenerator(SPEC).seed(first);
+        new DatasetGenerator(SPEC.withSeed(7)).seed(second);
+
+        assertNotEquals(rows(first), rows(second));
+    }
+
+    @Test
+    public void longNotesAreCompressed() throws Exception {
+        new DatasetGenerator(SPEC.withText(4000, 0.1, 8000)).seed(first);
+
+        Cursor cursor = first.getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + Note.TABLE_NAME
+                + " WHERE " + Note.COLUMN_BODY + " IS NULL", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(0, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static List<String> rows(DatabaseHelper db) {
+        List<String> rows = new ArrayList<>();
+        Cursor cursor = db.getReadableDatabase().query(Note.TABLE_NAME,
+                new String[]{Note.COLUMN_UUID, Note.COLUMN_NOTE, Note.COLUMN_BODY, Note.COLUMN_TIMESTAMP,
+                        Note.COLUMN_UPDATED_AT, Note.COLUMN_IMAGE_HASH, Note.COLUMN_DELETED},
+                null, null, null, null, Note.COLUMN_ID);
+        try {
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getString(0) + "|" + DatabaseHelper.readText(cursor, 1, 2) + "|"
+                        + cursor.getString(3) + "|" + cursor.getLong(4) + "|" + cursor.getString(5)
+                        + "|" + cursor.getInt(6));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,124 @@
+package my.homelane.app.database;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.util.List;
+
+import my.homelane.app.database.model.Job;
+
+import static org.junit.Assert.*;
+
+/**
+ * The persistent job queue, on the host JVM: deduplication, the order jobs
+ * come out in, retries and what survives a restart.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class JobQueueTest {
+
+    private static final String DATABASE = "job_queue_test";
+
+    private Context context;
+    private DatabaseHelper db;
+    private JobQueue queue;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE);
+        queue = db.getJobQueue();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void sameKeyIsQueuedOnce() {
+        queue.enqueue("thumbnail", "a", null, Job.PRIORITY_LOW, 60 * 1000);
+        queue.enqueue("thumbnail", "a", null, Job.PRIORITY_HIGH, 0);
+        assertEquals(1, queue.size());
+
+        // the second request made it due now and raised its priority
+        List<Job> jobs = queue.claim(10);
+        assertEquals(1, jobs.size());
+        assertEquals(Job.PRIORITY_HIGH, jobs.get(0).getPriority());
+    }
+
+    @Test
+    public void dueJobsComeOutByPriority() {
+        queue.enqueue("low", Job.PRIORITY_LOW, 0);
+        queue.enqueue("later", Job.PRIORITY_HIGH, 60 * 1000);
+        queue.enqueue("high", Job.PRIORITY_HIGH, 0);
+
+        List<Job> jobs = queue.claim(10);
+        assertEquals(2, jobs.size());
+        assertEquals("high", jobs.get(0).getType());
+        assertEquals("low", jobs.get(1).getType());
+        // running jobs are not handed out twice
+        assertTrue(queue.claim(10).isEmpty());
+    }
+
+    @Test
+    public void failedJobWaitsLongerEachTime() {
+        queue.enqueue("flaky", Job.PRIORITY_LOW, 0);
+        Job job = queue.claim(1).get(0);
+        queue.retry(job, new IOException("offline"));
+        assertTrue(queue.claim(1).isEmpty());
+        assertEquals(1, queue.size());
+
+        assertTrue(JobQueue.backoffMillis(2) == 2 * JobQueue.backoffMillis(1));
+        assertTrue(JobQueue.backoffMillis(100) <= 6 * 60 * 60 * 1000L);
+    }
+
+    @Test
+    public void jobIsDroppedAfterTooManyFailures() {
+        queue.enqueue("broken", Job.PRIORITY_LOW, 0);
+        Job job = queue.claim(1).get(0);
+        Job exhausted = new Job(job.getId(), job.getType(), job.getKey(), null, job.getPriority(),
+                JobQueue.MAX_ATTEMPTS - 1, job.getRequests());
+        queue.retry(exhausted, new IOException("still broken"));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void jobAskedForWhileRunningRunsAgain() {
+        queue.enqueue("purge", Job.PRIORITY_LOW, 0);
+        Job job = queue.claim(1).get(0);
+        queue.enqueue("purge", Job.PRIORITY_LOW, 0);
+        queue.complete(job);
+        assertEquals(1, queue.claim(1).size());
+    }
+
+    @Test
+    public void interruptedJobsSurviveARestart() {
+        queue.enqueue("reencode", Job.PRIORITY_HIGH, 0);
+        assertEquals(1, queue.claim(1).size());
+        db.close();
+
+        db = new DatabaseHelper(context, DATABASE);
+        queue = db.getJobQueue();
+        assertTrue(queue.claim(1).isEmpty());
+        assertEquals(1, queue.requeueInterrupted());
+        assertEquals("reencode", queue.claim(1).get(0).getType());
+    }
+
+    @Test
+    public void deletingANoteQueuesItsPurge() {
+        long id = db.insertNote("gone soon");
+        db.softDeleteNote(id);
+        assertEquals(1, queue.size());
+        // not before undo had its chance
+        assertTrue(queue.claim(1).isEmpty());
+    }
+}
@@ -0,0 +1,128 @@
+package my.homelane.app.database;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import my.homelane.app.database.model.Note;
+import my.homelane.app.database.model.NoteRevision;
+
+import static org.junit.Assert.*;
+
+/**
+ * The history of earlier note texts, stored as reverse deltas with a full
+ * copy every so often, on the host JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RevisionHistoryTest {
+
+    private static final String DATABASE = "revision_test";
+    private static final String SITE_VISIT = "Site visit at the Smith house: measure the kitchen wall, "
+            + "check the plumbing under the sink and order tiles for the bathroom floor.";
+
+    private Context context;
+    private DatabaseHelper db;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void everyRevisionRebuildsAcrossFullCopies() {
+        int edits = 3 * DatabaseHelper.FULL_REVISION_INTERVAL + 5;
+        long id = db.insertNote(text(0));
+        List<String> texts = edit(id, edits);
+
+        List<NoteRevision> revisions = db.getRevisions(id);
+        assertEquals(edits, revisions.size());
+        // newest first, each holds the text the edit after it replaced
+        for (int i = 0; i < revisions.size(); i++) {
+            assertEquals(texts.get(edits - 1 - i), db.getRevisionText(id, revisions.get(i).getId()));
+        }
+        assertEquals(edits / DatabaseHelper.FULL_REVISION_INTERVAL, countFullRevisions(id));
+    }
+
+    @Test
+    public void oldestRevisionsArePrunedPastTheCap() {
+        int edits = DatabaseHelper.MAX_REVISIONS + 20;
+        long id = db.insertNote(text(0));
+        List<String> texts = edit(id, edits);
+
+        List<NoteRevision> revisions = db.getRevisions(id);
+        assertEquals(DatabaseHelper.MAX_REVISIONS, revisions.size());
+        // the chain still rebuilds after its oldest part is gone
+        NoteRevision oldest = revisions.get(revisions.size() - 1);
+        assertEquals(texts.get(edits - DatabaseHelper.MAX_REVISIONS), db.getRevisionText(id, oldest.getId()));
+        assertEquals(texts.get(edits - 1), db.getRevisionText(id, revisions.get(0).getId()));
+    }
+
+    @Test
+    public void restoredRevisionBecomesTheText() {
+        long id = db.insertNote(text(0));
+        edit(id, 3);
+        List<NoteRevision> revisions = db.getRevisions(id);
+
+        Note restored = db.restoreRevision(id, revisions.get(revisions.size() - 1).getId());
+        assertEquals(text(0), restored.getNote());
+        assertEquals(text(0), db.getNote(id).getNote());
+        // the text it replaced went into the history too
+        assertEquals(4, db.getRevisions(id).size());
+    }
+
+    @Test
+    public void restoringARevisionOfAPurgedNoteGivesNothing() {
+        long id = db.insertNote(text(0));
+        edit(id, 1);
+        long revisionId = db.getRevisions(id).get(0).getId();
+        db.getWritableDatabase().delete(Note.TABLE_NAME, Note.COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+
+        assertNull(db.restoreRevision(id, revisionId));
+    }
+
+    // edits the note this many times, returning every text it had before, oldest first
+    private List<String> edit(long id, int count) {
+        List<String> before = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            Note note = db.getNote(id);
+            before.add(note.getNote());
+            note.setNote(text(i));
+            db.updateNote(note, null);
+        }
+        return before;
+    }
+
+    private static String text(int edit) {
+        return SITE_VISIT + " Edit " + edit + (edit % 3 == 0 ? ", call the plumber." : ".");
+    }
+
+    private long countFullRevisions(long noteId) {
+        Cursor cursor = db.getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + NoteRevision.TABLE_NAME
+                        + " WHERE " + NoteRevision.COLUMN_NOTE_ID + " = ? AND "
+                        + NoteRevision.COLUMN_KIND + " = " + NoteRevision.KIND_FULL,
+                new String[]{String.valueOf(noteId)});
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package my.homelane.app.database;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import my.homelane.app.utils.CacheCoordinator;
+import my.homelane.app.view.PagedNoteList;
+
+import static org.junit.Assert.*;
+
+/**
+ * The list at 1k, 10k and 100k notes, on the host JVM: a generated database
+ * per tier, checked against upper bounds on the time to load the list and
+ * page through it, the heap the loaded list takes, and the database size.
+ *
+ * The bounds are ceilings for regressions, not targets; a device is slower
+ * than the JVM but scales the same. The 100k tier takes minutes, run it with
+ * {@code ./gradlew test -PscaleTiers=1k,10k,100k}.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+public class ScaleTest {
+
+    private static final String DATABASE = "scale_test";
+    private static final int LOADS = 3;
+    private static final int PAGES = 10;
+
+    private static class Tier {
+        final String name;
+        final int notes;
+        final long maxLoadMillis;
+        final long maxPageMillis;
+        final long maxHeapBytes;
+        final long maxDatabaseBytes;
+
+        Tier(String name, int notes, long maxLoadMillis, long maxPageMillis, long maxHeapBytes, long maxDatabaseBytes) {
+            this.name = name;
+            this.notes = notes;
+            this.maxLoadMillis = maxLoadMillis;
+            this.maxPageMillis = maxPageMillis;
+            this.maxHeapBytes = maxHeapBytes;
+            this.maxDatabaseBytes = maxDatabaseBytes;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    // a slot per note and a couple of pages, never the notes themselves; 2 KB of database per note
+    private static final Tier[] TIERS = {
+            new Tier("1k", 1000, 200, 100, 2L << 20, 2L << 20),
+            new Tier("10k", 10000, 300, 100, 3L << 20, 20L << 20),
+            new Tier("100k", 100000, 800, 150, 6L << 20, 200L << 20),
+    };
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "{0}")
+    public static Collection<Object[]> tiers() {
+        List<String> enabled = new ArrayList<>();
+        for (String name : System.getProperty("scaleTiers", "1k,10k").split(",")) {
+            enabled.add(name.trim());
+        }
+        List<Object[]> tiers = new ArrayList<>();
+        for (Tier tier : TIERS) {
+            if (enabled.contains(tier.name)) {
+                tiers.add(new Object[]{tier});
+            }
+        }
+        return tiers;
+    }
+
+    private final Tier tier;
+    private Context context;
+    private DatabaseHelper db;
+    private ExecutorService executor;
+    private DatasetGenerator.Result seeded;
+
+    public ScaleTest(Tier tier) {
+        this.tier = tier;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE);
+        executor = Executors.newSingleThreadExecutor();
+        seeded = new DatasetGenerator(DatasetGenerator.Spec.notes(tier.notes)).seed(db);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void staysWithinBounds() throws Exception {
+        final CountDownLatch[] loaded = new CountDownLatch[1];
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        PagedNoteList list = new PagedNoteList(db, executor, direct, new PagedNoteList.Listener() {
+            @Override
+            public void onLoaded() {
+                loaded[0].countDown();
+            }
+
+            @Override
+            public void onRowsLoaded(int position, int count) {
+                loaded[0].countDown();
+            }
+        }, new CacheCoordinator(Long.MAX_VALUE));
+
+        long heapBefore = usedHeap();
+        long loadMillis = Long.MAX_VALUE;
+        for (int i = 0; i < LOADS; i++) {
+            loaded[0] = new CountDownLatch(1);
+            long start = System.nanoTime();
+            list.load();
+            assertTrue(loaded[0].await(60, TimeUnit.SECONDS));
+            loadMillis = Math.min(loadMillis, (System.nanoTime() - start) / 1000000);
+        }
+        assertEquals(seeded.liveNotes, list.size());
+        long heapBytes = usedHeap() - heapBefore;
+
+        // page on from the first page, as scrolling down does
+        long pageMillis = 0;
+        for (int page = 1; page <= PAGES; page++) {
+            int from = page * PagedNoteList.PAGE_SIZE;
+            loaded[0] = new CountDownLatch(1);
+            long start = System.nanoTime();
+            list.loadRange(from, from + PagedNoteList.PAGE_SIZE - 1);
+            assertTrue(loaded[0].await(60, TimeUnit.SECONDS));
+            pageMillis = Math.max(pageMillis, (System.nanoTime() - start) / 1000000);
+            assertNotNull(list.get(from));
+        }
+
+        long databaseBytes = databaseBytes();
+        String measured = tier + ": " + seeded + "; list loaded in " + loadMillis + " ms, slowest page "
+                + pageMillis + " ms, list heap " + heapBytes + " bytes, database " + databaseBytes + " bytes";
+
+        assertTrue("list load over " + tier.maxLoadMillis + " ms; " + measured, loadMillis <= tier.maxLoadMillis);
+        assertTrue("page over " + tier.maxPageMillis + " ms; " + measured, pageMillis <= tier.maxPageMillis);
+        assertTrue("list heap over " + tier.maxHeapBytes + " bytes; " + measured, heapBytes <= tier.maxHeapBytes);
+        assertTrue("database over " + tier.maxDatabaseBytes + " bytes; " + measured,
+                databaseBytes <= tier.maxDatabaseBytes);
+        // the images live in their own files
+        assertTrue(seeded.notesWithImages > 0);
+    }
+
+    private long databaseBytes() {
+        File database = context.getDatabasePath(DATABASE);
+        long bytes = database.length();
+        for (String suffix : new String[]{"-journal", "-wal"}) {
+            bytes += new File(database.getPath() + suffix).length();
+        }
+        return bytes;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
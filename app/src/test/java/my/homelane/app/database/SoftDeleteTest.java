@@ -0,0 +1,111 @@
+package my.homelane.app.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Collections;
+
+import my.homelane.app.database.model.Job;
+import my.homelane.app.database.model.Note;
+
+import static org.junit.Assert.*;
+
+/**
+ * Soft delete, undo and the purge after the grace period, on the host JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SoftDeleteTest {
+
+    private static final String DATABASE = "soft_delete_test";
+
+    private Context context;
+    private DatabaseHelper db;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void undoBringsTheNoteBackWithItsTags() {
+        long tagId = db.addTag("groceries");
+        long id = db.insertNote("Milk, eggs, bread");
+        db.setNoteTags(id, Collections.singleton(tagId));
+
+        db.softDeleteNote(id);
+        assertTrue(db.getNote(id).isDeleted());
+        assertEquals(0, db.getNotesCount(NoteQuery.ALL));
+        assertEquals(0, db.getNotesCount(NoteQuery.forTag(tagId)));
+        // the purge is queued for when undo is over
+        assertEquals(1, db.getJobQueue().size());
+        assertTrue(db.getJobQueue().claim(1).isEmpty());
+
+        db.restoreNote(id);
+        Note note = db.getNote(id);
+        assertFalse(note.isDeleted());
+        assertEquals("Milk, eggs, bread", note.getNote());
+        assertEquals(Collections.singleton(tagId), db.getNoteTagIds(id));
+        assertEquals(1, db.getNotesCount(NoteQuery.ALL));
+        assertEquals(1, db.getNotesCount(NoteQuery.forTag(tagId)));
+    }
+
+    @Test
+    public void purgeWaitsForTheGracePeriod() {
+        long tagId = db.addTag("groceries");
+        long id = db.insertNote("Milk, eggs, bread");
+        db.setNoteTags(id, Collections.singleton(tagId));
+        Note note = db.getNote(id);
+        note.setNote("Milk, eggs, bread, butter");
+        db.updateNote(note);
+        db.softDeleteNote(id);
+
+        DeletedNotesPurger purger = new DeletedNotesPurger(db);
+        assertFalse(purger.run(job()));
+        assertNotNull(db.getNote(id));
+
+        backdateDeletion(id, DeletedNotesPurger.UNDO_GRACE_MILLIS + 1000);
+        assertFalse(purger.run(job()));
+        assertNull(db.getNote(id));
+        assertTrue(db.getNoteTagIds(id).isEmpty());
+        assertTrue(db.getRevisions(id).isEmpty());
+        assertEquals(0, db.getNotesCount(NoteQuery.forTag(tagId)));
+    }
+
+    @Test
+    public void liveNotesAreNeverPurged() {
+        long kept = db.insertNote("Keep me");
+        long deleted = db.insertNote("Delete me");
+        db.softDeleteNote(deleted);
+        backdateDeletion(deleted, DeletedNotesPurger.UNDO_GRACE_MILLIS + 1000);
+
+        assertEquals(1, db.purgeDeletedNotes(System.currentTimeMillis(), 50));
+        assertNotNull(db.getNote(kept));
+        assertNull(db.getNote(deleted));
+    }
+
+    private static Job job() {
+        return new Job(1, Job.TYPE_PURGE_DELETED, null, null, Job.PRIORITY_LOW, 0, 0);
+    }
+
+    private void backdateDeletion(long id, long millis) {
+        ContentValues values = new ContentValues();
+        values.put(Note.COLUMN_DELETED_AT, System.currentTimeMillis() - millis);
+        db.getWritableDatabase().update(Note.TABLE_NAME, values, Note.COLUMN_ID + " = ?",
+                new String[]{String.valueOf(id)});
+    }
+}
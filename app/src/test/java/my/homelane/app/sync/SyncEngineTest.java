@@ -0,0 +1,179 @@
+package my.homelane.app.sync;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+
+import my.homelane.app.database.DatabaseHelper;
+import my.homelane.app.database.model.Note;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two devices, each with its own database, syncing through the embedded
+ * {@link LocalSyncServer}, on the host JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SyncEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalSyncServer server;
+    private Device a;
+    private Device b;
+
+    /**
+     * A device of its own: database, image store, cache and preferences.
+     */
+    private class Device extends ContextWrapper {
+        final String name;
+        final File directory;
+        final DatabaseHelper db;
+        final SyncEngine engine;
+
+        Device(String name) throws Exception {
+            super(RuntimeEnvironment.application);
+            this.name = name;
+            this.directory = folder.newFolder(name);
+            getBaseContext().deleteDatabase(name);
+            this.db = new DatabaseHelper(this, name);
+            this.engine = new SyncEngine(this, db, new SyncClient(server.getBaseUrl()));
+        }
+
+        @Override
+        public File getFilesDir() {
+            return new File(directory, "files");
+        }
+
+        @Override
+        public File getCacheDir() {
+            return new File(directory, "cache");
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String file, int mode) {
+            return getBaseContext().getSharedPreferences(name + "_" + file, mode);
+        }
+
+        void close() {
+            db.close();
+            getBaseContext().deleteDatabase(name);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalSyncServer();
+        server.start(0);
+        a = new Device("sync_a");
+        b = new Device("sync_b");
+    }
+
+    @After
+    public void tearDown() {
+        a.close();
+        b.close();
+        server.stop();
+    }
+
+    @Test
+    public void editOnOneDeviceShowsUpOnTheOther() throws Exception {
+        long idA = a.db.insertNote("measure the kitchen wall");
+        a.engine.sync();
+        b.engine.sync();
+
+        String uuid = a.db.getNote(idA).getUuid();
+        long idB = findNote(b.db, uuid);
+        assertEquals("measure the kitchen wall", b.db.getNote(idB).getNote());
+
+        Note edited = a.db.getNote(idA);
+        edited.setNote("measure the kitchen wall, twice");
+        a.db.updateNote(edited, null);
+        a.engine.sync();
+        SyncEngine.Result result = b.engine.sync();
+
+        assertEquals(1, result.downloaded);
+        assertEquals("measure the kitchen wall, twice", b.db.getNote(idB).getNote());
+        // the text it had stays in its history, like a local edit
+        assertEquals(1, b.db.getRevisions(idB).size());
+    }
+
+    @Test
+    public void deleteTravelsAsTombstone() throws Exception {
+        long idA = a.db.insertNote("gone soon");
+        a.engine.sync();
+        b.engine.sync();
+        long idB = findNote(b.db, a.db.getNote(idA).getUuid());
+
+        a.db.softDeleteNote(idA);
+        a.engine.sync();
+        b.engine.sync();
+
+        assertTrue(b.db.getNote(idB).isDeleted());
+        // removed for good by the same purge as local deletes
+        assertEquals(1, b.db.getJobQueue().size());
+    }
+
+    @Test
+    public void conflictSettlesTheSameWayOnBothDevices() throws Exception {
+        long idA = a.db.insertNote("paint the hallway");
+        a.engine.sync();
+        b.engine.sync();
+        String uuid = a.db.getNote(idA).getUuid();
+        long idB = findNote(b.db, uuid);
+
+        // both edit the same version before hearing of the other
+        Note onA = a.db.getNote(idA);
+        onA.setNote("paint the hallway white");
+        a.db.updateNote(onA, null);
+        Note onB = b.db.getNote(idB);
+        onB.setNote("paint the hallway grey");
+        b.db.updateNote(onB, null);
+
+        a.engine.sync();
+        b.engine.sync();
+        a.engine.sync();
+
+        String settled = server.getRecord(uuid).getNote();
+        assertEquals(settled, a.db.getNote(idA).getNote());
+        assertEquals(settled, b.db.getNote(idB).getNote());
+    }
+
+    @Test
+    public void downloadedChangesAreNotUploadedBack() throws Exception {
+        a.db.insertNote("order tiles");
+        a.engine.sync();
+
+        SyncEngine.Result first = b.engine.sync();
+        SyncEngine.Result second = b.engine.sync();
+
+        assertEquals(1, first.downloaded);
+        assertEquals(0, first.uploaded);
+        assertEquals(0, second.uploaded);
+        assertEquals(0, second.downloaded);
+    }
+
+    private static long findNote(DatabaseHelper db, String uuid) {
+        Cursor cursor = db.getReadableDatabase().query(Note.TABLE_NAME, new String[]{Note.COLUMN_ID},
+                Note.COLUMN_UUID + " = ?", new String[]{uuid}, null, null, null);
+        try {
+            assertTrue("no note " + uuid, cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
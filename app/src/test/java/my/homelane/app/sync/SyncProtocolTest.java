@@ -0,0 +1,170 @@
+package my.homelane.app.sync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import my.homelane.app.utils.HashUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the sync protocol against the embedded {@link LocalSyncServer}, on the host JVM.
+ */
+public class SyncProtocolTest {
+
+    // records carry the whole text, but the test notes are alike and gzip brings them to under 10 bytes each
+    private static final double MAX_BYTES_PER_NOTE = 32;
+
+    private final List<File> files = new ArrayList<>();
+    private LocalSyncServer server;
+    private SyncClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalSyncServer();
+        server.start(0);
+        client = new SyncClient(server.getBaseUrl(), 4096);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void uploadedChangesAreDownloadedInPages() throws Exception {
+        List<SyncRecord> records = records(1000, 1);
+        for (int i = 0; i < records.size(); i += 300) {
+            assertTrue(client.upload(records.subList(i, Math.min(i + 300, records.size()))).isEmpty());
+        }
+
+        long cursor = 0;
+        int received = 0;
+        DeltaCodec.Page page;
+        do {
+            page = client.download(cursor, 128);
+            received += page.records.size();
+            cursor = page.cursor;
+        } while (page.hasMore);
+
+        assertEquals(1000, received);
+        assertEquals(0, client.download(cursor, 128).records.size());
+    }
+
+    @Test
+    public void conflictsResolveTheSameWayInAnyOrder() throws Exception {
+        SyncRecord a = new SyncRecord("note", 2, 1000, false, "from a", null, null);
+        SyncRecord b = new SyncRecord("note", 2, 1000, false, "from b", null, null);
+        SyncRecord winner = a.wins(b) ? a : b;
+        assertNotEquals(a.wins(b), b.wins(a));
+
+        client.upload(Collections.singletonList(a));
+        List<SyncRecord> rejected = client.upload(Collections.singletonList(b));
+        assertEquals(winner.getNote(), server.getRecord("note").getNote());
+        assertEquals(winner == a ? 1 : 0, rejected.size());
+
+        // a later version always wins, a stale one is answered with the server's copy
+        SyncRecord newer = new SyncRecord("note", 3, 10, false, "newer", null, null);
+        assertTrue(client.upload(Collections.singletonList(newer)).isEmpty());
+        List<SyncRecord> stale = client.upload(Collections.singletonList(a));
+        assertEquals("newer", stale.get(0).getNote());
+    }
+
+    @Test
+    public void interruptedImageTransfersResume() throws Exception {
+        byte[] image = new byte[20000];
+        new Random(7).nextBytes(image);
+        String hash = HashUtil.sha1Hex(image);
+        File file = write(image);
+
+        assertEquals(Collections.singletonList(hash), client.missingImages(Collections.singletonList(hash)));
+
+        // the first chunk made it before the connection dropped
+        byte[] firstChunk = new byte[4096];
+        System.arraycopy(image, 0, firstChunk, 0, firstChunk.length);
+        assertEquals(202, server.appendUpload(hash, 0, image.length, firstChunk));
+
+        long before = server.getBytesReceived();
+        client.uploadImage(hash, file);
+        assertTrue(server.hasImage(hash));
+        assertEquals(image.length - firstChunk.length, server.getBytesReceived() - before);
+        assertTrue(client.missingImages(Collections.singletonList(hash)).isEmpty());
+
+        // a download that stopped half way only fetches the rest
+        File part = tempFile("download", ".part");
+        RandomAccessFile partial = new RandomAccessFile(part, "rw");
+        partial.write(image, 0, 5000);
+        partial.close();
+        client.downloadImage(hash, part);
+        assertEquals(hash, HashUtil.sha1Hex(readAll(part)));
+    }
+
+    @Test
+    public void batchesStayWithinByteBudget() throws Exception {
+        List<SyncRecord> records = records(20000, 1);
+        for (int i = 0; i < records.size(); i += 500) {
+            client.upload(records.subList(i, i + 500));
+        }
+
+        long cursor = 0;
+        DeltaCodec.Page page;
+        do {
+            page = client.download(cursor, 500);
+            cursor = page.cursor;
+        } while (page.hasMore);
+
+        assertEquals(records.size(), server.getRecordCount());
+        assertAtMost("bytes up per note", MAX_BYTES_PER_NOTE, (double) server.getBytesReceived() / records.size());
+        assertAtMost("bytes down per note", MAX_BYTES_PER_NOTE, (double) server.getBytesSent() / records.size());
+    }
+
+    private static void assertAtMost(String what, double ceiling, double actual) {
+        assertTrue(String.format("%s: %.1f, expected at most %.1f", what, actual, ceiling), actual <= ceiling);
+    }
+
+    private static List<SyncRecord> records(int count, long version) {
+        List<SyncRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(new SyncRecord("uuid-" + i, version, 1000 + i, false,
+                    "Site visit " + i + ": measure the kitchen wall and check the plumbing",
+                    "2018-04-23 10:00:00", null));
+        }
+        return records;
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File file = tempFile("image", ".jpg");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        return file;
+    }
+
+    // deleted after the test
+    private File tempFile(String prefix, String suffix) throws IOException {
+        File file = File.createTempFile(prefix, suffix);
+        files.add(file);
+        return file;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) in.length()];
+        in.readFully(bytes);
+        in.close();
+        return bytes;
+    }
+}
@@ -0,0 +1,68 @@
+package my.homelane.app.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encoding and decoding of list placeholders, on the host JVM.
+ */
+public class BlurHashTest {
+
+    @Test
+    public void landscapeHashIsShort() {
+        String hash = BlurHash.encode(gradient(64, 48), 64, 48, 4, 3);
+        assertEquals(4 + 2 * 4 * 3, hash.length());
+        assertEquals(4, BlurHash.getComponentsX(hash));
+        assertEquals(3, BlurHash.getComponentsY(hash));
+    }
+
+    @Test
+    public void plainColourComesBack() {
+        int[] pixels = new int[32 * 32];
+        Arrays.fill(pixels, 0xFF3C78B4);
+        // only the average colour, more components add a faint edge shading even to a plain image
+        int[] decoded = BlurHash.decode(BlurHash.encode(pixels, 32, 32, 1, 1), 8, 6);
+        for (int pixel : decoded) {
+            assertEquals(0x3C, (pixel >> 16) & 0xFF, 1);
+            assertEquals(0x78, (pixel >> 8) & 0xFF, 1);
+            assertEquals(0xB4, pixel & 0xFF, 1);
+            assertEquals(0xFF, pixel >>> 24);
+        }
+    }
+
+    @Test
+    public void keepsWhereTheImageIsBright() {
+        int[] decoded = BlurHash.decode(BlurHash.encode(gradient(64, 48), 64, 48, 4, 3), 16, 12);
+        int left = decoded[6 * 16] & 0xFF;
+        int right = decoded[6 * 16 + 15] & 0xFF;
+        assertTrue(left + " < " + right, left + 100 < right);
+    }
+
+    @Test
+    public void rejectsWhatIsNotAHash() {
+        String[] invalid = {null, "", "LEHV6", "LEHV6nWB2yk8pyo0adR*.7kCMdnjX", "LEHV6nWB2yk8pyo0adR*.7kCMd\"j"};
+        for (String hash : invalid) {
+            try {
+                BlurHash.decode(hash, 4, 4);
+                fail("decoded " + hash);
+            } catch (IllegalArgumentException expected) {
+                // the point
+            }
+        }
+    }
+
+    // black on the left to white on the right
+    private static int[] gradient(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int v = x * 255 / (width - 1);
+                pixels[y * width + x] = 0xFF000000 | v << 16 | v << 8 | v;
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,86 @@
+package my.homelane.app.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bucketing and percentiles of the latency histograms, on the host JVM.
+ */
+public class MetricsTest {
+
+    @Test
+    public void bucketsArePowersOfTwo() {
+        assertEquals(0, Metrics.bucketOf(-5));
+        assertEquals(0, Metrics.bucketOf(0));
+        assertEquals(0, Metrics.bucketOf(1));
+        assertEquals(1, Metrics.bucketOf(2));
+        assertEquals(1, Metrics.bucketOf(3));
+        assertEquals(2, Metrics.bucketOf(4));
+        assertEquals(9, Metrics.bucketOf(1000));
+        assertEquals(Metrics.BUCKETS - 1, Metrics.bucketOf(Long.MAX_VALUE));
+        for (int i = 0; i < Metrics.BUCKETS - 1; i++) {
+            assertEquals(i + 1, Metrics.bucketOf(Metrics.upperBoundMicros(i)));
+        }
+    }
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        Metrics.Histogram histogram = Metrics.histogram("test.percentiles");
+        assertEquals(0, histogram.getPercentileMicros(0.5));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100);
+        }
+        histogram.record(50000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50000, histogram.getMaxMicros());
+        assertEquals((99 * 100 + 50000) / 100, histogram.getMeanMicros());
+        assertEquals(128, histogram.getPercentileMicros(0.5));
+        assertEquals(128, histogram.getPercentileMicros(0.99));
+        assertEquals(65536, histogram.getPercentileMicros(1.0));
+    }
+
+    @Test
+    public void lookupReturnsSameInstance() {
+        assertSame(Metrics.histogram("test.same"), Metrics.histogram("test.same"));
+        assertSame(Metrics.counter("test.same"), Metrics.counter("test.same"));
+    }
+
+    @Test
+    public void dumpCarriesBucketsAndCounters() throws IOException {
+        Metrics.histogram("test.dump").record(3);
+        Metrics.counter("test.dump").add(7);
+
+        StringWriter out = new StringWriter();
+        Metrics.dump(out, Collections.singletonList("device\thost"));
+        String dump = out.toString();
+
+        assertTrue(dump.contains("# device\thost\n"));
+        assertTrue(dump.contains("counter\ttest.dump\t7\n"));
+        for (String line : dump.split("\n")) {
+            if (line.startsWith("histogram\ttest.dump\t")) {
+                String[] fields = line.split("\t");
+                assertEquals(5 + Metrics.BUCKETS, fields.length);
+                assertEquals("1", fields[2]);
+                assertEquals("1", fields[5 + 1]);
+                return;
+            }
+        }
+        fail(dump);
+    }
+
+    @Test
+    public void resetKeepsCounters() {
+        Metrics.histogram("test.reset").record(10);
+        Metrics.counter("test.reset").increment();
+        Metrics.resetHistograms();
+        assertEquals(0, Metrics.histogram("test.reset").getCount());
+        assertEquals(0, Metrics.histogram("test.reset").getMaxMicros());
+        assertEquals(1, Metrics.counter("test.reset").get());
+    }
+}
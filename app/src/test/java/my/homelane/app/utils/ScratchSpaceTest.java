@@ -0,0 +1,127 @@
+package my.homelane.app.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Leasing, reuse and the quota of the scratch file pool, on the host JVM.
+ */
+public class ScratchSpaceTest {
+
+    private static final long QUOTA = 10000;
+
+    private File directory;
+    private ScratchSpace scratch;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("scratch", "test");
+        directory.delete();
+        directory.mkdirs();
+        scratch = new ScratchSpace(directory, QUOTA);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void leftoversAreDeletedBeforeFirstLease() throws IOException {
+        File stale = new File(directory, "scratch123.tmp");
+        write(stale, 100);
+        ScratchSpace.Lease lease = scratch.acquire();
+        assertFalse(stale.exists());
+        assertTrue(lease.getFile().exists());
+        assertEquals(0, lease.getFile().length());
+    }
+
+    @Test
+    public void releasedFileIsReusedEmpty() throws IOException {
+        ScratchSpace.Lease first = scratch.acquire();
+        write(first.getFile(), 500);
+        first.release();
+        assertEquals(1, scratch.getFreeCount());
+
+        ScratchSpace.Lease second = scratch.acquire();
+        assertEquals(first.getFile(), second.getFile());
+        assertEquals(0, second.getFile().length());
+        assertEquals(0, scratch.getFreeCount());
+    }
+
+    @Test
+    public void retainedFileStaysLeased() throws IOException {
+        ScratchSpace.Lease lease = scratch.acquire();
+        lease.retain();
+        lease.release();
+        assertEquals(1, scratch.getLeasedCount());
+        assertNotEquals(lease.getFile(), scratch.acquire().getFile());
+        lease.release();
+        assertEquals(1, scratch.getFreeCount());
+    }
+
+    @Test
+    public void releasingTwiceFails() throws IOException {
+        ScratchSpace.Lease lease = scratch.acquire();
+        lease.release();
+        try {
+            lease.release();
+            fail("released twice");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void freeFilesOverQuotaAreEvictedOldestFirst() throws IOException {
+        ScratchSpace.Lease a = scratch.acquire();
+        ScratchSpace.Lease b = scratch.acquire();
+        ScratchSpace.Lease c = scratch.acquire();
+        write(a.getFile(), 3000);
+        write(b.getFile(), 3000);
+        write(c.getFile(), 3000);
+
+        a.release();
+        b.release();
+        assertTrue(a.getFile().exists());
+        assertTrue(b.getFile().exists());
+
+        // leased files count against the quota but are never evicted
+        write(c.getFile(), 6000);
+        c.release();
+        assertFalse(a.getFile().exists());
+        assertTrue(b.getFile().exists());
+        assertTrue(c.getFile().exists());
+        assertTrue(scratch.getSizeBytes() <= QUOTA);
+    }
+
+    @Test
+    public void wrappedFileIsLeftAlone() throws IOException {
+        File original = new File(directory, "original.jpg");
+        write(original, 100);
+        scratch.wrap(original).release();
+        assertTrue(original.exists());
+        assertEquals(0, scratch.getFreeCount());
+    }
+
+    private static void write(File file, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+    }
+}
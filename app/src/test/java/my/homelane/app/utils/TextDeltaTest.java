@@ -0,0 +1,82 @@
+package my.homelane.app.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Deltas between note texts, on the host JVM.
+ */
+public class TextDeltaTest {
+
+    private static final String SITE_VISIT = "Site visit at the Smith house: measure the kitchen wall, "
+            + "check the plumbing under the sink, photograph the damp corner in the hallway and "
+            + "order tiles for the bathroom floor. Call the plumber back before Friday.";
+
+    @Test
+    public void smallEditsMakeSmallDeltas() throws IOException {
+        String edited = SITE_VISIT.replace("Friday", "Thursday") + " Bring the ladder.";
+        byte[] delta = TextDelta.diff(SITE_VISIT, edited);
+        assertEquals(edited, TextDelta.apply(SITE_VISIT, delta));
+        assertTrue(delta.length + " bytes", delta.length < edited.length() / 4);
+    }
+
+    @Test
+    public void edgeCasesRoundTrip() throws IOException {
+        String[][] pairs = {
+                {"", ""},
+                {"", SITE_VISIT},
+                {SITE_VISIT, ""},
+                {SITE_VISIT, SITE_VISIT},
+                {"short", "shorter"},
+                // surrogate pairs are copied and inserted whole
+                {"tiles \uD83D\uDEC1 order", "tiles \uD83D\uDEC1\uD83D\uDEBF order"},
+        };
+        for (String[] pair : pairs) {
+            assertEquals(pair[1], TextDelta.apply(pair[0], TextDelta.diff(pair[0], pair[1])));
+        }
+    }
+
+    @Test
+    public void randomEditsRoundTrip() throws IOException {
+        Random random = new Random(42);
+        String text = SITE_VISIT;
+        for (int i = 0; i < 200; i++) {
+            String edited = edit(text, random);
+            assertEquals(edited, TextDelta.apply(text, TextDelta.diff(text, edited)));
+            text = edited;
+        }
+    }
+
+    @Test
+    public void longInsertsRoundTrip() throws IOException {
+        StringBuilder appended = new StringBuilder(SITE_VISIT);
+        while (appended.length() < 40 * 1024) {
+            appended.append((char) ('a' + appended.length() % 26));
+        }
+        String target = appended.toString();
+        assertEquals(target, TextDelta.apply(SITE_VISIT, TextDelta.diff(SITE_VISIT, target)));
+    }
+
+    @Test
+    public void deltaOfAnotherTextIsRefused() {
+        byte[] delta = TextDelta.diff(SITE_VISIT, SITE_VISIT + " Bring the ladder.");
+        try {
+            TextDelta.apply("something else", delta);
+            fail("applied to a text it was not made from");
+        } catch (IOException expected) {
+            // a revision rebuilt from the wrong text would be silently wrong
+        }
+    }
+
+    // replaces, inserts or deletes a short run somewhere in the text
+    private static String edit(String text, Random random) {
+        int at = random.nextInt(text.length() + 1);
+        int end = Math.min(text.length(), at + random.nextInt(8));
+        String insert = random.nextInt(3) == 0 ? "" : "edit " + random.nextInt(1000);
+        return text.substring(0, at) + insert + text.substring(end);
+    }
+}
@@ -0,0 +1,82 @@
+package my.homelane.app.view;
+
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * What the attachment stager keeps over a configuration change, on the host JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AttachmentStagerTest {
+
+    private static final String HASH = "0123456789abcdef";
+
+    private ExecutorService executor;
+    private AttachmentStager stager;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        stager = new AttachmentStager(null, null, executor, direct);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void storedImageSurvivesRestore() {
+        AttachmentStager restored = restore(HASH);
+        assertTrue(restored.hasAttachment());
+        assertEquals(HASH, restored.take(null));
+        assertFalse(restored.hasAttachment());
+    }
+
+    @Test
+    public void restoredImageCanBeCleared() {
+        AttachmentStager restored = restore(HASH);
+        restored.clear();
+        assertFalse(restored.hasAttachment());
+        // nothing staged any more, clearing again is fine too
+        restored.clear();
+    }
+
+    @Test
+    public void nothingStagedRestoresNothing() {
+        Bundle state = new Bundle();
+        stager.saveState(state);
+        stager.restoreState(state);
+        assertFalse(stager.hasAttachment());
+    }
+
+    // the saved state of a stager that had the image in the store, restored into a new one
+    private AttachmentStager restore(String imageHash) {
+        Bundle state = new Bundle();
+        state.putString(AttachmentStager.STATE_IMAGE_HASH, imageHash);
+        stager.restoreState(state);
+        Bundle saved = new Bundle();
+        stager.saveState(saved);
+
+        AttachmentStager restored = new AttachmentStager(null, null, executor, executor);
+        restored.restoreState(saved);
+        return restored;
+    }
+}
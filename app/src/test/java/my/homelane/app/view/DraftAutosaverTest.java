@@ -0,0 +1,137 @@
+package my.homelane.app.view;
+
+import android.content.Context;
+import android.text.SpannableStringBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import my.homelane.app.database.DatabaseHelper;
+import my.homelane.app.database.model.Draft;
+
+import static org.junit.Assert.*;
+
+/**
+ * The draft write-behind buffer on the host JVM: how many writes typing makes,
+ * flushing, and that a discarded draft stays gone.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DraftAutosaverTest {
+
+    private static final String DATABASE = "draft_test";
+    private static final long NOTE_ID = 7;
+
+    private final AtomicInteger writes = new AtomicInteger();
+    private volatile CountDownLatch writeStarted;
+    private volatile CountDownLatch writeMayFinish;
+
+    private Context context;
+    private DatabaseHelper db;
+    private ScheduledExecutorService executor;
+    private DraftAutosaver autosaver;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE) {
+            @Override
+            public void saveDraft(long noteId, String text) {
+                writes.incrementAndGet();
+                if (writeStarted != null) {
+                    writeStarted.countDown();
+                    await(writeMayFinish);
+                }
+                super.saveDraft(noteId, text);
+            }
+        };
+        executor = Executors.newSingleThreadScheduledExecutor();
+        autosaver = new DraftAutosaver(db, executor, NOTE_ID);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void typingIsWrittenOnce() throws Exception {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        for (char c : "Call the plumber about the sink".toCharArray()) {
+            text.append(c);
+            autosaver.afterTextChanged(text);
+        }
+        autosaver.flush();
+        drain();
+
+        assertEquals(1, writes.get());
+        Draft draft = db.getLatestDraft();
+        assertEquals(NOTE_ID, draft.getNoteId());
+        assertEquals("Call the plumber about the sink", draft.getText());
+
+        // nothing new to write
+        autosaver.flush();
+        drain();
+        assertEquals(1, writes.get());
+    }
+
+    @Test
+    public void unchangedTextIsNotWrittenAgain() throws Exception {
+        autosaver.afterTextChanged(new SpannableStringBuilder("Tiles"));
+        autosaver.flush();
+        drain();
+        autosaver.afterTextChanged(new SpannableStringBuilder("Tiles"));
+        autosaver.flush();
+        drain();
+
+        assertEquals(1, writes.get());
+    }
+
+    @Test
+    public void discardedDraftStaysGoneAfterAWriteInFlight() throws Exception {
+        writeStarted = new CountDownLatch(1);
+        writeMayFinish = new CountDownLatch(1);
+        autosaver.afterTextChanged(new SpannableStringBuilder("Order tiles"));
+        autosaver.flush();
+        await(writeStarted);
+
+        // the write is under way while the note gets saved
+        autosaver.discard();
+        writeMayFinish.countDown();
+        autosaver.afterTextChanged(new SpannableStringBuilder("Order tiles!"));
+        autosaver.flush();
+        drain();
+
+        assertNull(db.getLatestDraft());
+        assertEquals(1, writes.get());
+    }
+
+    // waits for everything queued on the executor so far
+    private void drain() throws Exception {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package my.homelane.app.view;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import my.homelane.app.database.DatabaseHelper;
+import my.homelane.app.database.NoteQuery;
+import my.homelane.app.database.model.MonthBucket;
+import my.homelane.app.database.model.Note;
+
+import static org.junit.Assert.*;
+
+/**
+ * The month bucket query and the sections built from it, on the host JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MonthSectionsTest {
+
+    private static final String DATABASE = "month_sections_test";
+
+    private Context context;
+    private DatabaseHelper db;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(DATABASE);
+        db = new DatabaseHelper(context, DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void bucketsCountLiveNotesPerMonth() {
+        insert("2018-04-20 09:00:00");
+        long tagged = insert("2018-04-11 17:30:00");
+        insert("2018-04-01 08:15:00");
+        insert("2018-02-14 12:00:00");
+        insert("2017-12-31 23:59:59");
+        insert("2017-12-01 00:00:00");
+        db.softDeleteNote(insert("2018-03-05 10:00:00"));
+        long tagId = db.addTag("Smith house");
+        db.setNoteTags(tagged, Collections.singleton(tagId));
+
+        List<MonthBucket> buckets = db.getMonthBuckets(NoteQuery.ALL);
+        assertEquals(3, buckets.size());
+        assertBucket("2018-04", 3, buckets.get(0));
+        assertBucket("2018-02", 1, buckets.get(1));
+        assertBucket("2017-12", 2, buckets.get(2));
+
+        List<MonthBucket> tagBuckets = db.getMonthBuckets(NoteQuery.forTag(tagId));
+        assertEquals(1, tagBuckets.size());
+        assertBucket("2018-04", 1, tagBuckets.get(0));
+
+        // months only mean something when the list is in the order notes were written
+        assertTrue(db.getMonthBuckets(NoteQuery.ALL.withSort(NoteQuery.SORT_TEXT)).isEmpty());
+    }
+
+    @Test
+    public void sectionsFollowTheList() {
+        MonthSections sections = new MonthSections();
+        sections.setBuckets(Arrays.asList(new MonthBucket("2018-04", 3),
+                new MonthBucket("2018-02", 1), new MonthBucket("2017-12", 2)));
+
+        assertEquals(3, sections.size());
+        assertEquals(0, sections.getOffset(0));
+        assertEquals(3, sections.getOffset(1));
+        assertEquals(4, sections.getOffset(2));
+        assertEquals(0, sections.sectionAt(2));
+        assertEquals(1, sections.sectionAt(3));
+        assertEquals(2, sections.sectionAt(5));
+        assertTrue(sections.isSectionStart(4));
+        assertFalse(sections.isSectionStart(5));
+
+        // a month in between gets its own section, later ones move down
+        sections.add(note("2018-03-05 10:00:00"));
+        assertEquals(4, sections.size());
+        assertEquals("2018-03", sections.getMonth(1));
+        assertEquals(3, sections.getOffset(1));
+        assertEquals(5, sections.getOffset(3));
+
+        // the last note of a month takes its section along
+        sections.remove(note("2018-02-14 12:00:00"));
+        assertEquals(3, sections.size());
+        assertEquals("2017-12", sections.getMonth(2));
+        assertEquals(4, sections.getOffset(2));
+
+        sections.add(note("2018-04-30 18:00:00"));
+        assertEquals(3, sections.size());
+        assertEquals(4, sections.getOffset(1));
+    }
+
+    private long insert(String timestamp) {
+        long id = db.insertNote("Note of " + timestamp);
+        ContentValues values = new ContentValues();
+        values.put(Note.COLUMN_TIMESTAMP, timestamp);
+        db.getWritableDatabase().update(Note.TABLE_NAME, values, Note.COLUMN_ID + " = ?",
+                new String[]{String.valueOf(id)});
+        return id;
+    }
+
+    private static Note note(String timestamp) {
+        return new Note(0, "", timestamp, null);
+    }
+
+    private static void assertBucket(String month, int count, MonthBucket bucket) {
+        assertEquals(month, bucket.getMonth());
+        assertEquals(count, bucket.getCount());
+    }
+}